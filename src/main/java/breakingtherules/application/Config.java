@@ -1,5 +1,6 @@
 package breakingtherules.application;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
@@ -14,6 +15,7 @@ import breakingtherules.dao.csv.CSVHitsDao;
 import breakingtherules.dao.elastic.ElasticHitsDao;
 import breakingtherules.dao.xml.XMLHitsDao;
 import breakingtherules.dao.xml.XMLRulesDao;
+import breakingtherules.service.HitsWarmup;
 import breakingtherules.service.InformationAlgorithm;
 import breakingtherules.service.SimpleAlgorithm;
 import breakingtherules.service.SuggestionsAlgorithm;
@@ -77,11 +79,19 @@ public class Config {
 	return new ElasticHitsDao();
     }
 
-    @Bean
+    @Bean(destroyMethod = "close")
     public XMLRulesDao xmlRulesDao() {
 	return new XMLRulesDao();
     }
 
+    /* ------- Warm-up ------- */
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public HitsWarmup hitsWarmup(@Value("${breakingtherules.warmup.enabled:false}") final boolean enabled,
+	    @Value("${breakingtherules.warmup.jobs:8}") final int jobs) {
+	return new HitsWarmup(hitsDao(), rulesDao(), enabled, jobs);
+    }
+
     /* ------- Other ------- */
 
     @Bean
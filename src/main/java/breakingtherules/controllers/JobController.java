@@ -15,6 +15,7 @@ import org.springframework.web.multipart.MultipartFile;
 import breakingtherules.dao.DaoConfig;
 import breakingtherules.dao.ParseException;
 import breakingtherules.dao.csv.CSVHitsParser;
+import breakingtherules.dto.HitsPreviewDto;
 import breakingtherules.firewall.Filter;
 import breakingtherules.firewall.Rule;
 import breakingtherules.session.JobManager;
@@ -68,6 +69,44 @@ public class JobController {
 	m_jobManager.createJob(jobName, hitsFile, CSVHitsParser.DEFAULT_COLUMNS_TYPES, new Rule(Filter.ANY_FILTER));
     }
 
+    /**
+     * Preview a CSV hits file before a job is created with it.
+     *
+     * @param hitsFile
+     *            the previewed CSV hits file.
+     * @return sample hits of the file and estimations of the job created with
+     *         it.
+     * @throws IOException
+     *             if any I/O errors occurs when processing the file.
+     * @throws ParseException
+     *             if any parse errors occurs when processing the file.
+     * @throws NullPointerException
+     *             if the file is null.
+     */
+    @RequestMapping(value = "/job/preview", method = RequestMethod.POST)
+    public HitsPreviewDto previewHits(@RequestParam(value = "hits_file") final MultipartFile hitsFile)
+	    throws IOException, ParseException {
+	return m_jobManager.previewHits(hitsFile, CSVHitsParser.DEFAULT_COLUMNS_TYPES);
+    }
+
+    /**
+     * Append the hits of a CSV hits file to the current job.
+     *
+     * @param hitsFile
+     *            the appended CSV hits file.
+     * @throws IOException
+     *             if any I/O errors occurs when processing the file.
+     * @throws ParseException
+     *             if any parse errors occurs when processing the file.
+     * @throws NullPointerException
+     *             if the file is null.
+     */
+    @RequestMapping(value = "/job/hits", method = RequestMethod.POST)
+    public void appendHits(@RequestParam(value = "hits_file") final MultipartFile hitsFile)
+	    throws IOException, ParseException {
+	m_jobManager.appendHits(hitsFile, CSVHitsParser.DEFAULT_COLUMNS_TYPES);
+    }
+
     /**
      * Request to handle a new job.
      * <p>
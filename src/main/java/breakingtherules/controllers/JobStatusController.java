@@ -6,8 +6,10 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
 
 import breakingtherules.dto.JobStatusDto;
+import breakingtherules.dto.WarmupStatusDto;
 import breakingtherules.firewall.Filter;
 import breakingtherules.firewall.Rule;
+import breakingtherules.service.HitsWarmup;
 import breakingtherules.session.JobManager;
 
 /**
@@ -32,6 +34,12 @@ public class JobStatusController {
     @Autowired
     private JobManager m_jobManager;
 
+    /**
+     * The background warm-up of the existing jobs
+     */
+    @Autowired
+    private HitsWarmup m_hitsWarmup;
+
     /**
      * Get the current status of the job - the number of hits in every category,
      * the amount of work achieved and left, etc.
@@ -43,6 +51,17 @@ public class JobStatusController {
 	return createStatusDto(m_jobManager);
     }
 
+    /**
+     * Get the status of the background warm-up of the existing jobs - the
+     * number of jobs that were loaded and the job that is currently loaded.
+     *
+     * @return The warm-up status
+     */
+    @RequestMapping(value = "/status/warmup", method = RequestMethod.GET)
+    public WarmupStatusDto getWarmupStatus() {
+	return m_hitsWarmup.getStatus();
+    }
+
     /**
      * Helper function that uses the Job API to create a JobStatusDTO
      *
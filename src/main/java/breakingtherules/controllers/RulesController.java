@@ -94,10 +94,16 @@ public class RulesController {
      * @param response
      *            The HTTP response
      * @return A file that holds all of the current job's rules
+     * @throws IOException
+     *             if failed to write the rules file.
+     * @throws ParseException
+     *             if any parse errors occurs in the data.
+     * @throws NoCurrentJobException
+     *             if the job wasn't set yet.
      */
     @RequestMapping(value = "/rulesFile", method = RequestMethod.GET, produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
     public FileSystemResource rulesFile(@SuppressWarnings("unused") final HttpServletRequest request,
-	    final HttpServletResponse response) {
+	    final HttpServletResponse response) throws IOException, ParseException {
 	response.setHeader("Content-Disposition", "attachment; filename=\"rules.xml\"");
 	// TODO - remove 'request' parameter (?) - unused
 	return m_jobManager.getRulesFile();
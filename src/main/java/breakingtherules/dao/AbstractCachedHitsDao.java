@@ -1,28 +1,40 @@
 package breakingtherules.dao;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
+import breakingtherules.dto.HitsPreviewDto;
 import breakingtherules.dto.ListDto;
 import breakingtherules.firewall.Filter;
 import breakingtherules.firewall.Hit;
 import breakingtherules.firewall.Rule;
-import breakingtherules.util.Object2ObjectCache;
-import breakingtherules.util.Object2ObjectHeavySynchronizedBucketHashCache;
-import breakingtherules.util.Triple;
-import breakingtherules.util.Triple.UnmodifiableTriple;
+import breakingtherules.util.Object2ObjectLRUCache;
 import breakingtherules.util.Utility;
 
 /**
  * An implementation of {@link HitsDao} with cache.
  * <p>
  * The DAO caches the hits that are provided by the sub class by the
- * {@link #getHits(String)} abstract method.
+ * {@link #getHits(String)} abstract method. The hits of each job are kept in a
+ * bitmap index, so filtering and counting hits by rules and filter are done by
+ * bitwise operations on the rules and filter bitmaps.
+ * <p>
+ * The cached indexes are bounded by a memory budget (see
+ * {@link #setMemoryBudget(long)}), and the least recently used jobs are
+ * evicted when the budget is exceeded. After the hits of a job are parsed for
+ * the first time, they are written to a binary columnar snapshot file (see
+ * {@link #getSnapshotFile(String)}), and when the job is loaded again (for
+ * example after it was evicted) it's read from the snapshot instead of parsing
+ * the original hits file, as long as the hits file wasn't changed since the
+ * snapshot was created.
  *
  * @author Barak Ugav
  * @author Yishai Gronich
@@ -31,78 +43,57 @@ import breakingtherules.util.Utility;
 public abstract class AbstractCachedHitsDao implements HitsDao {
 
     /**
-     * Cache for loaded hits.
+     * Cache for loaded hits indexes, bounded by the memory budget.
      */
-    private final Object2ObjectCache<String, List<Hit>> m_hitsCache;
+    private final Object2ObjectLRUCache<String, HitsIndex> m_hitsCache;
 
     /**
-     * Cache for hits number by filter and rules.
-     * <p>
-     * The 'number of hits' cache is keyed by the hits jobName, rules (which are
-     * stored in a set, because there order doesn't matter) and filter.
+     * The default memory budget of the cached indexes, half of the maximal
+     * heap size.
      */
-    private final Object2ObjectCache<UnmodifiableTriple<String, Set<Rule>, Filter>, Integer> m_totalHitsCache;
+    private static final long DEFAULT_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 2;
 
     /**
-     * Supplier function of the 'hits number'.
+     * States of the jobs, by their names.
      * <p>
-     * Used by {@link Object2ObjectCache#getOrAdd(Object, Function)
-     * cache.getOrAdd(key, Function)}.
-     *
-     * @see #getHitsNumber(String, Iterable, Filter)
+     * A job is loaded or changed while the lock of its state is held, so
+     * concurrent first requests of the same job load it only once, and an
+     * append doesn't run concurrently with a load of the same job. Jobs with
+     * different names are loaded in parallel.
      */
-    private final Function<Triple<String, Set<Rule>, Filter>, Integer> m_hitsNumberSupplier = triple -> {
-	try {
-	    final String jobName = triple.getFirst();
-	    final Set<Rule> rules = triple.getSecond();
-	    final Filter filter = triple.getThird();
-	    final List<Hit> hits = getHitsInternal(jobName);
-
-	    int hitsNumber = 0;
-	    if (rules.isEmpty() && filter.equals(Filter.ANY_FILTER))
-		// No filtering needed
-		hitsNumber = hits.size();
-	    else
-		for (final Hit hit : hits)
-		    if (DaoUtils.isMatch(hit, rules, filter))
-			hitsNumber++;
-	    return Integer.valueOf(hitsNumber);
+    private final ConcurrentMap<String, JobState> m_jobsStates;
 
-	} catch (final IOException e) {
-	    throw new UncheckedIOException(e);
-	} catch (final ParseException e) {
-	    throw new UncheckedParseException(e);
-	}
-    };
+    /**
+     * Construct new AbstractCachedHitsDao.
+     */
+    protected AbstractCachedHitsDao() {
+	m_hitsCache = new Object2ObjectLRUCache<>(DEFAULT_MEMORY_BUDGET, this::weigh, this::writeEvictedSnapshot);
+	m_jobsStates = new ConcurrentHashMap<>();
+    }
 
     /**
-     * Supplier function of hits.
-     * <p>
-     * Used by {@link Object2ObjectCache#getOrAdd(Object, Function)
-     * cache.getOrAdd(key, Function)}.
+     * Get the memory budget of the cached jobs.
      *
-     * @see #getHitsInternal(String)
+     * @return the maximal number of bytes used by the cached jobs.
      */
-    private final Function<String, List<Hit>> m_hitsSupplier = jobName -> {
-	try {
-	    // Don't let anyone change the cache.
-	    // We are using array list here for faster iterations.
-
-	    final Iterable<Hit> hits = getHits(jobName);
-	    return Collections.unmodifiableList(hits instanceof List ? (List<Hit>) hits : Utility.newArrayList(hits));
-	} catch (final IOException e) {
-	    throw new UncheckedIOException(e);
-	} catch (final ParseException e) {
-	    throw new UncheckedParseException(e);
-	}
-    };
+    public long getMemoryBudget() {
+	return m_hitsCache.maxWeight();
+    }
 
     /**
-     * Construct new AbstractCachedHitsDao.
+     * Set the memory budget of the cached jobs.
+     * <p>
+     * If the cached jobs use more than the new budget, the least recently used
+     * jobs are evicted. The most recently used job is always kept, even if
+     * it's bigger than the budget by itself.
+     *
+     * @param bytes
+     *            the maximal number of bytes used by the cached jobs.
+     * @throws IllegalArgumentException
+     *             if bytes is not positive.
      */
-    protected AbstractCachedHitsDao() {
-	m_hitsCache = new Object2ObjectHeavySynchronizedBucketHashCache<>();
-	m_totalHitsCache = new Object2ObjectHeavySynchronizedBucketHashCache<>();
+    public void setMemoryBudget(final long bytes) {
+	m_hitsCache.setMaxWeight(bytes);
     }
 
     /**
@@ -111,14 +102,20 @@ public abstract class AbstractCachedHitsDao implements HitsDao {
     @Override
     public final Iterable<Hit> getHits(final String jobName, final Iterable<Rule> rules, final Filter filter)
 	    throws ParseException, IOException {
-	final List<Hit> hits = getHitsInternal(jobName);
+	return getHitsIndex(jobName).getMatchingIterable(rules, filter);
+    }
 
-	// Filter hits by the rules and filter.
-	final List<Hit> filteredHits = new ArrayList<>();
-	for (final Hit hit : hits)
-	    if (DaoUtils.isMatch(hit, rules, filter))
-		filteredHits.add(hit);
-	return filteredHits;
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The stream iterates over the rules and filter bitmaps of the job's
+     * index, it knows its exact size and splits the bitmaps by ranges of
+     * words.
+     */
+    @Override
+    public final Stream<Hit> getHitsStream(final String jobName, final Iterable<Rule> rules, final Filter filter)
+	    throws IOException, ParseException {
+	return getHitsIndex(jobName).getMatchingStream(rules, filter);
     }
 
     /**
@@ -127,53 +124,128 @@ public abstract class AbstractCachedHitsDao implements HitsDao {
     @Override
     public final ListDto<Hit> getHitsList(final String jobName, final Iterable<Rule> rules, final Filter filter)
 	    throws IOException, ParseException {
-	final List<Hit> hits = getHitsInternal(jobName);
-
-	// Filter hits by the rules and filter.
-	final List<Hit> filteredHits = new ArrayList<>();
-	for (final Hit hit : hits)
-	    if (DaoUtils.isMatch(hit, rules, filter))
-		filteredHits.add(hit);
+	final List<Hit> filteredHits = getHitsIndex(jobName).getMatchingHits(rules, filter);
 	final int size = filteredHits.size();
-
-	m_totalHitsCache.add(
-		new UnmodifiableTriple<>(jobName, Collections.unmodifiableSet(Utility.newHashSet(rules)), filter),
-		Integer.valueOf(size));
 	return new ListDto<>(filteredHits, 0, size, size);
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The cursor starts from the closest cached checkpoint of the rules and
+     * filter, so deep pages doesn't require filtering all the previous hits.
      */
     @Override
-    public final ListDto<Hit> getHitsList(final String jobName, final Iterable<Rule> rules, final Filter filter,
-	    final int startIndex, final int endIndex) throws IOException, ParseException {
-	final List<Hit> allHits = getHitsList(jobName, rules, filter).getData();
-	final int totalSize = getHitsNumber(jobName, rules, filter);
-	if (allHits.isEmpty())
-	    return new ListDto<>(Collections.emptyList(), 0, 0, totalSize);
-	final List<Hit> hits = Utility.subListView(allHits, startIndex, endIndex - startIndex);
-	return new ListDto<>(hits, Math.min(startIndex, totalSize - 1), Math.min(endIndex, totalSize), totalSize);
+    public final Iterator<Hit> getHitsCursor(final String jobName, final Iterable<Rule> rules, final Filter filter,
+	    final int startIndex) throws IOException, ParseException {
+	if (startIndex < 0)
+	    throw new IllegalArgumentException("startIndex < 0: " + startIndex);
+	return getHitsIndex(jobName).getMatchingCursor(rules, filter, startIndex);
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The hits numbers are cached by the job's index in a bounded cache, keyed
+     * by the rules list and filter state, and the 'uncovered' bitmaps of rules
+     * lists are reused by rules lists with the same prefix.
      */
     @Override
     public final int getHitsNumber(final String jobName, final Iterable<Rule> rules, final Filter filter)
 	    throws IOException, ParseException {
+	return getHitsIndex(jobName).getMatchingNumber(rules, filter, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final int getUniqueHitsNumber(final String jobName, final Iterable<Rule> rules, final Filter filter)
+	    throws IOException, ParseException {
+	return getHitsIndex(jobName).getMatchingNumber(rules, filter, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The hits are written by {@link #writeAppendedHits(String, List)}. If the
+     * job is cached, its index is extended by the appended hits, reusing its
+     * cached bitmaps, so the cost of appending is mostly proportional to the
+     * number of appended hits. The job's snapshot is deleted, and it's written
+     * again when the job is evicted from the cache or loaded again.
+     * <p>
+     * The hits are appended while the job's lock is held, so a load of the job
+     * that started before the append completes before the hits are written,
+     * and its index is extended too.
+     */
+    @Override
+    public void appendHits(final String jobName, final Iterable<Hit> hits) throws IOException, ParseException {
+	final List<Hit> appended = Utility.newArrayList(hits);
+	final JobState job = getJobState(jobName);
+	job.m_lock.lock();
+	try {
+	    writeAppendedHits(jobName, appended);
+
+	    final File snapshot = getSnapshotFile(jobName);
+	    if (snapshot != null)
+		snapshot.delete();
+	    final HitsIndex index = m_hitsCache.get(jobName);
+	    final HitsIndex appendedIndex = index != null ? index.append(appended) : null;
+	    // An evicted index of the job is stale now
+	    job.setLatest(appendedIndex);
+	    if (index != null) {
+		m_hitsCache.remove(jobName);
+		m_hitsCache.add(jobName, appendedIndex);
+	    }
+	} finally {
+	    job.m_lock.unlock();
+	}
+    }
+
+    /**
+     * Cache the hits of a new job.
+     * <p>
+     * Used by implementations that parse the hits of a new job while its
+     * repository is initiated, so the job is not parsed again when it's first
+     * used. The job's index is built from the hits and its snapshot is
+     * written, any cached index of the job is replaced.
+     *
+     * @param jobName
+     *            name of the job.
+     * @param hits
+     *            all (unique) hits of the job.
+     */
+    protected void cacheJob(final String jobName, final Iterable<Hit> hits) {
+	final HitsIndex index = new HitsIndex(hits);
+	final JobState job = getJobState(jobName);
+	job.m_lock.lock();
 	try {
-	    return m_totalHitsCache.getOrAdd(
-		    new UnmodifiableTriple<>(jobName, Collections.unmodifiableSet(Utility.newHashSet(rules)), filter),
-		    m_hitsNumberSupplier).intValue();
-
-	} catch (final UncheckedIOException e) {
-	    throw e.getCause();
-	} catch (final UncheckedParseException e) {
-	    throw e.getCause();
+	    final File snapshot = getSnapshotFile(jobName);
+	    if (snapshot != null)
+		// Snapshot of a previous job with the same name
+		snapshot.delete();
+	    writeSnapshot(jobName, index);
+	    job.setLatest(index);
+	    m_hitsCache.remove(jobName);
+	    m_hitsCache.add(jobName, index);
+	} finally {
+	    job.m_lock.unlock();
 	}
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The memory used by the job is estimated by the size of an index of the
+     * estimated unique hits.
+     */
+    @Override
+    public HitsPreviewDto previewHits(final String hitsFile, final List<Integer> columnsTypes)
+	    throws IOException, ParseException {
+	final HitsPreviewDto preview = HitsDao.super.previewHits(hitsFile, columnsTypes);
+	return new HitsPreviewDto(preview, HitsIndex.estimateBytes(preview.getEstimatedUniqueHitsNumber()));
+    }
+
     /**
      * Get all (unique) hits that match the job.
      * <p>
@@ -189,26 +261,241 @@ public abstract class AbstractCachedHitsDao implements HitsDao {
     protected abstract Iterable<Hit> getHits(String jobName) throws IOException, ParseException;
 
     /**
-     * Get all hits, used internally.
+     * Write hits that are appended to a job to the job's repository.
      * <p>
+     * The default implementation throws {@link UnsupportedOperationException}.
      *
      * @param jobName
      *            name of the job.
-     * @return all hits, maybe from cache. (unmodifiable list)
+     * @param hits
+     *            the appended hits.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws UnsupportedOperationException
+     *             if the DAO doesn't support appending hits.
+     */
+    protected void writeAppendedHits(final String jobName, final List<Hit> hits) throws IOException {
+	throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Get the file the hits of a job are parsed from.
+     * <p>
+     * Used to check if the snapshot of the job is up to date. The default
+     * implementation returns null, which means the hits are not stored in a
+     * file and their snapshot is never used.
+     *
+     * @param jobName
+     *            name of the job.
+     * @return the hits file of the job, or null if there is no such file.
+     */
+    protected File getHitsFile(final String jobName) {
+	return null;
+    }
+
+    /**
+     * Get the snapshot file of a job, to which the job's hits are written after
+     * they are parsed.
+     * <p>
+     * The default implementation returns the {@link DaoConfig#getHitsSnapshotFile(String)
+     * repository snapshot file} if the job has a hits file, else null.
+     *
+     * @param jobName
+     *            name of the job.
+     * @return the snapshot file of the job, or null if the job should not have
+     *         a snapshot.
+     */
+    protected File getSnapshotFile(final String jobName) {
+	return getHitsFile(jobName) != null ? DaoConfig.getHitsSnapshotFile(jobName) : null;
+    }
+
+    /**
+     * Load the hits index of a job.
+     * <p>
+     * The hits are read from the job's snapshot if it's up to date. Otherwise,
+     * they are parsed by {@link #getHits(String)} and the snapshot is written,
+     * so the next loads of the job will not parse the original hits again.
+     *
+     * @param jobName
+     *            name of the job.
+     * @return new index of the job's hits.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws ParseException
+     *             if any parse errors occurs.
+     */
+    private HitsIndex loadIndex(final String jobName) throws IOException, ParseException {
+	final File snapshot = getSnapshotFile(jobName);
+	if (snapshot != null && HitsSnapshot.isUpToDate(snapshot, getHitsFile(jobName))) {
+	    try {
+		return new HitsIndex(HitsSnapshot.read(snapshot));
+	    } catch (final IOException | ParseException e) {
+		// Broken snapshot, fall back to the original hits
+		snapshot.delete();
+	    }
+	}
+	final HitsIndex index = new HitsIndex(getHits(jobName));
+	writeSnapshot(jobName, index);
+	return index;
+    }
+
+    /**
+     * Write the snapshot of a job that was evicted from the cache.
+     * <p>
+     * The snapshot is written only if the evicted index is the latest index of
+     * the job, an index that was evicted before hits were appended to the job
+     * is stale. The eviction may happen while the lock of another job is held,
+     * so if the job is locked the snapshot is not written, rather than waiting
+     * for the lock.
+     *
+     * @param jobName
+     *            name of the job.
+     * @param index
+     *            the evicted index of the job.
+     */
+    private void writeEvictedSnapshot(final String jobName, final HitsIndex index) {
+	final JobState job = getJobState(jobName);
+	if (!job.m_lock.tryLock())
+	    return;
+	try {
+	    if (job.isLatest(index))
+		writeSnapshot(jobName, index);
+	} finally {
+	    job.m_lock.unlock();
+	}
+    }
+
+    /**
+     * Write the snapshot of a job's hits, if the job has no up to date
+     * snapshot.
+     * <p>
+     * Called after the job's hits are parsed, and when the job is evicted from
+     * the cache, while the job's lock is held. Writing the snapshot is best
+     * effort, if the snapshot can't be written the job will be reloaded from
+     * its original hits.
+     *
+     * @param jobName
+     *            name of the job.
+     * @param index
+     *            the index of the job.
+     */
+    private void writeSnapshot(final String jobName, final HitsIndex index) {
+	final File snapshot = getSnapshotFile(jobName);
+	if (snapshot == null || HitsSnapshot.isUpToDate(snapshot, getHitsFile(jobName)))
+	    return;
+	try {
+	    HitsSnapshot.write(index.getHits(), snapshot, getHitsFile(jobName));
+	} catch (final IOException e) {
+	    snapshot.delete();
+	}
+    }
+
+    /**
+     * Get the weight of an index in the jobs cache.
+     * <p>
+     * The weight is the estimated size of the index, but not more than the
+     * memory budget, so the most recently used job is always cached.
+     *
+     * @param index
+     *            the index.
+     * @return the weight of the index.
+     */
+    private long weigh(final HitsIndex index) {
+	return Math.min(index.getEstimatedBytes(), m_hitsCache.maxWeight());
+    }
+
+    /**
+     * Get the hits index of a job, used internally.
+     * <p>
+     *
+     * @param jobName
+     *            name of the job.
+     * @return the index of all the job's hits, maybe from cache.
      * @throws ParseException
      *             if the data in the file is invalid.
      * @throws IOException
      *             if any I/O errors occurs.
      */
-    private List<Hit> getHitsInternal(final String jobName) throws ParseException, IOException {
+    private HitsIndex getHitsIndex(final String jobName) throws ParseException, IOException {
+	final HitsIndex cached = m_hitsCache.get(jobName);
+	if (cached != null)
+	    return cached;
+	final JobState job = getJobState(jobName);
+	job.m_lock.lock();
 	try {
-	    return m_hitsCache.getOrAdd(jobName, m_hitsSupplier);
+	    // The job may have been loaded while waiting for the lock
+	    final HitsIndex index = m_hitsCache.get(jobName);
+	    if (index != null)
+		return index;
+	    final HitsIndex loaded = loadIndex(jobName);
+	    job.setLatest(loaded);
+	    return m_hitsCache.add(jobName, loaded);
+	} finally {
+	    job.m_lock.unlock();
+	}
+    }
 
-	} catch (final UncheckedIOException e) {
-	    throw e.getCause();
-	} catch (final UncheckedParseException e) {
-	    throw e.getCause();
+    /**
+     * Get the state of a job.
+     *
+     * @param jobName
+     *            name of the job.
+     * @return the state of the job.
+     */
+    private JobState getJobState(final String jobName) {
+	return m_jobsStates.computeIfAbsent(jobName, name -> new JobState());
+    }
+
+    /**
+     * The state of a job, its lock and its latest index.
+     *
+     * @author Barak Ugav
+     * @author Yishai Gronich
+     *
+     */
+    private static class JobState {
+
+	/**
+	 * The lock of the job, held while the job is loaded or changed.
+	 */
+	final ReentrantLock m_lock;
+
+	/**
+	 * The latest index of the job, guarded by the lock. The reference is
+	 * weak, so an evicted index is not kept in memory.
+	 */
+	private Reference<HitsIndex> m_latest;
+
+	/**
+	 * Construct new JobState.
+	 */
+	JobState() {
+	    m_lock = new ReentrantLock();
+	    m_latest = new WeakReference<>(null);
 	}
+
+	/**
+	 * Check if an index is the latest index of the job.
+	 *
+	 * @param index
+	 *            the index.
+	 * @return true if the index is the latest index of the job.
+	 */
+	boolean isLatest(final HitsIndex index) {
+	    return m_latest.get() == index;
+	}
+
+	/**
+	 * Set the latest index of the job.
+	 *
+	 * @param index
+	 *            the latest index, or null if the job has no up to date
+	 *            index.
+	 */
+	void setLatest(final HitsIndex index) {
+	    m_latest = new WeakReference<>(index);
+	}
+
     }
 
 }
\ No newline at end of file
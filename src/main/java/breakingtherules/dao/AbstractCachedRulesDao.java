@@ -142,6 +142,22 @@ public abstract class AbstractCachedRulesDao implements RulesDao {
 	return new ListDto<>(subRulesList, startIndex, endIndex, total);
     }
 
+    /**
+     * Remove the cached rules and original rule of a job.
+     * <p>
+     * Used by subclasses after the rules of a job were changed, so the next
+     * request of the rules will get them from
+     * {@link #getRulesInternal(String)} and
+     * {@link #getOriginalRuleInternal(String)}.
+     *
+     * @param jobName
+     *            the job name.
+     */
+    protected void invalidateCache(final String jobName) {
+	m_rulesCache.remove(jobName);
+	m_originalRulesCache.remove(jobName);
+    }
+
     /**
      * Get the original rule of a job.
      * <p>
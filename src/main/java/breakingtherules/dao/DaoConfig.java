@@ -3,6 +3,7 @@ package breakingtherules.dao;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
@@ -23,6 +24,11 @@ public class DaoConfig {
      */
     private static final String REPOS_ROOT = "repository";
 
+    /**
+     * Name of the hits snapshot file in each repository.
+     */
+    private static final String HITS_SNAPSHOT_FILE_NAME = "hits.snapshot";
+
     /**
      * Suppresses default constructor, ensuring non-instantiability.
      */
@@ -35,7 +41,8 @@ public class DaoConfig {
      */
     public static List<String> getExistingRepositories() {
 	final File reposRoot = new File(REPOS_ROOT);
-	return Arrays.asList(reposRoot.list());
+	final String[] repositories = reposRoot.list();
+	return repositories != null ? Arrays.asList(repositories) : Collections.emptyList();
     }
 
     /**
@@ -49,6 +56,20 @@ public class DaoConfig {
 	return new StringBuilder().append(REPOS_ROOT).append('/').append(Objects.requireNonNull(jobName)).toString();
     }
 
+    /**
+     * Get the file of the hits snapshot of a job.
+     * <p>
+     * The snapshot is a binary copy of the job's hits that is written by
+     * {@link AbstractCachedHitsDao} after the job's hits are parsed.
+     *
+     * @param jobName
+     *            name of the job.
+     * @return the hits snapshot file of the job.
+     */
+    public static File getHitsSnapshotFile(final String jobName) {
+	return new File(getRepoRoot(jobName), HITS_SNAPSHOT_FILE_NAME);
+    }
+
     /**
      * Initiate a repository for a new job with the given name
      *
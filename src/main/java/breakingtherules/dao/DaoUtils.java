@@ -3,6 +3,7 @@ package breakingtherules.dao;
 import breakingtherules.firewall.Filter;
 import breakingtherules.firewall.Hit;
 import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.RuleClassifier;
 
 /**
  * The DaoUtilities class is a set of static utils methods for DAO objects.
@@ -41,4 +42,23 @@ public class DaoUtils {
 	return true;
     }
 
+    /**
+     * Check if a hit is match to a compiled list of rules and a filter
+     * <p>
+     * Equivalent to {@link #isMatch(Hit, Iterable, Filter)}, but the rules are
+     * checked by a {@link RuleClassifier}, so the check time doesn't depend on
+     * the number of rules.
+     *
+     * @param hit
+     *            the hit that being checked
+     * @param rules
+     *            classifier of the rules to check on the hit
+     * @param filter
+     *            filter to check on the hit
+     * @return true if hit match all rules and filter, else - false
+     */
+    public static boolean isMatch(final Hit hit, final RuleClassifier rules, final Filter filter) {
+	return filter.isMatch(hit) && !rules.isMatch(hit);
+    }
+
 }
@@ -1,13 +1,28 @@
 package breakingtherules.dao;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import breakingtherules.dao.csv.CSVHitsParser;
+import breakingtherules.dto.HitsPreviewDto;
 import breakingtherules.dto.ListDto;
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Attribute.AttributeType;
 import breakingtherules.firewall.Filter;
 import breakingtherules.firewall.Hit;
 import breakingtherules.firewall.Rule;
-import breakingtherules.util.Utility;
+import breakingtherules.util.MutableInteger;
 
 /**
  * Component that supply hits from repository.
@@ -42,8 +57,39 @@ public interface HitsDao {
 	    throws IOException, ParseException;
 
     /**
-     * Get the number of (unique) hits in the job, that pass all the rules and
-     * are under filter
+     * Get a stream of the unique hits filtered by filter and rules.
+     * <p>
+     * The stream filters the hits lazily, and it may be used in parallel. The
+     * default implementation streams the hits of
+     * {@link #getHits(String, Iterable, Filter)}, implementations should
+     * provide a stream that knows its size and splits efficiently.
+     *
+     * @param jobName
+     *            the name of the job.
+     * @param rules
+     *            current rules, act like additional filters.
+     * @param filter
+     *            current filter.
+     * @return stream of all unique hits that match the rules and filter.
+     * @throws IOException
+     *             if failed to read from memory.
+     * @throws ParseException
+     *             if any parse errors occurs in the data.
+     * @throws NullPointerException
+     *             if the rules or the filter is null.
+     */
+    default Stream<Hit> getHitsStream(final String jobName, final Iterable<Rule> rules, final Filter filter)
+	    throws IOException, ParseException {
+	return StreamSupport.stream(getHits(jobName, rules, filter).spliterator(), false);
+    }
+
+    /**
+     * Get the number of hits in the job, that pass all the rules and are under
+     * filter
+     * <p>
+     * Each unique hit is counted by its weight (see {@link Hit#getWeight()}),
+     * so the number is the number of the job's records and not the number of
+     * the unique hits.
      *
      * @param jobName
      *            Name of the hits' job
@@ -62,6 +108,116 @@ public interface HitsDao {
      */
     public int getHitsNumber(String jobName, Iterable<Rule> rules, Filter filter) throws IOException, ParseException;
 
+    /**
+     * Get the number of unique hits in the job, that pass all the rules and
+     * are under filter.
+     * <p>
+     * Unlike {@link #getHitsNumber(String, Iterable, Filter)}, each unique hit
+     * is counted once regardless of its weight. This is the number of hits
+     * returned by {@link #getHits(String, Iterable, Filter)}, used for paging.
+     * The default implementation counts the hits of
+     * {@link #getHitsStream(String, Iterable, Filter)}.
+     *
+     * @param jobName
+     *            Name of the hits' job
+     * @param rules
+     *            current rules, act like additional filters.
+     * @param filter
+     *            filter of the hits
+     * @return The number of unique hits that are in the job, pass the rules but
+     *         not the filter
+     * @throws IOException
+     *             if failed to read from memory.
+     * @throws ParseException
+     *             if any parse errors occurs in the data.
+     * @throws NullPointerException
+     *             if the rules or the filter is null.
+     */
+    default int getUniqueHitsNumber(final String jobName, final Iterable<Rule> rules, final Filter filter)
+	    throws IOException, ParseException {
+	try (final Stream<Hit> hits = getHitsStream(jobName, rules, filter)) {
+	    return (int) hits.count();
+	}
+    }
+
+    /**
+     * Get the histogram of one attribute of the hits that pass all the rules
+     * and are under filter.
+     * <p>
+     * Each value of the attribute is mapped to the number of hits (sum of
+     * weights) with it, hits without the attribute are not counted. The
+     * default implementation counts the hits of
+     * {@link #getHitsStream(String, Iterable, Filter)}, DAOs that can
+     * aggregate the hits where they are stored should override it so the hits
+     * are never read.
+     *
+     * @param jobName
+     *            Name of the hits' job
+     * @param rules
+     *            current rules, act like additional filters.
+     * @param filter
+     *            filter of the hits
+     * @param attType
+     *            the type of the counted attribute.
+     * @return map of the attribute's values to the number of hits with them.
+     * @throws IOException
+     *             if failed to read from memory.
+     * @throws ParseException
+     *             if any parse errors occurs in the data.
+     * @throws NullPointerException
+     *             if the rules, the filter or the attribute type is null.
+     */
+    default Map<Attribute, Integer> getAttributeHistogram(final String jobName, final Iterable<Rule> rules,
+	    final Filter filter, final AttributeType attType) throws IOException, ParseException {
+	Objects.requireNonNull(attType);
+	final Map<Attribute, MutableInteger> counts = new HashMap<>();
+	final Function<Attribute, MutableInteger> initFunc = MutableInteger.zeroFunction();
+	try (final Stream<Hit> hits = getHitsStream(jobName, rules, filter)) {
+	    hits.forEach(hit -> {
+		final Attribute att = hit.getAttribute(attType);
+		if (att != null)
+		    counts.computeIfAbsent(att, initFunc).value += hit.getWeight();
+	    });
+	}
+	final Map<Attribute, Integer> histogram = new HashMap<>(counts.size() * 4 / 3 + 1);
+	for (final Map.Entry<Attribute, MutableInteger> count : counts.entrySet())
+	    histogram.put(count.getKey(), Integer.valueOf(count.getValue().value));
+	return histogram;
+    }
+
+    /**
+     * Get a cursor over the (unique) hits that match all rules and filter,
+     * starting from some index of the matching hits.
+     * <p>
+     * The cursor filters the hits lazily, so only the consumed hits are
+     * filtered. The default implementation skips the first hits of
+     * {@link #getHitsStream(String, Iterable, Filter)}, implementations may
+     * locate the start index more efficiently.
+     *
+     * @param jobName
+     *            name of the hits' job
+     * @param rules
+     *            current rules, act like additional filters.
+     * @param filter
+     *            filter of the hits
+     * @param startIndex
+     *            the index of the first hit of the cursor, in the matching
+     *            hits
+     * @return iterator over the matching hits, starting from the start index
+     * @throws IOException
+     *             if failed to read from memory
+     * @throws ParseException
+     *             if any parse errors occurs in the data.
+     * @throws IllegalArgumentException
+     *             if the start index is negative.
+     */
+    default Iterator<Hit> getHitsCursor(final String jobName, final Iterable<Rule> rules, final Filter filter,
+	    final int startIndex) throws IOException, ParseException {
+	if (startIndex < 0)
+	    throw new IllegalArgumentException("startIndex < 0: " + startIndex);
+	return getHitsStream(jobName, rules, filter).skip(startIndex).iterator();
+    }
+
     /**
      * Initiate a repository for this job, with the given hits
      *
@@ -78,6 +234,83 @@ public interface HitsDao {
      */
     public void initJob(String jobName, Iterable<Hit> hits) throws IOException;
 
+    /**
+     * Initiate a repository for this job, with the hits of a CSV stream.
+     * <p>
+     * The stream is parsed once, while it's read, and the job can be used as
+     * soon as this method returns. The default implementation parses the
+     * unique hits of the stream by
+     * {@link CSVHitsParser#parseUniqueHits(List, InputStream)} and initiates
+     * the job with them by {@link #initJob(String, Iterable)}.
+     *
+     * @param jobName
+     *            The name for the new job
+     * @param hitsStream
+     *            CSV stream of the hits that the job should be initiated with,
+     *            maybe compressed. The stream is read until its end but not
+     *            closed.
+     * @param columnsTypes
+     *            The order of the columns in the CSV stream
+     * @throws IllegalArgumentException
+     *             If this job (name) already exists
+     * @throws IOException
+     *             If there was an error reading the stream or writing to IO
+     * @throws ParseException
+     *             if failed to parse the stream.
+     * @throws NullPointerException
+     *             if the stream or the columns types list is null.
+     */
+    default void initJob(final String jobName, final InputStream hitsStream, final List<Integer> columnsTypes)
+	    throws IOException, ParseException {
+	initJob(jobName, CSVHitsParser.parseUniqueHits(columnsTypes, hitsStream));
+    }
+
+    /**
+     * Preview the hits of a CSV file before a job is created with it.
+     * <p>
+     * Only a sample of the file is read (see
+     * {@link CSVHitsParser#preview(List, String)}). The default implementation
+     * doesn't estimate the memory used by the job, DAOs that keep the jobs in
+     * memory should override it and estimate it.
+     *
+     * @param hitsFile
+     *            path to the CSV file, maybe compressed.
+     * @param columnsTypes
+     *            The order of the columns in the CSV file
+     * @return preview of the file's hits.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws ParseException
+     *             if failed to parse the sampled lines.
+     */
+    default HitsPreviewDto previewHits(final String hitsFile, final List<Integer> columnsTypes)
+	    throws IOException, ParseException {
+	return CSVHitsParser.preview(columnsTypes, hitsFile);
+    }
+
+    /**
+     * Append hits to an existing job.
+     * <p>
+     * Appended hits that are equal to existing hits are counted as more
+     * occurrences of them (see {@link Hit#getWeight()}).
+     * <p>
+     * The default implementation throws {@link UnsupportedOperationException}.
+     *
+     * @param jobName
+     *            name of the job.
+     * @param hits
+     *            the appended hits.
+     * @throws IOException
+     *             if any I/O error occurs.
+     * @throws ParseException
+     *             if any parse errors occurs in the existing job's data.
+     * @throws UnsupportedOperationException
+     *             if the DAO doesn't support appending hits.
+     */
+    default void appendHits(final String jobName, final Iterable<Hit> hits) throws IOException, ParseException {
+	throw new UnsupportedOperationException();
+    }
+
     /**
      * Get list of (unique) hits from repository that match all rules and
      * filter.
@@ -96,7 +329,10 @@ public interface HitsDao {
      */
     default ListDto<Hit> getHitsList(final String jobName, final Iterable<Rule> rules, final Filter filter)
 	    throws IOException, ParseException {
-	final List<Hit> hits = Utility.newArrayList(getHits(jobName, rules, filter));
+	final List<Hit> hits;
+	try (final Stream<Hit> stream = getHitsStream(jobName, rules, filter)) {
+	    hits = stream.collect(Collectors.toList());
+	}
 	final int size = hits.size();
 	return new ListDto<>(hits, 0, size, size);
     }
@@ -104,6 +340,9 @@ public interface HitsDao {
     /**
      * Get list of all (unique) hits from repository that match all rules and
      * filter
+     * <p>
+     * The hits are read from {@link #getHitsCursor(String, Iterable, Filter, int)
+     * getHitsCursor}, and only the hits of the requested range are consumed.
      *
      * @param jobName
      *            Name of the hits' job
@@ -124,9 +363,15 @@ public interface HitsDao {
      */
     default ListDto<Hit> getHitsList(final String jobName, final Iterable<Rule> rules, final Filter filter,
 	    final int startIndex, final int endIndex) throws IOException, ParseException {
-	final Iterable<Hit> allHits = getHits(jobName, rules, filter);
-	final int totalSize = getHitsNumber(jobName, rules, filter);
-	final List<Hit> hits = Utility.subList(allHits, startIndex, endIndex - startIndex);
+	if (endIndex < startIndex)
+	    throw new IllegalArgumentException("endIndex < startIndex: " + endIndex + " < " + startIndex);
+	final Iterator<Hit> it = getHitsCursor(jobName, rules, filter, startIndex);
+	final List<Hit> hits = new ArrayList<>();
+	for (int i = startIndex; i < endIndex && it.hasNext(); i++)
+	    hits.add(it.next());
+	final int totalSize = getUniqueHitsNumber(jobName, rules, filter);
+	if (totalSize == 0)
+	    return new ListDto<>(Collections.emptyList(), 0, 0, 0);
 	return new ListDto<>(hits, Math.min(startIndex, totalSize - 1), Math.min(endIndex, totalSize), totalSize);
     }
 
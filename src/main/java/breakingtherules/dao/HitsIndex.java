@@ -0,0 +1,1210 @@
+package breakingtherules.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Attribute.AttributeType;
+import breakingtherules.firewall.Filter;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.RuleClassifier;
+import breakingtherules.firewall.WeightedHit;
+import breakingtherules.util.Bitmap;
+import breakingtherules.util.Hashs;
+import breakingtherules.util.MutableInteger;
+import breakingtherules.util.Object2ObjectCache;
+import breakingtherules.util.Object2ObjectLRUCache;
+
+/**
+ * Bitmap index of a job's (unique) hits.
+ * <p>
+ * Each hit is identified by its ordinal - its index in the job's hits array.
+ * Each rule and filter is evaluated once into a {@link Bitmap} of the
+ * ordinals of the hits it matches, and the bitmaps are cached. The hits that
+ * match a rules list and a filter are the hits that are set in the filter
+ * bitmap and are not set in any of the rules bitmaps, so counting and
+ * iterating them is done by bitwise AND and AND-NOT operations.
+ * <p>
+ * Rules and filters with source or destination attributes are resolved by
+ * sorted indexes of the hits by their source and destination
+ * ({@link PrefixIndex}), so only the hits in the attributes' subnets are
+ * checked.
+ * <p>
+ * Rules lists are identified by nodes of a prefix tree of the requested rules
+ * lists, and filters are identified by small integer ids, so the state of a
+ * job (rules list and filter) is identified by one long key. The 'uncovered'
+ * bitmaps of rules lists are cached by their prefix node, so when a rule is
+ * appended to a list, only the new rule is needed to compute the new
+ * 'uncovered' bitmap from the cached bitmap of the list. Hits counts and
+ * paging checkpoints are cached by the state key.
+ * <p>
+ * All caches of the index are bounded, and evict their least recently used
+ * entries. Ids of prefix nodes and filters are never reused, so entries of
+ * evicted nodes and filters are never confused with new ones, they are just
+ * not used anymore and evicted eventually.
+ * <p>
+ * Hits may be weighted (see {@link Hit#getWeight()}), the index counts the
+ * matching hits both as unique hits and by their weights.
+ * <p>
+ * All bitmaps returned by the index are shared and should not be modified.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ */
+class HitsIndex {
+
+    /**
+     * The hits of the job, by their ordinals.
+     */
+    private final Hit[] m_hits;
+
+    /**
+     * The weights of the hits, by their ordinals, or null if all the hits
+     * weights are 1.
+     */
+    private final int[] m_weights;
+
+    /**
+     * The sum of the weights of all the hits.
+     */
+    private final int m_totalWeight;
+
+    /**
+     * The ordinals of the hits, used to merge appended hits. Created lazily,
+     * and moved to the new index when hits are appended.
+     */
+    private Map<Hit, Integer> m_ordinals;
+
+    /**
+     * Sorted index of the hits by their source.
+     */
+    private final PrefixIndex m_sourceIndex;
+
+    /**
+     * Sorted index of the hits by their destination.
+     */
+    private final PrefixIndex m_destinationIndex;
+
+    /**
+     * Cache of rules bitmaps.
+     */
+    private final Object2ObjectLRUCache<Rule, Bitmap> m_rulesBitmaps;
+
+    /**
+     * Cache of filters bitmaps.
+     */
+    private final Object2ObjectLRUCache<Filter, Bitmap> m_filtersBitmaps;
+
+    /**
+     * The root of the rules lists prefix tree, represent the empty rules list.
+     */
+    private RulesPrefix m_rulesRoot;
+
+    /**
+     * The number of nodes in the rules lists prefix tree.
+     */
+    private int m_rulesPrefixesNumber;
+
+    /**
+     * The id of the next created rules prefix node.
+     */
+    private int m_nextPrefixId;
+
+    /**
+     * Ids of recently used filters.
+     */
+    private final Object2ObjectCache<Filter, Integer> m_filtersIds;
+
+    /**
+     * The id of the next identified filter.
+     */
+    private final AtomicInteger m_nextFilterId;
+
+    /**
+     * Cache of 'uncovered' bitmaps of rules lists, by their prefix node id.
+     */
+    private final Object2ObjectLRUCache<Integer, Bitmap> m_uncovered;
+
+    /**
+     * Cache of hits numbers, by state key.
+     * <p>
+     * Each element is the pair of the number of unique matching hits and the
+     * sum of their weights.
+     *
+     * @see #stateKey(RulesPrefix, Filter)
+     */
+    private final Object2ObjectCache<Long, int[]> m_hitsNumbers;
+
+    /**
+     * Page-start checkpoints of recently paged states, by state key.
+     *
+     * @see #stateKey(RulesPrefix, Filter)
+     */
+    private final Object2ObjectLRUCache<Long, Checkpoints> m_checkpoints;
+
+    /**
+     * The number of matching hits between two consecutive checkpoints.
+     */
+    private static final int CHECKPOINTS_INTERVAL = 1024;
+
+    /**
+     * The maximal number of states of which checkpoints are kept.
+     */
+    private static final int MAX_CHECKPOINTS_STATES = 64;
+
+    /**
+     * The maximal number of states of which hits numbers are kept.
+     */
+    private static final int MAX_HITS_NUMBERS = 4096;
+
+    /**
+     * The maximal number of filters with ids.
+     */
+    private static final int MAX_FILTERS_IDS = 1024;
+
+    /**
+     * The maximal number of nodes in the rules lists prefix tree, if the tree
+     * grows beyond it, it's cleared.
+     */
+    private static final int MAX_RULES_PREFIXES = 4096;
+
+    /**
+     * The maximal total size, in bytes, of the bitmaps in each of the bitmaps
+     * caches.
+     */
+    private static final long MAX_BITMAPS_BYTES = 32L << 20;
+
+    /**
+     * Approximate number of bytes used by each hit in the index, including the
+     * hit object, its (not shared) attributes and its entries in the sorted
+     * indexes.
+     */
+    private static final long BYTES_PER_HIT = 160;
+
+    /**
+     * Supplier function of rules bitmaps.
+     * <p>
+     * Used by {@link Object2ObjectCache#getOrAdd(Object, Function)
+     * cache.getOrAdd(key, Function)}.
+     */
+    private final Function<Rule, Bitmap> m_ruleBitmapSupplier = rule -> newBitmap(rule, rule::isMatch);
+
+    /**
+     * Supplier function of filters bitmaps.
+     * <p>
+     * Used by {@link Object2ObjectCache#getOrAdd(Object, Function)
+     * cache.getOrAdd(key, Function)}.
+     */
+    private final Function<Filter, Bitmap> m_filterBitmapSupplier = filter -> newBitmap(filter, filter::isMatch);
+
+    /**
+     * Construct new HitsIndex.
+     *
+     * @param hits
+     *            the (unique) hits of the job.
+     * @throws NullPointerException
+     *             if the hits are null.
+     */
+    HitsIndex(final Iterable<Hit> hits) {
+	final List<Hit> hitsList;
+	if (hits instanceof List)
+	    hitsList = (List<Hit>) hits;
+	else {
+	    hitsList = new ArrayList<>();
+	    for (final Hit hit : hits)
+		hitsList.add(hit);
+	}
+	m_hits = hitsList.toArray(new Hit[hitsList.size()]);
+	m_weights = weightsOf(m_hits);
+	m_totalWeight = totalWeight(m_hits, m_weights);
+
+	m_sourceIndex = new PrefixIndex(m_hits, AttributeType.SOURCE, m_weights);
+	m_destinationIndex = new PrefixIndex(m_hits, AttributeType.DESTINATION, m_weights);
+	m_rulesBitmaps = new Object2ObjectLRUCache<>(MAX_BITMAPS_BYTES, HitsIndex::bytesNumber);
+	m_filtersBitmaps = new Object2ObjectLRUCache<>(MAX_BITMAPS_BYTES, HitsIndex::bytesNumber);
+	m_uncovered = new Object2ObjectLRUCache<>(MAX_BITMAPS_BYTES, HitsIndex::bytesNumber);
+	m_filtersIds = new Object2ObjectLRUCache<>(MAX_FILTERS_IDS);
+	m_nextFilterId = new AtomicInteger();
+	m_hitsNumbers = new Object2ObjectLRUCache<>(MAX_HITS_NUMBERS);
+	m_checkpoints = new Object2ObjectLRUCache<>(MAX_CHECKPOINTS_STATES);
+	m_rulesRoot = new RulesPrefix(m_nextPrefixId++, null, null);
+	m_rulesPrefixesNumber = 1;
+    }
+
+    /**
+     * Construct new HitsIndex of an existing index's hits and appended hits.
+     * <p>
+     * Appended hits that are equal to existing hits are merged into them by
+     * adding their weights, and the rest of them get the next ordinals. As the
+     * ordinals of the existing hits don't change, the cached bitmaps of the
+     * existing index are extended by checking only the new hits, the sorted
+     * indexes are extended by merging the sorted new hits, and the paging
+     * checkpoints stay valid. Hits numbers are counted again when needed.
+     *
+     * @param base
+     *            the existing index.
+     * @param appended
+     *            the appended hits.
+     */
+    private HitsIndex(final HitsIndex base, final Iterable<Hit> appended) {
+	final Hit[] baseHits = base.m_hits;
+	final Map<Hit, Integer> ordinals = base.takeOrdinals();
+	final List<Hit> newHits = new ArrayList<>();
+	final Map<Integer, MutableInteger> addedWeights = new HashMap<>();
+	for (final Hit hit : appended) {
+	    final Integer ordinal = ordinals.get(hit);
+	    if (ordinal == null) {
+		ordinals.put(hit, Integer.valueOf(baseHits.length + newHits.size()));
+		newHits.add(hit);
+	    } else
+		addedWeights.computeIfAbsent(ordinal, MutableInteger.zeroFunction()).value += hit.getWeight();
+	}
+
+	m_hits = Arrays.copyOf(baseHits, baseHits.length + newHits.size());
+	for (int i = 0; i < newHits.size(); i++)
+	    m_hits[baseHits.length + i] = newHits.get(i);
+	for (final Map.Entry<Integer, MutableInteger> entry : addedWeights.entrySet()) {
+	    final int ordinal = entry.getKey().intValue();
+	    m_hits[ordinal] = WeightedHit.valueOf(m_hits[ordinal], m_hits[ordinal].getWeight() + entry.getValue().value);
+	}
+	m_ordinals = ordinals;
+	m_weights = weightsOf(m_hits);
+	m_totalWeight = totalWeight(m_hits, m_weights);
+
+	m_sourceIndex = new PrefixIndex(base.m_sourceIndex, m_hits, m_weights);
+	m_destinationIndex = new PrefixIndex(base.m_destinationIndex, m_hits, m_weights);
+	m_rulesBitmaps = new Object2ObjectLRUCache<>(MAX_BITMAPS_BYTES, HitsIndex::bytesNumber);
+	m_filtersBitmaps = new Object2ObjectLRUCache<>(MAX_BITMAPS_BYTES, HitsIndex::bytesNumber);
+	m_uncovered = new Object2ObjectLRUCache<>(MAX_BITMAPS_BYTES, HitsIndex::bytesNumber);
+	m_hitsNumbers = new Object2ObjectLRUCache<>(MAX_HITS_NUMBERS);
+	m_checkpoints = new Object2ObjectLRUCache<>(MAX_CHECKPOINTS_STATES);
+	// Filters ids are shared, so states keys of both indexes are the same
+	m_filtersIds = base.m_filtersIds;
+	m_nextFilterId = base.m_nextFilterId;
+
+	final int from = baseHits.length;
+	base.m_rulesBitmaps.forEach((rule, bitmap) -> m_rulesBitmaps.add(rule, extend(bitmap, from, rule::isMatch)));
+	base.m_filtersBitmaps
+		.forEach((filter, bitmap) -> m_filtersBitmaps.add(filter, extend(bitmap, from, filter::isMatch)));
+	base.m_checkpoints.forEach(m_checkpoints::add);
+
+	// Copy the rules prefix tree, and extend the 'uncovered' bitmaps of its
+	// nodes
+	final Map<Integer, RulesPrefix> prefixes = new HashMap<>();
+	synchronized (base) {
+	    m_rulesRoot = copy(base.m_rulesRoot, null, prefixes);
+	    m_rulesPrefixesNumber = base.m_rulesPrefixesNumber;
+	    m_nextPrefixId = base.m_nextPrefixId;
+	}
+	base.m_uncovered.forEach((id, bitmap) -> {
+	    final RulesPrefix prefix = prefixes.get(id);
+	    if (prefix == null)
+		return;
+	    final List<Rule> rules = new ArrayList<>();
+	    for (RulesPrefix p = prefix; p.m_parent != null; p = p.m_parent)
+		rules.add(p.m_rule);
+	    final RuleClassifier classifier = new RuleClassifier(rules);
+	    m_uncovered.add(id, extend(bitmap, from, hit -> !classifier.isMatch(hit)));
+	});
+    }
+
+    /**
+     * Create new index of the hits of this index and appended hits.
+     * <p>
+     * The new index reuses the cached data of this index, and the cost of its
+     * creation is mostly proportional to the number of appended hits. This
+     * index should not be appended again after this call, but it can still be
+     * used for queries.
+     *
+     * @param appended
+     *            the appended hits.
+     * @return new index of all the hits.
+     */
+    HitsIndex append(final Iterable<Hit> appended) {
+	return new HitsIndex(this, appended);
+    }
+
+    /**
+     * Get the number of hits in the index.
+     *
+     * @return number of hits.
+     */
+    int size() {
+	return m_hits.length;
+    }
+
+    /**
+     * Get all the hits in the index.
+     *
+     * @return unmodifiable list of the hits, by their ordinals.
+     */
+    List<Hit> getHits() {
+	return Collections.unmodifiableList(Arrays.asList(m_hits));
+    }
+
+    /**
+     * Get the approximate number of bytes used by the index.
+     * <p>
+     * The estimation includes the hits and the sorted indexes, but not the
+     * bitmaps caches, which are bounded separately.
+     *
+     * @return estimated size of the index in bytes.
+     */
+    long getEstimatedBytes() {
+	return estimateBytes(m_hits.length);
+    }
+
+    /**
+     * Estimate the size of an index of some number of hits.
+     *
+     * @param hitsNumber
+     *            the number of (unique) hits.
+     * @return estimated size of the index in bytes.
+     * @see #getEstimatedBytes()
+     */
+    static long estimateBytes(final long hitsNumber) {
+	return hitsNumber * BYTES_PER_HIT;
+    }
+
+    /**
+     * Get the bitmap of the hits that match a rules list and a filter.
+     *
+     * @param rules
+     *            the rules list.
+     * @param filter
+     *            the filter.
+     * @return bitmap of the hits that match the filter and are not matched by
+     *         any of the rules. The bitmap is a new copy and may be modified.
+     */
+    Bitmap getMatching(final Iterable<Rule> rules, final Filter filter) {
+	final Bitmap matching = new Bitmap(getUncovered(getRulesPrefix(rules)));
+	if (!Filter.ANY_FILTER.equals(filter))
+	    matching.and(getFilterBitmap(filter));
+	return matching;
+    }
+
+    /**
+     * Get the hits that match a rules list and a filter.
+     *
+     * @param rules
+     *            the rules list.
+     * @param filter
+     *            the filter.
+     * @return list of the hits that match the filter and are not matched by
+     *         any of the rules.
+     */
+    List<Hit> getMatchingHits(final Iterable<Rule> rules, final Filter filter) {
+	final Bitmap matching = getMatching(rules, filter);
+	final Hit[] hits = m_hits;
+	final List<Hit> matchingHits = new ArrayList<>(matching.cardinality());
+	for (int i = matching.nextSetBit(0); i >= 0; i = matching.nextSetBit(i + 1))
+	    matchingHits.add(hits[i]);
+	return matchingHits;
+    }
+
+    /**
+     * Get the hits that match a rules list and a filter, as a lazy iterable.
+     * <p>
+     * The rules and filter bitmaps are computed when this method is called,
+     * but the hits are found only when they are iterated.
+     *
+     * @param rules
+     *            the rules list.
+     * @param filter
+     *            the filter.
+     * @return iterable of the hits that match the filter and are not matched
+     *         by any of the rules.
+     */
+    Iterable<Hit> getMatchingIterable(final Iterable<Rule> rules, final Filter filter) {
+	final Bitmap uncovered = getUncovered(getRulesPrefix(rules));
+	final Bitmap filterBitmap = Filter.ANY_FILTER.equals(filter) ? uncovered : getFilterBitmap(filter);
+	final Hit[] hits = m_hits;
+	return () -> new HitsCursor(hits, uncovered, filterBitmap, Bitmap.nextSetBit(uncovered, filterBitmap, 0));
+    }
+
+    /**
+     * Get a stream of the hits that match a rules list and a filter.
+     * <p>
+     * The stream's spliterator iterates lazily over the rules and filter
+     * bitmaps. It knows its exact size and splits the bitmaps into ranges of
+     * whole words, so it can be used efficiently by parallel streams.
+     *
+     * @param rules
+     *            the rules list.
+     * @param filter
+     *            the filter.
+     * @return stream of the hits that match the filter and are not matched by
+     *         any of the rules.
+     */
+    Stream<Hit> getMatchingStream(final Iterable<Rule> rules, final Filter filter) {
+	final Bitmap uncovered = getUncovered(getRulesPrefix(rules));
+	final Bitmap filterBitmap = Filter.ANY_FILTER.equals(filter) ? uncovered : getFilterBitmap(filter);
+	final int size = getMatchingNumber(rules, filter, false);
+	return StreamSupport.stream(new HitsSpliterator(m_hits, uncovered, filterBitmap, 0, m_hits.length, size),
+		false);
+    }
+
+    /**
+     * Get a cursor over the hits that match a rules list and a filter, starting
+     * from some index of the matching hits.
+     * <p>
+     * The cursor iterates lazily over the rules and filter bitmaps, and the
+     * start position is found from the closest checkpoint of the rules and
+     * filter state, so paging deep into the matching hits doesn't require
+     * scanning the hits from the first one.
+     *
+     * @param rules
+     *            the rules list.
+     * @param filter
+     *            the filter.
+     * @param startIndex
+     *            the index (in the matching hits) of the first hit of the
+     *            cursor.
+     * @return cursor over the hits that match the filter and are not matched by
+     *         any of the rules, starting from the start index.
+     */
+    Iterator<Hit> getMatchingCursor(final Iterable<Rule> rules, final Filter filter, final int startIndex) {
+	final RulesPrefix prefix = getRulesPrefix(rules);
+	final Bitmap uncovered = getUncovered(prefix);
+	final Bitmap filterBitmap = Filter.ANY_FILTER.equals(filter) ? uncovered : getFilterBitmap(filter);
+
+	final Checkpoints checkpoints = m_checkpoints.getOrAdd(stateKey(prefix, filter), key -> new Checkpoints());
+	final int first = checkpoints.locate(uncovered, filterBitmap, startIndex);
+	return new HitsCursor(m_hits, uncovered, filterBitmap, first);
+    }
+
+    /**
+     * Get the number of hits that match a rules list and a filter.
+     *
+     * @param rules
+     *            the rules list.
+     * @param filter
+     *            the filter.
+     * @param weighted
+     *            if true, each hit is counted by its weight, else each unique
+     *            hit is counted once.
+     * @return number of hits that match the filter and are not matched by any
+     *         of the rules.
+     */
+    int getMatchingNumber(final Iterable<Rule> rules, final Filter filter, final boolean weighted) {
+	if (!rules.iterator().hasNext()) {
+	    if (Filter.ANY_FILTER.equals(filter))
+		// No filtering needed
+		return weighted ? m_totalWeight : m_hits.length;
+
+	    // Filter with single IP attribute can be counted by the sorted index
+	    final Iterator<Attribute> it = filter.iterator();
+	    if (it.hasNext()) {
+		final Attribute attribute = it.next();
+		final PrefixIndex index = getPrefixIndex(attribute.getType());
+		final long number;
+		if (!it.hasNext() && index != null && (number = index.getMatchingNumber(attribute, weighted)) >= 0)
+		    return (int) number;
+	    }
+	}
+
+	final RulesPrefix prefix = getRulesPrefix(rules);
+	final int[] numbers = m_hitsNumbers.getOrAdd(stateKey(prefix, filter), key -> {
+	    final Bitmap uncovered = getUncovered(prefix);
+	    final Bitmap filterBitmap = Filter.ANY_FILTER.equals(filter) ? uncovered : getFilterBitmap(filter);
+	    final int unique = Bitmap.andCardinality(uncovered, filterBitmap);
+	    return new int[] { unique, getWeight(uncovered, filterBitmap, unique) };
+	});
+	return numbers[weighted ? 1 : 0];
+    }
+
+    /**
+     * Get the sum of the weights of the hits that are set in two bitmaps.
+     *
+     * @param a
+     *            the first bitmap.
+     * @param b
+     *            the second bitmap.
+     * @param cardinality
+     *            the number of hits that are set in both bitmaps.
+     * @return the sum of the weights of the hits.
+     */
+    private int getWeight(final Bitmap a, final Bitmap b, final int cardinality) {
+	final int[] weights = m_weights;
+	if (weights == null)
+	    return cardinality;
+	int weight = 0;
+	for (int i = Bitmap.nextSetBit(a, b, 0); i >= 0; i = Bitmap.nextSetBit(a, b, i + 1))
+	    weight += weights[i];
+	return weight;
+    }
+
+    /**
+     * Get the node of a rules list in the rules lists prefix tree.
+     * <p>
+     * Missing nodes are created. If the tree has grown too big, it's cleared
+     * first.
+     *
+     * @param rules
+     *            the rules list.
+     * @return the prefix node of the rules list.
+     */
+    private synchronized RulesPrefix getRulesPrefix(final Iterable<Rule> rules) {
+	if (m_rulesPrefixesNumber > MAX_RULES_PREFIXES) {
+	    m_rulesRoot = new RulesPrefix(m_nextPrefixId++, null, null);
+	    m_rulesPrefixesNumber = 1;
+	}
+
+	RulesPrefix prefix = m_rulesRoot;
+	for (final Rule rule : rules) {
+	    RulesPrefix child = prefix.m_children.get(rule);
+	    if (child == null) {
+		child = new RulesPrefix(m_nextPrefixId++, prefix, rule);
+		prefix.m_children.put(rule, child);
+		m_rulesPrefixesNumber++;
+	    }
+	    prefix = child;
+	}
+	return prefix;
+    }
+
+    /**
+     * Get the id of a filter.
+     *
+     * @param filter
+     *            the filter.
+     * @return the filter's id.
+     */
+    private int getFilterId(final Filter filter) {
+	return m_filtersIds.getOrAdd(filter, f -> Integer.valueOf(m_nextFilterId.getAndIncrement())).intValue();
+    }
+
+    /**
+     * Get the key of a rules list and filter state.
+     *
+     * @param prefix
+     *            the prefix node of the rules list.
+     * @param filter
+     *            the filter.
+     * @return key of the state, composed of the prefix node id and the filter
+     *         id.
+     */
+    private Long stateKey(final RulesPrefix prefix, final Filter filter) {
+	return Long.valueOf((long) prefix.m_id << 32 | getFilterId(filter) & 0xffffffffL);
+    }
+
+    /**
+     * Get the bitmap of the hits that are not matched by any rule of a rules
+     * list.
+     * <p>
+     * The bitmap is computed from the cached bitmap of the longest prefix of
+     * the list, using only the rest of the rules.
+     *
+     * @param prefix
+     *            the prefix node of the rules list.
+     * @return the 'uncovered' bitmap of the rules list, should not be modified.
+     */
+    private synchronized Bitmap getUncovered(final RulesPrefix prefix) {
+	final List<Rule> addedRules = new ArrayList<>();
+	Bitmap base = null;
+	for (RulesPrefix p = prefix; p != null; p = p.m_parent) {
+	    if ((base = m_uncovered.get(Integer.valueOf(p.m_id))) != null)
+		break;
+	    // The root is the empty rules list, it has no rule
+	    if (p.m_parent != null)
+		addedRules.add(p.m_rule);
+	}
+	if (base != null && addedRules.isEmpty())
+	    return base;
+
+	final Bitmap uncovered;
+	if (base != null)
+	    uncovered = new Bitmap(base);
+	else {
+	    uncovered = new Bitmap(m_hits.length);
+	    uncovered.setAll();
+	}
+	removeCovered(uncovered, addedRules);
+	return m_uncovered.add(Integer.valueOf(prefix.m_id), uncovered);
+    }
+
+    /**
+     * Clear the bits of the hits that are matched by any of the rules.
+     * <p>
+     * Rules with cached bitmaps are removed by their bitmaps. If more than one
+     * rule is not cached, the rest of the set hits are checked against a
+     * {@link RuleClassifier} of these rules, in one pass.
+     *
+     * @param uncovered
+     *            the bitmap to remove the covered hits from.
+     * @param rules
+     *            the rules.
+     */
+    private void removeCovered(final Bitmap uncovered, final List<Rule> rules) {
+	final List<Rule> notCachedRules = new ArrayList<>();
+	for (final Rule rule : rules) {
+	    final Bitmap ruleBitmap = m_rulesBitmaps.get(rule);
+	    if (ruleBitmap != null)
+		uncovered.andNot(ruleBitmap);
+	    else
+		notCachedRules.add(rule);
+	}
+
+	if (notCachedRules.size() == 1)
+	    uncovered.andNot(getRuleBitmap(notCachedRules.get(0)));
+	else if (notCachedRules.size() > 1) {
+	    final RuleClassifier classifier = new RuleClassifier(notCachedRules);
+	    final Hit[] hits = m_hits;
+	    for (int i = uncovered.nextSetBit(0); i >= 0; i = uncovered.nextSetBit(i + 1))
+		if (classifier.isMatch(hits[i]))
+		    uncovered.clear(i);
+	}
+    }
+
+    /**
+     * Get the bitmap of the hits that are matched by a rule.
+     *
+     * @param rule
+     *            the rule.
+     * @return the rule's bitmap, should not be modified.
+     */
+    private Bitmap getRuleBitmap(final Rule rule) {
+	return m_rulesBitmaps.getOrAdd(rule, m_ruleBitmapSupplier);
+    }
+
+    /**
+     * Get the bitmap of the hits that are matched by a filter.
+     *
+     * @param filter
+     *            the filter.
+     * @return the filter's bitmap, should not be modified.
+     */
+    private Bitmap getFilterBitmap(final Filter filter) {
+	return m_filtersBitmaps.getOrAdd(filter, m_filterBitmapSupplier);
+    }
+
+    /**
+     * Node in the prefix tree of rules lists.
+     * <p>
+     * Each node represent the rules list of the rules in the path from the
+     * root to the node.
+     *
+     * @author Barak Ugav
+     * @author Yishai Gronich
+     *
+     */
+    private static class RulesPrefix {
+
+	/**
+	 * The unique id of the node.
+	 */
+	final int m_id;
+
+	/**
+	 * The parent node, null for the root.
+	 */
+	final RulesPrefix m_parent;
+
+	/**
+	 * The last rule of the node's list, null for the root.
+	 */
+	final Rule m_rule;
+
+	/**
+	 * The children of the node, by their last rule.
+	 */
+	final Map<Rule, RulesPrefix> m_children;
+
+	/**
+	 * Construct new RulesPrefix.
+	 *
+	 * @param id
+	 *            the unique id of the node.
+	 * @param parent
+	 *            the parent node.
+	 * @param rule
+	 *            the last rule of the node's list.
+	 */
+	RulesPrefix(final int id, final RulesPrefix parent, final Rule rule) {
+	    m_id = id;
+	    m_parent = parent;
+	    m_rule = rule;
+	    m_children = new HashMap<>();
+	}
+
+    }
+
+    /**
+     * Page-start checkpoints of a rules and filter state.
+     * <p>
+     * The checkpoint {@code j} is the ordinal of the matching hit in index
+     * {@code j * CHECKPOINTS_INTERVAL} of the matching hits. Checkpoints are
+     * added lazily, when a cursor is requested beyond the last known
+     * checkpoint.
+     *
+     * @author Barak Ugav
+     * @author Yishai Gronich
+     *
+     */
+    private static class Checkpoints {
+
+	/**
+	 * The ordinals of the checkpoints.
+	 */
+	private int[] m_ordinals;
+
+	/**
+	 * The number of known checkpoints.
+	 */
+	private int m_size;
+
+	/**
+	 * Construct new empty Checkpoints.
+	 */
+	Checkpoints() {
+	    m_ordinals = new int[Hashs.DEFAULT_INIT_CAPACITY];
+	}
+
+	/**
+	 * Find the ordinal of a matching hit by its index in the matching hits.
+	 *
+	 * @param uncovered
+	 *            the uncovered bitmap of the state.
+	 * @param filter
+	 *            the filter bitmap of the state.
+	 * @param index
+	 *            the index of the hit in the matching hits.
+	 * @return the ordinal of the matching hit, or -1 if there are less
+	 *         matching hits than index + 1.
+	 */
+	synchronized int locate(final Bitmap uncovered, final Bitmap filter, final int index) {
+	    if (m_size == 0) {
+		final int first = Bitmap.nextSetBit(uncovered, filter, 0);
+		if (first < 0)
+		    return -1;
+		m_ordinals[m_size++] = first;
+	    }
+
+	    final int checkpoint = Math.min(index / CHECKPOINTS_INTERVAL, m_size - 1);
+	    int ordinal = m_ordinals[checkpoint];
+	    int ordinalIndex = checkpoint * CHECKPOINTS_INTERVAL;
+	    while (index - ordinalIndex >= CHECKPOINTS_INTERVAL) {
+		// Beyond the last known checkpoint, add the next one
+		ordinal = Bitmap.selectSetBit(uncovered, filter, ordinal, CHECKPOINTS_INTERVAL);
+		if (ordinal < 0)
+		    return -1;
+		ordinalIndex += CHECKPOINTS_INTERVAL;
+		if (m_size == m_ordinals.length)
+		    m_ordinals = Arrays.copyOf(m_ordinals, m_size * 2);
+		m_ordinals[m_size++] = ordinal;
+	    }
+	    return Bitmap.selectSetBit(uncovered, filter, ordinal, index - ordinalIndex);
+	}
+
+    }
+
+    /**
+     * Cursor over the hits that are set in two bitmaps.
+     *
+     * @author Barak Ugav
+     * @author Yishai Gronich
+     *
+     */
+    private static class HitsCursor implements Iterator<Hit> {
+
+	/**
+	 * The hits, by their ordinals.
+	 */
+	private final Hit[] m_hits;
+
+	/**
+	 * The first bitmap.
+	 */
+	private final Bitmap m_a;
+
+	/**
+	 * The second bitmap.
+	 */
+	private final Bitmap m_b;
+
+	/**
+	 * The ordinal of the next hit, or -1 if there are no more hits.
+	 */
+	private int m_next;
+
+	/**
+	 * Construct new HitsCursor.
+	 *
+	 * @param hits
+	 *            the hits, by their ordinals.
+	 * @param a
+	 *            the first bitmap.
+	 * @param b
+	 *            the second bitmap.
+	 * @param first
+	 *            the ordinal of the first hit, or -1 if there are no hits.
+	 */
+	HitsCursor(final Hit[] hits, final Bitmap a, final Bitmap b, final int first) {
+	    m_hits = hits;
+	    m_a = a;
+	    m_b = b;
+	    m_next = first;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean hasNext() {
+	    return m_next >= 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Hit next() {
+	    final int current = m_next;
+	    if (current < 0)
+		throw new NoSuchElementException();
+	    m_next = Bitmap.nextSetBit(m_a, m_b, current + 1);
+	    return m_hits[current];
+	}
+
+    }
+
+    /**
+     * Spliterator over the hits that are set in two bitmaps, in a range of
+     * ordinals.
+     *
+     * @author Barak Ugav
+     * @author Yishai Gronich
+     *
+     */
+    private static class HitsSpliterator implements Spliterator<Hit> {
+
+	/**
+	 * The hits, by their ordinals.
+	 */
+	private final Hit[] m_hits;
+
+	/**
+	 * The first bitmap.
+	 */
+	private final Bitmap m_a;
+
+	/**
+	 * The second bitmap.
+	 */
+	private final Bitmap m_b;
+
+	/**
+	 * The ordinal from which the next hit is searched.
+	 */
+	private int m_from;
+
+	/**
+	 * The end (exclusive) of the spliterator's ordinals range.
+	 */
+	private final int m_to;
+
+	/**
+	 * The exact number of the remaining hits.
+	 */
+	private int m_size;
+
+	/**
+	 * The minimal number of ordinals in a split range.
+	 */
+	private static final int MIN_SPLIT_SIZE = 1 << 12;
+
+	/**
+	 * Construct new HitsSpliterator.
+	 *
+	 * @param hits
+	 *            the hits, by their ordinals.
+	 * @param a
+	 *            the first bitmap.
+	 * @param b
+	 *            the second bitmap.
+	 * @param from
+	 *            the start (inclusive) of the ordinals range.
+	 * @param to
+	 *            the end (exclusive) of the ordinals range.
+	 * @param size
+	 *            the number of hits that are set in both bitmaps in the range.
+	 */
+	HitsSpliterator(final Hit[] hits, final Bitmap a, final Bitmap b, final int from, final int to,
+		final int size) {
+	    m_hits = hits;
+	    m_a = a;
+	    m_b = b;
+	    m_from = from;
+	    m_to = to;
+	    m_size = size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean tryAdvance(final Consumer<? super Hit> action) {
+	    final int ordinal = m_from < m_to ? Bitmap.nextSetBit(m_a, m_b, m_from) : -1;
+	    if (ordinal < 0 || ordinal >= m_to) {
+		m_from = m_to;
+		return false;
+	    }
+	    m_from = ordinal + 1;
+	    m_size--;
+	    action.accept(m_hits[ordinal]);
+	    return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void forEachRemaining(final Consumer<? super Hit> action) {
+	    final Hit[] hits = m_hits;
+	    final Bitmap a = m_a, b = m_b;
+	    final int to = m_to;
+	    for (int i = m_from < to ? Bitmap.nextSetBit(a, b, m_from) : -1; i >= 0 && i < to; i = Bitmap
+		    .nextSetBit(a, b, i + 1))
+		action.accept(hits[i]);
+	    m_from = to;
+	    m_size = 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The range is split in a word boundary of the bitmaps, and the size of
+	 * the prefix is counted by the bits count of its words.
+	 */
+	@Override
+	public Spliterator<Hit> trySplit() {
+	    final int from = m_from;
+	    final int mid = (from + m_to) >>> 1 & -Long.SIZE;
+	    if (mid - from < MIN_SPLIT_SIZE || m_size == 0)
+		return null;
+	    final int prefixSize = Bitmap.andCardinality(m_a, m_b, from, mid);
+	    m_from = mid;
+	    m_size -= prefixSize;
+	    return new HitsSpliterator(m_hits, m_a, m_b, from, mid, prefixSize);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long estimateSize() {
+	    return m_size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int characteristics() {
+	    return ORDERED | DISTINCT | NONNULL | IMMUTABLE | SIZED | SUBSIZED;
+	}
+
+    }
+
+    /**
+     * Take the ordinals map of the index, creating it if needed.
+     * <p>
+     * The index doesn't keep the map after this call.
+     *
+     * @return map of the hits to their ordinals.
+     */
+    private synchronized Map<Hit, Integer> takeOrdinals() {
+	Map<Hit, Integer> ordinals = m_ordinals;
+	m_ordinals = null;
+	if (ordinals == null) {
+	    ordinals = new HashMap<>((int) (m_hits.length / Hashs.DEFAULT_LOAD_FACTOR) + 1);
+	    for (int i = 0; i < m_hits.length; i++)
+		ordinals.put(m_hits[i], Integer.valueOf(i));
+	}
+	return ordinals;
+    }
+
+    /**
+     * Create a copy of a bitmap extended to all the hits of the index, in which
+     * the bits of the hits starting from some ordinal are set by a predicate.
+     *
+     * @param bitmap
+     *            the extended bitmap.
+     * @param from
+     *            the ordinal of the first hit that is checked by the
+     *            predicate.
+     * @param predicate
+     *            the predicate on the hits.
+     * @return new extended bitmap.
+     */
+    private Bitmap extend(final Bitmap bitmap, final int from, final Predicate<Hit> predicate) {
+	final Hit[] hits = m_hits;
+	final Bitmap extended = new Bitmap(bitmap, hits.length);
+	for (int i = from; i < hits.length; i++)
+	    if (predicate.test(hits[i]))
+		extended.set(i);
+	return extended;
+    }
+
+    /**
+     * Copy a sub tree of the rules lists prefix tree.
+     *
+     * @param prefix
+     *            the root of the copied sub tree.
+     * @param parent
+     *            the parent of the copy.
+     * @param copies
+     *            map of the copied nodes by their ids, filled by this method.
+     * @return the copy of the sub tree root.
+     */
+    private static RulesPrefix copy(final RulesPrefix prefix, final RulesPrefix parent,
+	    final Map<Integer, RulesPrefix> copies) {
+	final RulesPrefix copy = new RulesPrefix(prefix.m_id, parent, prefix.m_rule);
+	copies.put(Integer.valueOf(copy.m_id), copy);
+	for (final Map.Entry<Rule, RulesPrefix> child : prefix.m_children.entrySet())
+	    copy.m_children.put(child.getKey(), copy(child.getValue(), copy, copies));
+	return copy;
+    }
+
+    /**
+     * Get the weights of hits.
+     *
+     * @param hits
+     *            the hits.
+     * @return the weights of the hits, or null if all the weights are 1.
+     */
+    private static int[] weightsOf(final Hit[] hits) {
+	int[] weights = null;
+	for (int i = 0; i < hits.length; i++) {
+	    final int weight = hits[i].getWeight();
+	    if (weight != 1 && weights == null) {
+		weights = new int[hits.length];
+		Arrays.fill(weights, 0, i, 1);
+	    }
+	    if (weights != null)
+		weights[i] = weight;
+	}
+	return weights;
+    }
+
+    /**
+     * Get the sum of the weights of hits.
+     *
+     * @param hits
+     *            the hits.
+     * @param weights
+     *            the weights of the hits, or null if all the weights are 1.
+     * @return the total weight of the hits.
+     */
+    private static int totalWeight(final Hit[] hits, final int[] weights) {
+	if (weights == null)
+	    return hits.length;
+	int total = 0;
+	for (final int weight : weights)
+	    total += weight;
+	return total;
+    }
+
+    /**
+     * Get the sorted index of an attribute type.
+     *
+     * @param type
+     *            the attribute type.
+     * @return the sorted index of the type, or null if the hits are not
+     *         indexed by the type.
+     */
+    private PrefixIndex getPrefixIndex(final AttributeType type) {
+	switch (type) {
+	case SOURCE:
+	    return m_sourceIndex;
+	case DESTINATION:
+	    return m_destinationIndex;
+	default:
+	    return null;
+	}
+    }
+
+    /**
+     * Get the size of a bitmap in bytes, used to bound the bitmaps caches.
+     *
+     * @param bitmap
+     *            the bitmap.
+     * @return the approximate number of bytes used by the bitmap.
+     */
+    private static long bytesNumber(final Bitmap bitmap) {
+	return (bitmap.size() >>> 3) + 16;
+    }
+
+    /**
+     * Create new bitmap of the hits that are matched by a matcher (rule or
+     * filter).
+     * <p>
+     * The source and destination attributes of the matcher are resolved by the
+     * sorted indexes, and only the hits that are contained in them are checked
+     * against the other attributes. If none of the attributes can be resolved
+     * by the indexes, all hits are checked by the predicate.
+     *
+     * @param attributes
+     *            the attributes of the matcher.
+     * @param predicate
+     *            the matching predicate of the matcher.
+     * @return bitmap of the hits that are matched by the matcher.
+     */
+    private Bitmap newBitmap(final Iterable<Attribute> attributes, final Predicate<Hit> predicate) {
+	Bitmap candidates = null;
+	final List<Attribute> others = new ArrayList<>(Attribute.TYPE_COUNT);
+	for (final Attribute attribute : attributes) {
+	    final PrefixIndex index = getPrefixIndex(attribute.getType());
+	    final Bitmap bitmap = index != null ? index.getMatching(attribute) : null;
+	    if (bitmap == null)
+		others.add(attribute);
+	    else if (candidates == null)
+		candidates = bitmap;
+	    else
+		candidates.and(bitmap);
+	}
+	if (candidates == null)
+	    return newBitmap(predicate);
+
+	final Hit[] hits = m_hits;
+	for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1))
+	    for (final Attribute attribute : others)
+		if (!attribute.contains(hits[i].getAttribute(attribute.getType()))) {
+		    candidates.clear(i);
+		    break;
+		}
+	return candidates;
+    }
+
+    /**
+     * Create new bitmap of the hits that satisfy a predicate.
+     *
+     * @param predicate
+     *            the predicate on the hits.
+     * @return bitmap of the hits that satisfy the predicate.
+     */
+    private Bitmap newBitmap(final Predicate<Hit> predicate) {
+	final Hit[] hits = m_hits;
+	final Bitmap bitmap = new Bitmap(hits.length);
+	for (int i = hits.length; i-- != 0;)
+	    if (predicate.test(hits[i]))
+		bitmap.set(i);
+	return bitmap;
+    }
+
+}
@@ -0,0 +1,373 @@
+package breakingtherules.dao;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Attribute.AttributeType;
+import breakingtherules.firewall.Destination;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.IP;
+import breakingtherules.firewall.IPAttribute;
+import breakingtherules.firewall.IPv4;
+import breakingtherules.firewall.IPv6;
+import breakingtherules.firewall.Service;
+import breakingtherules.firewall.Source;
+import breakingtherules.firewall.WeightedHit;
+
+/**
+ * Binary columnar snapshot of a job's (unique) hits.
+ * <p>
+ * The snapshot is written by {@link AbstractCachedHitsDao} after the job's
+ * hits file is parsed for the first time (and when the job is evicted from the
+ * cache), so later loads of the job don't need to parse the original hits
+ * file.
+ * <p>
+ * The snapshot is composed of:
+ * <ul>
+ * <li>Header - magic number, format version, size and modification time of the
+ * hits file the snapshot was created from, number of hits, number of IPs in
+ * the IPs dictionary and number of services in the services dictionary.</li>
+ * <li>IPs dictionary - each distinct IP of the hits' sources and
+ * destinations, as fixed size record of type tag, mask size and address
+ * bits.</li>
+ * <li>Services dictionary - each distinct service, as protocol code and ports
+ * range.</li>
+ * <li>Columns - packed int columns of the hits' source IP ids, destination IP
+ * ids, service ids and weights (counts), each of them of the hits number
+ * length.</li>
+ * </ul>
+ * Attribute ids are indexes in the dictionaries, or {@value #ID_NONE} for a
+ * missing attribute and {@value #ID_ANY} for 'Any' attribute.
+ * <p>
+ * The snapshot is up to date if the size and modification time of the hits file
+ * are equal to the ones in its header, so it doesn't depend on the resolution
+ * of the file system's modification times. The snapshot is read to memory by
+ * one channel read, and each dictionary entry is converted to an attribute
+ * once, so hits with the same attribute share the attribute object.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ */
+final class HitsSnapshot {
+
+    /**
+     * The magic number of snapshot files.
+     */
+    private static final int MAGIC = 0x42545248;
+
+    /**
+     * The version of the snapshot format.
+     */
+    private static final int VERSION = 3;
+
+    /**
+     * The size of the header in bytes.
+     */
+    private static final int HEADER_BYTES = 5 * Integer.BYTES + 2 * Long.BYTES;
+
+    /**
+     * The size of the header prefix that identifies the snapshot and its hits
+     * file in bytes - magic number, format version, hits file size and
+     * modification time.
+     */
+    private static final int STAMP_BYTES = 2 * Integer.BYTES + 2 * Long.BYTES;
+
+    /**
+     * The size of IP record in the IPs dictionary in bytes - tag, mask size and
+     * four ints of address bits.
+     */
+    private static final int IP_RECORD_BYTES = 2 + IPv6.SIZE / Byte.SIZE;
+
+    /**
+     * The size of service record in the services dictionary in bytes -
+     * protocol code and ports range bounds.
+     */
+    private static final int SERVICE_RECORD_BYTES = Short.BYTES + 2 * Integer.BYTES;
+
+    /**
+     * The number of columns.
+     */
+    private static final int COLUMNS_NUMBER = 4;
+
+    /**
+     * Id of missing attribute.
+     */
+    private static final int ID_NONE = -1;
+
+    /**
+     * Id of 'Any' attribute.
+     */
+    private static final int ID_ANY = -2;
+
+    /**
+     * Tag of IPv4 record.
+     */
+    private static final byte TAG_IPV4 = 4;
+
+    /**
+     * Tag of IPv6 record.
+     */
+    private static final byte TAG_IPV6 = 6;
+
+    /**
+     * Suppresses default constructor, ensuring non-instantiability.
+     */
+    private HitsSnapshot() {
+    }
+
+    /**
+     * Write a snapshot of hits to a file.
+     * <p>
+     * The snapshot is written to a temporary file in the same directory, which
+     * is then renamed to the snapshot file, so a partially written snapshot is
+     * never read.
+     *
+     * @param hits
+     *            the hits.
+     * @param file
+     *            the snapshot file.
+     * @param hitsFile
+     *            the hits file the hits were read from, may be null if the
+     *            hits are not stored in a file.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    static void write(final List<Hit> hits, final File file, final File hitsFile) throws IOException {
+	final int size = hits.size();
+	final Map<IP, Integer> ipsIds = new HashMap<>();
+	final List<IP> ips = new ArrayList<>();
+	final Map<Service, Integer> servicesIds = new HashMap<>();
+	final List<Service> services = new ArrayList<>();
+	final int[] sources = new int[size];
+	final int[] destinations = new int[size];
+	final int[] servicesColumn = new int[size];
+	for (int i = 0; i < size; i++) {
+	    final Hit hit = hits.get(i);
+	    sources[i] = ipId(hit.getAttribute(AttributeType.SOURCE), ipsIds, ips);
+	    destinations[i] = ipId(hit.getAttribute(AttributeType.DESTINATION), ipsIds, ips);
+	    servicesColumn[i] = serviceId(hit.getAttribute(AttributeType.SERVICE), servicesIds, services);
+	}
+
+	final File temp = new File(file.getPath() + ".tmp");
+	try (final DataOutputStream out = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(temp)))) {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeLong(hitsFile != null ? hitsFile.length() : -1);
+	    out.writeLong(hitsFile != null ? hitsFile.lastModified() : -1);
+	    out.writeInt(size);
+	    out.writeInt(ips.size());
+	    out.writeInt(services.size());
+
+	    for (final IP ip : ips) {
+		final int[] bits = ip.getAddressBits();
+		out.writeByte(ip instanceof IPv4 ? TAG_IPV4 : TAG_IPV6);
+		out.writeByte(ip.getMaskSize());
+		for (int j = 0; j < IPv6.SIZE / Integer.SIZE; j++)
+		    out.writeInt(j < bits.length ? bits[j] : 0);
+	    }
+	    for (final Service service : services) {
+		out.writeShort(service.getProtocolCode());
+		out.writeInt(service.getPortRangeStart());
+		out.writeInt(service.getPortRangeEnd());
+	    }
+
+	    for (final int[] column : new int[][] { sources, destinations, servicesColumn })
+		for (final int id : column)
+		    out.writeInt(id);
+	    for (final Hit hit : hits)
+		out.writeInt(hit.getWeight());
+
+	} catch (final IOException e) {
+	    temp.delete();
+	    throw e;
+	}
+	Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+		StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read hits from a snapshot file.
+     * <p>
+     * The file is read to a heap buffer by the file's channel, so the file is
+     * not kept mapped after it's read and it can be deleted immediately.
+     *
+     * @param file
+     *            the snapshot file.
+     * @return list of the hits in the snapshot.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws ParseException
+     *             if the file is not a valid snapshot.
+     */
+    static List<Hit> read(final File file) throws IOException, ParseException {
+	final ByteBuffer buffer;
+	try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    final long fileSize = channel.size();
+	    if (fileSize < HEADER_BYTES || fileSize > Integer.MAX_VALUE)
+		throw new ParseException("Invalid hits snapshot size: " + fileSize);
+	    buffer = ByteBuffer.allocate((int) fileSize);
+	    while (buffer.hasRemaining())
+		if (channel.read(buffer) < 0)
+		    throw new ParseException("Truncated hits snapshot: " + file);
+	    buffer.flip();
+	}
+
+	try {
+	    if (buffer.getInt() != MAGIC)
+		throw new ParseException("Not a hits snapshot: " + file);
+	    final int version = buffer.getInt();
+	    if (version != VERSION)
+		throw new ParseException("Unsupported hits snapshot version: " + version);
+	    // The hits file's size and modification time are checked by isUpToDate
+	    buffer.getLong();
+	    buffer.getLong();
+	    final int size = buffer.getInt();
+	    final int ipsNumber = buffer.getInt();
+	    final int servicesNumber = buffer.getInt();
+	    if (size < 0 || ipsNumber < 0 || servicesNumber < 0 || (long) HEADER_BYTES
+		    + (long) ipsNumber * IP_RECORD_BYTES + (long) servicesNumber * SERVICE_RECORD_BYTES
+		    + (long) size * COLUMNS_NUMBER * Integer.BYTES != buffer.capacity())
+		throw new ParseException("Corrupted hits snapshot: " + file);
+
+	    final IP[] ips = new IP[ipsNumber];
+	    final int[] bits = new int[IPv6.SIZE / Integer.SIZE];
+	    for (int i = 0; i < ipsNumber; i++) {
+		final byte tag = buffer.get();
+		final short maskSize = (short) (buffer.get() & 0xff);
+		for (int j = 0; j < bits.length; j++)
+		    bits[j] = buffer.getInt();
+		if (tag == TAG_IPV4)
+		    ips[i] = IPv4.valueOfBits(bits[0], maskSize);
+		else if (tag == TAG_IPV6)
+		    ips[i] = IPv6.valueOfBits(bits, maskSize);
+		else
+		    throw new ParseException("Unknown IP tag: " + tag);
+	    }
+	    final Service[] services = new Service[servicesNumber];
+	    for (int i = 0; i < servicesNumber; i++)
+		services[i] = Service.valueOf(buffer.getShort(), buffer.getInt(), buffer.getInt());
+
+	    final IntBuffer columns = buffer.slice().asIntBuffer();
+	    final Source[] sources = new Source[ipsNumber];
+	    final Destination[] destinations = new Destination[ipsNumber];
+	    final List<Hit> hits = new ArrayList<>(size);
+	    final List<Attribute> attributes = new ArrayList<>(Attribute.TYPE_COUNT);
+	    for (int i = 0; i < size; i++) {
+		attributes.clear();
+		final int sourceId = columns.get(i);
+		if (sourceId != ID_NONE)
+		    attributes.add(sourceId == ID_ANY ? Source.ANY_SOURCE
+			    : sources[sourceId] != null ? sources[sourceId]
+				    : (sources[sourceId] = Source.valueOf(ips[sourceId])));
+		final int destinationId = columns.get(size + i);
+		if (destinationId != ID_NONE)
+		    attributes.add(destinationId == ID_ANY ? Destination.ANY_DESTINATION
+			    : destinations[destinationId] != null ? destinations[destinationId]
+				    : (destinations[destinationId] = Destination.valueOf(ips[destinationId])));
+		final int serviceId = columns.get(2 * size + i);
+		if (serviceId != ID_NONE)
+		    attributes.add(serviceId == ID_ANY ? Service.ANY_SERVICE : services[serviceId]);
+		hits.add(WeightedHit.valueOf(new Hit(attributes), columns.get(3 * size + i)));
+	    }
+	    return hits;
+
+	} catch (final IllegalArgumentException | IndexOutOfBoundsException | BufferUnderflowException e) {
+	    throw new ParseException("Corrupted hits snapshot: " + file, e);
+	}
+    }
+
+    /**
+     * Check if a snapshot file is up to date with the hits file it was created
+     * from.
+     *
+     * @param snapshot
+     *            the snapshot file.
+     * @param hitsFile
+     *            the original hits file, may be null if the hits are not
+     *            stored in a file.
+     * @return true if the snapshot exists, and the size and modification time
+     *         of the hits file are the ones the snapshot was created from.
+     */
+    static boolean isUpToDate(final File snapshot, final File hitsFile) {
+	if (!snapshot.isFile())
+	    return false;
+	if (hitsFile == null)
+	    return true;
+	try (final DataInputStream in = new DataInputStream(new FileInputStream(snapshot))) {
+	    final byte[] stamp = new byte[STAMP_BYTES];
+	    in.readFully(stamp);
+	    final ByteBuffer header = ByteBuffer.wrap(stamp);
+	    return header.getInt() == MAGIC && header.getInt() == VERSION && header.getLong() == hitsFile.length()
+		    && header.getLong() == hitsFile.lastModified();
+	} catch (final IOException e) {
+	    return false;
+	}
+    }
+
+    /**
+     * Get the id of IP attribute (source or destination), adding its IP to the
+     * dictionary if needed.
+     *
+     * @param attribute
+     *            the attribute, may be null.
+     * @param ids
+     *            the ids of the IPs in the dictionary.
+     * @param ips
+     *            the IPs dictionary.
+     * @return the attribute id.
+     */
+    private static int ipId(final Attribute attribute, final Map<IP, Integer> ids, final List<IP> ips) {
+	if (attribute == null)
+	    return ID_NONE;
+	final IP ip = ((IPAttribute) attribute).getIp();
+	if (!(ip instanceof IPv4 || ip instanceof IPv6))
+	    return ID_ANY;
+	return ids.computeIfAbsent(ip, key -> {
+	    ips.add(key);
+	    return Integer.valueOf(ips.size() - 1);
+	}).intValue();
+    }
+
+    /**
+     * Get the id of service attribute, adding it to the dictionary if needed.
+     *
+     * @param attribute
+     *            the attribute, may be null.
+     * @param ids
+     *            the ids of the services in the dictionary.
+     * @param services
+     *            the services dictionary.
+     * @return the attribute id.
+     */
+    private static int serviceId(final Attribute attribute, final Map<Service, Integer> ids,
+	    final List<Service> services) {
+	if (attribute == null)
+	    return ID_NONE;
+	if (attribute == Service.ANY_SERVICE)
+	    return ID_ANY;
+	return ids.computeIfAbsent((Service) attribute, key -> {
+	    services.add(key);
+	    return Integer.valueOf(services.size() - 1);
+	}).intValue();
+    }
+
+}
@@ -0,0 +1,314 @@
+package breakingtherules.dao;
+
+import java.util.Arrays;
+
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Attribute.AttributeType;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.IP;
+import breakingtherules.firewall.IPAttribute;
+import breakingtherules.firewall.IPv4;
+import breakingtherules.util.Bitmap;
+
+/**
+ * Sorted index of hits by one of their IP attributes (source or destination).
+ * <p>
+ * The ordinals of the hits with a full IPv4 attribute are sorted by the
+ * attribute's address, so all the hits that are contained in an IPv4 subnet
+ * are in one contiguous range of the index, that is found by binary search.
+ * The rest of the hits (hits with IPv6 or subnet attributes, or without the
+ * attribute) are kept in a separate small list, and are checked one by one.
+ * <p>
+ * Used by {@link HitsIndex} to resolve CIDR filters and rules in O(log n +
+ * matches) time.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ */
+class PrefixIndex {
+
+    /**
+     * The hits of the job, by their ordinals.
+     */
+    private final Hit[] m_hits;
+
+    /**
+     * The type of the indexed attribute.
+     */
+    private final AttributeType m_type;
+
+    /**
+     * The sorted addresses of the indexed hits.
+     * <p>
+     * The addresses are stored after flipping their sign bit, so signed
+     * comparison of them is the same as unsigned comparison of the original
+     * addresses.
+     */
+    private final int[] m_addresses;
+
+    /**
+     * The ordinals of the indexed hits, the ordinal in each index is the
+     * ordinal of the hit with the address in the same index in
+     * {@link #m_addresses}.
+     */
+    private final int[] m_ordinals;
+
+    /**
+     * The ordinals of the hits that are not indexed.
+     */
+    private final int[] m_others;
+
+    /**
+     * The weights of the hits, by their ordinals, or null if all the hits
+     * weights are 1.
+     */
+    private final int[] m_weights;
+
+    /**
+     * Prefix sums of the indexed hits weights, the sum in index {@code i} is
+     * the sum of the weights of the first {@code i} indexed hits. Null if all
+     * the hits weights are 1.
+     */
+    private final long[] m_weightsSums;
+
+    /**
+     * Construct new PrefixIndex.
+     *
+     * @param hits
+     *            the hits of the job, by their ordinals.
+     * @param type
+     *            the type of the indexed attribute, {@link AttributeType#SOURCE
+     *            SOURCE} or {@link AttributeType#DESTINATION DESTINATION}.
+     * @param weights
+     *            the weights of the hits, by their ordinals, or null if all the
+     *            hits weights are 1.
+     */
+    PrefixIndex(final Hit[] hits, final AttributeType type, final int[] weights) {
+	m_hits = hits;
+	m_type = type;
+	m_weights = weights;
+
+	// Pack each address with its ordinal so one sort will sort both
+	final long[] entries = new long[hits.length];
+	final int[] others = new int[hits.length];
+	int entriesNumber = 0, othersNumber = 0;
+	for (int i = 0; i < hits.length; i++) {
+	    final IPv4 ip = getFullIPv4(hits[i].getAttribute(type));
+	    if (ip != null)
+		entries[entriesNumber++] = (long) (ip.getAddressBitsInt() ^ Integer.MIN_VALUE) << 32 | i;
+	    else
+		others[othersNumber++] = i;
+	}
+	Arrays.parallelSort(entries, 0, entriesNumber);
+
+	m_addresses = new int[entriesNumber];
+	m_ordinals = new int[entriesNumber];
+	for (int i = 0; i < entriesNumber; i++) {
+	    m_addresses[i] = (int) (entries[i] >>> 32);
+	    m_ordinals[i] = (int) entries[i];
+	}
+	m_others = Arrays.copyOf(others, othersNumber);
+	m_weightsSums = weightsSums(m_ordinals, weights);
+    }
+
+    /**
+     * Construct new PrefixIndex of an existing index's hits and appended hits.
+     * <p>
+     * Only the appended hits are sorted, and they are merged with the sorted
+     * hits of the existing index.
+     *
+     * @param base
+     *            the existing index.
+     * @param hits
+     *            the hits of the job, by their ordinals. The first hits are
+     *            the hits of the existing index, and the rest are the
+     *            appended hits.
+     * @param weights
+     *            the weights of the hits, by their ordinals, or null if all the
+     *            hits weights are 1.
+     */
+    PrefixIndex(final PrefixIndex base, final Hit[] hits, final int[] weights) {
+	m_hits = hits;
+	m_type = base.m_type;
+	m_weights = weights;
+
+	final int baseSize = base.m_hits.length;
+	final long[] entries = new long[hits.length - baseSize];
+	final int[] others = Arrays.copyOf(base.m_others, base.m_others.length + hits.length - baseSize);
+	int entriesNumber = 0, othersNumber = base.m_others.length;
+	for (int i = baseSize; i < hits.length; i++) {
+	    final IPv4 ip = getFullIPv4(hits[i].getAttribute(m_type));
+	    if (ip != null)
+		entries[entriesNumber++] = (long) (ip.getAddressBitsInt() ^ Integer.MIN_VALUE) << 32 | i;
+	    else
+		others[othersNumber++] = i;
+	}
+	Arrays.sort(entries, 0, entriesNumber);
+
+	// Merge, existing hits first for equal addresses as their ordinals are
+	// smaller
+	final int[] baseAddresses = base.m_addresses, baseOrdinals = base.m_ordinals;
+	final int size = baseAddresses.length + entriesNumber;
+	m_addresses = new int[size];
+	m_ordinals = new int[size];
+	for (int i = 0, j = 0, k = 0; k < size; k++) {
+	    if (j == entriesNumber || i < baseAddresses.length && baseAddresses[i] <= (int) (entries[j] >>> 32)) {
+		m_addresses[k] = baseAddresses[i];
+		m_ordinals[k] = baseOrdinals[i++];
+	    } else {
+		m_addresses[k] = (int) (entries[j] >>> 32);
+		m_ordinals[k] = (int) entries[j++];
+	    }
+	}
+	m_others = Arrays.copyOf(others, othersNumber);
+	m_weightsSums = weightsSums(m_ordinals, weights);
+    }
+
+    /**
+     * Get the bitmap of the hits that are contained in an attribute.
+     *
+     * @param attribute
+     *            the containing attribute, of the index type.
+     * @return bitmap of the hits that their attribute is contained in the
+     *         attribute, or null if the index can't resolve the attribute.
+     */
+    Bitmap getMatching(final Attribute attribute) {
+	final int[] range = getRange(attribute);
+	if (range == null)
+	    return null;
+
+	final Bitmap bitmap = new Bitmap(m_hits.length);
+	final int[] ordinals = m_ordinals;
+	for (int i = range[0]; i < range[1]; i++)
+	    bitmap.set(ordinals[i]);
+	for (final int ordinal : m_others)
+	    if (attribute.contains(m_hits[ordinal].getAttribute(m_type)))
+		bitmap.set(ordinal);
+	return bitmap;
+    }
+
+    /**
+     * Get the number of hits that are contained in an attribute.
+     *
+     * @param attribute
+     *            the containing attribute, of the index type.
+     * @param weighted
+     *            if true, each hit is counted by its weight, else each hit is
+     *            counted once.
+     * @return number of hits that their attribute is contained in the
+     *         attribute, or -1 if the index can't resolve the attribute.
+     */
+    long getMatchingNumber(final Attribute attribute, final boolean weighted) {
+	final int[] range = getRange(attribute);
+	if (range == null)
+	    return -1;
+
+	final int[] weights = weighted ? m_weights : null;
+	long count = weights != null ? m_weightsSums[range[1]] - m_weightsSums[range[0]] : range[1] - range[0];
+	for (final int ordinal : m_others)
+	    if (attribute.contains(m_hits[ordinal].getAttribute(m_type)))
+		count += weights != null ? weights[ordinal] : 1;
+	return count;
+    }
+
+    /**
+     * Get the range of the indexed hits that are contained in an attribute.
+     *
+     * @param attribute
+     *            the containing attribute.
+     * @return range [from, to) of indexes in the index, or null if the index
+     *         can't resolve the attribute.
+     */
+    private int[] getRange(final Attribute attribute) {
+	if (!(attribute instanceof IPAttribute))
+	    return null;
+	final IP ip = ((IPAttribute) attribute).getIp();
+	if (ip == IP.ANY_IP)
+	    // Contains all indexed hits
+	    return new int[] { 0, m_addresses.length };
+	if (!(ip instanceof IPv4))
+	    return null;
+
+	final IPv4 subnet = (IPv4) ip;
+	final int maskSize = subnet.getMaskSize();
+	final int mask = maskSize == 0 ? 0 : -1 << IPv4.SIZE - maskSize;
+	final int first = subnet.getAddressBitsInt() & mask;
+	final int last = first | ~mask;
+	return new int[] { lowerBound(m_addresses, first ^ Integer.MIN_VALUE),
+		lowerBound(m_addresses, (last ^ Integer.MIN_VALUE) + 1, last == -1) };
+    }
+
+    /**
+     * Get the first index in a sorted array with element that is greater or
+     * equal to a key.
+     *
+     * @param a
+     *            the sorted array.
+     * @param key
+     *            the searched key.
+     * @return the lower bound index of the key.
+     */
+    private static int lowerBound(final int[] a, final int key) {
+	int from = 0, to = a.length;
+	while (from < to) {
+	    final int mid = (from + to) >>> 1;
+	    if (a[mid] < key)
+		from = mid + 1;
+	    else
+		to = mid;
+	}
+	return from;
+    }
+
+    /**
+     * Get the first index in a sorted array with element that is greater or
+     * equal to a key, or the array length if the key overflowed.
+     *
+     * @param a
+     *            the sorted array.
+     * @param key
+     *            the searched key.
+     * @param overflow
+     *            true if the key is greater than all possible elements.
+     * @return the lower bound index of the key.
+     */
+    private static int lowerBound(final int[] a, final int key, final boolean overflow) {
+	return overflow ? a.length : lowerBound(a, key);
+    }
+
+    /**
+     * Compute the prefix sums of the weights of the indexed hits.
+     *
+     * @param ordinals
+     *            the ordinals of the indexed hits, in the index order.
+     * @param weights
+     *            the weights of the hits, by their ordinals, or null if all the
+     *            hits weights are 1.
+     * @return the prefix sums of the weights, or null if the weights are null.
+     */
+    private static long[] weightsSums(final int[] ordinals, final int[] weights) {
+	if (weights == null)
+	    return null;
+	final long[] sums = new long[ordinals.length + 1];
+	for (int i = 0; i < ordinals.length; i++)
+	    sums[i + 1] = sums[i] + weights[ordinals[i]];
+	return sums;
+    }
+
+    /**
+     * Get the IPv4 of a full IPv4 attribute.
+     *
+     * @param attribute
+     *            the attribute.
+     * @return the attribute's IPv4 if it's an IP attribute with full IPv4
+     *         address (maximal mask size), else null.
+     */
+    private static IPv4 getFullIPv4(final Attribute attribute) {
+	if (!(attribute instanceof IPAttribute))
+	    return null;
+	final IP ip = ((IPAttribute) attribute).getIp();
+	return ip instanceof IPv4 && ip.getMaskSize() == IPv4.SIZE ? (IPv4) ip : null;
+    }
+
+}
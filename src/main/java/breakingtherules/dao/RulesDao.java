@@ -59,4 +59,87 @@ public interface RulesDao {
      */
     public ListDto<Rule> getRules(String jobName, int startIndex, int endIndex) throws IOException, ParseException;
 
+    /**
+     * Initialize the rules of a new job, with no rules.
+     * <p>
+     * Existing rules of the job are discarded.
+     * <p>
+     * This operation is optional, the default implementation throws
+     * {@link UnsupportedOperationException}.
+     *
+     * @param jobName
+     *            the name of the job.
+     * @param originalRule
+     *            the original rule of the job.
+     * @throws IOException
+     *             if any I/O error occurs.
+     * @throws UnsupportedOperationException
+     *             if the DAO doesn't support writing rules.
+     */
+    public default void initRules(final String jobName, final Rule originalRule) throws IOException {
+	throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Add a rule to the end of the rules list of a job.
+     * <p>
+     * This operation is optional, the default implementation throws
+     * {@link UnsupportedOperationException}.
+     *
+     * @param jobName
+     *            the name of the job.
+     * @param rule
+     *            the added rule.
+     * @throws IOException
+     *             if any I/O error occurs.
+     * @throws ParseException
+     *             if the existing data is invalid.
+     * @throws UnsupportedOperationException
+     *             if the DAO doesn't support writing rules.
+     */
+    public default void addRule(final String jobName, final Rule rule) throws IOException, ParseException {
+	throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Remove a rule from the rules list of a job.
+     * <p>
+     * This operation is optional, the default implementation throws
+     * {@link UnsupportedOperationException}.
+     *
+     * @param jobName
+     *            the name of the job.
+     * @param index
+     *            the index of the removed rule.
+     * @throws IOException
+     *             if any I/O error occurs.
+     * @throws ParseException
+     *             if the existing data is invalid.
+     * @throws IndexOutOfBoundsException
+     *             if the index is out of the rules list bounds.
+     * @throws UnsupportedOperationException
+     *             if the DAO doesn't support writing rules.
+     */
+    public default void removeRule(final String jobName, final int index) throws IOException, ParseException {
+	throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Write all the pending changes of the rules of a job to the repository,
+     * so the repository's export of the rules is up to date.
+     * <p>
+     * The default implementation does nothing, for DAOs that write all changes
+     * immediately.
+     *
+     * @param jobName
+     *            the name of the job.
+     * @throws IOException
+     *             if any I/O error occurs.
+     * @throws ParseException
+     *             if the existing data is invalid.
+     */
+    public default void flush(final String jobName) throws IOException, ParseException {
+	// Nothing to flush
+    }
+
 }
@@ -18,7 +18,7 @@ import java.io.UncheckedIOException;
  * @author Yishai Gronich
  *
  */
-class UncheckedParseException extends RuntimeException {
+public class UncheckedParseException extends RuntimeException {
 
     @SuppressWarnings("javadoc")
     private static final long serialVersionUID = 6371272539188428352L;
@@ -29,7 +29,7 @@ class UncheckedParseException extends RuntimeException {
      * @param cause
      *            the original checked {@link ParseException}.
      */
-    protected UncheckedParseException(final ParseException cause) {
+    public UncheckedParseException(final ParseException cause) {
 	super(cause);
     }
 
@@ -41,7 +41,7 @@ class UncheckedParseException extends RuntimeException {
      * @param cause
      *            the original checked {@link ParseException}.
      */
-    protected UncheckedParseException(final String message, final ParseException cause) {
+    public UncheckedParseException(final String message, final ParseException cause) {
 	super(message, cause);
     }
 
@@ -0,0 +1,162 @@
+package breakingtherules.dao.csv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import breakingtherules.firewall.IP;
+
+/**
+ * Primitive columns of hits parsed from CSV bytes.
+ * <p>
+ * Each row is a parsed CSV line. IPv4 addresses are held as address bits and
+ * mask size, other IPs (IPv6 and 'Any') are held in a dictionary and the row
+ * holds their index in it. Protocol codes and ports are held as is. Columns
+ * that don't exist in the CSV columns configuration are left empty.
+ * <p>
+ * The columns are filled by
+ * {@link CSVHitsParser#parseColumns(java.nio.ByteBuffer, CSVHitsColumns, boolean)}
+ * and converted to hits by {@link CSVHitsParser#toHit(CSVHitsColumns, int)}.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see CSVHitsParser
+ */
+public final class CSVHitsColumns {
+
+    /**
+     * The number of rows.
+     */
+    int m_size;
+
+    /**
+     * The sources address bits, or index in the IPs dictionary.
+     */
+    int[] m_sourceAddresses;
+
+    /**
+     * The sources mask sizes, or {@value #DICTIONARY_IP} for IPs in the IPs
+     * dictionary.
+     */
+    byte[] m_sourceMasks;
+
+    /**
+     * The destinations address bits, or index in the IPs dictionary.
+     */
+    int[] m_destinationAddresses;
+
+    /**
+     * The destinations mask sizes, or {@value #DICTIONARY_IP} for IPs in the
+     * IPs dictionary.
+     */
+    byte[] m_destinationMasks;
+
+    /**
+     * The services protocol codes.
+     */
+    short[] m_protocols;
+
+    /**
+     * The services ports.
+     */
+    int[] m_ports;
+
+    /**
+     * The IPs that are not IPv4, by their index.
+     */
+    private final List<IP> m_ips;
+
+    /**
+     * The indexes of the IPs in {@link #m_ips}.
+     */
+    private final Map<IP, Integer> m_ipsIndexes;
+
+    /**
+     * The mask size of an IP in the IPs dictionary.
+     */
+    static final byte DICTIONARY_IP = -1;
+
+    /**
+     * The initial capacity of the columns.
+     */
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Construct new empty CSVHitsColumns.
+     */
+    public CSVHitsColumns() {
+	m_sourceAddresses = new int[DEFAULT_CAPACITY];
+	m_sourceMasks = new byte[DEFAULT_CAPACITY];
+	m_destinationAddresses = new int[DEFAULT_CAPACITY];
+	m_destinationMasks = new byte[DEFAULT_CAPACITY];
+	m_protocols = new short[DEFAULT_CAPACITY];
+	m_ports = new int[DEFAULT_CAPACITY];
+	m_ips = new ArrayList<>();
+	m_ipsIndexes = new HashMap<>();
+    }
+
+    /**
+     * Get the number of rows.
+     *
+     * @return the number of parsed rows.
+     */
+    public int size() {
+	return m_size;
+    }
+
+    /**
+     * Remove all rows.
+     */
+    public void clear() {
+	m_size = 0;
+	m_ips.clear();
+	m_ipsIndexes.clear();
+    }
+
+    /**
+     * Ensure there is a room for one more row.
+     */
+    void ensureCapacity() {
+	if (m_size == m_ports.length) {
+	    final int capacity = m_size + (m_size >> 1);
+	    m_sourceAddresses = Arrays.copyOf(m_sourceAddresses, capacity);
+	    m_sourceMasks = Arrays.copyOf(m_sourceMasks, capacity);
+	    m_destinationAddresses = Arrays.copyOf(m_destinationAddresses, capacity);
+	    m_destinationMasks = Arrays.copyOf(m_destinationMasks, capacity);
+	    m_protocols = Arrays.copyOf(m_protocols, capacity);
+	    m_ports = Arrays.copyOf(m_ports, capacity);
+	}
+    }
+
+    /**
+     * Get the index of an IP in the IPs dictionary, add it if it's not in the
+     * dictionary.
+     *
+     * @param ip
+     *            the IP.
+     * @return the index of the IP in the dictionary.
+     */
+    int ipIndex(final IP ip) {
+	final Integer index = m_ipsIndexes.get(ip);
+	if (index != null)
+	    return index.intValue();
+	m_ips.add(ip);
+	m_ipsIndexes.put(ip, Integer.valueOf(m_ips.size() - 1));
+	return m_ips.size() - 1;
+    }
+
+    /**
+     * Get an IP from the IPs dictionary.
+     *
+     * @param index
+     *            the index of the IP.
+     * @return the IP.
+     */
+    IP ip(final int index) {
+	return m_ips.get(index);
+    }
+
+}
@@ -1,6 +1,13 @@
 package breakingtherules.dao.csv;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 
 import breakingtherules.dao.AbstractCachedHitsDao;
@@ -44,6 +51,46 @@ public class CSVHitsDao extends AbstractCachedHitsDao {
 	}
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the stream's columns types are the DAO's columns types, the stream's
+     * bytes are copied as is to the job's CSV file while they are parsed, so
+     * the hits are not written again. A ZIP archive is not copied, as entries
+     * can't be appended to it, and the parsed hits are written as a plain CSV
+     * file instead. The parsed hits are cached and their snapshot is written,
+     * so the job is not parsed again when it's used.
+     */
+    @Override
+    public void initJob(final String jobName, final InputStream hitsStream, final List<Integer> columnsTypes)
+	    throws IOException, ParseException {
+	final InputStream in = hitsStream.markSupported() ? hitsStream : new BufferedInputStream(hitsStream);
+	final Iterable<Hit> hits;
+	if (columnsTypes.equals(m_columnTypes) && CompressionFormat.detect(in) != CompressionFormat.ZIP) {
+	    try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(getHitsFile(jobName)))) {
+		hits = CSVHitsParser.parseUniqueHits(columnsTypes, new CopyingInputStream(in, out));
+	    }
+	} else {
+	    hits = CSVHitsParser.parseUniqueHits(columnsTypes, in);
+	    initJob(jobName, hits);
+	}
+	cacheJob(jobName, hits);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The hits are appended to the end of the job's CSV file.
+     */
+    @Override
+    protected void writeAppendedHits(final String jobName, final List<Hit> hits) throws IOException {
+	try {
+	    CSVHitsParser.appendToCSV(m_columnTypes, hits, CSVDaoConfig.getHitsFile(jobName));
+	} catch (final CSVParseException e) {
+	    throw new IllegalArgumentException(e);
+	}
+    }
+
     /**
      * Change the type of each column
      *
@@ -62,4 +109,88 @@ public class CSVHitsDao extends AbstractCachedHitsDao {
 	return CSVHitsParser.parseUniqueHits(m_columnTypes, CSVDaoConfig.getHitsFile(jobName));
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected File getHitsFile(final String jobName) {
+	return new File(CSVDaoConfig.getHitsFile(jobName));
+    }
+
+    /**
+     * Input stream that copies the bytes it reads to an output stream.
+     *
+     * @author Barak Ugav
+     * @author Yishai Gronich
+     *
+     */
+    private static class CopyingInputStream extends FilterInputStream {
+
+	/**
+	 * The output stream the read bytes are copied to.
+	 */
+	private final OutputStream m_out;
+
+	/**
+	 * Construct new CopyingInputStream.
+	 *
+	 * @param in
+	 *            the read stream.
+	 * @param out
+	 *            the output stream the read bytes are copied to.
+	 */
+	CopyingInputStream(final InputStream in, final OutputStream out) {
+	    super(in);
+	    m_out = out;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read() throws IOException {
+	    final int b = super.read();
+	    if (b >= 0)
+		m_out.write(b);
+	    return b;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+	    final int read = super.read(b, off, len);
+	    if (read > 0)
+		m_out.write(b, off, read);
+	    return read;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Skipped bytes are read, so they are copied too.
+	 */
+	@Override
+	public long skip(final long n) throws IOException {
+	    final byte[] buffer = new byte[(int) Math.min(n, 4096)];
+	    long skipped = 0;
+	    for (int read; skipped < n
+		    && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > 0;)
+		skipped += read;
+	    return skipped;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Mark is not supported, as the copied bytes can't be reset.
+	 */
+	@Override
+	public boolean markSupported() {
+	    return false;
+	}
+
+    }
+
 }
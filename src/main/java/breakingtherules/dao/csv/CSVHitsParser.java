@@ -1,35 +1,49 @@
 package breakingtherules.dao.csv;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.Set;
-import java.util.Spliterator;
-import java.util.Spliterators;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.function.Consumer;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import breakingtherules.dao.AbstractParser;
+import breakingtherules.dto.HitsPreviewDto;
 import breakingtherules.firewall.Attribute;
 import breakingtherules.firewall.Attribute.AttributeType;
 import breakingtherules.firewall.Destination;
 import breakingtherules.firewall.Hit;
 import breakingtherules.firewall.IP;
+import breakingtherules.firewall.IPv4;
 import breakingtherules.firewall.Service;
 import breakingtherules.firewall.Source;
+import breakingtherules.firewall.WeightedHit;
+import breakingtherules.util.Hashs;
+import breakingtherules.util.MutableInteger;
+import breakingtherules.util.PackedKeysCounter;
+import breakingtherules.util.Swar;
 import breakingtherules.util.Utility;
 
 /**
@@ -106,25 +120,37 @@ public class CSVHitsParser extends AbstractParser {
      */
     private final int m_numberOfAtts;
 
+    /**
+     * The number of columns that should be in each line, the index of the last
+     * used column plus one.
+     */
+    private final int m_requiredColumnsNumber;
+
+    /**
+     * Cache of the IPv4 objects of the rows converted by
+     * {@link #toHit(CSVHitsColumns, int)}.
+     */
+    private final IPv4.Cache m_ipv4Cache;
+
     /**
      * The symbol's value for source attribute column.
      */
-    private static final int SOURCE_VAL = 0;
+    static final int SOURCE_VAL = 0;
 
     /**
      * The symbol's value for destination attribute column.
      */
-    private static final int DESTINATION_VAL = 1;
+    static final int DESTINATION_VAL = 1;
 
     /**
      * The symbol's value for service protocol column.
      */
-    private static final int SERVICE_PROTOCOL_VAL = 2;
+    static final int SERVICE_PROTOCOL_VAL = 2;
 
     /**
      * The symbol's value for service port column.
      */
-    private static final int SERVICE_PORT_VAL = 3;
+    static final int SERVICE_PORT_VAL = 3;
 
     /**
      * The symbol for source attribute column.
@@ -146,6 +172,87 @@ public class CSVHitsParser extends AbstractParser {
      */
     public static final Integer SERVICE_PORT = Integer.valueOf(SERVICE_PORT_VAL);
 
+    /**
+     * The maximal size of a chunk of a file, which is mapped to memory and
+     * parsed at once.
+     */
+    private static final int MAPPED_REGION_SIZE = 1 << 26; // 64 MB
+
+    /**
+     * The minimal size of a chunk of a file that is parsed by one thread.
+     */
+    private static final long MIN_CHUNK_SIZE = 1 << 22; // 4 MB
+
+    /**
+     * The number of chunks a file is split to for each parsing thread (unless
+     * the chunks are too small or too big).
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * The maximal number of threads that parse a file.
+     */
+    private static final int MAX_PARSING_THREADS = 16;
+
+    /**
+     * The size of the buffer used to search line ends when a file is split to
+     * chunks.
+     */
+    private static final int LINE_SEARCH_BUFFER_SIZE = 1 << 12;
+
+    /**
+     * The size of the blocks of decompressed bytes that are parsed at once.
+     */
+    private static final int DECOMPRESSED_BLOCK_SIZE = 1 << 22; // 4 MB
+
+    /**
+     * The number of decompressed blocks that may wait to be parsed.
+     */
+    private static final int DECOMPRESSED_BLOCKS_QUEUE_SIZE = 4;
+
+    /**
+     * The name of the thread that reads a stream into blocks.
+     */
+    private static final String READER_THREAD_NAME = "csv-hits-reader";
+
+    /**
+     * Marker of the end of the decompressed blocks.
+     */
+    private static final ByteBuffer END_OF_BLOCKS = ByteBuffer.allocate(0);
+
+    /**
+     * The number of byte ranges sampled from a file by
+     * {@link #preview(List, String)}.
+     */
+    private static final int PREVIEW_RANGES_NUMBER = 64;
+
+    /**
+     * The size of each byte range sampled by {@link #preview(List, String)}.
+     */
+    private static final int PREVIEW_RANGE_SIZE = 1 << 16; // 64 KB
+
+    /**
+     * The number of decompressed bytes sampled from the start of a compressed
+     * file by {@link #preview(List, String)}.
+     */
+    private static final int PREVIEW_COMPRESSED_SIZE = 1 << 22; // 4 MB
+
+    /**
+     * The maximal number of sampled hits returned by
+     * {@link #preview(List, String)}.
+     */
+    private static final int PREVIEW_SAMPLE_HITS_NUMBER = 100;
+
+    /**
+     * Max number of digits of a protocol code.
+     */
+    private static final int MAX_PROTOCOL_DIGITS_NUMBER = 3;
+
+    /**
+     * Max number of digits of a port.
+     */
+    private static final int MAX_PORT_DIGITS_NUMBER = 5;
+
     /**
      * Default columns types.
      */
@@ -186,6 +293,10 @@ public class CSVHitsParser extends AbstractParser {
 	m_containsService = m_serviceProtocolIndex >= 0 && m_servicePortIndex >= 0;
 
 	m_numberOfAtts = (m_containsSource ? 1 : 0) + (m_containsDestination ? 1 : 0) + (m_containsService ? 1 : 0);
+	m_requiredColumnsNumber = 1 + Math.max(m_containsSource ? m_sourceIndex : -1,
+		Math.max(m_containsDestination ? m_destinationIndex : -1,
+			m_containsService ? Math.max(m_serviceProtocolIndex, m_servicePortIndex) : -1));
+	m_ipv4Cache = new IPv4.Cache();
     }
 
     /**
@@ -225,6 +336,82 @@ public class CSVHitsParser extends AbstractParser {
 	return new Hit(atts);
     }
 
+    /**
+     * Parse CSV lines from bytes into primitive columns.
+     * <p>
+     * The lines are parsed from the buffer's position to its limit, directly
+     * from the bytes, without creating strings or attributes objects (except
+     * for IPs that are not IPv4). Empty lines are skipped.
+     * <p>
+     * If this isn't the end of the input, bytes after the last line separator
+     * are not parsed, they are the start of a line that continues after the
+     * buffer. On return, the buffer's position is after the last parsed line.
+     *
+     * @param buffer
+     *            the CSV bytes.
+     * @param columns
+     *            the columns to add the parsed lines to.
+     * @param endOfInput
+     *            true if the buffer's limit is the end of the input.
+     * @throws CSVParseException
+     *             if one of the lines is invalid.
+     * @throws NullPointerException
+     *             if the buffer or the columns are null.
+     */
+    public void parseColumns(final ByteBuffer buffer, final CSVHitsColumns columns, final boolean endOfInput)
+	    throws CSVParseException {
+	final int limit = buffer.limit();
+	int lineStart = buffer.position();
+	while (lineStart < limit) {
+	    int lineEnd = lineStart;
+	    while (lineEnd < limit && buffer.get(lineEnd) != '\n')
+		lineEnd++;
+	    if (lineEnd == limit && !endOfInput)
+		break;
+	    parseRow(buffer, lineStart, lineEnd, columns);
+	    lineStart = lineEnd + 1;
+	}
+	buffer.position(Math.min(lineStart, limit));
+    }
+
+    /**
+     * Convert a row of parsed columns to a hit.
+     *
+     * @param columns
+     *            the parsed columns.
+     * @param row
+     *            the index of the row.
+     * @return hit with the row's attributes.
+     * @throws CSVParseException
+     *             if the row's values are out of range.
+     * @throws IndexOutOfBoundsException
+     *             if the row index is out of range.
+     */
+    public Hit toHit(final CSVHitsColumns columns, final int row) throws CSVParseException {
+	if (row < 0 || row >= columns.m_size)
+	    throw new IndexOutOfBoundsException("row=" + row + ", size=" + columns.m_size);
+	final List<Attribute> atts = new ArrayList<>(m_numberOfAtts);
+	try {
+	    if (m_containsSource) {
+		final IP ip = toIP(columns, columns.m_sourceAddresses[row], columns.m_sourceMasks[row]);
+		atts.add(sourceCache != null ? sourceCache.valueOf(ip) : Source.valueOf(ip));
+	    }
+	    if (m_containsDestination) {
+		final IP ip = toIP(columns, columns.m_destinationAddresses[row], columns.m_destinationMasks[row]);
+		atts.add(destinationCache != null ? destinationCache.valueOf(ip) : Destination.valueOf(ip));
+	    }
+	    if (m_containsService) {
+		final short serviceProtocol = columns.m_protocols[row];
+		final int servicePort = columns.m_ports[row];
+		atts.add(serviceCache != null ? serviceCache.valueOf(serviceProtocol, servicePort)
+			: Service.valueOf(serviceProtocol, servicePort));
+	    }
+	} catch (final IllegalArgumentException e) {
+	    throw new CSVParseException(e);
+	}
+	return new Hit(atts);
+    }
+
     /**
      * Parse hit to CSV string line.
      * <p>
@@ -289,12 +476,15 @@ public class CSVHitsParser extends AbstractParser {
 
     /**
      * Parse all unique hits that are in a file.
+     * <p>
+     * Identical lines are parsed to one hit, weighted by the number of the
+     * line's occurrences (see {@link Hit#getWeight()}).
      *
      * @param columnsTypes
      *            configuration of columns types
      * @param fileName
      *            name of the file.
-     * @return all unique hits built from the CSV file
+     * @return all unique (weighted) hits built from the CSV file
      * @throws IOException
      *             if IO errors occurs
      * @throws CSVParseException
@@ -305,6 +495,162 @@ public class CSVHitsParser extends AbstractParser {
 	return parseHits(columnsTypes, fileName, true);
     }
 
+    /**
+     * Parse all unique hits of a stream.
+     * <p>
+     * Identical lines are parsed to one hit, weighted by the number of the
+     * line's occurrences (see {@link Hit#getWeight()}). The stream may be
+     * compressed as a CSV file may be. The stream is read by another thread
+     * while the read bytes are parsed, and it's read until its end but not
+     * closed.
+     *
+     * @param columnsTypes
+     *            configuration of columns types
+     * @param in
+     *            the stream.
+     * @return all unique (weighted) hits built from the CSV stream
+     * @throws IOException
+     *             if IO errors occurs
+     * @throws CSVParseException
+     *             if fails to parse the stream
+     */
+    public static Iterable<Hit> parseUniqueHits(final List<Integer> columnsTypes, final InputStream in)
+	    throws IOException, CSVParseException {
+	if (columnsTypes.contains(SERVICE_PORT) ^ columnsTypes.contains(SERVICE_PROTOCOL))
+	    System.err.println("Warning: Choose service port and service protocol or neither of them! "
+		    + "Ignoring both for now.");
+
+	final InputStream bufferedIn = in.markSupported() ? in : new BufferedInputStream(in);
+	final CompressionFormat format = CompressionFormat.detect(bufferedIn);
+	// The decompressing stream is closed, but the given stream is not
+	try (final InputStream decompressed = format.open(new FilterInputStream(bufferedIn) {
+	    @Override
+	    public void close() {
+	    }
+	})) {
+	    final List<Hit> hits = parseStreamHits(columnsTypes, decompressed, true);
+	    // Consume the rest of the stream, such as the central directory of
+	    // a ZIP archive, which is not read by the decompressing stream
+	    final byte[] buffer = new byte[LINE_SEARCH_BUFFER_SIZE];
+	    for (int read = 0; read >= 0;)
+		read = bufferedIn.read(buffer);
+	    return hits;
+	}
+    }
+
+    /**
+     * Preview the hits of a file, by a sample of its lines.
+     * <p>
+     * A few byte ranges are sampled from across the file, and the whole lines
+     * in them are parsed. The number of lines in the file is estimated by the
+     * average size of the sampled lines, and the number of unique hits and the
+     * parsing time of the whole file are estimated by the sample too. A small
+     * file is parsed completely, and its numbers are exact. Compressed files
+     * can't be read from the middle, so their sample is the start of the
+     * file, and the size of the decompressed file is estimated by the
+     * compression ratio of the sample.
+     * <p>
+     * The preview reads only a few megabytes, regardless of the file size.
+     * The memory used by a job is not known to the parser, it's estimated by
+     * the hits DAO (see
+     * {@link breakingtherules.dao.HitsDao#previewHits(String, List)}).
+     *
+     * @param columnsTypes
+     *            configuration of columns types
+     * @param fileName
+     *            name of the file.
+     * @return preview of the file's hits.
+     * @throws IOException
+     *             if IO errors occurs
+     * @throws CSVParseException
+     *             if fails to parse one of the sampled lines
+     */
+    public static HitsPreviewDto preview(final List<Integer> columnsTypes, final String fileName)
+	    throws IOException, CSVParseException {
+	final File file = new File(fileName);
+	if (!file.exists())
+	    throw new FileNotFoundException("File not found: " + fileName);
+
+	final CSVHitsParser parser = newCachedParser(columnsTypes);
+	final CSVHitsColumns columns = new CSVHitsColumns();
+	final long startTime = System.nanoTime();
+	final long fileSize = file.length();
+	// The sampled bytes and the size of the whole (decompressed) input
+	long sampledBytes = 0;
+	long inputSize = fileSize;
+	final boolean exact;
+
+	final CompressionFormat format = CompressionFormat.detect(file);
+	try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    if (format != CompressionFormat.NONE) {
+		// The channel position is the number of compressed bytes that were
+		// read (and buffered) by the decompressing stream
+		final byte[] bytes = new byte[PREVIEW_COMPRESSED_SIZE];
+		int length = 0;
+		final long compressedLength;
+		try (final InputStream in = format.open(Channels.newInputStream(channel))) {
+		    for (int read = 0; length < bytes.length && read >= 0;) {
+			read = in.read(bytes, length, bytes.length - length);
+			length += Math.max(read, 0);
+		    }
+		    compressedLength = channel.position();
+		}
+		exact = length < bytes.length;
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+		parser.parseColumns(buffer, columns, exact);
+		sampledBytes = buffer.position();
+		inputSize = exact ? sampledBytes : (long) ((double) length / compressedLength * fileSize);
+
+	    } else if (fileSize <= (long) PREVIEW_RANGES_NUMBER * PREVIEW_RANGE_SIZE) {
+		// Small file, parse all of it
+		exact = true;
+		final ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+		for (int read = 0; buffer.hasRemaining() && read >= 0;)
+		    read = channel.read(buffer, buffer.position());
+		buffer.flip();
+		parser.parseColumns(buffer, columns, true);
+		sampledBytes = buffer.position();
+
+	    } else {
+		exact = false;
+		final ByteBuffer buffer = ByteBuffer.allocate(PREVIEW_RANGE_SIZE);
+		for (int i = 0; i < PREVIEW_RANGES_NUMBER; i++) {
+		    final long start = nextLineStart(channel, Math.max(1, fileSize / PREVIEW_RANGES_NUMBER * i));
+		    buffer.clear();
+		    for (int read = 0; buffer.hasRemaining() && read >= 0;)
+			read = channel.read(buffer, start + buffer.position());
+		    buffer.flip();
+		    // Only whole lines are parsed, unless the range is the end of
+		    // the file
+		    parser.parseColumns(buffer, columns, start + buffer.limit() == fileSize);
+		    sampledBytes += buffer.position();
+		}
+	    }
+	}
+
+	final int sampledLines = columns.size();
+	final int uniqueHits = toHits(parser, columns, true).size();
+	final long estimatedHits = exact || sampledBytes == 0 ? sampledLines
+		: Math.round((double) sampledLines / sampledBytes * inputSize);
+	final double uniqueRatio = sampledLines == 0 ? 0 : (double) uniqueHits / sampledLines;
+	final long estimatedUniqueHits = exact ? uniqueHits : Math.round(estimatedHits * uniqueRatio);
+
+	// Compressed files are parsed by one thread
+	final int threadsNumber = format != CompressionFormat.NONE ? 1
+		: Math.min(MAX_PARSING_THREADS, Runtime.getRuntime().availableProcessors());
+	final long elapsedNanos = System.nanoTime() - startTime;
+	final long estimatedParseNanos = sampledBytes == 0 ? 0
+		: (long) ((double) elapsedNanos / sampledBytes * inputSize / threadsNumber);
+
+	final List<Hit> sampleHits = new ArrayList<>();
+	final int sampleStep = Math.max(1, sampledLines / PREVIEW_SAMPLE_HITS_NUMBER);
+	for (int row = 0; row < sampledLines && sampleHits.size() < PREVIEW_SAMPLE_HITS_NUMBER; row += sampleStep)
+	    sampleHits.add(parser.toHit(columns, row));
+
+	return new HitsPreviewDto(sampleHits, sampledLines, exact, estimatedHits, uniqueRatio, estimatedUniqueHits,
+		TimeUnit.NANOSECONDS.toMillis(estimatedParseNanos), HitsPreviewDto.UNKNOWN_MEMORY);
+    }
+
     /**
      * Write to a file hits by CSV format
      *
@@ -324,36 +670,114 @@ public class CSVHitsParser extends AbstractParser {
      */
     public static void toCSV(final List<Integer> columnsTypes, final Iterable<Hit> hits, final String outputPath)
 	    throws IOException, CSVParseException {
+	writeCSV(columnsTypes, hits, outputPath, false);
+    }
+
+    /**
+     * Append hits to the end of a file by CSV format
+     *
+     * @param columnsTypes
+     *            configuration of columns types.
+     * @param hits
+     *            list of the list.
+     * @param outputPath
+     *            path to output file.
+     * @throws IOException
+     *             if IO errors occurs.
+     * @throws CSVParseException
+     *             if fails to parse hits.
+     * @throws NullPointerException
+     *             if the columns types list is null, or one of the elements in
+     *             it is null.
+     */
+    public static void appendToCSV(final List<Integer> columnsTypes, final Iterable<Hit> hits,
+	    final String outputPath) throws IOException, CSVParseException {
+	writeCSV(columnsTypes, hits, outputPath, true);
+    }
+
+    /**
+     * Write hits to a file by CSV format.
+     *
+     * @param columnsTypes
+     *            configuration of columns types.
+     * @param hits
+     *            list of the list.
+     * @param outputPath
+     *            path to output file.
+     * @param append
+     *            if true, the hits are appended to the end of the file,
+     *            otherwise the file is over written.
+     * @throws IOException
+     *             if IO errors occurs.
+     * @throws CSVParseException
+     *             if fails to parse hits.
+     */
+    private static void writeCSV(final List<Integer> columnsTypes, final Iterable<Hit> hits, final String outputPath,
+	    final boolean append) throws IOException, CSVParseException {
 	final File outputFile = new File(outputPath);
 	if (outputFile.exists() && !outputFile.canWrite())
 	    throw new IOException("File already exist and can't be over written");
 
-	try (final BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))) {
-	    if (columnsTypes.contains(SERVICE_PORT) ^ columnsTypes.contains(SERVICE_PROTOCOL))
-		System.err.println("Warning: Choose service port and service protocol or neither of them! "
-			+ "Will procede and write hits to file, but the hits' service attribute won't be readable.");
-	    for (final Hit hit : hits) {
-		if (columnsTypes.contains(SOURCE) && hit.getAttribute(AttributeType.SOURCE) == null)
-		    throw new IllegalArgumentException("Source attribute is missing in one of the hits");
-		if (columnsTypes.contains(DESTINATION) && hit.getAttribute(AttributeType.DESTINATION) == null)
-		    throw new IllegalArgumentException("Destination attribute is missing in one of the hits");
-		if (columnsTypes.contains(SERVICE_PROTOCOL) && columnsTypes.contains(SERVICE_PORT)
-			&& hit.getAttribute(AttributeType.SERVICE) == null)
-		    throw new IllegalArgumentException("Source attribute is missing in one of the hits");
-	    }
-
-	    final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
-	    for (final Hit hit : hits)
-		if (hit != null) {
-		    final String line = parser.toCSV(hit);
-		    if (!line.isEmpty()) {
-			writer.write(line);
-			writer.newLine();
-		    }
-		}
+	if (columnsTypes.contains(SERVICE_PORT) ^ columnsTypes.contains(SERVICE_PROTOCOL))
+	    System.err.println("Warning: Choose service port and service protocol or neither of them! "
+		    + "Will procede and write hits to file, but the hits' service attribute won't be readable.");
+	try (final CSVHitsWriter writer = new CSVHitsWriter(columnsTypes, openOutput(outputFile, append))) {
+	    writer.writeAll(hits);
 	}
     }
 
+    /**
+     * Open an output stream to a CSV file.
+     * <p>
+     * Hits appended to a GZIP file are written as a new GZIP member, so the
+     * file stays compressed.
+     *
+     * @param file
+     *            the output file.
+     * @param append
+     *            if true, the written bytes are appended to the end of the
+     *            file, otherwise the file is over written.
+     * @return output stream to the file.
+     * @throws IOException
+     *             if IO errors occurs, or the file is a compressed file that
+     *             can't be appended to.
+     */
+    private static OutputStream openOutput(final File file, final boolean append) throws IOException {
+	if (append && file.length() > 0)
+	    switch (CompressionFormat.detect(file)) {
+	    case GZIP:
+		return new GZIPOutputStream(new FileOutputStream(file, true));
+	    case ZIP:
+		throw new IOException("Can't append hits to a ZIP file: " + file);
+	    default:
+		break;
+	    }
+	return new FileOutputStream(file, append);
+    }
+
+    /**
+     * Parse the hits of a file.
+     * <p>
+     * The file is split to chunks of whole lines, which are parsed
+     * concurrently. Each chunk is mapped to memory and parsed to primitive
+     * columns, which are converted to hits. The chunks are merged by their
+     * order in the file, so the result is the same as parsing the file by one
+     * thread.
+     *
+     * @param columnsTypes
+     *            configuration of columns types
+     * @param fileName
+     *            name of the file.
+     * @param unique
+     *            if true, identical hits are parsed to one hit, weighted by
+     *            the number of its occurrences.
+     * @return list of the hits, by the order of their (first) occurrence in
+     *         the file.
+     * @throws IOException
+     *             if IO errors occurs
+     * @throws CSVParseException
+     *             if fails to parse file
+     */
     private static List<Hit> parseHits(final List<Integer> columnsTypes, final String fileName, final boolean unique)
 	    throws IOException, CSVParseException {
 	final File file = new File(fileName);
@@ -366,84 +790,566 @@ public class CSVHitsParser extends AbstractParser {
 	    System.err.println("Warning: Choose service port and service protocol or neither of them! "
 		    + "Ignoring both for now.");
 
+	final CompressionFormat format = CompressionFormat.detect(file);
+	if (format != CompressionFormat.NONE)
+	    try (final InputStream in = format.open(file)) {
+		// Decompressed in parallel to the parsing
+		return parseStreamHits(columnsTypes, in, unique);
+	    }
+
+	final List<List<Hit>> chunks = new ArrayList<>();
+	try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    final int threadsNumber = Math.min(MAX_PARSING_THREADS, Runtime.getRuntime().availableProcessors());
+	    final long[] bounds = splitToChunks(channel, threadsNumber);
+	    final int chunksNumber = bounds.length - 1;
+
+	    if (chunksNumber == 1)
+		chunks.add(parseChunk(columnsTypes, channel, bounds[0], bounds[1], unique));
+	    else {
+		// Each chunk is parsed to hits by its own thread, the chunks are
+		// merged by their order in the file
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadsNumber, chunksNumber));
+		try {
+		    final List<Future<List<Hit>>> futures = new ArrayList<>(chunksNumber);
+		    for (int i = 0; i < chunksNumber; i++) {
+			final long start = bounds[i];
+			final long end = bounds[i + 1];
+			futures.add(executor.submit(() -> parseChunk(columnsTypes, channel, start, end, unique)));
+		    }
+		    for (final Future<List<Hit>> future : futures)
+			chunks.add(await(future));
+		} finally {
+		    executor.shutdownNow();
+		}
+	    }
+	}
+
+	if (chunks.size() == 1)
+	    return chunks.get(0);
+	if (!unique) {
+	    int size = 0;
+	    for (final List<Hit> chunk : chunks)
+		size += chunk.size();
+	    final List<Hit> hits = new ArrayList<>(size);
+	    for (final List<Hit> chunk : chunks)
+		hits.addAll(chunk);
+	    return hits;
+	}
+
+	// Each unique hit and the number of its occurrences in all chunks. The
+	// chunks have different IPs dictionaries, so they are merged by the hits
+	// and not by the packed rows.
+	final Map<Hit, MutableInteger> uniqueHits = new LinkedHashMap<>();
+	for (final List<Hit> chunk : chunks)
+	    for (final Hit hit : chunk)
+		uniqueHits.computeIfAbsent(hit, MutableInteger.zeroFunction()).value += hit.getWeight();
+	final List<Hit> hits = new ArrayList<>(uniqueHits.size());
+	for (final Map.Entry<Hit, MutableInteger> hit : uniqueHits.entrySet())
+	    hits.add(WeightedHit.valueOf(hit.getKey(), hit.getValue().value));
+	return hits;
+    }
+
+    /**
+     * Split a file to chunks of whole lines.
+     * <p>
+     * The chunks are small enough to be mapped to memory at once, and there
+     * are a few chunks for each parsing thread so the threads are kept busy
+     * when some chunks are parsed faster than others.
+     *
+     * @param channel
+     *            the file channel.
+     * @param threadsNumber
+     *            the number of parsing threads.
+     * @return the bounds of the chunks, chunk i is from bounds[i] (inclusive)
+     *         to bounds[i+1] (exclusive). There is at least one (maybe
+     *         empty) chunk.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    private static long[] splitToChunks(final FileChannel channel, final int threadsNumber) throws IOException {
+	final long fileSize = channel.size();
+	final long chunkSize = Math.min(MAPPED_REGION_SIZE,
+		Math.max(MIN_CHUNK_SIZE, fileSize / ((long) threadsNumber * CHUNKS_PER_THREAD) + 1));
+
+	final List<Long> bounds = new ArrayList<>();
+	bounds.add(Long.valueOf(0));
+	for (long bound = 0; bound < fileSize;) {
+	    bound = bound + chunkSize < fileSize ? nextLineStart(channel, bound + chunkSize) : fileSize;
+	    bounds.add(Long.valueOf(bound));
+	}
+	if (bounds.size() == 1)
+	    bounds.add(Long.valueOf(fileSize));
+
+	final long[] boundsArr = new long[bounds.size()];
+	for (int i = 0; i < boundsArr.length; i++)
+	    boundsArr[i] = bounds.get(i).longValue();
+	return boundsArr;
+    }
+
+    /**
+     * Find the start of the first line that starts at a position or after it.
+     *
+     * @param channel
+     *            the file channel.
+     * @param position
+     *            the position in the file, greater than 0.
+     * @return the position of the line start, or the file size if there is no
+     *         such line.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    private static long nextLineStart(final FileChannel channel, final long position) throws IOException {
+	final ByteBuffer buffer = ByteBuffer.allocate(LINE_SEARCH_BUFFER_SIZE);
+	// A line starts at the position if the previous byte is a line end
+	for (long bufferPosition = position - 1;;) {
+	    buffer.clear();
+	    final int read = channel.read(buffer, bufferPosition);
+	    if (read <= 0)
+		return channel.size();
+	    for (int i = 0; i < read; i++)
+		if (buffer.get(i) == '\n')
+		    return bufferPosition + i + 1;
+	    bufferPosition += read;
+	}
+    }
+
+    /**
+     * Parse the hits of a chunk of a file.
+     * <p>
+     * The chunk is parsed by its own parser and caches, so chunks can be
+     * parsed concurrently.
+     *
+     * @param columnsTypes
+     *            configuration of columns types
+     * @param channel
+     *            the file channel.
+     * @param start
+     *            the start position of the chunk (inclusive), a line start.
+     * @param end
+     *            the end position of the chunk (exclusive), a line start or
+     *            the file size.
+     * @param unique
+     *            if true, identical hits of the chunk are parsed to one hit,
+     *            weighted by the number of its occurrences in the chunk.
+     * @return list of the chunk's hits, by the order of their (first)
+     *         occurrence.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws CSVParseException
+     *             if failed to parse the chunk.
+     */
+    private static List<Hit> parseChunk(final List<Integer> columnsTypes, final FileChannel channel,
+	    final long start, final long end, final boolean unique) throws IOException, CSVParseException {
+	if (end - start > Integer.MAX_VALUE)
+	    // No line end was found to split the chunk before the mapping limit
+	    throw new CSVParseException("Chunk at offset " + start + " is longer than " + Integer.MAX_VALUE
+		    + " bytes, no line end was found in it");
+
+	final CSVHitsParser parser = newCachedParser(columnsTypes);
+	final CSVHitsColumns columns = new CSVHitsColumns();
+	if (start != end)
+	    parser.parseColumns(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), columns, true);
+	return toHits(parser, columns, unique);
+    }
+
+    /**
+     * Parse the hits of a stream.
+     * <p>
+     * The stream is read (and decompressed) by another thread, into blocks of
+     * whole lines, which are parsed by this thread while the next blocks are
+     * read.
+     *
+     * @param columnsTypes
+     *            configuration of columns types
+     * @param in
+     *            the (decompressed) stream.
+     * @param unique
+     *            if true, identical hits are parsed to one hit, weighted by
+     *            the number of its occurrences.
+     * @return list of the hits, by the order of their (first) occurrence in
+     *         the stream.
+     * @throws IOException
+     *             if IO errors occurs
+     * @throws CSVParseException
+     *             if fails to parse the stream
+     */
+    private static List<Hit> parseStreamHits(final List<Integer> columnsTypes, final InputStream in,
+	    final boolean unique) throws IOException, CSVParseException {
+	final CSVHitsParser parser = newCachedParser(columnsTypes);
+	final CSVHitsColumns columns = new CSVHitsColumns();
+	final BlockingQueue<ByteBuffer> blocks = new ArrayBlockingQueue<>(DECOMPRESSED_BLOCKS_QUEUE_SIZE);
+
+	final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+	    final Thread thread = new Thread(runnable, READER_THREAD_NAME);
+	    thread.setDaemon(true);
+	    return thread;
+	});
+	boolean parsed = false;
+	try {
+	    final Future<Void> reader = executor.submit(() -> {
+		boolean stopped = false;
+		try {
+		    readBlocks(in, blocks);
+		} catch (final InterruptedException e) {
+		    // The parsing failed, no one waits to the end of the blocks
+		    stopped = true;
+		    throw e;
+		} finally {
+		    // The parsing thread waits to the end of the blocks
+		    if (!stopped)
+			blocks.put(END_OF_BLOCKS);
+		}
+		return null;
+	    });
+	    try {
+		for (ByteBuffer block; (block = blocks.take()) != END_OF_BLOCKS;)
+		    parser.parseColumns(block, columns, true);
+	    } catch (final InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException();
+	    }
+	    await(reader);
+	    parsed = true;
+	} finally {
+	    executor.shutdownNow();
+	    if (!parsed)
+		// Release the read blocks, and make room for the end of the blocks
+		// if the reader is not waiting on the full queue
+		blocks.clear();
+	}
+	return toHits(parser, columns, unique);
+    }
+
+    /**
+     * Read a stream into blocks of whole lines.
+     *
+     * @param in
+     *            the stream.
+     * @param blocks
+     *            the queue of the blocks.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting to add a block
+     *             to the queue.
+     */
+    private static void readBlocks(final InputStream in, final BlockingQueue<ByteBuffer> blocks)
+	    throws IOException, InterruptedException {
+	byte[] block = new byte[DECOMPRESSED_BLOCK_SIZE];
+	int length = 0;
+	for (int read; (read = in.read(block, length, block.length - length)) >= 0;) {
+	    length += read;
+	    if (length < block.length)
+		continue;
+
+	    int lineEnd = length;
+	    while (lineEnd > 0 && block[lineEnd - 1] != '\n')
+		lineEnd--;
+	    if (lineEnd == 0) {
+		// A line that is longer than the block
+		block = Arrays.copyOf(block, block.length * 2);
+		continue;
+	    }
+
+	    // Move the start of the last line to the next block
+	    final byte[] nextBlock = new byte[Math.max(DECOMPRESSED_BLOCK_SIZE, (length - lineEnd) * 2)];
+	    System.arraycopy(block, lineEnd, nextBlock, 0, length - lineEnd);
+	    blocks.put(ByteBuffer.wrap(block, 0, lineEnd));
+	    block = nextBlock;
+	    length -= lineEnd;
+	}
+	if (length != 0)
+	    blocks.put(ByteBuffer.wrap(block, 0, length));
+    }
+
+    /**
+     * Create a parser with new caches.
+     *
+     * @param columnsTypes
+     *            configuration of columns types
+     * @return new parser.
+     */
+    private static CSVHitsParser newCachedParser(final List<Integer> columnsTypes) {
 	final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
 	final IP.Cache ipsCache = new IP.Cache();
 	parser.setSourceCache(new Source.Cache(ipsCache));
 	parser.setDestinationCache(new Destination.Cache(ipsCache));
 	parser.setServiceCache(new Service.Cache());
+	return parser;
+    }
 
-	final List<Hit> hits = new ArrayList<>();
-	try (final BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
-	    if (unique) {
-		final Set<String> uniqueLines = Collections.newSetFromMap(new ConcurrentHashMap<>());
-
-		// Read first lines to estimate number of lines in the file.
-		double sumOfLinesSizes = 0;
-		final int NUMBER_OF_TESTED_LINES = 10000;
-		int i = 0;
-		for (String line; i < NUMBER_OF_TESTED_LINES && (line = reader.readLine()) != null; i++) {
-		    uniqueLines.add(line);
-		    sumOfLinesSizes += line.length(); // UTF-8
-		}
-		final double averageLineSize = sumOfLinesSizes / NUMBER_OF_TESTED_LINES;
-		final long fileSize = Files.size(file.toPath());
-		final long estimatedNumberOfLines = (long) ((fileSize - sumOfLinesSizes) / averageLineSize * 1.05);
-
-		// Create spliterator over the file (using the lines number
-		// estimation)
-		final Spliterator<String> spliterator = Spliterators.spliterator(new Iterator<String>() {
-
-		    String nextLine = null;
-
-		    @Override
-		    public boolean hasNext() {
-			if (nextLine != null)
-			    return true;
-			try {
-			    nextLine = reader.readLine();
-			    return nextLine != null;
-			} catch (final IOException e) {
-			    throw new UncheckedIOException(e);
-			}
-		    }
+    /**
+     * Convert parsed columns to hits.
+     *
+     * @param parser
+     *            the parser that parsed the columns.
+     * @param columns
+     *            the parsed columns.
+     * @param unique
+     *            if true, identical rows are converted to one hit, weighted by
+     *            the number of its occurrences.
+     * @return list of the hits, by the order of their (first) occurrence.
+     * @throws CSVParseException
+     *             if one of the rows' values are out of range.
+     */
+    private static List<Hit> toHits(final CSVHitsParser parser, final CSVHitsColumns columns, final boolean unique)
+	    throws CSVParseException {
+	final int size = columns.size();
+	if (!unique) {
+	    final List<Hit> hits = new ArrayList<>(size);
+	    for (int row = 0; row < size; row++)
+		hits.add(parser.toHit(columns, row));
+	    return hits;
+	}
 
-		    @Override
-		    public String next() {
-			if (nextLine != null || hasNext()) {
-			    final String line = nextLine;
-			    nextLine = null;
-			    return line;
-			}
-			throw new NoSuchElementException();
-		    }
-		}, estimatedNumberOfLines, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED);
+	// Group identical rows by their packed values, only the first row of
+	// each group is converted to a hit
+	final PackedKeysCounter counter = new PackedKeysCounter();
+	int[] firstRows = new int[Hashs.DEFAULT_INIT_CAPACITY];
+	int uniqueRows = 0;
+	for (int row = 0; row < size; row++)
+	    if (counter.add(parser.packHigh(columns, row), parser.packLow(columns, row)) == uniqueRows) {
+		// First occurrence
+		if (uniqueRows == firstRows.length)
+		    firstRows = Arrays.copyOf(firstRows, uniqueRows * 2);
+		firstRows[uniqueRows++] = row;
+	    }
+	final List<Hit> hits = new ArrayList<>(counter.size());
+	for (int index = 0; index < counter.size(); index++)
+	    hits.add(WeightedHit.valueOf(parser.toHit(columns, firstRows[index]), counter.getCount(index)));
+	return hits;
+    }
 
-		// Set up executor service
-		final ExecutorService executorService = Executors
-			.newFixedThreadPool(Math.min(16, Runtime.getRuntime().availableProcessors()));
+    /**
+     * Pack the high 64 bits of a row's values, the source and destination
+     * address bits.
+     * <p>
+     * The packed values of two rows are equal if and only if the rows are
+     * identical (in the columns of this parser).
+     *
+     * @param columns
+     *            the parsed columns.
+     * @param row
+     *            the index of the row.
+     * @return the high 64 bits of the packed row.
+     */
+    private long packHigh(final CSVHitsColumns columns, final int row) {
+	final int source = m_containsSource ? columns.m_sourceAddresses[row] : 0;
+	final int destination = m_containsDestination ? columns.m_destinationAddresses[row] : 0;
+	return (long) source << Integer.SIZE | destination & 0xffffffffL;
+    }
 
-		// Allocate all jobs
-		final Consumer<String> job = line -> uniqueLines.add(line);
-		for (Spliterator<String> s; (s = spliterator.trySplit()) != null;) {
-		    final Spliterator<String> split = s;
-		    executorService.execute(() -> split.forEachRemaining(job));
-		}
-		spliterator.forEachRemaining(job);
+    /**
+     * Pack the low 64 bits of a row's values, the source and destination mask
+     * sizes, the protocol code and the port.
+     *
+     * @param columns
+     *            the parsed columns.
+     * @param row
+     *            the index of the row.
+     * @return the low 64 bits of the packed row.
+     * @see #packHigh(CSVHitsColumns, int)
+     */
+    private long packLow(final CSVHitsColumns columns, final int row) {
+	final long sourceMask = m_containsSource ? columns.m_sourceMasks[row] & 0xff : 0;
+	final long destinationMask = m_containsDestination ? columns.m_destinationMasks[row] & 0xff : 0;
+	final long protocol = m_containsService ? columns.m_protocols[row] & 0xffff : 0;
+	final long port = m_containsService ? columns.m_ports[row] & 0xffffffffL : 0;
+	return sourceMask << 56 | destinationMask << 48 | protocol << 32 | port;
+    }
 
-		// Wait to all jobs to finish
-		executorService.shutdown();
+    /**
+     * Wait for a parsing task to complete.
+     *
+     * @param <T>
+     *            the type of the task's result.
+     * @param future
+     *            the future result of the task.
+     * @return the result of the task.
+     * @throws IOException
+     *             if any I/O errors occurs, or the thread was interrupted.
+     * @throws CSVParseException
+     *             if failed to parse.
+     */
+    static <T> T await(final Future<T> future) throws IOException, CSVParseException {
+	try {
+	    return future.get();
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException();
+	} catch (final ExecutionException e) {
+	    final Throwable cause = e.getCause();
+	    if (cause instanceof IOException)
+		throw (IOException) cause;
+	    if (cause instanceof CSVParseException)
+		throw (CSVParseException) cause;
+	    if (cause instanceof RuntimeException)
+		throw (RuntimeException) cause;
+	    if (cause instanceof Error)
+		throw (Error) cause;
+	    throw new IOException(cause);
+	}
+    }
 
-		// Parse all unique lines
-		for (final String line : uniqueLines)
-		    hits.add(parser.parseHit(line));
+    /**
+     * Parse one CSV line into a row of the columns.
+     *
+     * @param buffer
+     *            the CSV bytes.
+     * @param from
+     *            the index of the line's first byte.
+     * @param to
+     *            the index of the line's end (exclusive).
+     * @param columns
+     *            the columns to add the row to.
+     * @throws CSVParseException
+     *             if the line is invalid.
+     */
+    private void parseRow(final ByteBuffer buffer, final int from, final int to, final CSVHitsColumns columns)
+	    throws CSVParseException {
+	columns.ensureCapacity();
+	final int row = columns.m_size;
+	int column = 0;
+	for (int index = from;;) {
+	    // Skip separators
+	    while (index < to && isSeparator(buffer.get(index)))
+		index++;
+	    if (index == to || column == m_requiredColumnsNumber)
+		break;
+
+	    final int tokenStart = index;
+	    while (index < to && !isSeparator(buffer.get(index)))
+		index++;
 
-	    } else
-		for (String line; (line = reader.readLine()) != null;)
-		    if (!line.isEmpty())
-			hits.add(parser.parseHit(line));
+	    if (column == m_sourceIndex && m_containsSource) {
+		final long ip = parseIP(buffer, tokenStart, index, columns);
+		columns.m_sourceAddresses[row] = (int) ip;
+		columns.m_sourceMasks[row] = (byte) (ip >> Integer.SIZE);
+	    } else if (column == m_destinationIndex && m_containsDestination) {
+		final long ip = parseIP(buffer, tokenStart, index, columns);
+		columns.m_destinationAddresses[row] = (int) ip;
+		columns.m_destinationMasks[row] = (byte) (ip >> Integer.SIZE);
+	    } else if (column == m_serviceProtocolIndex && m_containsService)
+		columns.m_protocols[row] = (short) parseNumber(buffer, tokenStart, index, MAX_PROTOCOL_DIGITS_NUMBER);
+	    else if (column == m_servicePortIndex && m_containsService)
+		columns.m_ports[row] = parseNumber(buffer, tokenStart, index, MAX_PORT_DIGITS_NUMBER);
+	    column++;
 	}
-	return hits;
 
+	if (column == 0)
+	    // Empty line
+	    return;
+	if (column < m_requiredColumnsNumber)
+	    throw new CSVParseException("Expected at least " + m_requiredColumnsNumber + " columns, actual " + column
+		    + ": " + toString(buffer, from, to));
+	columns.m_size++;
+    }
+
+    /**
+     * Parse an IP from CSV bytes.
+     * <p>
+     * IPv4 is parsed directly from the bytes, other IPs are parsed from string
+     * and added to the columns' IPs dictionary.
+     *
+     * @param buffer
+     *            the CSV bytes.
+     * @param from
+     *            the index of the IP's first byte.
+     * @param to
+     *            the index of the IP's end (exclusive).
+     * @param columns
+     *            the columns.
+     * @return the mask size in the high 32 bits and the address bits in the low
+     *         32 bits. Mask size {@value CSVHitsColumns#DICTIONARY_IP} means
+     *         the address is an index in the IPs dictionary.
+     * @throws CSVParseException
+     *             if the bytes are not a valid IP.
+     */
+    private static long parseIP(final ByteBuffer buffer, final int from, final int to, final CSVHitsColumns columns)
+	    throws CSVParseException {
+	final long ipv4 = IPv4.parseBits(buffer, from, to);
+	if (ipv4 != IPv4.INVALID_BITS)
+	    return ipv4;
+	final String s = toString(buffer, from, to);
+	try {
+	    return (long) CSVHitsColumns.DICTIONARY_IP << Integer.SIZE | columns.ipIndex(IP.valueOf(s));
+	} catch (final IllegalArgumentException e) {
+	    throw new CSVParseException(e);
+	}
+    }
+
+    /**
+     * Parse a positive decimal number from CSV bytes.
+     *
+     * @param buffer
+     *            the CSV bytes.
+     * @param from
+     *            the index of the number's first byte.
+     * @param to
+     *            the index of the number's end (exclusive).
+     * @param maxDigits
+     *            max allowed digits.
+     * @return the number.
+     * @throws CSVParseException
+     *             if the bytes are not a number or there are too many digits.
+     */
+    private static int parseNumber(final ByteBuffer buffer, final int from, final int to, final int maxDigits)
+	    throws CSVParseException {
+	final int length = to - from;
+	if (length > maxDigits)
+	    throw new CSVParseException("Too many digits: " + toString(buffer, from, to));
+	if (length == 0)
+	    return 0;
+	final int number = Swar.parseNumber(Swar.load(buffer, from, to), length);
+	if (number < 0)
+	    throw new CSVParseException("Invalid number: " + toString(buffer, from, to));
+	return number;
+    }
+
+    /**
+     * Convert a parsed IP value to IP object.
+     *
+     * @param columns
+     *            the parsed columns.
+     * @param address
+     *            the IP's address bits, or index in the IPs dictionary.
+     * @param maskSize
+     *            the IP's mask size, or {@value CSVHitsColumns#DICTIONARY_IP}.
+     * @return the IP.
+     */
+    private IP toIP(final CSVHitsColumns columns, final int address, final byte maskSize) {
+	if (maskSize == CSVHitsColumns.DICTIONARY_IP)
+	    return columns.ip(address);
+	return m_ipv4Cache.valueOfBits(address, maskSize);
+    }
+
+    /**
+     * Check if a byte is a separator between words in CSV line.
+     *
+     * @param b
+     *            the byte.
+     * @return true if the byte is a space, a tab or a carriage return.
+     */
+    private static boolean isSeparator(final byte b) {
+	return b == Utility.SPACE || b == Utility.TAB || b == '\r';
+    }
+
+    /**
+     * Decode CSV bytes to string, used for the rare cases a string is needed.
+     *
+     * @param buffer
+     *            the CSV bytes.
+     * @param from
+     *            the index of the first byte.
+     * @param to
+     *            the index of the end (exclusive).
+     * @return the decoded string.
+     */
+    private static String toString(final ByteBuffer buffer, final int from, final int to) {
+	final byte[] bytes = new byte[to - from];
+	for (int i = 0; i < bytes.length; i++)
+	    bytes[i] = buffer.get(from + i);
+	return new String(bytes, StandardCharsets.UTF_8);
     }
 
     /**
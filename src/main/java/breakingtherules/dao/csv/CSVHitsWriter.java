@@ -0,0 +1,499 @@
+package breakingtherules.dao.csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import breakingtherules.firewall.Attribute.AttributeType;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.IP;
+import breakingtherules.firewall.IPAttribute;
+import breakingtherules.firewall.IPv4;
+import breakingtherules.firewall.Service;
+
+/**
+ * Writer of hits to a stream by CSV format.
+ * <p>
+ * The lines are formatted directly into a reusable byte buffer, IPv4
+ * addresses and numbers are formatted digit by digit without creating
+ * strings, and the hits are validated while they are formatted. The columns
+ * are separated by tabs, and the lines are the same lines
+ * {@link CSVHitsParser#toCSV(Hit)} creates. CSV has no weight column, so a
+ * weighted hit is written as repeated lines (see {@link Hit#getWeight()}).
+ * <p>
+ * {@link #writeAll(Iterable)} formats batches of hits by several threads,
+ * and writes the batches by their order.
+ * <p>
+ * The writer is not thread safe.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see CSVHitsParser
+ */
+public final class CSVHitsWriter implements Closeable {
+
+    /**
+     * The types of the columns, by their order in a line.
+     */
+    private final int[] m_columnsTypes;
+
+    /**
+     * The output stream.
+     */
+    private final OutputStream m_out;
+
+    /**
+     * The formatted lines that were not written to the output stream yet.
+     */
+    private final LinesBuffer m_buffer;
+
+    /**
+     * The line separator bytes.
+     */
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The separator of the columns in a line.
+     */
+    private static final byte COLUMNS_SEPARATOR = '\t';
+
+    /**
+     * The size of the buffer, the buffer is written to the output stream when
+     * it's full.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The maximal number of bytes of an IPv4 column, "255.255.255.255/32".
+     */
+    private static final int MAX_IPV4_LENGTH = 18;
+
+    /**
+     * The maximal number of bytes of a number column.
+     */
+    private static final int MAX_NUMBER_LENGTH = 11;
+
+    /**
+     * The number of hits formatted by one task of {@link #writeAll(Iterable)}.
+     */
+    private static final int BATCH_SIZE = 1 << 14;
+
+    /**
+     * The maximal number of formatting threads of {@link #writeAll(Iterable)}.
+     */
+    private static final int MAX_FORMATTING_THREADS = 8;
+
+    /**
+     * Construct new CSVHitsWriter.
+     *
+     * @param columnsTypes
+     *            configuration of columns types (see
+     *            {@link CSVHitsParser#SOURCE} and the other columns types).
+     * @param out
+     *            the output stream. The stream is closed when the writer is
+     *            closed.
+     * @throws NullPointerException
+     *             if the columns types list or one of its elements is null,
+     *             or the output stream is null.
+     * @throws IllegalArgumentException
+     *             if one of the columns types is unknown.
+     */
+    public CSVHitsWriter(final List<Integer> columnsTypes, final OutputStream out) {
+	m_columnsTypes = new int[columnsTypes.size()];
+	for (int i = 0; i < m_columnsTypes.length; i++) {
+	    final int columnType = columnsTypes.get(i).intValue();
+	    switch (columnType) {
+	    case CSVHitsParser.SOURCE_VAL:
+	    case CSVHitsParser.DESTINATION_VAL:
+	    case CSVHitsParser.SERVICE_PROTOCOL_VAL:
+	    case CSVHitsParser.SERVICE_PORT_VAL:
+		m_columnsTypes[i] = columnType;
+		break;
+	    default:
+		throw new IllegalArgumentException("Unknown column type: " + columnType);
+	    }
+	}
+	m_out = Objects.requireNonNull(out);
+	m_buffer = new LinesBuffer(BUFFER_SIZE);
+    }
+
+    /**
+     * Write a hit.
+     *
+     * @param hit
+     *            the hit.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws CSVParseException
+     *             if the hit lacks one of the written attributes.
+     * @throws NullPointerException
+     *             if the hit is null.
+     */
+    public void write(final Hit hit) throws IOException, CSVParseException {
+	format(m_columnsTypes, hit, m_buffer);
+	if (m_buffer.m_size >= BUFFER_SIZE)
+	    writeBuffer();
+    }
+
+    /**
+     * Write hits.
+     * <p>
+     * Batches of the hits are formatted by several threads, and the formatted
+     * batches are written by the hits order. If one of the hits can't be
+     * written, the hits before it may have been written.
+     *
+     * @param hits
+     *            the hits.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws CSVParseException
+     *             if one of the hits lacks one of the written attributes.
+     * @throws NullPointerException
+     *             if the hits iterable or one of the hits is null.
+     */
+    public void writeAll(final Iterable<Hit> hits) throws IOException, CSVParseException {
+	final Iterator<Hit> it = hits.iterator();
+	List<Hit> batch = nextBatch(it);
+	if (!it.hasNext()) {
+	    // One batch, not worth other threads
+	    for (final Hit hit : batch)
+		write(hit);
+	    return;
+	}
+
+	writeBuffer();
+	final int threadsNumber = Math.min(MAX_FORMATTING_THREADS, Runtime.getRuntime().availableProcessors());
+	final ExecutorService executor = Executors.newFixedThreadPool(threadsNumber);
+	try {
+	    // Formatted batches by their order, a few batches for each thread are
+	    // formatted ahead of the written batch
+	    final Queue<Future<LinesBuffer>> formatted = new ArrayDeque<>();
+	    for (;;) {
+		if (!batch.isEmpty()) {
+		    final List<Hit> formattedBatch = batch;
+		    formatted.add(executor.submit(() -> format(m_columnsTypes, formattedBatch)));
+		}
+		if (formatted.isEmpty())
+		    break;
+		if (formatted.size() >= threadsNumber * 2 || !it.hasNext()) {
+		    final LinesBuffer lines = CSVHitsParser.await(formatted.remove());
+		    m_out.write(lines.m_bytes, 0, lines.m_size);
+		}
+		batch = nextBatch(it);
+	    }
+	} finally {
+	    executor.shutdownNow();
+	}
+    }
+
+    /**
+     * Flush the written hits to the output stream, and flush the output
+     * stream.
+     *
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    public void flush() throws IOException {
+	writeBuffer();
+	m_out.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The written hits are flushed and the output stream is closed.
+     */
+    @Override
+    public void close() throws IOException {
+	try {
+	    writeBuffer();
+	} finally {
+	    m_out.close();
+	}
+    }
+
+    /**
+     * Write the buffered lines to the output stream.
+     *
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    private void writeBuffer() throws IOException {
+	if (m_buffer.m_size != 0) {
+	    m_out.write(m_buffer.m_bytes, 0, m_buffer.m_size);
+	    m_buffer.m_size = 0;
+	}
+    }
+
+    /**
+     * Get the next batch of hits.
+     *
+     * @param it
+     *            the hits iterator.
+     * @return list of the next (at most) {@value #BATCH_SIZE} hits, empty if
+     *         there are no more hits.
+     */
+    private static List<Hit> nextBatch(final Iterator<Hit> it) {
+	final List<Hit> batch = new ArrayList<>();
+	for (int i = BATCH_SIZE; i-- != 0 && it.hasNext();)
+	    batch.add(it.next());
+	return batch;
+    }
+
+    /**
+     * Format a batch of hits.
+     *
+     * @param columnsTypes
+     *            the types of the columns.
+     * @param hits
+     *            the hits.
+     * @return the formatted lines.
+     * @throws CSVParseException
+     *             if one of the hits lacks one of the written attributes.
+     */
+    private static LinesBuffer format(final int[] columnsTypes, final List<Hit> hits) throws CSVParseException {
+	final LinesBuffer lines = new LinesBuffer(BUFFER_SIZE);
+	for (final Hit hit : hits)
+	    format(columnsTypes, hit, lines);
+	return lines;
+    }
+
+    /**
+     * Format a hit to lines, repeated by the hit's weight.
+     *
+     * @param columnsTypes
+     *            the types of the columns.
+     * @param hit
+     *            the hit.
+     * @param lines
+     *            the buffer the lines are formatted to.
+     * @throws CSVParseException
+     *             if the hit lacks one of the written attributes.
+     */
+    private static void format(final int[] columnsTypes, final Hit hit, final LinesBuffer lines)
+	    throws CSVParseException {
+	final int lineStart = lines.m_size;
+	for (int i = 0; i < columnsTypes.length; i++) {
+	    if (i != 0)
+		lines.append(COLUMNS_SEPARATOR);
+	    switch (columnsTypes[i]) {
+	    case CSVHitsParser.SOURCE_VAL:
+		formatIP(getIP(hit, AttributeType.SOURCE, "Source"), lines);
+		break;
+	    case CSVHitsParser.DESTINATION_VAL:
+		formatIP(getIP(hit, AttributeType.DESTINATION, "Destination"), lines);
+		break;
+	    case CSVHitsParser.SERVICE_PROTOCOL_VAL:
+		formatNumber(getService(hit).getProtocolCode(), lines);
+		break;
+	    case CSVHitsParser.SERVICE_PORT_VAL:
+		formatNumber(getService(hit).getPortRangeStart(), lines);
+		break;
+	    default:
+		throw new IllegalStateException("Unknown column type: " + columnsTypes[i]);
+	    }
+	}
+	lines.append(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+
+	// Repeated lines are copied
+	final int lineLength = lines.m_size - lineStart;
+	for (int i = hit.getWeight(); --i > 0;)
+	    lines.append(lines.m_bytes, lineStart, lineLength);
+    }
+
+    /**
+     * Format an IP.
+     * <p>
+     * IPv4 addresses are formatted digit by digit, other IPs are formatted by
+     * their string representation.
+     *
+     * @param ip
+     *            the IP.
+     * @param lines
+     *            the buffer the IP is formatted to.
+     */
+    private static void formatIP(final IP ip, final LinesBuffer lines) {
+	if (!(ip instanceof IPv4) || ip.getMaskSize() == 0) {
+	    final byte[] bytes = ip.toString().getBytes(StandardCharsets.UTF_8);
+	    lines.append(bytes, 0, bytes.length);
+	    return;
+	}
+
+	lines.ensureCapacity(MAX_IPV4_LENGTH);
+	final byte[] bytes = lines.m_bytes;
+	int position = lines.m_size;
+	final int address = ((IPv4) ip).getAddressBitsInt();
+	for (int shift = IPv4.SIZE - IPv4.BLOCK_SIZE; shift >= 0; shift -= IPv4.BLOCK_SIZE) {
+	    position = formatDigits(address >>> shift & 0xff, bytes, position);
+	    if (shift != 0)
+		bytes[position++] = '.';
+	}
+	final int maskSize = ip.getMaskSize();
+	if (maskSize != IPv4.SIZE) {
+	    bytes[position++] = '/';
+	    position = formatDigits(maskSize, bytes, position);
+	}
+	lines.m_size = position;
+    }
+
+    /**
+     * Format a number.
+     *
+     * @param number
+     *            the number.
+     * @param lines
+     *            the buffer the number is formatted to.
+     */
+    private static void formatNumber(final int number, final LinesBuffer lines) {
+	lines.ensureCapacity(MAX_NUMBER_LENGTH);
+	if (number < 0)
+	    // Such as 'any protocol' code
+	    lines.append((byte) '-');
+	lines.m_size = formatDigits(Math.abs(number), lines.m_bytes, lines.m_size);
+    }
+
+    /**
+     * Format the decimal digits of a non negative number.
+     *
+     * @param number
+     *            the number.
+     * @param bytes
+     *            the output bytes.
+     * @param position
+     *            the position of the first digit in the output bytes.
+     * @return the position after the last digit.
+     */
+    private static int formatDigits(final int number, final byte[] bytes, final int position) {
+	int end = position;
+	for (int n = number; (n /= 10) != 0;)
+	    end++;
+	end++;
+	int n = number;
+	for (int i = end; i-- != position;) {
+	    bytes[i] = (byte) ('0' + n % 10);
+	    n /= 10;
+	}
+	return end;
+    }
+
+    /**
+     * Get the IP of an IP attribute of a hit.
+     *
+     * @param hit
+     *            the hit.
+     * @param attType
+     *            the attribute type.
+     * @param attName
+     *            the attribute name, used in the error message.
+     * @return the IP of the attribute.
+     * @throws CSVParseException
+     *             if the hit doesn't have the attribute.
+     */
+    private static IP getIP(final Hit hit, final AttributeType attType, final String attName)
+	    throws CSVParseException {
+	final IPAttribute attribute = (IPAttribute) hit.getAttribute(attType);
+	if (attribute == null)
+	    throw new CSVParseException(attName + " doesn't exist");
+	return attribute.getIp();
+    }
+
+    /**
+     * Get the service attribute of a hit.
+     *
+     * @param hit
+     *            the hit.
+     * @return the service of the hit.
+     * @throws CSVParseException
+     *             if the hit doesn't have service.
+     */
+    private static Service getService(final Hit hit) throws CSVParseException {
+	final Service service = (Service) hit.getAttribute(AttributeType.SERVICE);
+	if (service == null)
+	    throw new CSVParseException("Service doesn't exist");
+	return service;
+    }
+
+    /**
+     * Growing buffer of formatted lines.
+     *
+     * @author Barak Ugav
+     * @author Yishai Gronich
+     *
+     */
+    private static class LinesBuffer {
+
+	/**
+	 * The buffer bytes.
+	 */
+	byte[] m_bytes;
+
+	/**
+	 * The number of used bytes.
+	 */
+	int m_size;
+
+	/**
+	 * Construct new LinesBuffer.
+	 *
+	 * @param capacity
+	 *            the initial capacity of the buffer.
+	 */
+	LinesBuffer(final int capacity) {
+	    m_bytes = new byte[capacity];
+	}
+
+	/**
+	 * Ensure there is a room for more bytes.
+	 *
+	 * @param length
+	 *            the number of the added bytes.
+	 */
+	void ensureCapacity(final int length) {
+	    if (m_size + length > m_bytes.length)
+		m_bytes = Arrays.copyOf(m_bytes, Math.max(m_bytes.length * 2, m_size + length));
+	}
+
+	/**
+	 * Append a byte.
+	 *
+	 * @param b
+	 *            the byte.
+	 */
+	void append(final byte b) {
+	    ensureCapacity(1);
+	    m_bytes[m_size++] = b;
+	}
+
+	/**
+	 * Append bytes.
+	 *
+	 * @param bytes
+	 *            the appended bytes, may be this buffer's bytes.
+	 * @param offset
+	 *            the offset of the appended bytes.
+	 * @param length
+	 *            the number of appended bytes.
+	 */
+	void append(final byte[] bytes, final int offset, final int length) {
+	    // If the bytes are this buffer's bytes, they are still valid after
+	    // the buffer grows
+	    ensureCapacity(length);
+	    System.arraycopy(bytes, offset, m_bytes, m_size, length);
+	    m_size += length;
+	}
+
+    }
+
+}
@@ -0,0 +1,258 @@
+package breakingtherules.dao.csv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Compression format of a hits file, detected by the file's magic bytes.
+ * <p>
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see CSVHitsParser
+ */
+enum CompressionFormat {
+
+    /**
+     * Not compressed.
+     */
+    NONE,
+
+    /**
+     * GZIP, one or more concatenated GZIP members.
+     */
+    GZIP,
+
+    /**
+     * ZIP archive, the entries are read one after the other.
+     */
+    ZIP;
+
+    /**
+     * The first two bytes of a GZIP file, in little endian.
+     */
+    private static final int GZIP_MAGIC = GZIPInputStream.GZIP_MAGIC;
+
+    /**
+     * The first four bytes of a ZIP file (local file header signature), in
+     * little endian.
+     */
+    private static final int ZIP_MAGIC = 0x04034b50;
+
+    /**
+     * The size of the buffer of the decompressing streams.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Detect the compression format of a file.
+     *
+     * @param file
+     *            the file.
+     * @return the compression format of the file, {@link #NONE} if the file
+     *         doesn't start with known magic bytes.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    static CompressionFormat detect(final File file) throws IOException {
+	try (final InputStream in = new FileInputStream(file)) {
+	    return detectMagic(in);
+	}
+    }
+
+    /**
+     * Detect the compression format of a stream, without consuming any of its
+     * bytes.
+     *
+     * @param in
+     *            the stream, must support {@link InputStream#mark(int) mark}.
+     * @return the compression format of the stream, {@link #NONE} if the
+     *         stream doesn't start with known magic bytes.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws IllegalArgumentException
+     *             if the stream doesn't support mark.
+     */
+    static CompressionFormat detect(final InputStream in) throws IOException {
+	if (!in.markSupported())
+	    throw new IllegalArgumentException("mark is not supported by the stream");
+	in.mark(Integer.BYTES);
+	try {
+	    return detectMagic(in);
+	} finally {
+	    in.reset();
+	}
+    }
+
+    /**
+     * Open a decompressing stream of a file of this format.
+     *
+     * @param file
+     *            the file.
+     * @return stream of the decompressed bytes of the file.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    InputStream open(final File file) throws IOException {
+	final InputStream in = new FileInputStream(file);
+	try {
+	    return open(in);
+	} catch (final IOException | RuntimeException e) {
+	    in.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Open a decompressing stream of a stream of this format.
+     * <p>
+     * Closing the returned stream closes the compressed stream.
+     *
+     * @param in
+     *            the compressed stream.
+     * @return stream of the decompressed bytes of the stream.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    InputStream open(final InputStream in) throws IOException {
+	switch (this) {
+	case GZIP:
+	    return new GZIPInputStream(in, BUFFER_SIZE);
+	case ZIP:
+	    return new ZipEntriesInputStream(in);
+	default:
+	    return in;
+	}
+    }
+
+    /**
+     * Detect the compression format by the first bytes of a stream.
+     *
+     * @param in
+     *            the stream.
+     * @return the compression format of the stream, {@link #NONE} if the
+     *         stream doesn't start with known magic bytes.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    private static CompressionFormat detectMagic(final InputStream in) throws IOException {
+	final byte[] magic = new byte[Integer.BYTES];
+	int length = 0;
+	for (int read; length < magic.length && (read = in.read(magic, length, magic.length - length)) > 0;)
+	    length += read;
+	if (length >= Short.BYTES && (magic[0] & 0xff | (magic[1] & 0xff) << 8) == GZIP_MAGIC)
+	    return GZIP;
+	if (length >= Integer.BYTES && (magic[0] & 0xff | (magic[1] & 0xff) << 8 | (magic[2] & 0xff) << 16
+		| (magic[3] & 0xff) << 24) == ZIP_MAGIC)
+	    return ZIP;
+	return NONE;
+    }
+
+    /**
+     * Stream of the content of all the file entries of a ZIP archive, one
+     * after the other.
+     * <p>
+     * A new line is inserted after an entry that doesn't end with a new line,
+     * so the last line of an entry is not joined with the first line of the
+     * next entry.
+     *
+     * @author Barak Ugav
+     * @author Yishai Gronich
+     *
+     */
+    private static class ZipEntriesInputStream extends FilterInputStream {
+
+	/**
+	 * The last byte that was read from the current entry, or -1 if no byte
+	 * was read from it yet.
+	 */
+	private int m_lastByte;
+
+	/**
+	 * Construct new ZipEntriesInputStream.
+	 *
+	 * @param in
+	 *            the ZIP archive stream.
+	 */
+	ZipEntriesInputStream(final InputStream in) {
+	    super(new ZipInputStream(in));
+	    m_lastByte = -1;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read() throws IOException {
+	    for (;;) {
+		final int b = super.read();
+		if (b >= 0)
+		    return m_lastByte = b;
+		if (isLineOpen())
+		    return m_lastByte = '\n';
+		if (!nextEntry())
+		    return b;
+	    }
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+	    if (len == 0)
+		return 0;
+	    for (;;) {
+		final int read = super.read(b, off, len);
+		if (read > 0) {
+		    m_lastByte = b[off + read - 1] & 0xff;
+		    return read;
+		}
+		if (isLineOpen()) {
+		    b[off] = (byte) (m_lastByte = '\n');
+		    return 1;
+		}
+		if (!nextEntry())
+		    return read;
+	    }
+	}
+
+	/**
+	 * Check if the last line of the current entry doesn't end with a new
+	 * line.
+	 *
+	 * @return true if bytes were read from the current entry and the last
+	 *         of them is not a new line.
+	 */
+	private boolean isLineOpen() {
+	    return m_lastByte >= 0 && m_lastByte != '\n';
+	}
+
+	/**
+	 * Move to the next file entry of the archive.
+	 *
+	 * @return true if there is a next file entry, false if the archive
+	 *         ended.
+	 * @throws IOException
+	 *             if any I/O errors occurs.
+	 */
+	private boolean nextEntry() throws IOException {
+	    final ZipInputStream zip = (ZipInputStream) in;
+	    for (ZipEntry entry; (entry = zip.getNextEntry()) != null;)
+		if (!entry.isDirectory()) {
+		    m_lastByte = -1;
+		    return true;
+		}
+	    return false;
+	}
+
+    }
+
+}
@@ -26,26 +26,56 @@ class ElasticDaoConfig {
     static final String TYPE_HIT = "hit";
 
     /**
-     * The name of the field that holds the hit's attributes
+     * The name of the field that holds the hit's job name
      */
-    static final String FIELD_ATTRIBUTES = "attributes";
+    static final String FIELD_JOB_NAME = "jobName";
 
     /**
-     * The name of the field that holds the hit's job name
+     * The name of the field that holds the address of the hit's source IP,
+     * mapped as {@code ip}. Missing if the source is any IP.
      */
-    static final String FIELD_JOB_NAME = "jobName";
+    static final String FIELD_SOURCE = "source";
+
+    /**
+     * The name of the field that holds the mask size of the hit's source IP.
+     */
+    static final String FIELD_SOURCE_MASK = "sourceMask";
+
+    /**
+     * The name of the field that holds the address of the hit's destination
+     * IP, mapped as {@code ip}. Missing if the destination is any IP.
+     */
+    static final String FIELD_DESTINATION = "destination";
+
+    /**
+     * The name of the field that holds the mask size of the hit's destination
+     * IP.
+     */
+    static final String FIELD_DESTINATION_MASK = "destinationMask";
 
     /**
-     * The name of the field that each Hit Attribute has, that says the ID of
-     * the attribute type
+     * The name of the field that holds the protocol code of the hit's service,
+     * {@link breakingtherules.firewall.Service#ANY_PROTOCOL} for any protocol.
      */
-    static final String FIELD_ATTR_TYPEID = "typeId";
+    static final String FIELD_PROTOCOL = "protocol";
 
     /**
-     * The name of the field that each Hit Attribute has, that says the value of
-     * the attribute
+     * The name of the field that holds the start of the ports range of the
+     * hit's service.
      */
-    static final String FIELD_ATTR_VALUE = "value";
+    static final String FIELD_PORT_START = "portStart";
+
+    /**
+     * The name of the field that holds the end of the ports range of the hit's
+     * service.
+     */
+    static final String FIELD_PORT_END = "portEnd";
+
+    /**
+     * The name of the field that holds the number of occurrences of the hit.
+     * Optional, hits without it occurred once.
+     */
+    static final String FIELD_COUNT = "count";
 
     /**
      * Jobs that have more hits that this threshold cannot be deleted by code,
@@ -65,6 +95,20 @@ class ElasticDaoConfig {
      */
     static final int HITS_PER_SCROLL = 5000;
 
+    /**
+     * The number of buckets that are requested in every page of a composite
+     * aggregation. The aggregation is paged until all buckets are read.
+     */
+    static final int BUCKETS_PER_AGGREGATION = 5000;
+
+    /**
+     * The max number of rules translated to the search query. The translation
+     * of each rule is a clause of the query, and ElasticSearch limits the
+     * number of clauses (1024 by default). The rules after this number are
+     * matched by the DAO.
+     */
+    static final int MAX_QUERY_RULES = 512;
+
     /**
      * Suppresses default constructor, ensuring non-instantiability.
      */
@@ -0,0 +1,204 @@
+package breakingtherules.dao.elastic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.metrics.sum.Sum;
+import org.elasticsearch.search.aggregations.metrics.sum.SumAggregationBuilder;
+
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Attribute.AttributeType;
+
+/**
+ * ElasticSearch composite aggregation that counts the hits of each value of an
+ * attribute.
+ * <p>
+ * The aggregation is the translation of
+ * {@link breakingtherules.dao.HitsDao#getAttributeHistogram
+ * HitsDao.getAttributeHistogram}, so only a bucket per distinct value is
+ * transferred instead of all the hits. The buckets are keyed by all the fields
+ * of the attribute: address and mask size for IPs, and protocol code and ports
+ * range for services. The number of hits in a bucket is the sum of the hits'
+ * weights.
+ * <p>
+ * A composite aggregation returns a page of buckets, the next page is
+ * requested with the key of the last bucket (see
+ * {@link #getAggregation(Map)}).
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see ElasticHitsDao
+ * @see ElasticHitsQuery
+ */
+public final class ElasticHitsAggregation {
+
+    /**
+     * The type of the counted attribute.
+     */
+    private final AttributeType m_attType;
+
+    /**
+     * The fields of the attribute, which are the fields of the buckets' keys.
+     */
+    private final List<String> m_fields;
+
+    /**
+     * The field that exists for all hits with the attribute.
+     */
+    private final String m_existsField;
+
+    /**
+     * The parser of the buckets' keys.
+     */
+    private final ElasticHitsParser m_parser;
+
+    /**
+     * The name of the aggregation.
+     */
+    public static final String NAME = "histogram";
+
+    /**
+     * The name of the aggregation of the weights sum.
+     */
+    static final String WEIGHT = "weight";
+
+    /**
+     * Construct new ElasticHitsAggregation.
+     *
+     * @param attType
+     *            the type of the counted attribute.
+     * @throws NullPointerException
+     *             if the attribute type is null.
+     * @throws IllegalArgumentException
+     *             if the attribute type is unknown.
+     */
+    public ElasticHitsAggregation(final AttributeType attType) {
+	switch (Objects.requireNonNull(attType)) {
+	case SOURCE:
+	    m_fields = Arrays.asList(ElasticDaoConfig.FIELD_SOURCE, ElasticDaoConfig.FIELD_SOURCE_MASK);
+	    m_existsField = ElasticDaoConfig.FIELD_SOURCE_MASK;
+	    break;
+	case DESTINATION:
+	    m_fields = Arrays.asList(ElasticDaoConfig.FIELD_DESTINATION, ElasticDaoConfig.FIELD_DESTINATION_MASK);
+	    m_existsField = ElasticDaoConfig.FIELD_DESTINATION_MASK;
+	    break;
+	case SERVICE:
+	    m_fields = Arrays.asList(ElasticDaoConfig.FIELD_PROTOCOL, ElasticDaoConfig.FIELD_PORT_START,
+		    ElasticDaoConfig.FIELD_PORT_END);
+	    m_existsField = ElasticDaoConfig.FIELD_PROTOCOL;
+	    break;
+	default:
+	    throw new IllegalArgumentException("Unknown attribute type: " + attType);
+	}
+	m_attType = attType;
+	m_parser = new ElasticHitsParser();
+    }
+
+    /**
+     * Get the fields of the buckets' keys.
+     *
+     * @return unmodifiable list of the fields of the counted attribute.
+     */
+    public List<String> getFields() {
+	return Collections.unmodifiableList(m_fields);
+    }
+
+    /**
+     * Get the query of the aggregated hits.
+     * <p>
+     * Only hits that have the counted attribute are aggregated.
+     *
+     * @param hitsQuery
+     *            the query of the hits, usually {@link ElasticHitsQuery}.
+     * @return query of the hits that match the hits query and have the
+     *         attribute.
+     */
+    public QueryBuilder getQuery(final QueryBuilder hitsQuery) {
+	return QueryBuilders.boolQuery().filter(hitsQuery).filter(QueryBuilders.existsQuery(m_existsField));
+    }
+
+    /**
+     * Get the aggregation of a page of buckets.
+     *
+     * @param afterKey
+     *            the key of the last bucket of the previous page, or null for
+     *            the first page.
+     * @return the aggregation.
+     */
+    public CompositeAggregationBuilder getAggregation(final Map<String, Object> afterKey) {
+	final List<CompositeValuesSourceBuilder<?>> sources = new ArrayList<>(m_fields.size());
+	for (final String field : m_fields)
+	    // The address of any IP is missing
+	    sources.add(new TermsValuesSourceBuilder(field).field(field).missingBucket(true));
+	final CompositeAggregationBuilder aggregation = AggregationBuilders.composite(NAME, sources);
+	aggregation.size(ElasticDaoConfig.BUCKETS_PER_AGGREGATION);
+	aggregation.subAggregation(weightSum());
+	if (afterKey != null)
+	    aggregation.aggregateAfter(afterKey);
+	return aggregation;
+    }
+
+    /**
+     * Get an aggregation of the sum of the hits' weights, named
+     * {@value #WEIGHT}.
+     *
+     * @return the aggregation.
+     */
+    static SumAggregationBuilder weightSum() {
+	// Hits without the count field occurred once
+	return AggregationBuilders.sum(WEIGHT).field(ElasticDaoConfig.FIELD_COUNT).missing(Integer.valueOf(1));
+    }
+
+    /**
+     * Add the buckets of a page to a histogram.
+     *
+     * @param page
+     *            the result of the aggregation.
+     * @param histogram
+     *            the histogram, map of the attribute's values to the number of
+     *            hits with them.
+     * @return the key of the last bucket of the page, or null if there are no
+     *         more pages.
+     * @throws IllegalArgumentException
+     *             if a key of a bucket is not a valid attribute.
+     */
+    public Map<String, Object> addBuckets(final CompositeAggregation page, final Map<Attribute, Integer> histogram) {
+	final List<? extends CompositeAggregation.Bucket> buckets = page.getBuckets();
+	for (final CompositeAggregation.Bucket bucket : buckets) {
+	    final Sum weight = bucket.getAggregations().get(WEIGHT);
+	    histogram.merge(parseKey(bucket.getKey()), Integer.valueOf((int) Math.round(weight.getValue())),
+		    Integer::sum);
+	}
+	return buckets.isEmpty() ? null : page.afterKey();
+    }
+
+    /**
+     * Parse the attribute of a bucket's key.
+     *
+     * @param key
+     *            the key, map of the fields of the attribute to their values.
+     * @return the attribute.
+     * @throws IllegalArgumentException
+     *             if the key is not a valid attribute.
+     */
+    public Attribute parseKey(final Map<String, ?> key) {
+	// The key fields are the fields of a hit with only this attribute
+	final Attribute attribute = m_parser.parseHit(key).getAttribute(m_attType);
+	if (attribute == null)
+	    throw new IllegalArgumentException("Missing attribute in key: " + key);
+	return attribute;
+    }
+
+}
@@ -2,12 +2,15 @@ package breakingtherules.dao.elastic;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.function.Function;
 
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
@@ -30,18 +33,24 @@ import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.metrics.sum.Sum;
 
-import breakingtherules.dao.DaoUtils;
 import breakingtherules.dao.HitsDao;
+import breakingtherules.dao.ParseException;
 import breakingtherules.dto.ListDto;
 import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Attribute.AttributeType;
 import breakingtherules.firewall.Destination;
 import breakingtherules.firewall.Filter;
 import breakingtherules.firewall.Hit;
 import breakingtherules.firewall.IP;
 import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.RuleClassifier;
 import breakingtherules.firewall.Service;
 import breakingtherules.firewall.Source;
+import breakingtherules.firewall.WeightedHit;
+import breakingtherules.util.MutableInteger;
 import breakingtherules.util.Triple;
 import breakingtherules.util.Triple.UnmodifiableTriple;
 import breakingtherules.util.Utility;
@@ -74,9 +83,10 @@ public class ElasticHitsDao implements HitsDao {
     private final Client m_elasticClient;
 
     /**
-     * Cache for the number of hits, for a specific job, with certain Rules and
-     * Filter. This prevents reading ALL of the job's hits to determine the
-     * number of relevant hits. Useful for getHits with startIndex and endIndex
+     * Cache for the number of hits (sum of weights), for a specific job, with
+     * certain Rules and Filter. This prevents reading ALL of the job's hits to
+     * determine the number of relevant hits. Useful for getHits with
+     * startIndex and endIndex
      */
     private final Map<UnmodifiableTriple<Integer, Set<Rule>, Filter>, Integer> m_totalHitsCache;
 
@@ -96,6 +106,23 @@ public class ElasticHitsDao implements HitsDao {
 	m_totalHitsCache = new HashMap<>();
     }
 
+    /**
+     * Create an ElasticHitsDao that uses an existing client.
+     * <p>
+     * The client is not closed by {@link #cleanup()}, it's owned by the
+     * caller.
+     *
+     * @param client
+     *            the ElasticSearch client.
+     * @throws NullPointerException
+     *             if the client is null.
+     */
+    public ElasticHitsDao(final Client client) {
+	m_elasticNode = null;
+	m_elasticClient = Objects.requireNonNull(client);
+	m_totalHitsCache = new HashMap<>();
+    }
+
     /**
      * Adding a hit to a certain job
      *
@@ -122,25 +149,14 @@ public class ElasticHitsDao implements HitsDao {
      *             If ElasticSearch cannot save the data
      */
     public void addHits(final Iterable<Hit> hits, final String jobName) throws IOException {
+	createIndexIfAbsent();
 	final BulkRequestBuilder bulkRequest = m_elasticClient.prepareBulk();
-	for (final Hit hit : hits)
-	    try (final XContentBuilder hitJson = XContentFactory.jsonBuilder()) {
-		hitJson.startObject();
-		hitJson.field(ElasticDaoConfig.FIELD_JOB_NAME, jobName);
-		hitJson.startArray(ElasticDaoConfig.FIELD_ATTRIBUTES);
-		for (final Attribute attr : hit) {
-		    hitJson.startObject();
-		    hitJson.field(ElasticDaoConfig.FIELD_ATTR_TYPEID, attr.getType().ordinal());
-		    hitJson.field(ElasticDaoConfig.FIELD_ATTR_VALUE, attr.toString());
-		    hitJson.endObject();
-		}
-		hitJson.endArray().endObject();
-
-		final IndexRequestBuilder indexRequest = m_elasticClient.prepareIndex(ElasticDaoConfig.INDEX_NAME,
-			ElasticDaoConfig.TYPE_HIT);
-		indexRequest.setSource(hitJson);
-		bulkRequest.add(indexRequest);
-	    }
+	for (final Hit hit : hits) {
+	    final IndexRequestBuilder indexRequest = m_elasticClient.prepareIndex(ElasticDaoConfig.INDEX_NAME,
+		    ElasticDaoConfig.TYPE_HIT);
+	    indexRequest.setSource(ElasticHitsParser.toSource(hit, jobName));
+	    bulkRequest.add(indexRequest);
+	}
 	final BulkResponse bulkResponse = bulkRequest.execute().actionGet();
 	if (bulkResponse.hasFailures()) {
 	    String error = "Bulk add request had failures. ";
@@ -157,6 +173,8 @@ public class ElasticHitsDao implements HitsDao {
      * connection to other ElasticSearch nodes
      */
     public void cleanup() {
+	if (m_elasticNode == null)
+	    return;
 	try {
 		m_elasticNode.close();
 	} catch (IOException e) {
@@ -239,12 +257,15 @@ public class ElasticHitsDao implements HitsDao {
      */
     @Override
     public ListDto<Hit> getHitsList(final String jobName, final Iterable<Rule> rules, final Filter filter) {
-	final List<Hit> hits = Utility.newArrayList(getHits(jobName, rules, filter, true, 0, 0));
+	final List<Hit> hits = getHits(jobName, rules, filter, true, 0, 0);
+	int hitsNumber = 0;
+	for (final Hit hit : hits)
+	    hitsNumber += hit.getWeight();
 
 	// Create new list of the rules to clone the list - so modifications on
 	// the original list will not change the list saved in the cache
 	m_totalHitsCache.put(new UnmodifiableTriple<>(Integer.valueOf(jobName),
-		Collections.unmodifiableSet(Utility.newHashSet(rules)), filter), Integer.valueOf(hits.size()));
+		Collections.unmodifiableSet(Utility.newHashSet(rules)), filter), Integer.valueOf(hitsNumber));
 	return new ListDto<>(hits, 0, hits.size(), hits.size());
     }
 
@@ -256,7 +277,53 @@ public class ElasticHitsDao implements HitsDao {
 	final Integer cachedSize = m_totalHitsCache.get(new Triple<>(Integer.valueOf(jobName), rules, filter));
 	if (cachedSize != null)
 	    return cachedSize.intValue();
-	return getHitsList(jobName, rules, filter).getSize();
+	final ElasticHitsQuery query = new ElasticHitsQuery(jobName, rules, filter);
+	if (!query.getRemainingRules().isEmpty()) {
+	    // Some rules are not part of the query, the hits are matched here
+	    int hitsNumber = 0;
+	    for (final Hit hit : getHitsList(jobName, rules, filter).getData())
+		hitsNumber += hit.getWeight();
+	    return hitsNumber;
+	}
+
+	// Sum the weights of the hits by ElasticSearch, no hit is transferred
+	final SearchRequestBuilder srchRequest = m_elasticClient.prepareSearch(ElasticDaoConfig.INDEX_NAME);
+	srchRequest.setQuery(query.getQuery());
+	srchRequest.setSize(0);
+	srchRequest.addAggregation(ElasticHitsAggregation.weightSum());
+	final SearchResponse response = srchRequest.execute().actionGet();
+	final Sum weight = response.getAggregations().get(ElasticHitsAggregation.WEIGHT);
+	return (int) Math.round(weight.getValue());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The histogram is computed by a composite aggregation (see
+     * {@link ElasticHitsAggregation}), so only a bucket per distinct value is
+     * transferred. If there are more rules than can be translated to a query,
+     * the hits are read and counted here.
+     */
+    @Override
+    public Map<Attribute, Integer> getAttributeHistogram(final String jobName, final Iterable<Rule> rules,
+	    final Filter filter, final AttributeType attType) throws IOException, ParseException {
+	final ElasticHitsQuery query = new ElasticHitsQuery(jobName, rules, filter);
+	if (!query.getRemainingRules().isEmpty())
+	    return HitsDao.super.getAttributeHistogram(jobName, rules, filter, attType);
+
+	final ElasticHitsAggregation aggregation = new ElasticHitsAggregation(attType);
+	final Map<Attribute, Integer> histogram = new HashMap<>();
+	Map<String, Object> afterKey = null;
+	do {
+	    final SearchRequestBuilder srchRequest = m_elasticClient.prepareSearch(ElasticDaoConfig.INDEX_NAME);
+	    srchRequest.setQuery(aggregation.getQuery(query.getQuery()));
+	    srchRequest.setSize(0);
+	    srchRequest.addAggregation(aggregation.getAggregation(afterKey));
+	    final SearchResponse response = srchRequest.execute().actionGet();
+	    final CompositeAggregation page = response.getAggregations().get(ElasticHitsAggregation.NAME);
+	    afterKey = aggregation.addBuckets(page, histogram);
+	} while (afterKey != null);
+	return histogram;
     }
 
     /**
@@ -272,6 +339,9 @@ public class ElasticHitsDao implements HitsDao {
      * this method ignores startIndex and endIndex. Otherwise, out of all the
      * hits that do not match the given rules and filter, this method returns
      * the hits in range [startIndex, endIndex)
+     * <p>
+     * The rules and the filter are translated to the search query (see
+     * {@link ElasticHitsQuery}), so only the matching hits are transferred.
      *
      * @param jobName
      *            The job from which to take the hits
@@ -290,22 +360,24 @@ public class ElasticHitsDao implements HitsDao {
      * @param endIndex
      *            0-index + 1 of the wanted finishing hit, from all the hits
      *            that don't match the rules+filter
-     * @return A ListDto of the relevant hits, from the given range, if such
-     *         exists
+     * @return A list of the relevant hits, from the given range, if such
+     *         exists. Identical hits are merged to one hit weighted by the sum
+     *         of their weights.
      */
-    private Set<Hit> getHits(final String jobName, final Iterable<Rule> rules, final Filter filter, final boolean all,
+    private List<Hit> getHits(final String jobName, final Iterable<Rule> rules, final Filter filter, final boolean all,
 	    int startIndex, final int endIndex) {
-	final QueryBuilder query = QueryBuilders.termQuery(ElasticDaoConfig.FIELD_JOB_NAME, jobName);
+	final ElasticHitsQuery query = new ElasticHitsQuery(jobName, rules, filter);
 
 	final SearchRequestBuilder srchRequest = m_elasticClient.prepareSearch(ElasticDaoConfig.INDEX_NAME);
 	srchRequest.setSearchType(SearchType.QUERY_AND_FETCH);
 	srchRequest.setScroll(new TimeValue(ElasticDaoConfig.TIME_PER_SCROLL));
-	srchRequest.setQuery(query);
+	srchRequest.setQuery(query.getQuery());
 	srchRequest.setSize(ElasticDaoConfig.HITS_PER_SCROLL);
 
 	SearchResponse scrollResp = srchRequest.execute().actionGet();
 
-	final Set<Hit> relevantHits = new HashSet<>();
+	final Map<Hit, MutableInteger> relevantHits = new LinkedHashMap<>();
+	final Function<Hit, MutableInteger> initFunc = MutableInteger.zeroFunction();
 	int i = 0; // to only take the relevant indices.
 	if (all)
 	    startIndex = 0;
@@ -315,18 +387,21 @@ public class ElasticHitsDao implements HitsDao {
 	parser.setSourceCache(new Source.Cache(ipsCache));
 	parser.setDestinationCache(new Destination.Cache(ipsCache));
 	parser.setServiceCache(new Service.Cache());
+	// The rules that are not part of the query are matched here
+	final List<Rule> remainingRules = query.getRemainingRules();
+	final RuleClassifier rulesClassifier = remainingRules.isEmpty() ? null : new RuleClassifier(remainingRules);
 
 	// Scroll until no hits are returned or endIndex has been reached
 	while (true) {
 	    // Go over search results
 	    for (final SearchHit srchHit : scrollResp.getHits().getHits()) {
-		// Add the hit to the answer list, if it passes rules and
-		// filters
+		// Add the hit to the answer list, if it passes the remaining
+		// rules
 		final Hit firewallHit = parser.parseHit(srchHit);
-		if (DaoUtils.isMatch(firewallHit, rules, filter)) {
+		if (rulesClassifier == null || !rulesClassifier.isMatch(firewallHit)) {
 		    // Found a hit that passes the rules and the filter
 		    if (all || i >= startIndex && i < endIndex)
-			relevantHits.add(firewallHit);
+			relevantHits.computeIfAbsent(firewallHit, initFunc).value += firewallHit.getWeight();
 		    i++;
 		    if (i == endIndex && !all)
 			break;
@@ -347,7 +422,37 @@ public class ElasticHitsDao implements HitsDao {
 		break;
 	}
 
-	return relevantHits;
+	final List<Hit> hits = new ArrayList<>(relevantHits.size());
+	for (final Map.Entry<Hit, MutableInteger> hit : relevantHits.entrySet())
+	    hits.add(WeightedHit.valueOf(hit.getKey(), hit.getValue().value));
+	return hits;
+    }
+
+    /**
+     * Create the hits index with the typed mapping of hits, if it doesn't
+     * exist.
+     *
+     * @throws IOException
+     *             if failed to build the mapping.
+     */
+    private void createIndexIfAbsent() throws IOException {
+	if (m_elasticClient.admin().indices().prepareExists(ElasticDaoConfig.INDEX_NAME).get().isExists())
+	    return;
+	try (final XContentBuilder mapping = XContentFactory.jsonBuilder()) {
+	    mapping.startObject().startObject("properties");
+	    addMappingField(mapping, ElasticDaoConfig.FIELD_JOB_NAME, "keyword");
+	    addMappingField(mapping, ElasticDaoConfig.FIELD_COUNT, "integer");
+	    addMappingField(mapping, ElasticDaoConfig.FIELD_SOURCE, "ip");
+	    addMappingField(mapping, ElasticDaoConfig.FIELD_SOURCE_MASK, "short");
+	    addMappingField(mapping, ElasticDaoConfig.FIELD_DESTINATION, "ip");
+	    addMappingField(mapping, ElasticDaoConfig.FIELD_DESTINATION_MASK, "short");
+	    addMappingField(mapping, ElasticDaoConfig.FIELD_PROTOCOL, "short");
+	    addMappingField(mapping, ElasticDaoConfig.FIELD_PORT_START, "integer");
+	    addMappingField(mapping, ElasticDaoConfig.FIELD_PORT_END, "integer");
+	    mapping.endObject().endObject();
+	    m_elasticClient.admin().indices().prepareCreate(ElasticDaoConfig.INDEX_NAME)
+		    .addMapping(ElasticDaoConfig.TYPE_HIT, mapping).get();
+	}
     }
 
     /**
@@ -360,4 +465,21 @@ public class ElasticHitsDao implements HitsDao {
 	m_elasticClient.admin().indices().prepareRefresh(ElasticDaoConfig.INDEX_NAME).get();
     }
 
+    /**
+     * Add a field to a mapping.
+     *
+     * @param mapping
+     *            the mapping, inside its properties object.
+     * @param name
+     *            the name of the field.
+     * @param type
+     *            the type of the field.
+     * @throws IOException
+     *             if failed to build the mapping.
+     */
+    private static void addMappingField(final XContentBuilder mapping, final String name, final String type)
+	    throws IOException {
+	mapping.startObject(name).field("type", type).endObject();
+    }
+
 }
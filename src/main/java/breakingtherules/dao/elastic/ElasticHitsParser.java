@@ -1,22 +1,31 @@
 package breakingtherules.dao.elastic;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.elasticsearch.search.SearchHit;
 
 import breakingtherules.dao.AbstractParser;
+import breakingtherules.dao.ParseException;
 import breakingtherules.firewall.Attribute;
-import breakingtherules.firewall.Attribute.AttributeType;
 import breakingtherules.firewall.Destination;
 import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.IP;
+import breakingtherules.firewall.IPAttribute;
 import breakingtherules.firewall.Service;
 import breakingtherules.firewall.Source;
+import breakingtherules.firewall.WeightedHit;
 
 /**
  * Parser that parses firewall hits from {@link SearchHit}.
  * <p>
+ * A hit is indexed as a document with typed fields: each IP attribute is an
+ * address in an {@code ip} field and a mask size field, and the service is
+ * protocol code and ports range fields (see {@link ElasticDaoConfig}). An
+ * attribute that is missing from the hit is missing from the document.
+ * <p>
  * Caches can be set to reduce object creations and memory use.
  * <p>
  *
@@ -25,13 +34,14 @@ import breakingtherules.firewall.Source;
  *
  * @see Hit
  * @see ElasticHitsDao
+ * @see ElasticHitsQuery
  */
-class ElasticHitsParser extends AbstractParser {
+public class ElasticHitsParser extends AbstractParser {
 
     /**
      * Construct new parser.
      */
-    ElasticHitsParser() {
+    public ElasticHitsParser() {
     }
 
     /**
@@ -46,38 +56,116 @@ class ElasticHitsParser extends AbstractParser {
      * @return A firewall Hit object with the values from the search
      */
     Hit parseHit(final SearchHit searchHit) {
-	final Map<String, Object> fields = searchHit.getSourceAsMap();
-
-	final List<Attribute> attrs = new ArrayList<>(3);
+	return parseHit(searchHit.getSourceAsMap());
+    }
 
-	final Object allAtributes = fields.get(ElasticDaoConfig.FIELD_ATTRIBUTES);
-	if (!(allAtributes instanceof List))
-	    throw new IllegalArgumentException("The searchHit it not in valid hit format");
-	for (final Object attributeObj : (List<?>) allAtributes) {
-	    if (!(attributeObj instanceof Map))
-		throw new IllegalArgumentException("The searchHit it not in valid hit format");
-	    final Map<?, ?> attributeHash = (Map<?, ?>) attributeObj;
-	    final int attrTypeID = ((Integer) attributeHash.get(ElasticDaoConfig.FIELD_ATTR_TYPEID)).intValue();
-	    final String attrValue = (String) attributeHash.get(ElasticDaoConfig.FIELD_ATTR_VALUE);
+    /**
+     * Translates the source document of a firewall hit into a firewall Hit
+     * object.
+     *
+     * @param fields
+     *            the fields of the document, as created by
+     *            {@link #toSource(Hit, String)}.
+     * @throws IllegalArgumentException
+     *             If the document is not in a valid hit format
+     * @return A firewall Hit object with the values from the document
+     */
+    public Hit parseHit(final Map<String, ?> fields) {
+	final List<Attribute> attrs = new ArrayList<>(Attribute.TYPE_COUNT);
+	try {
+	    final Object sourceMask = fields.get(ElasticDaoConfig.FIELD_SOURCE_MASK);
+	    if (sourceMask != null) {
+		final IP ip = ElasticHitsQuery.parseAddress((String) fields.get(ElasticDaoConfig.FIELD_SOURCE),
+			((Number) sourceMask).intValue());
+		attrs.add(IP.ANY_IP.equals(ip) ? Source.ANY_SOURCE
+			: sourceCache != null ? sourceCache.valueOf(ip) : Source.valueOf(ip));
+	    }
+	    final Object destinationMask = fields.get(ElasticDaoConfig.FIELD_DESTINATION_MASK);
+	    if (destinationMask != null) {
+		final IP ip = ElasticHitsQuery.parseAddress(
+			(String) fields.get(ElasticDaoConfig.FIELD_DESTINATION), ((Number) destinationMask).intValue());
+		attrs.add(IP.ANY_IP.equals(ip) ? Destination.ANY_DESTINATION
+			: destinationCache != null ? destinationCache.valueOf(ip) : Destination.valueOf(ip));
+	    }
+	    final Object protocol = fields.get(ElasticDaoConfig.FIELD_PROTOCOL);
+	    if (protocol != null) {
+		final short protocolCode = ((Number) protocol).shortValue();
+		final int portRangeStart = ((Number) fields.get(ElasticDaoConfig.FIELD_PORT_START)).intValue();
+		final int portRangeEnd = ((Number) fields.get(ElasticDaoConfig.FIELD_PORT_END)).intValue();
+		final Service any = Service.ANY_SERVICE;
+		if (protocolCode == any.getProtocolCode() && portRangeStart == any.getPortRangeStart()
+			&& portRangeEnd == any.getPortRangeEnd())
+		    attrs.add(any);
+		else
+		    attrs.add(serviceCache != null ? serviceCache.valueOf(protocolCode, portRangeStart, portRangeEnd)
+			    : Service.valueOf(protocolCode, portRangeStart, portRangeEnd));
+	    }
+	} catch (final ParseException | ClassCastException | NullPointerException e) {
+	    throw new IllegalArgumentException("The searchHit it not in valid hit format", e);
+	}
+	final Object count = fields.get(ElasticDaoConfig.FIELD_COUNT);
+	final Hit hit = new Hit(attrs);
+	return count instanceof Number ? WeightedHit.valueOf(hit, ((Number) count).intValue()) : hit;
+    }
 
-	    Attribute attribute;
-	    switch (AttributeType.values()[attrTypeID]) {
+    /**
+     * Create the source document of a firewall hit.
+     *
+     * @param hit
+     *            the hit.
+     * @param jobName
+     *            the name of the hit's job.
+     * @return the fields of the document.
+     * @throws IllegalArgumentException
+     *             if the hit has an IP that is not IPv4, IPv6 or any IP.
+     */
+    public static Map<String, Object> toSource(final Hit hit, final String jobName) {
+	final Map<String, Object> fields = new HashMap<>();
+	fields.put(ElasticDaoConfig.FIELD_JOB_NAME, jobName);
+	if (hit.getWeight() != 1)
+	    fields.put(ElasticDaoConfig.FIELD_COUNT, Integer.valueOf(hit.getWeight()));
+	for (final Attribute attribute : hit)
+	    switch (attribute.getType()) {
 	    case SOURCE:
-		attribute = sourceCache != null ? sourceCache.valueOf(attrValue) : Source.valueOf(attrValue);
+		putIP(fields, ElasticDaoConfig.FIELD_SOURCE, ElasticDaoConfig.FIELD_SOURCE_MASK,
+			((IPAttribute) attribute).getIp());
 		break;
 	    case DESTINATION:
-		attribute = destinationCache != null ? destinationCache.valueOf(attrValue)
-			: Destination.valueOf(attrValue);
+		putIP(fields, ElasticDaoConfig.FIELD_DESTINATION, ElasticDaoConfig.FIELD_DESTINATION_MASK,
+			((IPAttribute) attribute).getIp());
 		break;
 	    case SERVICE:
-		attribute = serviceCache != null ? serviceCache.valueOf(attrValue) : Service.valueOf(attrValue);
+		final Service service = (Service) attribute;
+		fields.put(ElasticDaoConfig.FIELD_PROTOCOL, Short.valueOf(service.getProtocolCode()));
+		fields.put(ElasticDaoConfig.FIELD_PORT_START, Integer.valueOf(service.getPortRangeStart()));
+		fields.put(ElasticDaoConfig.FIELD_PORT_END, Integer.valueOf(service.getPortRangeEnd()));
 		break;
 	    default:
-		throw new IllegalArgumentException("Unkown type id: " + attrTypeID);
+		throw new IllegalArgumentException("Unkown type: " + attribute.getType());
 	    }
-	    attrs.add(attribute);
-	}
-	return new Hit(attrs);
+	return fields;
+    }
+
+    /**
+     * Put the fields of an IP attribute in a document.
+     * <p>
+     * Any IP has only the mask size field, without an address.
+     *
+     * @param fields
+     *            the fields of the document.
+     * @param field
+     *            the IP address field.
+     * @param maskField
+     *            the IP mask size field.
+     * @param ip
+     *            the IP.
+     */
+    private static void putIP(final Map<String, Object> fields, final String field, final String maskField,
+	    final IP ip) {
+	final String address = ElasticHitsQuery.toAddress(ip);
+	if (address != null)
+	    fields.put(field, address);
+	fields.put(maskField, Integer.valueOf(ip.getMaskSize()));
     }
 
 }
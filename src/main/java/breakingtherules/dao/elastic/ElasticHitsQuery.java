@@ -0,0 +1,357 @@
+package breakingtherules.dao.elastic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+
+import breakingtherules.dao.ParseException;
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Filter;
+import breakingtherules.firewall.IP;
+import breakingtherules.firewall.IPAttribute;
+import breakingtherules.firewall.IPv4;
+import breakingtherules.firewall.IPv6;
+import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.Service;
+
+/**
+ * ElasticSearch query that matches the hits of a job that pass all rules and
+ * are under a filter.
+ * <p>
+ * The query is the translation of
+ * {@link breakingtherules.dao.DaoUtils#isMatch(breakingtherules.firewall.Hit, Iterable, Filter)
+ * DaoUtils.isMatch} to a bool query, so the hits are filtered by ElasticSearch
+ * and only the matching hits are transferred. The filter's clauses are filter
+ * clauses of the query, and each rule is a must not clause.
+ * <p>
+ * An IP attribute {@code a} contains the IP of a hit if the hit's address is
+ * in the CIDR of {@code a} (a term clause on the {@code ip} field, which also
+ * requires the same family) and the hit's mask size is at least the mask size
+ * of {@code a} (a range clause). A service {@code s} contains the service of a
+ * hit if the protocols are equal (or {@code s} has any protocol) and the ports
+ * range of the hit is inside the ports range of {@code s}. Any attributes
+ * contain all the attributes of their type, so they only require the hit to
+ * have the attribute (an exists clause). The any filter matches all hits and
+ * is not translated at all.
+ * <p>
+ * ElasticSearch limits the number of clauses in a query, so only the first
+ * {@value ElasticDaoConfig#MAX_QUERY_RULES} rules are translated. The other
+ * rules are left to the caller (see {@link #getRemainingRules()}).
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see ElasticHitsDao
+ */
+public final class ElasticHitsQuery {
+
+    /**
+     * The query.
+     */
+    private final BoolQueryBuilder m_query;
+
+    /**
+     * The rules that weren't translated to the query.
+     */
+    private final List<Rule> m_remainingRules;
+
+    /**
+     * The number of bits in a block of IPv6 text representation.
+     */
+    private static final int IPV6_BLOCK_SIZE = 16;
+
+    /**
+     * The number of blocks in IPv6 text representation.
+     */
+    private static final int IPV6_BLOCKS_NUMBER = IPv6.SIZE / IPV6_BLOCK_SIZE;
+
+    /**
+     * The max number of hex digits in a block of IPv6 text representation.
+     */
+    private static final int IPV6_BLOCK_MAX_DIGITS = IPV6_BLOCK_SIZE / 4;
+
+    /**
+     * The subnet of the IPv4-mapped IPv6 addresses, ::ffff:0:0/96.
+     * <p>
+     * ElasticSearch stores IPv4 addresses as IPv4-mapped IPv6 addresses, so an
+     * IPv6 subnet that overlaps this subnet matches IPv4 hits too.
+     */
+    private static final IPv6 IPV4_MAPPED_SUBNET = IPv6.valueOfBits(new int[] { 0, 0, 0xffff, 0 }, (short) 96);
+
+    /**
+     * The CIDR term of {@link #IPV4_MAPPED_SUBNET}.
+     */
+    private static final String IPV4_MAPPED_TERM = "::ffff:0:0/96";
+
+    /**
+     * Construct new ElasticHitsQuery.
+     *
+     * @param jobName
+     *            the name of the job.
+     * @param rules
+     *            the rules, hits that match any of them are not matched by the
+     *            query.
+     * @param filter
+     *            the filter, only hits that match it are matched by the query.
+     * @throws NullPointerException
+     *             if one of the arguments is null.
+     */
+    public ElasticHitsQuery(final String jobName, final Iterable<Rule> rules, final Filter filter) {
+	final BoolQueryBuilder query = QueryBuilders.boolQuery();
+	query.filter(QueryBuilders.termQuery(ElasticDaoConfig.FIELD_JOB_NAME, Objects.requireNonNull(jobName)));
+	if (!Filter.ANY_FILTER.equals(filter))
+	    addMatcher(query, filter);
+
+	final List<Rule> remainingRules = new ArrayList<>();
+	int rulesNumber = 0;
+	for (final Rule rule : rules)
+	    if (rulesNumber < ElasticDaoConfig.MAX_QUERY_RULES) {
+		final BoolQueryBuilder ruleQuery = QueryBuilders.boolQuery();
+		addMatcher(ruleQuery, rule);
+		query.mustNot(ruleQuery);
+		rulesNumber++;
+	    } else
+		remainingRules.add(rule);
+
+	m_query = query;
+	m_remainingRules = Collections.unmodifiableList(remainingRules);
+    }
+
+    /**
+     * Get the query.
+     *
+     * @return the ElasticSearch query.
+     */
+    public QueryBuilder getQuery() {
+	return m_query;
+    }
+
+    /**
+     * Get the rules that weren't translated to the query.
+     * <p>
+     * The hits matched by the query may match these rules, and should be
+     * checked against them.
+     *
+     * @return unmodifiable list of the rules that aren't part of the query,
+     *         empty if all the rules were translated.
+     */
+    public List<Rule> getRemainingRules() {
+	return m_remainingRules;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+	return m_query.toString();
+    }
+
+    /**
+     * Get the text representation of an IP's address in an {@code ip} field.
+     * <p>
+     * The address doesn't include the mask size, which is held in its own
+     * field.
+     *
+     * @param ip
+     *            an IPv4 or IPv6.
+     * @return the address of the IP, or null if the IP is any IP.
+     * @throws IllegalArgumentException
+     *             if the IP is not IPv4, IPv6 or any IP.
+     */
+    public static String toAddress(final IP ip) {
+	if (ip instanceof IPv4) {
+	    final int address = ip.getAddressBits()[0];
+	    return (address >>> 24) + "." + (address >>> 16 & 0xff) + "." + (address >>> 8 & 0xff) + "."
+		    + (address & 0xff);
+	}
+	if (ip instanceof IPv6) {
+	    final int[] address = ip.getAddressBits();
+	    final StringBuilder builder = new StringBuilder();
+	    for (int i = 0; i < address.length; i++) {
+		if (i != 0)
+		    builder.append(':');
+		builder.append(Integer.toHexString(address[i] >>> IPV6_BLOCK_SIZE)).append(':');
+		builder.append(Integer.toHexString(address[i] & 0xffff));
+	    }
+	    return builder.toString();
+	}
+	if (IP.ANY_IP.equals(ip))
+	    return null;
+	throw new IllegalArgumentException("Unknown IP type: " + ip);
+    }
+
+    /**
+     * Parse an IP from the text of its address in an {@code ip} field and its
+     * mask size.
+     * <p>
+     * IPv6 addresses may be compressed (a run of zero blocks replaced by
+     * {@code ::}), as ElasticSearch formats the values of {@code ip} fields in
+     * aggregations.
+     *
+     * @param address
+     *            the address text, as returned by {@link #toAddress(IP)} or
+     *            formatted by ElasticSearch, or null.
+     * @param maskSize
+     *            the mask size of the IP.
+     * @return the IP, or any IP if the address is null.
+     * @throws ParseException
+     *             if the text is not a valid address, or the mask size is out
+     *             of range.
+     */
+    public static IP parseAddress(final String address, final int maskSize) throws ParseException {
+	if (address == null)
+	    return IP.ANY_IP;
+	if (address.indexOf(':') < 0) {
+	    final long bits = IPv4.parseBits(address, 0, address.length());
+	    if (bits == IPv4.INVALID_BITS || bits >>> Integer.SIZE != IPv4.SIZE || maskSize < 0
+		    || maskSize > IPv4.SIZE)
+		throw new ParseException("Illegal address: " + address + "/" + maskSize);
+	    return IPv4.valueOfBits((int) bits, (short) maskSize);
+	}
+
+	final String[] blocks = splitBlocksIPv6(address);
+	if (blocks.length != IPV6_BLOCKS_NUMBER || maskSize < 0 || maskSize > IPv6.SIZE)
+	    throw new ParseException("Illegal address: " + address + "/" + maskSize);
+	final int[] bits = new int[IPv6.SIZE / Integer.SIZE];
+	for (int i = 0; i < blocks.length; i++) {
+	    final String block = blocks[i];
+	    if (block.isEmpty() || block.length() > IPV6_BLOCK_MAX_DIGITS)
+		throw new ParseException("Illegal address: " + address);
+	    final int value;
+	    try {
+		value = Integer.parseInt(block, 16);
+	    } catch (final NumberFormatException e) {
+		throw new ParseException("Illegal address: " + address, e);
+	    }
+	    if (value < 0)
+		throw new ParseException("Illegal address: " + address);
+	    bits[i / 2] = bits[i / 2] << IPV6_BLOCK_SIZE | value;
+	}
+	return IPv6.valueOfBits(bits, (short) maskSize);
+    }
+
+    /**
+     * Split the text of an IPv6 address to its blocks, expanding the
+     * compressed zero blocks.
+     *
+     * @param address
+     *            the address text.
+     * @return the blocks of the address.
+     * @throws ParseException
+     *             if the address has more than one compressed run, or a
+     *             compressed run without zero blocks.
+     */
+    private static String[] splitBlocksIPv6(final String address) throws ParseException {
+	final int gap = address.indexOf("::");
+	if (gap < 0)
+	    return address.split(":", -1);
+	if (address.indexOf("::", gap + 1) >= 0)
+	    throw new ParseException("Illegal address: " + address);
+	final String head = address.substring(0, gap);
+	final String tail = address.substring(gap + 2);
+	final String[] headBlocks = head.isEmpty() ? new String[0] : head.split(":", -1);
+	final String[] tailBlocks = tail.isEmpty() ? new String[0] : tail.split(":", -1);
+	if (headBlocks.length + tailBlocks.length >= IPV6_BLOCKS_NUMBER)
+	    throw new ParseException("Illegal address: " + address);
+	final String[] blocks = new String[IPV6_BLOCKS_NUMBER];
+	Arrays.fill(blocks, "0");
+	System.arraycopy(headBlocks, 0, blocks, 0, headBlocks.length);
+	System.arraycopy(tailBlocks, 0, blocks, blocks.length - tailBlocks.length, tailBlocks.length);
+	return blocks;
+    }
+
+    /**
+     * Add the clauses of hits that match a rule or a filter to a bool query.
+     *
+     * @param query
+     *            the bool query.
+     * @param matcher
+     *            the rule or the filter.
+     */
+    private static void addMatcher(final BoolQueryBuilder query, final Iterable<Attribute> matcher) {
+	for (final Attribute attribute : matcher)
+	    switch (attribute.getType()) {
+	    case SOURCE:
+		addIP(query, ElasticDaoConfig.FIELD_SOURCE, ElasticDaoConfig.FIELD_SOURCE_MASK,
+			((IPAttribute) attribute).getIp());
+		break;
+	    case DESTINATION:
+		addIP(query, ElasticDaoConfig.FIELD_DESTINATION, ElasticDaoConfig.FIELD_DESTINATION_MASK,
+			((IPAttribute) attribute).getIp());
+		break;
+	    case SERVICE:
+		addService(query, (Service) attribute);
+		break;
+	    default:
+		throw new IllegalArgumentException("Unknown attribute: " + attribute);
+	    }
+    }
+
+    /**
+     * Add the clauses of hits with an IP that is contained in a subnet.
+     *
+     * @param query
+     *            the bool query.
+     * @param field
+     *            the IP address field.
+     * @param maskField
+     *            the IP mask size field.
+     * @param ip
+     *            the subnet.
+     */
+    private static void addIP(final BoolQueryBuilder query, final String field, final String maskField,
+	    final IP ip) {
+	final String address = toAddress(ip);
+	if (address == null) {
+	    // Any IP contains all IPs, the mask size field exists for all of them
+	    query.filter(QueryBuilders.existsQuery(maskField));
+	    return;
+	}
+	// A missing address is any IP, which isn't contained in any subnet
+	final short maskSize = ip.getMaskSize();
+	query.filter(QueryBuilders.termQuery(field, address + "/" + maskSize));
+	if (maskSize != 0)
+	    query.filter(QueryBuilders.rangeQuery(maskField).gte(Integer.valueOf(maskSize)));
+	if (ip instanceof IPv6 && (ip.contains(IPV4_MAPPED_SUBNET) || IPV4_MAPPED_SUBNET.contains(ip)))
+	    // Exclude the IPv4 hits, which are stored as IPv4-mapped addresses
+	    query.mustNot(QueryBuilders.termQuery(field, IPV4_MAPPED_TERM));
+    }
+
+    /**
+     * Add the clauses of hits with a service that is contained in a service.
+     *
+     * @param query
+     *            the bool query.
+     * @param service
+     *            the containing service.
+     */
+    private static void addService(final BoolQueryBuilder query, final Service service) {
+	final Service any = Service.ANY_SERVICE;
+	boolean added = false;
+	if (service.getProtocolCode() != Service.ANY_PROTOCOL) {
+	    query.filter(QueryBuilders.termQuery(ElasticDaoConfig.FIELD_PROTOCOL, service.getProtocolCode()));
+	    added = true;
+	}
+	if (service.getPortRangeStart() != any.getPortRangeStart()) {
+	    query.filter(QueryBuilders.rangeQuery(ElasticDaoConfig.FIELD_PORT_START)
+		    .gte(Integer.valueOf(service.getPortRangeStart())));
+	    added = true;
+	}
+	if (service.getPortRangeEnd() != any.getPortRangeEnd()) {
+	    query.filter(QueryBuilders.rangeQuery(ElasticDaoConfig.FIELD_PORT_END)
+		    .lte(Integer.valueOf(service.getPortRangeEnd())));
+	    added = true;
+	}
+	if (!added)
+	    // Contains all services, the protocol field exists for all of them
+	    query.filter(QueryBuilders.existsQuery(ElasticDaoConfig.FIELD_PROTOCOL));
+    }
+
+}
@@ -0,0 +1,126 @@
+package breakingtherules.dao.postgres;
+
+/**
+ * Configuration information for the PostgreSQL DAO.
+ * <p>
+ * All the jobs' hits are stored in one table, a row for each hit. The IPs are
+ * stored as {@code inet} values, indexed by GiST indexes so subnet predicates
+ * ({@code <<=}) of rules and filters are answered by the index. Any IP is
+ * stored as {@code NULL}. The service is stored as protocol code and ports
+ * range, where any service is stored as any protocol and the full ports range.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ */
+class PostgresDaoConfig {
+
+    /**
+     * The name of the hits table.
+     */
+    static final String TABLE_HITS = "btr_hits";
+
+    /**
+     * The name of the column that holds the hit's insertion order, used to
+     * return the hits in the order they were added to the job.
+     */
+    static final String COLUMN_ID = "id";
+
+    /**
+     * The name of the column that holds the hit's job name.
+     */
+    static final String COLUMN_JOB_NAME = "job_name";
+
+    /**
+     * The name of the column that holds the hit's source IP.
+     */
+    static final String COLUMN_SOURCE = "source";
+
+    /**
+     * The name of the column that holds the hit's destination IP.
+     */
+    static final String COLUMN_DESTINATION = "destination";
+
+    /**
+     * The name of the column that holds the hit's service protocol code.
+     */
+    static final String COLUMN_PROTOCOL = "protocol";
+
+    /**
+     * The name of the column that holds the start of the hit's service ports
+     * range.
+     */
+    static final String COLUMN_PORT_START = "port_start";
+
+    /**
+     * The name of the column that holds the end of the hit's service ports
+     * range.
+     */
+    static final String COLUMN_PORT_END = "port_end";
+
+    /**
+     * The name of the column that holds the number of occurrences of the hit.
+     */
+    static final String COLUMN_WEIGHT = "weight";
+
+    /**
+     * The columns that identify a unique hit, identical hits are grouped by
+     * them.
+     */
+    static final String HIT_COLUMNS = COLUMN_SOURCE + ", " + COLUMN_DESTINATION + ", " + COLUMN_PROTOCOL + ", "
+	    + COLUMN_PORT_START + ", " + COLUMN_PORT_END;
+
+    /**
+     * The statements that create the hits table and its indexes, if they
+     * don't exist.
+     */
+    static final String[] CREATE_SCHEMA = {
+	    "CREATE TABLE IF NOT EXISTS " + TABLE_HITS + " (" + COLUMN_ID + " bigserial PRIMARY KEY, "
+		    + COLUMN_JOB_NAME + " text NOT NULL, " + COLUMN_SOURCE + " inet, " + COLUMN_DESTINATION
+		    + " inet, " + COLUMN_PROTOCOL + " smallint NOT NULL, " + COLUMN_PORT_START
+		    + " integer NOT NULL, " + COLUMN_PORT_END + " integer NOT NULL, " + COLUMN_WEIGHT
+		    + " integer NOT NULL)",
+	    "CREATE INDEX IF NOT EXISTS " + TABLE_HITS + "_job_idx ON " + TABLE_HITS + " (" + COLUMN_JOB_NAME
+		    + ", " + COLUMN_ID + ")",
+	    "CREATE INDEX IF NOT EXISTS " + TABLE_HITS + "_source_idx ON " + TABLE_HITS + " USING gist ("
+		    + COLUMN_SOURCE + " inet_ops)",
+	    "CREATE INDEX IF NOT EXISTS " + TABLE_HITS + "_destination_idx ON " + TABLE_HITS + " USING gist ("
+		    + COLUMN_DESTINATION + " inet_ops)" };
+
+    /**
+     * The statement that bulk loads hits by {@code COPY}, in the default text
+     * format.
+     */
+    static final String COPY_HITS = "COPY " + TABLE_HITS + " (" + COLUMN_JOB_NAME + ", " + HIT_COLUMNS + ", "
+	    + COLUMN_WEIGHT + ") FROM STDIN";
+
+    /**
+     * The statement that inserts a hit, used when the connection doesn't
+     * support {@code COPY}.
+     */
+    static final String INSERT_HIT = "INSERT INTO " + TABLE_HITS + " (" + COLUMN_JOB_NAME + ", " + HIT_COLUMNS
+	    + ", " + COLUMN_WEIGHT + ") VALUES (?, ?::inet, ?::inet, ?, ?, ?, ?)";
+
+    /**
+     * The statement that deletes all the hits of a job.
+     */
+    static final String DELETE_JOB = "DELETE FROM " + TABLE_HITS + " WHERE " + COLUMN_JOB_NAME + " = ?";
+
+    /**
+     * The number of hits inserted by one batch, when the connection doesn't
+     * support {@code COPY}.
+     */
+    static final int INSERT_BATCH_SIZE = 1000;
+
+    /**
+     * The number of rows fetched in each round trip when streaming hits.
+     */
+    static final int FETCH_SIZE = 5000;
+
+    /**
+     * Suppresses default constructor, ensuring non-instantiability.
+     */
+    private PostgresDaoConfig() {
+    }
+
+}
@@ -0,0 +1,714 @@
+package breakingtherules.dao.postgres;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+import breakingtherules.dao.HitsDao;
+import breakingtherules.dao.ParseException;
+import breakingtherules.dao.UncheckedParseException;
+import breakingtherules.dto.ListDto;
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Attribute.AttributeType;
+import breakingtherules.firewall.Destination;
+import breakingtherules.firewall.Filter;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.IP;
+import breakingtherules.firewall.IPAttribute;
+import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.Service;
+import breakingtherules.firewall.Source;
+import breakingtherules.firewall.WeightedHit;
+
+/**
+ * DAO that stores the hits in a PostgreSQL database.
+ * <p>
+ * Unlike the file based DAOs, the jobs are never loaded to memory. Rules and
+ * filters are translated to SQL conditions (see {@link PostgresHitsQuery}), so
+ * the hits are matched by the database using the GiST indexes of the IPs
+ * columns, and counts and attributes histograms are computed by the database
+ * by {@code SUM} and {@code GROUP BY}. Only the requested page of hits is
+ * transferred, or a stream of hits that is fetched in chunks.
+ * <p>
+ * Hits are bulk loaded by {@code COPY}. If the connections of the data source
+ * are not PostgreSQL connections (for example, an in-process database used for
+ * testing), the hits are inserted by batched {@code INSERT} statements.
+ * <p>
+ * Identical hits of a job (for example, when the same hits are appended
+ * twice) are returned as one hit weighted by the sum of their weights, in the
+ * order of the first one's insertion.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see PostgresDaoConfig
+ */
+public class PostgresHitsDao implements HitsDao {
+
+    /**
+     * The data source of the database connections.
+     */
+    private final DataSource m_dataSource;
+
+    /**
+     * The query that selects the unique hits, followed by a condition.
+     */
+    private static final String SELECT_HITS = "SELECT " + PostgresDaoConfig.HIT_COLUMNS + ", SUM("
+	    + PostgresDaoConfig.COLUMN_WEIGHT + ") FROM " + PostgresDaoConfig.TABLE_HITS + " WHERE ";
+
+    /**
+     * The suffix of the query that selects the unique hits, after the
+     * condition.
+     */
+    private static final String SELECT_HITS_SUFFIX = " GROUP BY " + PostgresDaoConfig.HIT_COLUMNS + " ORDER BY MIN("
+	    + PostgresDaoConfig.COLUMN_ID + ")";
+
+    /**
+     * The query that counts the hits (sum of weights), followed by a
+     * condition.
+     */
+    private static final String COUNT_HITS = "SELECT COALESCE(SUM(" + PostgresDaoConfig.COLUMN_WEIGHT
+	    + "), 0) FROM " + PostgresDaoConfig.TABLE_HITS + " WHERE ";
+
+    /**
+     * The query that counts the unique hits, followed by a condition.
+     */
+    private static final String COUNT_UNIQUE_HITS = "SELECT COUNT(*) FROM (SELECT 1 FROM "
+	    + PostgresDaoConfig.TABLE_HITS + " WHERE ";
+
+    /**
+     * The suffix of the query that counts the unique hits, after the
+     * condition.
+     */
+    private static final String COUNT_UNIQUE_HITS_SUFFIX = " GROUP BY " + PostgresDaoConfig.HIT_COLUMNS
+	    + ") AS unique_hits";
+
+    /**
+     * Construct new PostgresHitsDao.
+     *
+     * @param dataSource
+     *            the data source of the database connections.
+     * @throws NullPointerException
+     *             if the data source is null.
+     */
+    public PostgresHitsDao(final DataSource dataSource) {
+	m_dataSource = Objects.requireNonNull(dataSource);
+    }
+
+    /**
+     * Create the hits table and its indexes, if they don't exist.
+     *
+     * @throws IOException
+     *             if any database errors occurs.
+     */
+    public void createSchema() throws IOException {
+	try (final Connection connection = m_dataSource.getConnection();
+		final Statement statement = connection.createStatement()) {
+	    for (final String sql : PostgresDaoConfig.CREATE_SCHEMA)
+		statement.execute(sql);
+	} catch (final SQLException e) {
+	    throw new IOException(e);
+	}
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The hits are read from the database when the iterable is created.
+     * Prefer {@link #getHitsStream(String, Iterable, Filter)}, which fetches
+     * the hits in chunks.
+     */
+    @Override
+    public Iterable<Hit> getHits(final String jobName, final Iterable<Rule> rules, final Filter filter)
+	    throws IOException, ParseException {
+	final PostgresHitsQuery query = new PostgresHitsQuery(jobName, rules, filter);
+	try (final Connection connection = m_dataSource.getConnection();
+		final PreparedStatement statement = connection
+			.prepareStatement(SELECT_HITS + query.getCondition() + SELECT_HITS_SUFFIX)) {
+	    query.setParameters(statement, 1);
+	    return readHits(statement);
+	} catch (final SQLException e) {
+	    throw new IOException(e);
+	}
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The hits are fetched from the database in chunks while the stream is
+     * consumed. The stream holds a database connection and must be closed.
+     */
+    @Override
+    public Stream<Hit> getHitsStream(final String jobName, final Iterable<Rule> rules, final Filter filter)
+	    throws IOException {
+	final PostgresHitsQuery query = new PostgresHitsQuery(jobName, rules, filter);
+	Connection connection = null;
+	final ResultSet resultSet;
+	try {
+	    connection = m_dataSource.getConnection();
+	    // PostgreSQL fetches in chunks only inside a transaction
+	    connection.setAutoCommit(false);
+	    final PreparedStatement statement = connection
+		    .prepareStatement(SELECT_HITS + query.getCondition() + SELECT_HITS_SUFFIX);
+	    statement.setFetchSize(PostgresDaoConfig.FETCH_SIZE);
+	    query.setParameters(statement, 1);
+	    resultSet = statement.executeQuery();
+	} catch (final SQLException e) {
+	    release(connection);
+	    throw new IOException(e);
+	}
+
+	final Connection streamConnection = connection;
+	final Spliterator<Hit> hits = new Spliterators.AbstractSpliterator<Hit>(Long.MAX_VALUE,
+		Spliterator.ORDERED | Spliterator.NONNULL) {
+
+	    @Override
+	    public boolean tryAdvance(final Consumer<? super Hit> action) {
+		try {
+		    if (!resultSet.next())
+			return false;
+		    action.accept(toHit(resultSet));
+		    return true;
+		} catch (final SQLException e) {
+		    throw new UncheckedIOException(new IOException(e));
+		} catch (final ParseException e) {
+		    throw new UncheckedParseException(e);
+		}
+	    }
+	};
+	return StreamSupport.stream(hits, false).onClose(() -> release(streamConnection));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the requested page is read from the database.
+     */
+    @Override
+    public ListDto<Hit> getHitsList(final String jobName, final Iterable<Rule> rules, final Filter filter,
+	    final int startIndex, final int endIndex) throws IOException, ParseException {
+	if (startIndex < 0)
+	    throw new IllegalArgumentException("startIndex < 0: " + startIndex);
+	if (endIndex < startIndex)
+	    throw new IllegalArgumentException("endIndex < startIndex: " + endIndex + " < " + startIndex);
+	final PostgresHitsQuery query = new PostgresHitsQuery(jobName, rules, filter);
+	final List<Hit> hits;
+	try (final Connection connection = m_dataSource.getConnection();
+		final PreparedStatement statement = connection.prepareStatement(
+			SELECT_HITS + query.getCondition() + SELECT_HITS_SUFFIX + " LIMIT ? OFFSET ?")) {
+	    final int index = query.setParameters(statement, 1);
+	    statement.setInt(index, endIndex - startIndex);
+	    statement.setInt(index + 1, startIndex);
+	    hits = readHits(statement);
+	} catch (final SQLException e) {
+	    throw new IOException(e);
+	}
+	final int totalSize = getUniqueHitsNumber(jobName, rules, filter);
+	if (totalSize == 0)
+	    return new ListDto<>(Collections.emptyList(), 0, 0, 0);
+	return new ListDto<>(hits, Math.min(startIndex, totalSize - 1), Math.min(endIndex, totalSize), totalSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getHitsNumber(final String jobName, final Iterable<Rule> rules, final Filter filter)
+	    throws IOException {
+	return queryInt(COUNT_HITS, new PostgresHitsQuery(jobName, rules, filter), "");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getUniqueHitsNumber(final String jobName, final Iterable<Rule> rules, final Filter filter)
+	    throws IOException {
+	return queryInt(COUNT_UNIQUE_HITS, new PostgresHitsQuery(jobName, rules, filter), COUNT_UNIQUE_HITS_SUFFIX);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The histogram is computed by the database.
+     */
+    @Override
+    public Map<Attribute, Integer> getAttributeHistogram(final String jobName, final Iterable<Rule> rules,
+	    final Filter filter, final AttributeType attType) throws IOException, ParseException {
+	final String columns;
+	switch (Objects.requireNonNull(attType)) {
+	case SOURCE:
+	    columns = PostgresDaoConfig.COLUMN_SOURCE;
+	    break;
+	case DESTINATION:
+	    columns = PostgresDaoConfig.COLUMN_DESTINATION;
+	    break;
+	case SERVICE:
+	    columns = PostgresDaoConfig.COLUMN_PROTOCOL + ", " + PostgresDaoConfig.COLUMN_PORT_START + ", "
+		    + PostgresDaoConfig.COLUMN_PORT_END;
+	    break;
+	default:
+	    throw new IllegalArgumentException("Unknown attribute type: " + attType);
+	}
+
+	final PostgresHitsQuery query = new PostgresHitsQuery(jobName, rules, filter);
+	final String sql = "SELECT " + columns + ", SUM(" + PostgresDaoConfig.COLUMN_WEIGHT + ") FROM "
+		+ PostgresDaoConfig.TABLE_HITS + " WHERE " + query.getCondition() + " GROUP BY " + columns;
+	final Map<Attribute, Integer> histogram = new HashMap<>();
+	try (final Connection connection = m_dataSource.getConnection();
+		final PreparedStatement statement = connection.prepareStatement(sql)) {
+	    query.setParameters(statement, 1);
+	    try (final ResultSet resultSet = statement.executeQuery()) {
+		while (resultSet.next()) {
+		    final Attribute attribute;
+		    final int count;
+		    switch (attType) {
+		    case SOURCE:
+			attribute = toSource(PostgresHitsQuery.parseInet(resultSet.getString(1)));
+			count = resultSet.getInt(2);
+			break;
+		    case DESTINATION:
+			attribute = toDestination(PostgresHitsQuery.parseInet(resultSet.getString(1)));
+			count = resultSet.getInt(2);
+			break;
+		    default:
+			attribute = toService(resultSet.getShort(1), resultSet.getInt(2), resultSet.getInt(3));
+			count = resultSet.getInt(4);
+		    }
+		    histogram.put(attribute, Integer.valueOf(count));
+		}
+	    }
+	} catch (final SQLException e) {
+	    throw new IOException(e);
+	}
+	return histogram;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The existing hits of the job, if any, are deleted.
+     *
+     * @throws IllegalArgumentException
+     *             if one of the hits doesn't have source, destination or
+     *             service.
+     */
+    @Override
+    public void initJob(final String jobName, final Iterable<Hit> hits) throws IOException {
+	writeHits(jobName, hits, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException
+     *             if one of the hits doesn't have source, destination or
+     *             service.
+     */
+    @Override
+    public void appendHits(final String jobName, final Iterable<Hit> hits) throws IOException {
+	writeHits(jobName, hits, false);
+    }
+
+    /**
+     * Delete all the hits of a job.
+     *
+     * @param jobName
+     *            the name of the job.
+     * @return the number of deleted hits rows.
+     * @throws IOException
+     *             if any database errors occurs.
+     */
+    public int deleteJob(final String jobName) throws IOException {
+	try (final Connection connection = m_dataSource.getConnection();
+		final PreparedStatement statement = connection.prepareStatement(PostgresDaoConfig.DELETE_JOB)) {
+	    statement.setString(1, Objects.requireNonNull(jobName));
+	    return statement.executeUpdate();
+	} catch (final SQLException e) {
+	    throw new IOException(e);
+	}
+    }
+
+    /**
+     * Write hits of a job to the database, in one transaction.
+     *
+     * @param jobName
+     *            the name of the job.
+     * @param hits
+     *            the hits.
+     * @param deleteExisting
+     *            if true, the existing hits of the job are deleted.
+     * @throws IOException
+     *             if any database errors occurs.
+     */
+    private void writeHits(final String jobName, final Iterable<Hit> hits, final boolean deleteExisting)
+	    throws IOException {
+	Objects.requireNonNull(jobName);
+	try (final Connection connection = m_dataSource.getConnection()) {
+	    final boolean autoCommit = connection.getAutoCommit();
+	    connection.setAutoCommit(false);
+	    try {
+		if (deleteExisting)
+		    try (final PreparedStatement statement = connection
+			    .prepareStatement(PostgresDaoConfig.DELETE_JOB)) {
+			statement.setString(1, jobName);
+			statement.executeUpdate();
+		    }
+		if (connection.isWrapperFor(PGConnection.class))
+		    copyHits(connection.unwrap(PGConnection.class), jobName, hits);
+		else
+		    insertHits(connection, jobName, hits);
+		connection.commit();
+	    } catch (final SQLException | IOException | RuntimeException e) {
+		connection.rollback();
+		throw e;
+	    } finally {
+		connection.setAutoCommit(autoCommit);
+	    }
+	} catch (final SQLException e) {
+	    throw new IOException(e);
+	}
+    }
+
+    /**
+     * Bulk load hits by {@code COPY}.
+     *
+     * @param connection
+     *            the PostgreSQL connection.
+     * @param jobName
+     *            the name of the job.
+     * @param hits
+     *            the hits.
+     * @throws SQLException
+     *             if any database errors occurs.
+     * @throws IOException
+     *             if any I/O errors occurs while copying.
+     */
+    private static void copyHits(final PGConnection connection, final String jobName, final Iterable<Hit> hits)
+	    throws SQLException, IOException {
+	final String job = escapeCopyText(jobName);
+	try (final Writer writer = new BufferedWriter(new OutputStreamWriter(
+		new PGCopyOutputStream(connection, PostgresDaoConfig.COPY_HITS), StandardCharsets.UTF_8))) {
+	    for (final Hit hit : hits) {
+		final Service service = getService(hit);
+		writer.write(job);
+		writer.write('\t');
+		writeCopyInet(writer, getIp(hit, AttributeType.SOURCE));
+		writer.write('\t');
+		writeCopyInet(writer, getIp(hit, AttributeType.DESTINATION));
+		writer.write('\t');
+		writer.write(Short.toString(service.getProtocolCode()));
+		writer.write('\t');
+		writer.write(Integer.toString(service.getPortRangeStart()));
+		writer.write('\t');
+		writer.write(Integer.toString(service.getPortRangeEnd()));
+		writer.write('\t');
+		writer.write(Integer.toString(hit.getWeight()));
+		writer.write('\n');
+	    }
+	}
+    }
+
+    /**
+     * Insert hits by batched {@code INSERT} statements.
+     *
+     * @param connection
+     *            the connection.
+     * @param jobName
+     *            the name of the job.
+     * @param hits
+     *            the hits.
+     * @throws SQLException
+     *             if any database errors occurs.
+     */
+    private static void insertHits(final Connection connection, final String jobName, final Iterable<Hit> hits)
+	    throws SQLException {
+	try (final PreparedStatement statement = connection.prepareStatement(PostgresDaoConfig.INSERT_HIT)) {
+	    int batchSize = 0;
+	    for (final Hit hit : hits) {
+		final Service service = getService(hit);
+		statement.setString(1, jobName);
+		setInet(statement, 2, getIp(hit, AttributeType.SOURCE));
+		setInet(statement, 3, getIp(hit, AttributeType.DESTINATION));
+		statement.setShort(4, service.getProtocolCode());
+		statement.setInt(5, service.getPortRangeStart());
+		statement.setInt(6, service.getPortRangeEnd());
+		statement.setInt(7, hit.getWeight());
+		statement.addBatch();
+		if (++batchSize == PostgresDaoConfig.INSERT_BATCH_SIZE) {
+		    statement.executeBatch();
+		    batchSize = 0;
+		}
+	    }
+	    if (batchSize != 0)
+		statement.executeBatch();
+	}
+    }
+
+    /**
+     * Execute a query that returns a single int.
+     *
+     * @param prefix
+     *            the query before the condition.
+     * @param query
+     *            the condition.
+     * @param suffix
+     *            the query after the condition.
+     * @return the result of the query.
+     * @throws IOException
+     *             if any database errors occurs.
+     */
+    private int queryInt(final String prefix, final PostgresHitsQuery query, final String suffix)
+	    throws IOException {
+	try (final Connection connection = m_dataSource.getConnection();
+		final PreparedStatement statement = connection
+			.prepareStatement(prefix + query.getCondition() + suffix)) {
+	    query.setParameters(statement, 1);
+	    try (final ResultSet resultSet = statement.executeQuery()) {
+		return resultSet.next() ? resultSet.getInt(1) : 0;
+	    }
+	} catch (final SQLException e) {
+	    throw new IOException(e);
+	}
+    }
+
+    /**
+     * Execute a query of hits and read all of them.
+     *
+     * @param statement
+     *            the hits query, with bound parameters.
+     * @return the hits.
+     * @throws SQLException
+     *             if any database errors occurs.
+     * @throws ParseException
+     *             if any of the hits is invalid.
+     */
+    private static List<Hit> readHits(final PreparedStatement statement) throws SQLException, ParseException {
+	final List<Hit> hits = new ArrayList<>();
+	try (final ResultSet resultSet = statement.executeQuery()) {
+	    while (resultSet.next())
+		hits.add(toHit(resultSet));
+	}
+	return hits;
+    }
+
+    /**
+     * Create hit from the current row of hits query.
+     *
+     * @param resultSet
+     *            the result of hits query.
+     * @return the hit of the current row.
+     * @throws SQLException
+     *             if any database errors occurs.
+     * @throws ParseException
+     *             if the row is not a valid hit.
+     */
+    private static Hit toHit(final ResultSet resultSet) throws SQLException, ParseException {
+	final List<Attribute> attributes = new ArrayList<>(Attribute.TYPE_COUNT);
+	attributes.add(toSource(PostgresHitsQuery.parseInet(resultSet.getString(1))));
+	attributes.add(toDestination(PostgresHitsQuery.parseInet(resultSet.getString(2))));
+	attributes.add(toService(resultSet.getShort(3), resultSet.getInt(4), resultSet.getInt(5)));
+	final int weight = resultSet.getInt(6);
+	if (weight <= 0)
+	    throw new ParseException("Non positive weight: " + weight);
+	return WeightedHit.valueOf(new Hit(attributes), weight);
+    }
+
+    /**
+     * Get source of an IP.
+     *
+     * @param ip
+     *            the IP.
+     * @return the source of the IP.
+     */
+    private static Source toSource(final IP ip) {
+	return IP.ANY_IP.equals(ip) ? Source.ANY_SOURCE : Source.valueOf(ip);
+    }
+
+    /**
+     * Get destination of an IP.
+     *
+     * @param ip
+     *            the IP.
+     * @return the destination of the IP.
+     */
+    private static Destination toDestination(final IP ip) {
+	return IP.ANY_IP.equals(ip) ? Destination.ANY_DESTINATION : Destination.valueOf(ip);
+    }
+
+    /**
+     * Get service of protocol and ports range.
+     *
+     * @param protocolCode
+     *            the protocol code.
+     * @param portRangeStart
+     *            the start of the ports range.
+     * @param portRangeEnd
+     *            the end of the ports range.
+     * @return the service.
+     * @throws ParseException
+     *             if the values are not a valid service.
+     */
+    private static Service toService(final short protocolCode, final int portRangeStart, final int portRangeEnd)
+	    throws ParseException {
+	final Service any = Service.ANY_SERVICE;
+	if (protocolCode == any.getProtocolCode() && portRangeStart == any.getPortRangeStart()
+		&& portRangeEnd == any.getPortRangeEnd())
+	    return any;
+	try {
+	    return Service.valueOf(protocolCode, portRangeStart, portRangeEnd);
+	} catch (final IllegalArgumentException e) {
+	    throw new ParseException(e);
+	}
+    }
+
+    /**
+     * Get IP attribute of a hit.
+     *
+     * @param hit
+     *            the hit.
+     * @param type
+     *            the type of the IP attribute.
+     * @return the IP of the attribute.
+     * @throws IllegalArgumentException
+     *             if the hit doesn't have the attribute.
+     */
+    private static IP getIp(final Hit hit, final AttributeType type) {
+	final Attribute attribute = hit.getAttribute(type);
+	if (attribute == null)
+	    throw new IllegalArgumentException("Hit without " + type.lowerCaseName() + ": " + hit);
+	return ((IPAttribute) attribute).getIp();
+    }
+
+    /**
+     * Get the service of a hit.
+     *
+     * @param hit
+     *            the hit.
+     * @return the service of the hit.
+     * @throws IllegalArgumentException
+     *             if the hit doesn't have service.
+     */
+    private static Service getService(final Hit hit) {
+	final Attribute attribute = hit.getAttribute(AttributeType.SERVICE);
+	if (attribute == null)
+	    throw new IllegalArgumentException("Hit without service: " + hit);
+	return (Service) attribute;
+    }
+
+    /**
+     * Bind an IP to an {@code inet} parameter.
+     *
+     * @param statement
+     *            the statement.
+     * @param index
+     *            the index of the parameter.
+     * @param ip
+     *            the IP.
+     * @throws SQLException
+     *             if failed to set the parameter.
+     */
+    private static void setInet(final PreparedStatement statement, final int index, final IP ip)
+	    throws SQLException {
+	final String inet = PostgresHitsQuery.toInet(ip);
+	if (inet == null)
+	    statement.setNull(index, Types.VARCHAR);
+	else
+	    statement.setString(index, inet);
+    }
+
+    /**
+     * Write an IP as {@code COPY} text field.
+     *
+     * @param writer
+     *            the {@code COPY} writer.
+     * @param ip
+     *            the IP.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    private static void writeCopyInet(final Writer writer, final IP ip) throws IOException {
+	final String inet = PostgresHitsQuery.toInet(ip);
+	writer.write(inet == null ? "\\N" : inet);
+    }
+
+    /**
+     * Escape a text field of {@code COPY} text format.
+     *
+     * @param text
+     *            the text.
+     * @return the escaped text.
+     */
+    private static String escapeCopyText(final String text) {
+	final StringBuilder builder = new StringBuilder(text.length());
+	for (int i = 0; i < text.length(); i++) {
+	    final char c = text.charAt(i);
+	    switch (c) {
+	    case '\\':
+		builder.append("\\\\");
+		break;
+	    case '\t':
+		builder.append("\\t");
+		break;
+	    case '\n':
+		builder.append("\\n");
+		break;
+	    case '\r':
+		builder.append("\\r");
+		break;
+	    default:
+		builder.append(c);
+	    }
+	}
+	return builder.toString();
+    }
+
+    /**
+     * Roll back and close a connection that was used for streaming.
+     *
+     * @param connection
+     *            the connection, may be null.
+     */
+    private static void release(final Connection connection) {
+	if (connection == null)
+	    return;
+	try {
+	    try {
+		if (!connection.getAutoCommit()) {
+		    connection.rollback();
+		    connection.setAutoCommit(true);
+		}
+	    } finally {
+		connection.close();
+	    }
+	} catch (final SQLException e) {
+	    throw new UncheckedIOException(new IOException(e));
+	}
+    }
+
+}
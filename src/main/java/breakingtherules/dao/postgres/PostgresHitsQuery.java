@@ -0,0 +1,340 @@
+package breakingtherules.dao.postgres;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import breakingtherules.dao.ParseException;
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Filter;
+import breakingtherules.firewall.IP;
+import breakingtherules.firewall.IPAttribute;
+import breakingtherules.firewall.IPv4;
+import breakingtherules.firewall.IPv6;
+import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.Service;
+
+/**
+ * SQL condition that matches the hits of a job that pass all rules and are
+ * under a filter.
+ * <p>
+ * The condition is the translation of
+ * {@link breakingtherules.dao.DaoUtils#isMatch(breakingtherules.firewall.Hit, Iterable, Filter)
+ * DaoUtils.isMatch} to SQL, so the hits are filtered by the database (and its
+ * indexes) instead of being read and matched one by one. The values of the
+ * condition are not part of its text, they are bound as parameters of a
+ * prepared statement (see {@link #getParameters()}).
+ * <p>
+ * An IP attribute {@code a} contains the IP of a hit if the IP is in the same
+ * family and is a subnet of {@code a}, translated to {@code ip <<= a}. A
+ * service {@code s} contains the service of a hit if the protocols are equal
+ * (or {@code s} has any protocol) and the ports range of the hit is inside the
+ * ports range of {@code s}. Any attributes contain all the attributes of their
+ * type, so they are not translated at all.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see PostgresHitsDao
+ */
+public final class PostgresHitsQuery {
+
+    /**
+     * The SQL condition, with '?' placeholders for the parameters.
+     */
+    private final String m_condition;
+
+    /**
+     * The values of the parameters of the condition, by their order.
+     */
+    private final List<Object> m_parameters;
+
+    /**
+     * The number of bits in a block of IPv6 text representation.
+     */
+    private static final int IPV6_BLOCK_SIZE = 16;
+
+    /**
+     * The number of bytes in an IPv4 address.
+     */
+    private static final int IPV4_BYTES = 4;
+
+    /**
+     * The number of bytes in an IPv6 address.
+     */
+    private static final int IPV6_BYTES = 16;
+
+    /**
+     * Construct new PostgresHitsQuery.
+     *
+     * @param jobName
+     *            the name of the job.
+     * @param rules
+     *            the rules, hits that match any of them are not matched by the
+     *            query.
+     * @param filter
+     *            the filter, only hits that match it are matched by the query.
+     * @throws NullPointerException
+     *             if one of the arguments is null.
+     */
+    public PostgresHitsQuery(final String jobName, final Iterable<Rule> rules, final Filter filter) {
+	final StringBuilder condition = new StringBuilder();
+	final List<Object> parameters = new ArrayList<>();
+
+	condition.append(PostgresDaoConfig.COLUMN_JOB_NAME).append(" = ?");
+	parameters.add(Objects.requireNonNull(jobName));
+
+	final StringBuilder matcherCondition = new StringBuilder();
+	if (appendMatcher(matcherCondition, parameters, filter))
+	    condition.append(" AND ").append(matcherCondition);
+	for (final Rule rule : rules) {
+	    matcherCondition.setLength(0);
+	    if (appendMatcher(matcherCondition, parameters, rule))
+		condition.append(" AND NOT (").append(matcherCondition).append(')');
+	    else {
+		// The rule matches all hits
+		condition.append(" AND FALSE");
+	    }
+	}
+
+	m_condition = condition.toString();
+	m_parameters = Collections.unmodifiableList(parameters);
+    }
+
+    /**
+     * Get the SQL condition.
+     *
+     * @return the SQL condition, with '?' placeholders for the parameters.
+     */
+    public String getCondition() {
+	return m_condition;
+    }
+
+    /**
+     * Get the parameters of the condition.
+     *
+     * @return unmodifiable list of the values of the condition's parameters,
+     *         by their order.
+     */
+    public List<Object> getParameters() {
+	return m_parameters;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+	return m_condition + " " + m_parameters;
+    }
+
+    /**
+     * Bind the parameters of the condition to a prepared statement.
+     *
+     * @param statement
+     *            the statement.
+     * @param firstIndex
+     *            the index of the condition's first parameter in the
+     *            statement.
+     * @return the index of the next parameter of the statement, after the
+     *         condition's parameters.
+     * @throws SQLException
+     *             if failed to set the parameters.
+     */
+    int setParameters(final PreparedStatement statement, final int firstIndex) throws SQLException {
+	int index = firstIndex;
+	for (final Object parameter : m_parameters)
+	    statement.setObject(index++, parameter);
+	return index;
+    }
+
+    /**
+     * Get the {@code inet} text representation of an IP.
+     *
+     * @param ip
+     *            an IPv4 or IPv6.
+     * @return the IP as {@code inet} literal, or null if the IP is any IP.
+     * @throws IllegalArgumentException
+     *             if the IP is not IPv4, IPv6 or any IP.
+     */
+    public static String toInet(final IP ip) {
+	if (ip instanceof IPv4) {
+	    final int address = ip.getAddressBits()[0];
+	    return (address >>> 24) + "." + (address >>> 16 & 0xff) + "." + (address >>> 8 & 0xff) + "."
+		    + (address & 0xff) + "/" + ip.getMaskSize();
+	}
+	if (ip instanceof IPv6) {
+	    final int[] address = ip.getAddressBits();
+	    final StringBuilder builder = new StringBuilder();
+	    for (int i = 0; i < address.length; i++) {
+		if (i != 0)
+		    builder.append(':');
+		builder.append(Integer.toHexString(address[i] >>> IPV6_BLOCK_SIZE)).append(':');
+		builder.append(Integer.toHexString(address[i] & 0xffff));
+	    }
+	    return builder.append('/').append(ip.getMaskSize()).toString();
+	}
+	if (IP.ANY_IP.equals(ip))
+	    return null;
+	throw new IllegalArgumentException("Unknown IP type: " + ip);
+    }
+
+    /**
+     * Parse an IP from its {@code inet} text representation.
+     *
+     * @param inet
+     *            {@code inet} text, address with optional mask size, or null.
+     * @return the IP, or any IP if the text is null.
+     * @throws ParseException
+     *             if the text is not a valid {@code inet} text.
+     */
+    public static IP parseInet(final String inet) throws ParseException {
+	if (inet == null)
+	    return IP.ANY_IP;
+	final int separator = inet.indexOf('/');
+	final String host = separator < 0 ? inet : inet.substring(0, separator);
+	final boolean ipv6 = host.indexOf(':') >= 0;
+	// Only literal addresses are parsed, so there are no name lookups
+	if (host.isEmpty() || !ipv6 && !host.chars().allMatch(c -> c == '.' || '0' <= c && c <= '9'))
+	    throw new ParseException("Illegal inet: " + inet);
+	byte[] bytes;
+	try {
+	    bytes = InetAddress.getByName(host).getAddress();
+	} catch (final UnknownHostException e) {
+	    throw new ParseException("Illegal inet: " + inet, e);
+	}
+	if (ipv6 && bytes.length == IPV4_BYTES) {
+	    // IPv4-mapped IPv6 address, converted by InetAddress to IPv4
+	    final byte[] mapped = new byte[IPV6_BYTES];
+	    mapped[IPV6_BYTES - IPV4_BYTES - 1] = mapped[IPV6_BYTES - IPV4_BYTES - 2] = (byte) 0xff;
+	    System.arraycopy(bytes, 0, mapped, IPV6_BYTES - IPV4_BYTES, IPV4_BYTES);
+	    bytes = mapped;
+	}
+	final int[] address = new int[bytes.length / Integer.BYTES];
+	for (int i = 0; i < bytes.length; i++)
+	    address[i / Integer.BYTES] = address[i / Integer.BYTES] << Byte.SIZE | bytes[i] & 0xff;
+	final int size = bytes.length * Byte.SIZE;
+	final short maskSize;
+	try {
+	    maskSize = separator < 0 ? (short) size : Short.parseShort(inet.substring(separator + 1));
+	} catch (final NumberFormatException e) {
+	    throw new ParseException("Illegal inet: " + inet, e);
+	}
+	if (maskSize < 0 || maskSize > size)
+	    throw new ParseException("Illegal inet: " + inet);
+	return address.length == 1 ? IPv4.valueOfBits(address[0], maskSize) : IPv6.valueOfBits(address, maskSize);
+    }
+
+    /**
+     * Append the condition of hits that match a rule or a filter.
+     *
+     * @param condition
+     *            the condition builder.
+     * @param parameters
+     *            the parameters of the condition.
+     * @param matcher
+     *            the rule or the filter.
+     * @return true if a condition was appended, false if the matcher matches
+     *         all hits.
+     */
+    private static boolean appendMatcher(final StringBuilder condition, final List<Object> parameters,
+	    final Iterable<Attribute> matcher) {
+	boolean appended = false;
+	for (final Attribute attribute : matcher) {
+	    final int length = condition.length();
+	    if (appended)
+		condition.append(" AND ");
+	    final boolean attributeAppended;
+	    switch (attribute.getType()) {
+	    case SOURCE:
+		attributeAppended = appendIP(condition, parameters, PostgresDaoConfig.COLUMN_SOURCE,
+			((IPAttribute) attribute).getIp());
+		break;
+	    case DESTINATION:
+		attributeAppended = appendIP(condition, parameters, PostgresDaoConfig.COLUMN_DESTINATION,
+			((IPAttribute) attribute).getIp());
+		break;
+	    case SERVICE:
+		attributeAppended = appendService(condition, parameters, (Service) attribute);
+		break;
+	    default:
+		throw new IllegalArgumentException("Unknown attribute: " + attribute);
+	    }
+	    if (attributeAppended)
+		appended = true;
+	    else
+		condition.setLength(length);
+	}
+	return appended;
+    }
+
+    /**
+     * Append the condition of hits with an IP that is contained in a subnet.
+     *
+     * @param condition
+     *            the condition builder.
+     * @param parameters
+     *            the parameters of the condition.
+     * @param column
+     *            the IP column.
+     * @param ip
+     *            the subnet.
+     * @return true if a condition was appended, false if the subnet contains
+     *         all IPs.
+     */
+    private static boolean appendIP(final StringBuilder condition, final List<Object> parameters,
+	    final String column, final IP ip) {
+	final String inet = toInet(ip);
+	if (inet == null)
+	    return false;
+	// NULL is any IP, which isn't contained in any subnet
+	condition.append('(').append(column).append(" IS NOT NULL AND ").append(column).append(" <<= ?::inet)");
+	parameters.add(inet);
+	return true;
+    }
+
+    /**
+     * Append the condition of hits with a service that is contained in a
+     * service.
+     *
+     * @param condition
+     *            the condition builder.
+     * @param parameters
+     *            the parameters of the condition.
+     * @param service
+     *            the containing service.
+     * @return true if a condition was appended, false if the service contains
+     *         all services.
+     */
+    private static boolean appendService(final StringBuilder condition, final List<Object> parameters,
+	    final Service service) {
+	final Service any = Service.ANY_SERVICE;
+	boolean appended = false;
+	if (service.getProtocolCode() != Service.ANY_PROTOCOL) {
+	    condition.append(PostgresDaoConfig.COLUMN_PROTOCOL).append(" = ?");
+	    parameters.add(Short.valueOf(service.getProtocolCode()));
+	    appended = true;
+	}
+	if (service.getPortRangeStart() != any.getPortRangeStart()) {
+	    if (appended)
+		condition.append(" AND ");
+	    condition.append(PostgresDaoConfig.COLUMN_PORT_START).append(" >= ?");
+	    parameters.add(Integer.valueOf(service.getPortRangeStart()));
+	    appended = true;
+	}
+	if (service.getPortRangeEnd() != any.getPortRangeEnd()) {
+	    if (appended)
+		condition.append(" AND ");
+	    condition.append(PostgresDaoConfig.COLUMN_PORT_END).append(" <= ?");
+	    parameters.add(Integer.valueOf(service.getPortRangeEnd()));
+	    appended = true;
+	}
+	return appended;
+    }
+
+}
@@ -3,7 +3,9 @@ package breakingtherules.dao.xml;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.w3c.dom.Document;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -47,52 +49,67 @@ class AbstractXMLAttributesContainerParser extends AbstractParser {
 		final String value = childElm.getTextContent();
 		if (name == null || value == null)
 		    throw new XMLParseException("Unkown format");
-
-		final Attribute attribute;
-		try {
-		    switch (AttributeType.valueOfIgnoreCase(name)) {
-		    case SOURCE:
-			attribute = sourceCache != null ? sourceCache.valueOf(value) : Source.valueOf(value);
-			break;
-		    case DESTINATION:
-			attribute = destinationCache != null ? destinationCache.valueOf(value)
-				: Destination.valueOf(value);
-			break;
-		    case SERVICE:
-			attribute = serviceCache != null ? serviceCache.valueOf(value) : Service.valueOf(value);
-			break;
-		    default:
-			throw new XMLParseException("Unkown attribute");
-		    }
-		} catch (final IllegalArgumentException e) {
-		    throw new XMLParseException(e);
-		}
-
-		attributes.add(attribute);
+		attributes.add(parseAttribute(name, value));
 	    }
 	}
 	return attributes;
     }
 
     /**
-     * Add all attributes of an attributes container to parent element.
+     * Parses an attribute from the name and text of its XML element.
      *
-     * @param elm
-     *            the parent element.
+     * @param name
+     *            the element's name, the attribute's type.
+     * @param value
+     *            the element's text, the attribute's value.
+     * @return the attribute parsed from the element.
+     * @throws NullPointerException
+     *             if the name or the value is null.
+     * @throws XMLParseException
+     *             if failed to parse the attribute.
+     */
+    Attribute parseAttribute(final String name, final String value) throws XMLParseException {
+	try {
+	    switch (AttributeType.valueOfIgnoreCase(name)) {
+	    case SOURCE:
+		return sourceCache != null ? sourceCache.valueOf(value) : Source.valueOf(value);
+	    case DESTINATION:
+		return destinationCache != null ? destinationCache.valueOf(value) : Destination.valueOf(value);
+	    case SERVICE:
+		return serviceCache != null ? serviceCache.valueOf(value) : Service.valueOf(value);
+	    default:
+		throw new XMLParseException("Unkown attribute");
+	    }
+	} catch (final IllegalArgumentException e) {
+	    throw new XMLParseException(e);
+	}
+    }
+
+    /**
+     * Write all attributes of an attributes container as children of the
+     * current element, and end the element.
+     *
+     * @param writer
+     *            the XML writer, after the start of the parent element.
      * @param attributesContainer
      *            the attributes source.
-     * @return the constructed element. The input element.
+     * @param depth
+     *            the depth of the parent element.
      * @throws NullPointerException
-     *             if the element is null or the container is null.
+     *             if the container is null.
+     * @throws XMLStreamException
+     *             if failed to write.
      */
-    static Element fillElement(final Element elm, final Iterable<Attribute> attributesContainer) {
-	final Document doc = elm.getOwnerDocument();
+    static void writeAttributesContainer(final XMLStreamWriter writer, final Iterable<Attribute> attributesContainer,
+	    final int depth) throws XMLStreamException {
 	for (final Attribute attribute : attributesContainer) {
-	    final Element attElm = doc.createElement(attribute.getType().lowerCaseName());
-	    attElm.setTextContent(attribute.toString());
-	    elm.appendChild(attElm);
+	    XMLUtils.writeIndent(writer, depth + 1);
+	    writer.writeStartElement(attribute.getType().lowerCaseName());
+	    writer.writeCharacters(attribute.toString());
+	    writer.writeEndElement();
 	}
-	return elm;
+	XMLUtils.writeIndent(writer, depth);
+	writer.writeEndElement();
     }
 
 }
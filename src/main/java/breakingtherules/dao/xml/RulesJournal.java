@@ -0,0 +1,471 @@
+package breakingtherules.dao.xml;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import breakingtherules.dao.ParseException;
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Attribute.AttributeType;
+import breakingtherules.firewall.Destination;
+import breakingtherules.firewall.IP;
+import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.Service;
+import breakingtherules.firewall.Source;
+
+/**
+ * Append-only journal of the rules changes of a job.
+ * <p>
+ * The journal holds the changes made to the rules of a job since they were
+ * last written to the XML rules file (the base rules). Adding or removing a
+ * rule appends one short record to the journal file, so it costs the same I/O
+ * regardless of the number of rules. The XML rules file is rewritten only when
+ * the journal is compacted, see {@link #reset(List)}.
+ * <p>
+ * The journal file starts with a header that holds a checksum of the base
+ * rules it was written on. When the journal is opened, its records are
+ * replayed on the base rules only if the checksum matches, otherwise the
+ * records were already compacted into the rules file (or were written on
+ * another rules file) and the journal is reset. A last record that wasn't
+ * written completely (the process was terminated while writing it) is
+ * discarded.
+ * <p>
+ * Each record is written to the file system when it's appended, so it
+ * survives a termination of the process. The file is synchronized with the
+ * storage device once per {@value #SYNC_RECORDS} records or once per
+ * {@value #SYNC_INTERVAL_MILLIS} milliseconds, whichever comes first.
+ * <p>
+ * The rules are read without synchronization, as an immutable snapshot that
+ * is replaced on each change.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see XMLRulesDao
+ */
+public final class RulesJournal implements Closeable {
+
+    /**
+     * The journal file channel, positioned at the end of the file.
+     */
+    private final FileChannel m_channel;
+
+    /**
+     * The current rules, immutable snapshot.
+     */
+    private volatile List<Rule> m_rules;
+
+    /**
+     * The number of records in the journal.
+     */
+    private int m_recordsNumber;
+
+    /**
+     * The number of records written since the last synchronization with the
+     * storage device.
+     */
+    private int m_unsyncedRecords;
+
+    /**
+     * The time of the last synchronization with the storage device, in
+     * nanoseconds.
+     */
+    private long m_lastSyncTime;
+
+    /**
+     * Cache of sources, used when replaying records.
+     */
+    private final Source.Cache m_sourceCache;
+
+    /**
+     * Cache of destinations, used when replaying records.
+     */
+    private final Destination.Cache m_destinationCache;
+
+    /**
+     * Cache of services, used when replaying records.
+     */
+    private final Service.Cache m_serviceCache;
+
+    /**
+     * The prefix of the header line of the journal file, followed by the
+     * checksum of the base rules.
+     */
+    private static final String HEADER_PREFIX = "#btr-rules-journal ";
+
+    /**
+     * The first character of a record of an added rule.
+     */
+    private static final char ADD_RECORD = '+';
+
+    /**
+     * The first character of a record of a removed rule.
+     */
+    private static final char REMOVE_RECORD = '-';
+
+    /**
+     * The separator between the fields of a record.
+     */
+    private static final char FIELD_SEPARATOR = '\t';
+
+    /**
+     * The separator between the type and the value of an attribute.
+     */
+    private static final char ATTRIBUTE_SEPARATOR = '=';
+
+    /**
+     * The separator between records.
+     */
+    private static final char RECORD_SEPARATOR = '\n';
+
+    /**
+     * The maximal number of records that are written without synchronization
+     * with the storage device.
+     */
+    private static final int SYNC_RECORDS = 32;
+
+    /**
+     * The maximal time between synchronizations with the storage device, in
+     * milliseconds, as long as records are written.
+     */
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Open the journal of a rules file.
+     * <p>
+     * If the journal file exists and was written on the base rules, its
+     * records are replayed. Otherwise, it's reset to an empty journal of the
+     * base rules.
+     *
+     * @param file
+     *            the journal file.
+     * @param baseRules
+     *            the rules of the rules file.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws ParseException
+     *             if a record of the journal is invalid.
+     * @throws NullPointerException
+     *             if one of the arguments is null.
+     */
+    public RulesJournal(final File file, final List<Rule> baseRules) throws IOException, ParseException {
+	final IP.Cache ipsCache = new IP.Cache();
+	m_sourceCache = new Source.Cache(ipsCache);
+	m_destinationCache = new Destination.Cache(ipsCache);
+	m_serviceCache = new Service.Cache();
+
+	m_channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+		StandardOpenOption.WRITE);
+	try {
+	    if (!replay(baseRules))
+		reset(baseRules);
+	} catch (final IOException | ParseException | RuntimeException e) {
+	    m_channel.close();
+	    throw e;
+	}
+	m_lastSyncTime = System.nanoTime();
+    }
+
+    /**
+     * Get the current rules.
+     *
+     * @return unmodifiable list of the base rules with all the journal's
+     *         changes.
+     */
+    public List<Rule> getRules() {
+	return m_rules;
+    }
+
+    /**
+     * Get the number of records in the journal.
+     *
+     * @return the number of changes since the journal was reset.
+     */
+    public synchronized int getRecordsNumber() {
+	return m_recordsNumber;
+    }
+
+    /**
+     * Add a rule to the end of the rules list.
+     *
+     * @param rule
+     *            the added rule.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws NullPointerException
+     *             if the rule is null.
+     */
+    public synchronized void add(final Rule rule) throws IOException {
+	final StringBuilder record = new StringBuilder().append(ADD_RECORD);
+	appendRule(record, rule);
+	append(record);
+
+	final List<Rule> rules = new ArrayList<>(m_rules.size() + 1);
+	rules.addAll(m_rules);
+	rules.add(rule);
+	m_rules = Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Remove a rule from the rules list.
+     *
+     * @param index
+     *            the index of the removed rule.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws IndexOutOfBoundsException
+     *             if the index is out of the list bounds.
+     */
+    public synchronized void remove(final int index) throws IOException {
+	final List<Rule> rules = new ArrayList<>(m_rules);
+	rules.remove(index);
+	append(new StringBuilder().append(REMOVE_RECORD).append(FIELD_SEPARATOR).append(index));
+	m_rules = Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Reset the journal to an empty journal of new base rules.
+     * <p>
+     * Used after the rules were written to the rules file. If the process is
+     * terminated before the journal is reset, the journal won't match the new
+     * rules file when it's opened again and its records won't be replayed.
+     *
+     * @param baseRules
+     *            the rules of the rules file.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws NullPointerException
+     *             if the rules list is null.
+     */
+    public synchronized void reset(final List<Rule> baseRules) throws IOException {
+	final List<Rule> rules = Collections.unmodifiableList(new ArrayList<>(baseRules));
+	m_channel.truncate(0);
+	m_channel.position(0);
+	write(new StringBuilder(HEADER_PREFIX).append(Long.toHexString(checksum(rules))).append(RECORD_SEPARATOR));
+	m_channel.force(false);
+	m_rules = rules;
+	m_recordsNumber = 0;
+	m_unsyncedRecords = 0;
+	m_lastSyncTime = System.nanoTime();
+    }
+
+    /**
+     * Synchronize all the written records with the storage device.
+     *
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    public synchronized void sync() throws IOException {
+	if (m_unsyncedRecords != 0) {
+	    m_channel.force(false);
+	    m_unsyncedRecords = 0;
+	}
+	m_lastSyncTime = System.nanoTime();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() throws IOException {
+	if (m_channel.isOpen()) {
+	    try {
+		sync();
+	    } finally {
+		m_channel.close();
+	    }
+	}
+    }
+
+    /**
+     * Append a record to the journal file.
+     *
+     * @param record
+     *            the record, without separator.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    private void append(final StringBuilder record) throws IOException {
+	write(record.append(RECORD_SEPARATOR));
+	m_recordsNumber++;
+	m_unsyncedRecords++;
+	if (m_unsyncedRecords >= SYNC_RECORDS
+		|| System.nanoTime() - m_lastSyncTime >= TimeUnit.MILLISECONDS.toNanos(SYNC_INTERVAL_MILLIS))
+	    sync();
+    }
+
+    /**
+     * Write text to the current position of the journal file.
+     *
+     * @param text
+     *            the text.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    private void write(final CharSequence text) throws IOException {
+	final ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+	while (buffer.hasRemaining())
+	    m_channel.write(buffer);
+    }
+
+    /**
+     * Replay the journal file on the base rules.
+     *
+     * @param baseRules
+     *            the rules of the rules file.
+     * @return true if the journal was replayed, false if the journal file is
+     *         empty or wasn't written on the base rules.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws ParseException
+     *             if a record is invalid.
+     */
+    private boolean replay(final List<Rule> baseRules) throws IOException, ParseException {
+	final long size = m_channel.size();
+	if (size == 0 || size > Integer.MAX_VALUE)
+	    return false;
+	final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+	m_channel.position(0);
+	while (buffer.hasRemaining())
+	    if (m_channel.read(buffer) < 0)
+		break;
+	final String text = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+
+	int lineEnd = text.indexOf(RECORD_SEPARATOR);
+	final List<Rule> rules = new ArrayList<>(baseRules);
+	if (lineEnd < 0 || !text.substring(0, lineEnd).equals(HEADER_PREFIX + Long.toHexString(checksum(rules))))
+	    return false;
+
+	int recordsNumber = 0;
+	int lineStart = lineEnd + 1;
+	while ((lineEnd = text.indexOf(RECORD_SEPARATOR, lineStart)) >= 0) {
+	    replayRecord(rules, text.substring(lineStart, lineEnd));
+	    recordsNumber++;
+	    lineStart = lineEnd + 1;
+	}
+	if (lineStart != text.length()) {
+	    // Discard the last record, it wasn't written completely
+	    m_channel.truncate(text.substring(0, lineStart).getBytes(StandardCharsets.UTF_8).length);
+	    m_channel.force(false);
+	}
+	m_channel.position(m_channel.size());
+	m_rules = Collections.unmodifiableList(rules);
+	m_recordsNumber = recordsNumber;
+	return true;
+    }
+
+    /**
+     * Replay one record on the rules list.
+     *
+     * @param rules
+     *            the rules list.
+     * @param record
+     *            the record.
+     * @throws ParseException
+     *             if the record is invalid.
+     */
+    private void replayRecord(final List<Rule> rules, final String record) throws ParseException {
+	final String[] fields = record.split(String.valueOf(FIELD_SEPARATOR), -1);
+	if (fields[0].equals(String.valueOf(ADD_RECORD))) {
+	    final List<Attribute> attributes = new ArrayList<>(fields.length - 1);
+	    for (int i = 1; i < fields.length; i++)
+		attributes.add(parseAttribute(fields[i]));
+	    try {
+		rules.add(new Rule(attributes));
+	    } catch (final IllegalArgumentException e) {
+		throw new ParseException("Illegal rule record: " + record, e);
+	    }
+
+	} else if (fields[0].equals(String.valueOf(REMOVE_RECORD)) && fields.length == 2) {
+	    final int index;
+	    try {
+		index = Integer.parseInt(fields[1]);
+	    } catch (final NumberFormatException e) {
+		throw new ParseException("Illegal rule index: " + record, e);
+	    }
+	    if (index < 0 || index >= rules.size())
+		throw new ParseException("Rule index out of bounds: " + record);
+	    rules.remove(index);
+
+	} else
+	    throw new ParseException("Unknown record: " + record);
+    }
+
+    /**
+     * Parse an attribute field of a record.
+     *
+     * @param field
+     *            the field, the attribute type and value.
+     * @return the attribute.
+     * @throws ParseException
+     *             if the field is invalid.
+     */
+    private Attribute parseAttribute(final String field) throws ParseException {
+	final int separator = field.indexOf(ATTRIBUTE_SEPARATOR);
+	if (separator < 0)
+	    throw new ParseException("Illegal attribute: " + field);
+	final String value = field.substring(separator + 1);
+	try {
+	    final AttributeType type = AttributeType.valueOfIgnoreCase(field.substring(0, separator));
+	    switch (type) {
+	    case SOURCE:
+		return m_sourceCache.valueOf(value);
+	    case DESTINATION:
+		return m_destinationCache.valueOf(value);
+	    case SERVICE:
+		return m_serviceCache.valueOf(value);
+	    default:
+		throw new ParseException("Unknown attribute: " + field);
+	    }
+	} catch (final IllegalArgumentException e) {
+	    throw new ParseException("Illegal attribute: " + field, e);
+	}
+    }
+
+    /**
+     * Append the attribute fields of a rule to a record.
+     *
+     * @param record
+     *            the record.
+     * @param rule
+     *            the rule.
+     */
+    private static void appendRule(final StringBuilder record, final Rule rule) {
+	for (final Attribute attribute : rule)
+	    record.append(FIELD_SEPARATOR).append(attribute.getType().lowerCaseName()).append(ATTRIBUTE_SEPARATOR)
+		    .append(attribute);
+    }
+
+    /**
+     * Compute the checksum of a rules list.
+     * <p>
+     * The checksum is computed on the rules in the records format, so it
+     * doesn't depend on the hash codes of the attributes.
+     *
+     * @param rules
+     *            the rules list.
+     * @return the checksum of the rules.
+     */
+    private static long checksum(final List<Rule> rules) {
+	final CRC32 crc = new CRC32();
+	final StringBuilder record = new StringBuilder();
+	for (final Rule rule : rules) {
+	    record.setLength(0);
+	    record.append(ADD_RECORD);
+	    appendRule(record, rule);
+	    record.append(RECORD_SEPARATOR);
+	    crc.update(record.toString().getBytes(StandardCharsets.UTF_8));
+	}
+	return crc.getValue();
+    }
+
+}
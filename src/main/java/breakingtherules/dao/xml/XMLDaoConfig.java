@@ -27,6 +27,11 @@ public class XMLDaoConfig {
      */
     private static final String RULES_FILE = "repository.xml";
 
+    /**
+     * Name of the rules journal file in each repository.
+     */
+    private static final String RULES_JOURNAL_FILE = "repository.journal";
+
     /**
      * Repository tag in XML file.
      */
@@ -37,6 +42,12 @@ public class XMLDaoConfig {
      */
     static final String HIT_TAG = "hit";
 
+    /**
+     * Count attribute of a hit tag in XML file, the number of occurrences of
+     * the hit. Optional, hits without it occurred once.
+     */
+    static final String HIT_COUNT_ATTRIBUTE = "count";
+
     /**
      * Source tag in XML file.
      */
@@ -79,6 +90,19 @@ public class XMLDaoConfig {
 	return new StringBuilder().append(DaoConfig.getRepoRoot(jobName)).append('/').append(RULES_FILE).toString();
     }
 
+    /**
+     * Get the name of the rules journal file by job name.
+     *
+     * @param jobName
+     *            name of the job.
+     * @return name of the rules journal file associated with the job.
+     * @see RulesJournal
+     */
+    static String getRulesJournalFile(final String jobName) {
+	return new StringBuilder().append(DaoConfig.getRepoRoot(jobName)).append('/').append(RULES_JOURNAL_FILE)
+		.toString();
+    }
+
     /**
      * Get the name of XML hits file by job name.
      *
@@ -1,7 +1,8 @@
 package breakingtherules.dao.xml;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Set;
+import java.util.List;
 
 import breakingtherules.dao.AbstractCachedHitsDao;
 import breakingtherules.dao.HitsDao;
@@ -33,8 +34,16 @@ public class XMLHitsDao extends AbstractCachedHitsDao {
      * {@inheritDoc}
      */
     @Override
-    protected Set<Hit> getHits(final String jobName) throws IOException, ParseException {
+    protected List<Hit> getHits(final String jobName) throws IOException, ParseException {
 	return XMLHitsParser.parseUniqueHits(XMLDaoConfig.getHitsFile(jobName));
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected File getHitsFile(final String jobName) {
+	return new File(XMLDaoConfig.getHitsFile(jobName));
+    }
+
 }
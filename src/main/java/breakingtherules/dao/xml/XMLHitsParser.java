@@ -1,30 +1,46 @@
 package breakingtherules.dao.xml;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+import breakingtherules.firewall.Attribute;
 import breakingtherules.firewall.Destination;
 import breakingtherules.firewall.Hit;
 import breakingtherules.firewall.IP;
 import breakingtherules.firewall.Service;
 import breakingtherules.firewall.Source;
+import breakingtherules.firewall.WeightedHit;
+import breakingtherules.util.MutableInteger;
 
 /**
- * Parser that parses hits from {@link Element}.
+ * Parser that parses hits from XML files.
+ * <p>
+ * The files are read by a streaming (StAX) reader, one {@code <hit>} element
+ * at a time, so the whole document is never held in memory. The text of the
+ * hits' attributes can be parsed by worker threads while the file is read.
  * <p>
  * Caches can be set to reduce object creations and memory use.
  * <p>
@@ -37,6 +53,28 @@ import breakingtherules.firewall.Source;
  */
 public class XMLHitsParser extends AbstractXMLAttributesContainerParser {
 
+    /**
+     * Min size of a file, in bytes, to parse its hits on worker threads by
+     * default.
+     */
+    private static final long PARALLEL_MIN_FILE_SIZE = 1 << 20; // 1 MB
+
+    /**
+     * Max number of worker threads that parse hits.
+     */
+    private static final int MAX_PARSING_THREADS = 8;
+
+    /**
+     * The number of hits read from the file and passed together to a worker
+     * thread.
+     */
+    private static final int BATCH_SIZE = 4096;
+
+    /**
+     * The size of the buffer of the file stream.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
     /**
      * Construct new parser.
      */
@@ -44,22 +82,46 @@ public class XMLHitsParser extends AbstractXMLAttributesContainerParser {
     }
 
     /**
-     * Creates {@link Hit} object from {@link Element} XML object
+     * Creates {@link Hit} object from the text of a hit element.
      *
-     * @param hitElm
-     *            XML element with hit attributes
+     * @param hitText
+     *            the hit's count attribute (or null), followed by pairs of
+     *            attribute element name and text.
      * @return hit object with the element attributes
      * @throws XMLParseException
-     *             if failed to parse element to hit
+     *             if failed to parse the text to hit
      */
-    private Hit parseHit(final Element hitElm) throws XMLParseException {
+    private Hit parseHit(final String[] hitText) throws XMLParseException {
 	try {
-	    return new Hit(parseAttributesContainer(hitElm));
+	    final List<Attribute> attributes = new ArrayList<>(hitText.length / 2);
+	    for (int i = 1; i < hitText.length; i += 2)
+		attributes.add(parseAttribute(hitText[i], hitText[i + 1]));
+	    final Hit hit = new Hit(attributes);
+	    final String count = hitText[0];
+	    return count == null || count.isEmpty() ? hit : WeightedHit.valueOf(hit, Integer.parseInt(count));
+	} catch (final XMLParseException e) {
+	    throw e;
 	} catch (final Exception e) {
 	    throw new XMLParseException(e);
 	}
     }
 
+    /**
+     * Creates {@link Hit} objects from the texts of hit elements.
+     *
+     * @param hitsTexts
+     *            the texts of the hit elements.
+     * @return the hits, by the order of their texts.
+     * @throws XMLParseException
+     *             if failed to parse any of the texts to hit
+     */
+    private List<Hit> parseHits(final List<String[]> hitsTexts) throws XMLParseException {
+	final List<Hit> hits = new ArrayList<>(hitsTexts.size());
+	for (final String[] hitText : hitsTexts)
+	    hits.add(parseHit(hitText));
+	return hits;
+    }
+
     /**
      * Get all hits from file.
      *
@@ -72,30 +134,83 @@ public class XMLHitsParser extends AbstractXMLAttributesContainerParser {
      *             if any XML parse error occurs in the data.
      */
     public static List<Hit> parseAllHits(final String fileName) throws IOException, XMLParseException {
-	final ArrayList<Hit> hits = new ArrayList<>();
-	parseHits(fileName, hits);
+	return parseAllHits(fileName, isParallelDefault(fileName));
+    }
+
+    /**
+     * Get all hits from file.
+     *
+     * @param fileName
+     *            name of the file.
+     * @param parallel
+     *            if true, the hits' attributes are parsed by worker threads
+     *            while the file is read.
+     * @return all hits parsed from file.
+     * @throws IOException
+     *             if failed to read from memory.
+     * @throws XMLParseException
+     *             if any XML parse error occurs in the data.
+     */
+    public static List<Hit> parseAllHits(final String fileName, final boolean parallel)
+	    throws IOException, XMLParseException {
+	final List<Hit> hits = new ArrayList<>();
+	parseHits(fileName, parallel, hits::add);
 	return hits;
     }
 
     /**
      * Get all unique hits from file.
+     * <p>
+     * Identical hits are merged to one hit, weighted by the sum of their
+     * weights (see {@link Hit#getWeight()}).
      *
      * @param fileName
      *            name of the file.
-     * @return all unique hits parsed from file.
+     * @return all unique (weighted) hits parsed from file.
      * @throws IOException
      *             if failed to read from memory.
      * @throws XMLParseException
      *             if any XML parse error occurs in the data.
      */
-    public static Set<Hit> parseUniqueHits(final String fileName) throws XMLParseException, IOException {
-	final Set<Hit> hits = new HashSet<>();
-	parseHits(fileName, hits);
+    public static List<Hit> parseUniqueHits(final String fileName) throws XMLParseException, IOException {
+	return parseUniqueHits(fileName, isParallelDefault(fileName));
+    }
+
+    /**
+     * Get all unique hits from file.
+     * <p>
+     * Identical hits are merged to one hit, weighted by the sum of their
+     * weights (see {@link Hit#getWeight()}). The hits are merged while the
+     * file is read, so only the unique hits are held in memory.
+     *
+     * @param fileName
+     *            name of the file.
+     * @param parallel
+     *            if true, the hits' attributes are parsed by worker threads
+     *            while the file is read.
+     * @return all unique (weighted) hits parsed from file.
+     * @throws IOException
+     *             if failed to read from memory.
+     * @throws XMLParseException
+     *             if any XML parse error occurs in the data.
+     */
+    public static List<Hit> parseUniqueHits(final String fileName, final boolean parallel)
+	    throws XMLParseException, IOException {
+	final Map<Hit, MutableInteger> weights = new LinkedHashMap<>();
+	final Function<Hit, MutableInteger> initFunc = MutableInteger.zeroFunction();
+	parseHits(fileName, parallel, hit -> weights.computeIfAbsent(hit, initFunc).value += hit.getWeight());
+
+	final List<Hit> hits = new ArrayList<>(weights.size());
+	for (final Map.Entry<Hit, MutableInteger> hit : weights.entrySet())
+	    hits.add(WeightedHit.valueOf(hit.getKey(), hit.getValue().value));
 	return hits;
     }
 
     /**
      * Write a list of hits to file in XML format
+     * <p>
+     * The hits are streamed to a temporary file that atomically replaces the
+     * file, so the file is never left partially written.
      *
      * @param hits
      *            list of the hits
@@ -105,64 +220,195 @@ public class XMLHitsParser extends AbstractXMLAttributesContainerParser {
      *             if fails to write to file
      */
     public static void writeHits(final Iterable<Hit> hits, final String fileName) throws IOException {
-	try {
-	    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-	    final DocumentBuilder builder = factory.newDocumentBuilder();
-	    final Document doc = builder.newDocument();
-
-	    final Element repoElm = doc.createElement(XMLDaoConfig.REPOSITORY_TAG);
-
-	    for (final Hit hit : hits)
-		repoElm.appendChild(fillElement(doc.createElement(XMLDaoConfig.HIT_TAG), hit));
-	    doc.appendChild(repoElm);
-
-	    XMLUtils.writeFile(fileName, doc);
-	} catch (final ParserConfigurationException e) {
-	    throw new IOException(e);
-	}
+	XMLUtils.writeFile(fileName, writer -> {
+	    XMLUtils.writeIndent(writer, 0);
+	    writer.writeStartElement(XMLDaoConfig.REPOSITORY_TAG);
+	    for (final Hit hit : hits) {
+		XMLUtils.writeIndent(writer, 1);
+		writer.writeStartElement(XMLDaoConfig.HIT_TAG);
+		if (hit.getWeight() != 1)
+		    writer.writeAttribute(XMLDaoConfig.HIT_COUNT_ATTRIBUTE, Integer.toString(hit.getWeight()));
+		writeAttributesContainer(writer, hit, 1);
+	    }
+	    XMLUtils.writeIndent(writer, 0);
+	    writer.writeEndElement();
+	});
     }
 
     /**
-     * Parse all hits from file to a destination collection.
+     * Parse all hits from file to a destination consumer.
      *
      * @param fileName
      *            the input file name.
+     * @param parallel
+     *            if true, the hits' attributes are parsed by worker threads
+     *            while the file is read.
      * @param destination
-     *            the destination collection of all hits parsed from the file
-     *            and matched all rules and the filter.
+     *            the destination of all hits parsed from the file, by their
+     *            order in the file.
      * @throws XMLParseException
      *             if the data in the file is invalid.
      * @throws IOException
      *             if any I/O errors occurs.
      */
-    private static void parseHits(final String fileName, final Collection<? super Hit> destination)
-	    throws XMLParseException, IOException {
-	// Load from file
-	final Document repositoryDoc;
-	try {
-	    repositoryDoc = XMLUtils.readFile(fileName);
-	} catch (final SAXException e) {
+    private static void parseHits(final String fileName, final boolean parallel,
+	    final Consumer<? super Hit> destination) throws XMLParseException, IOException {
+	final File file = new File(fileName);
+	if (!file.exists())
+	    throw new FileNotFoundException(fileName);
+
+	try (final InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+	    final XMLInputFactory factory = XMLInputFactory.newInstance();
+	    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+	    final XMLStreamReader reader = factory.createXMLStreamReader(in);
+	    try {
+		if (parallel)
+		    parseHitsParallel(reader, destination);
+		else {
+		    final XMLHitsParser parser = newCachedParser();
+		    for (String[] hitText; (hitText = readHit(reader)) != null;)
+			destination.accept(parser.parseHit(hitText));
+		}
+	    } finally {
+		reader.close();
+	    }
+	} catch (final XMLStreamException e) {
 	    throw new XMLParseException(e);
 	}
+    }
 
-	// Get all hits from repository
-	final NodeList hitsList = repositoryDoc.getElementsByTagName(XMLDaoConfig.HIT_TAG);
+    /**
+     * Parse all hits from XML reader to a destination consumer, the hits'
+     * attributes are parsed by worker threads.
+     * <p>
+     * This thread reads batches of hits' texts and passes them to the workers,
+     * each worker has its own caches. A bounded number of batches is parsed at
+     * a time, so the memory doesn't depend on the file size.
+     *
+     * @param reader
+     *            the XML reader.
+     * @param destination
+     *            the destination of all hits, by their order in the file.
+     * @throws XMLStreamException
+     *             if failed to read the XML.
+     * @throws XMLParseException
+     *             if the data in the file is invalid.
+     * @throws IOException
+     *             if the thread was interrupted.
+     */
+    private static void parseHitsParallel(final XMLStreamReader reader, final Consumer<? super Hit> destination)
+	    throws XMLStreamException, XMLParseException, IOException {
+	final int threadsNumber = Math.min(MAX_PARSING_THREADS, Runtime.getRuntime().availableProcessors());
+	final ThreadLocal<XMLHitsParser> parsers = ThreadLocal.withInitial(XMLHitsParser::newCachedParser);
+	final ExecutorService executor = Executors.newFixedThreadPool(threadsNumber);
+	try {
+	    final Deque<Future<List<Hit>>> pending = new ArrayDeque<>();
+	    for (;;) {
+		final List<String[]> batch = new ArrayList<>(BATCH_SIZE);
+		for (String[] hitText; batch.size() < BATCH_SIZE && (hitText = readHit(reader)) != null;)
+		    batch.add(hitText);
+		if (batch.isEmpty())
+		    break;
+		pending.add(executor.submit(() -> parsers.get().parseHits(batch)));
+		if (pending.size() >= threadsNumber * 2)
+		    await(pending.poll()).forEach(destination);
+	    }
+	    while (!pending.isEmpty())
+		await(pending.poll()).forEach(destination);
+	} finally {
+	    executor.shutdownNow();
+	}
+    }
 
+    /**
+     * Read the next hit element from XML reader.
+     * <p>
+     * Elements other than {@code <hit>} are skipped, the hit's children are
+     * read as attributes elements.
+     *
+     * @param reader
+     *            the XML reader.
+     * @return the hit's count attribute (or null), followed by pairs of
+     *         attribute element name and text, or null if there are no more
+     *         hits.
+     * @throws XMLStreamException
+     *             if failed to read the XML.
+     */
+    private static String[] readHit(final XMLStreamReader reader) throws XMLStreamException {
+	while (reader.hasNext())
+	    if (reader.next() == XMLStreamConstants.START_ELEMENT
+		    && XMLDaoConfig.HIT_TAG.equals(reader.getLocalName())) {
+		String[] hitText = new String[1 + 2 * Attribute.TYPE_COUNT];
+		hitText[0] = reader.getAttributeValue(null, XMLDaoConfig.HIT_COUNT_ATTRIBUTE);
+		int length = 1;
+		for (int event; (event = reader.next()) != XMLStreamConstants.END_ELEMENT;) {
+		    if (event != XMLStreamConstants.START_ELEMENT)
+			continue;
+		    if (length + 2 > hitText.length)
+			hitText = Arrays.copyOf(hitText, hitText.length * 2);
+		    hitText[length++] = reader.getLocalName();
+		    // Reads to the attribute's end element
+		    hitText[length++] = reader.getElementText();
+		}
+		return length == hitText.length ? hitText : Arrays.copyOf(hitText, length);
+	    }
+	return null;
+    }
+
+    /**
+     * Create a parser with new caches.
+     *
+     * @return new parser.
+     */
+    private static XMLHitsParser newCachedParser() {
 	final XMLHitsParser parser = new XMLHitsParser();
 	final IP.Cache ipsCache = new IP.Cache();
 	parser.setSourceCache(new Source.Cache(ipsCache));
 	parser.setDestinationCache(new Destination.Cache(ipsCache));
 	parser.setServiceCache(new Service.Cache());
+	return parser;
+    }
 
-	// Extract all hits that match the filter
-	final int length = hitsList.getLength();
-	for (int i = 0; i < length; i++) {
-	    final Node hitNode = hitsList.item(i);
-	    if (hitNode.getNodeType() == Node.ELEMENT_NODE) {
-		final Element hitElm = (Element) hitNode;
-		final Hit hit = parser.parseHit(hitElm);
-		destination.add(hit);
-	    }
+    /**
+     * Check if the hits of a file are parsed by worker threads by default.
+     *
+     * @param fileName
+     *            name of the file.
+     * @return true if the file is large enough and there are several
+     *         processors.
+     */
+    private static boolean isParallelDefault(final String fileName) {
+	return Runtime.getRuntime().availableProcessors() > 1 && new File(fileName).length() >= PARALLEL_MIN_FILE_SIZE;
+    }
+
+    /**
+     * Wait for a parsing task to complete.
+     *
+     * @param future
+     *            the future hits parsed by the task.
+     * @return the parsed hits.
+     * @throws IOException
+     *             if the thread was interrupted.
+     * @throws XMLParseException
+     *             if failed to parse.
+     */
+    private static List<Hit> await(final Future<List<Hit>> future) throws IOException, XMLParseException {
+	try {
+	    return future.get();
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException();
+	} catch (final ExecutionException e) {
+	    final Throwable cause = e.getCause();
+	    if (cause instanceof XMLParseException)
+		throw (XMLParseException) cause;
+	    if (cause instanceof RuntimeException)
+		throw (RuntimeException) cause;
+	    if (cause instanceof Error)
+		throw (Error) cause;
+	    throw new XMLParseException(cause);
 	}
     }
 
@@ -1,23 +1,145 @@
 package breakingtherules.dao.xml;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import breakingtherules.dao.AbstractCachedRulesDao;
 import breakingtherules.dao.ParseException;
 import breakingtherules.dao.RulesDao;
+import breakingtherules.dao.UncheckedParseException;
 import breakingtherules.firewall.Rule;
 
 /**
  * Implementation of {@link RulesDao} by XML repository.
  * <p>
+ * The changes of the rules are not written to the XML rules file one by one,
+ * they are appended to the job's {@link RulesJournal}. The journal is
+ * compacted into the XML rules file when it reaches
+ * {@value #COMPACTION_RECORDS} records, when the rules are flushed (before the
+ * rules file is exported) and when the DAO is closed.
  *
  * @author Barak Ugav
  * @author Yishai Gronich
  *
  * @see XMLRulesParser
+ * @see RulesJournal
  */
-public class XMLRulesDao extends AbstractCachedRulesDao {
+public class XMLRulesDao extends AbstractCachedRulesDao implements Closeable {
+
+    /**
+     * The opened rules journals.
+     * <p>
+     * Keyed by the job name.
+     */
+    private final ConcurrentMap<String, RulesJournal> m_journals;
+
+    /**
+     * The number of journal records that cause the journal to be compacted
+     * into the XML rules file.
+     */
+    private static final int COMPACTION_RECORDS = 256;
+
+    /**
+     * Construct new XMLRulesDao.
+     */
+    public XMLRulesDao() {
+	m_journals = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void initRules(final String jobName, final Rule originalRule) throws IOException {
+	final RulesJournal journal = m_journals.remove(jobName);
+	if (journal != null)
+	    journal.close();
+	Files.deleteIfExists(Paths.get(XMLDaoConfig.getRulesJournalFile(jobName)));
+	writeRulesFile(jobName, Collections.emptyList(), originalRule);
+	invalidateCache(jobName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addRule(final String jobName, final Rule rule) throws IOException, ParseException {
+	final RulesJournal journal = getJournal(jobName);
+	synchronized (journal) {
+	    journal.add(rule);
+	    if (journal.getRecordsNumber() >= COMPACTION_RECORDS)
+		compact(jobName, journal);
+	}
+	invalidateCache(jobName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeRule(final String jobName, final int index) throws IOException, ParseException {
+	final RulesJournal journal = getJournal(jobName);
+	synchronized (journal) {
+	    journal.remove(index);
+	    if (journal.getRecordsNumber() >= COMPACTION_RECORDS)
+		compact(jobName, journal);
+	}
+	invalidateCache(jobName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush(final String jobName) throws IOException, ParseException {
+	final RulesJournal journal = m_journals.get(jobName);
+	if (journal != null)
+	    synchronized (journal) {
+		if (journal.getRecordsNumber() != 0)
+		    compact(jobName, journal);
+	    }
+    }
+
+    /**
+     * Compact all the opened journals into the XML rules files and close them.
+     *
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    @Override
+    public void close() throws IOException {
+	IOException exception = null;
+	for (final String jobName : m_journals.keySet()) {
+	    final RulesJournal journal = m_journals.remove(jobName);
+	    if (journal == null)
+		continue;
+	    try {
+		synchronized (journal) {
+		    try {
+			if (journal.getRecordsNumber() != 0)
+			    compact(jobName, journal);
+		    } finally {
+			journal.close();
+		    }
+		}
+	    } catch (final IOException | ParseException e) {
+		// The journal is kept, it's replayed when the job is loaded again
+		if (exception == null)
+		    exception = new IOException("Failed to compact rules journals");
+		exception.addSuppressed(e);
+	    }
+	}
+	if (exception != null)
+	    throw exception;
+    }
 
     /**
      * {@inheritDoc}
@@ -32,7 +154,81 @@ public class XMLRulesDao extends AbstractCachedRulesDao {
      */
     @Override
     protected List<Rule> getRulesInternal(final String jobName) throws IOException, ParseException {
-	return XMLRulesParser.parseRules(XMLDaoConfig.getRulesFile(jobName));
+	return getJournal(jobName).getRules();
+    }
+
+    /**
+     * Get the rules journal of a job, open it if it's not opened yet.
+     *
+     * @param jobName
+     *            the job name.
+     * @return the job's rules journal.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws ParseException
+     *             if the rules file or the journal are invalid.
+     */
+    private RulesJournal getJournal(final String jobName) throws IOException, ParseException {
+	try {
+	    return m_journals.computeIfAbsent(jobName, name -> {
+		try {
+		    return new RulesJournal(new File(XMLDaoConfig.getRulesJournalFile(name)),
+			    XMLRulesParser.parseRules(XMLDaoConfig.getRulesFile(name)));
+		} catch (final IOException e) {
+		    throw new UncheckedIOException(e);
+		} catch (final ParseException e) {
+		    throw new UncheckedParseException(e);
+		}
+	    });
+	} catch (final UncheckedIOException e) {
+	    throw e.getCause();
+	} catch (final UncheckedParseException e) {
+	    throw e.getCause();
+	}
+    }
+
+    /**
+     * Compact a journal into the XML rules file.
+     * <p>
+     * The rules file is written before the journal is reset, so the rules are
+     * not lost if the process is terminated in between (the old journal won't
+     * match the new rules file, and it's discarded when opened).
+     * <p>
+     * Should be called while holding the journal's lock.
+     *
+     * @param jobName
+     *            the job name.
+     * @param journal
+     *            the job's rules journal.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws ParseException
+     *             if the original rule is invalid.
+     */
+    private void compact(final String jobName, final RulesJournal journal) throws IOException, ParseException {
+	final List<Rule> rules = journal.getRules();
+	writeRulesFile(jobName, rules, getOriginalRule(jobName));
+	journal.reset(rules);
+    }
+
+    /**
+     * Write the XML rules file of a job.
+     * <p>
+     * The rules file is replaced atomically, so it's never left partially
+     * written (see {@link XMLRulesParser#writeRules(String, Iterable, Rule)}).
+     *
+     * @param jobName
+     *            the job name.
+     * @param rules
+     *            the rules.
+     * @param originalRule
+     *            the original rule of the job.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     */
+    private static void writeRulesFile(final String jobName, final List<Rule> rules, final Rule originalRule)
+	    throws IOException {
+	XMLRulesParser.writeRules(XMLDaoConfig.getRulesFile(jobName), rules, originalRule);
     }
 
 }
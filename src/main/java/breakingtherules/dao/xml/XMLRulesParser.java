@@ -4,10 +4,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -132,6 +128,8 @@ public class XMLRulesParser extends AbstractXMLAttributesContainerParser {
     /**
      * Write a list of rules to a file.
      * <p>
+     * The rules are streamed to a temporary file that atomically replaces the
+     * file, so the file is never left partially written.
      *
      * @param fileName
      *            the name of the output file.
@@ -144,26 +142,25 @@ public class XMLRulesParser extends AbstractXMLAttributesContainerParser {
      */
     public static void writeRules(final String fileName, final Iterable<Rule> rules, final Rule originalRule)
 	    throws IOException {
-	final DocumentBuilder builder;
-	try {
-	    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-	    builder = factory.newDocumentBuilder();
-	} catch (final ParserConfigurationException e) {
-	    // Shouldn't happen.
-	    throw new InternalError(e);
-	}
-	final Document doc = builder.newDocument();
-
-	// All regular rules.
-	final Element repoElm = doc.createElement(XMLDaoConfig.REPOSITORY_TAG);
-	for (final Rule rule : rules)
-	    repoElm.appendChild(fillElement(doc.createElement(XMLDaoConfig.RULE_TAG), rule));
+	XMLUtils.writeFile(fileName, writer -> {
+	    XMLUtils.writeIndent(writer, 0);
+	    writer.writeStartElement(XMLDaoConfig.REPOSITORY_TAG);
+
+	    // All regular rules.
+	    for (final Rule rule : rules) {
+		XMLUtils.writeIndent(writer, 1);
+		writer.writeStartElement(XMLDaoConfig.RULE_TAG);
+		writeAttributesContainer(writer, rule, 1);
+	    }
 
-	// Original rule
-	repoElm.appendChild(fillElement(doc.createElement(XMLDaoConfig.ORIGINAL_RULE_TAG), originalRule));
+	    // Original rule
+	    XMLUtils.writeIndent(writer, 1);
+	    writer.writeStartElement(XMLDaoConfig.ORIGINAL_RULE_TAG);
+	    writeAttributesContainer(writer, originalRule, 1);
 
-	doc.appendChild(repoElm);
-	XMLUtils.writeFile(fileName, doc);
+	    XMLUtils.writeIndent(writer, 0);
+	    writer.writeEndElement();
+	});
     }
 
 }
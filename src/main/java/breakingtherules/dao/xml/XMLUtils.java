@@ -1,19 +1,21 @@
 package breakingtherules.dao.xml;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
@@ -21,7 +23,8 @@ import org.xml.sax.SAXException;
 /**
  * Utilities class that provide helpers method for XML files.
  * <p>
- * The XML DAOs use this class to load and store data in XML format.
+ * The XML DAOs use this class to load and store data in XML format. The files
+ * are written by a streaming writer, without building a document in memory.
  *
  * @author Barak Ugav
  * @author Yishai Gronich
@@ -31,6 +34,42 @@ import org.xml.sax.SAXException;
  */
 class XMLUtils {
 
+    /**
+     * The encoding of the written XML files.
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * The XML version of the written XML files.
+     */
+    private static final String XML_VERSION = "1.0";
+
+    /**
+     * The indentation of one level of elements in the written XML files.
+     */
+    private static final String INDENT = "  ";
+
+    /**
+     * The line separator of the written XML files.
+     */
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    /**
+     * The suffix of the temporary file a XML file is written to before it
+     * replaces the file.
+     */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /**
+     * The size of the buffer of the written files' streams.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Factory of the XML files writers.
+     */
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
     /**
      * Suppresses default constructor, ensuring non-instantiability.
      */
@@ -65,34 +104,83 @@ class XMLUtils {
     }
 
     /**
-     * Write a document to a file
+     * Write XML content to a file.
+     * <p>
+     * The content is streamed to a temporary file that replaces the file when
+     * it's complete, so the file is never left partially written.
      *
      * @param path
      *            string path to file
-     * @param doc
-     *            document to write
+     * @param content
+     *            writer of the content of the document, between its
+     *            declaration and its end.
      * @throws IOException
      *             if failed to write to memory
      */
-    static void writeFile(final String path, final Document doc) throws IOException {
-	final File file = new File(path);
-	final Transformer transformer;
-	try {
-	    final TransformerFactory factory = TransformerFactory.newInstance();
-	    transformer = factory.newTransformer();
-	} catch (final TransformerConfigurationException e) {
-	    // Shouldn't happen.
-	    throw new InternalError(e);
-	}
-	transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-	transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-	final DOMSource source = new DOMSource(doc);
-	final StreamResult result = new StreamResult(file);
+    static void writeFile(final String path, final ContentWriter content) throws IOException {
+	final Path file = Paths.get(path);
+	final Path tempFile = file.resolveSibling(file.getFileName() + TEMP_FILE_SUFFIX);
 	try {
-	    transformer.transform(source, result);
-	} catch (final TransformerException e) {
-	    throw new IOException(e);
+	    try (final OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile), BUFFER_SIZE)) {
+		final XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, ENCODING);
+		try {
+		    writer.writeStartDocument(ENCODING, XML_VERSION);
+		    content.write(writer);
+		    writer.writeEndDocument();
+		    writer.writeCharacters(LINE_SEPARATOR);
+		    writer.flush();
+		} finally {
+		    // Doesn't close the output stream
+		    writer.close();
+		}
+	    } catch (final XMLStreamException e) {
+		throw new IOException(e);
+	    }
+	    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	} catch (final IOException | RuntimeException e) {
+	    Files.deleteIfExists(tempFile);
+	    throw e;
 	}
     }
 
+    /**
+     * Start a new line in XML content, indented by the depth of the next
+     * element.
+     *
+     * @param writer
+     *            the XML writer.
+     * @param depth
+     *            the depth of the next element, 0 for the root element.
+     * @throws XMLStreamException
+     *             if failed to write.
+     */
+    static void writeIndent(final XMLStreamWriter writer, final int depth) throws XMLStreamException {
+	writer.writeCharacters(LINE_SEPARATOR);
+	for (int i = depth; i-- != 0;)
+	    writer.writeCharacters(INDENT);
+    }
+
+    /**
+     * Writer of XML content.
+     *
+     * @author Barak Ugav
+     * @author Yishai Gronich
+     *
+     * @see XMLUtils#writeFile(String, ContentWriter)
+     */
+    @FunctionalInterface
+    interface ContentWriter {
+
+	/**
+	 * Write the content.
+	 *
+	 * @param writer
+	 *            the XML writer.
+	 * @throws XMLStreamException
+	 *             if failed to write.
+	 */
+	void write(XMLStreamWriter writer) throws XMLStreamException;
+
+    }
+
 }
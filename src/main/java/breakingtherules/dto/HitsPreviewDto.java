@@ -0,0 +1,197 @@
+package breakingtherules.dto;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import breakingtherules.firewall.Hit;
+
+/**
+ * Holds a preview of a hits file, before a job is created with it.
+ * <p>
+ * The preview is built from a sample of the file's lines, and holds some of
+ * the sampled hits and estimations of the job that would be created from the
+ * whole file.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see breakingtherules.dao.csv.CSVHitsParser#preview(List, String)
+ */
+public class HitsPreviewDto {
+
+    /**
+     * Some of the sampled hits, by their order in the file.
+     */
+    private final List<Hit> m_sampleHits;
+
+    /**
+     * The number of sampled lines.
+     */
+    private final int m_sampledLines;
+
+    /**
+     * True if all the lines of the file were sampled, and the numbers of hits
+     * are exact.
+     */
+    private final boolean m_exact;
+
+    /**
+     * Estimated number of hits (lines) in the file.
+     */
+    private final long m_estimatedHitsNumber;
+
+    /**
+     * The ratio of unique hits out of the sampled hits.
+     */
+    private final double m_uniqueRatio;
+
+    /**
+     * Estimated number of unique hits in the file.
+     */
+    private final long m_estimatedUniqueHitsNumber;
+
+    /**
+     * Estimated time of parsing the whole file, in milliseconds.
+     */
+    private final long m_estimatedParseMillis;
+
+    /**
+     * Estimated memory used by the job, in bytes, or {@link #UNKNOWN_MEMORY}.
+     */
+    private final long m_estimatedMemoryBytes;
+
+    /**
+     * The estimated memory of a preview that doesn't know the memory used by
+     * jobs.
+     */
+    public static final long UNKNOWN_MEMORY = -1;
+
+    /**
+     * Construct new HitsPreviewDto.
+     *
+     * @param sampleHits
+     *            some of the sampled hits.
+     * @param sampledLines
+     *            the number of sampled lines.
+     * @param exact
+     *            true if all the lines of the file were sampled.
+     * @param estimatedHitsNumber
+     *            estimated number of hits in the file.
+     * @param uniqueRatio
+     *            the ratio of unique hits out of the sampled hits.
+     * @param estimatedUniqueHitsNumber
+     *            estimated number of unique hits in the file.
+     * @param estimatedParseMillis
+     *            estimated time of parsing the whole file, in milliseconds.
+     * @param estimatedMemoryBytes
+     *            estimated memory used by the job, in bytes, or
+     *            {@link #UNKNOWN_MEMORY}.
+     * @throws NullPointerException
+     *             if the sample hits list is null.
+     */
+    public HitsPreviewDto(final List<Hit> sampleHits, final int sampledLines, final boolean exact,
+	    final long estimatedHitsNumber, final double uniqueRatio, final long estimatedUniqueHitsNumber,
+	    final long estimatedParseMillis, final long estimatedMemoryBytes) {
+	m_sampleHits = Collections.unmodifiableList(Objects.requireNonNull(sampleHits));
+	m_sampledLines = sampledLines;
+	m_exact = exact;
+	m_estimatedHitsNumber = estimatedHitsNumber;
+	m_uniqueRatio = uniqueRatio;
+	m_estimatedUniqueHitsNumber = estimatedUniqueHitsNumber;
+	m_estimatedParseMillis = estimatedParseMillis;
+	m_estimatedMemoryBytes = estimatedMemoryBytes;
+    }
+
+    /**
+     * Construct new HitsPreviewDto, copy of another preview with estimated
+     * memory.
+     *
+     * @param preview
+     *            the copied preview.
+     * @param estimatedMemoryBytes
+     *            estimated memory used by the job, in bytes.
+     */
+    public HitsPreviewDto(final HitsPreviewDto preview, final long estimatedMemoryBytes) {
+	this(preview.m_sampleHits, preview.m_sampledLines, preview.m_exact, preview.m_estimatedHitsNumber,
+		preview.m_uniqueRatio, preview.m_estimatedUniqueHitsNumber, preview.m_estimatedParseMillis,
+		estimatedMemoryBytes);
+    }
+
+    /**
+     * Get some of the sampled hits.
+     *
+     * @return unmodifiable list of sampled hits, by their order in the file.
+     */
+    public List<Hit> getSampleHits() {
+	return m_sampleHits;
+    }
+
+    /**
+     * Get the number of sampled lines.
+     *
+     * @return the number of sampled lines.
+     */
+    public int getSampledLines() {
+	return m_sampledLines;
+    }
+
+    /**
+     * Check if all the lines of the file were sampled.
+     *
+     * @return true if the numbers of hits are exact.
+     */
+    public boolean isExact() {
+	return m_exact;
+    }
+
+    /**
+     * Get the estimated number of hits in the file.
+     *
+     * @return estimated number of hits (lines) in the file.
+     */
+    public long getEstimatedHitsNumber() {
+	return m_estimatedHitsNumber;
+    }
+
+    /**
+     * Get the ratio of unique hits out of the sampled hits.
+     * <p>
+     * Hits that repeat across the file may not repeat in the sample, so the
+     * ratio of the whole file is usually lower.
+     *
+     * @return the ratio of unique hits, in range (0, 1], or 0 if no hits were
+     *         sampled.
+     */
+    public double getUniqueRatio() {
+	return m_uniqueRatio;
+    }
+
+    /**
+     * Get the estimated number of unique hits in the file.
+     *
+     * @return estimated number of unique hits in the file.
+     */
+    public long getEstimatedUniqueHitsNumber() {
+	return m_estimatedUniqueHitsNumber;
+    }
+
+    /**
+     * Get the estimated time of parsing the whole file.
+     *
+     * @return estimated parsing time, in milliseconds.
+     */
+    public long getEstimatedParseMillis() {
+	return m_estimatedParseMillis;
+    }
+
+    /**
+     * Get the estimated memory used by the job.
+     *
+     * @return estimated memory in bytes, or {@link #UNKNOWN_MEMORY}.
+     */
+    public long getEstimatedMemoryBytes() {
+	return m_estimatedMemoryBytes;
+    }
+
+}
@@ -0,0 +1,147 @@
+package breakingtherules.dto;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the status of the background warm-up of the existing jobs.
+ * <p>
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see breakingtherules.service.HitsWarmup
+ */
+public class WarmupStatusDto {
+
+    /**
+     * True if the warm-up is enabled.
+     */
+    private final boolean m_enabled;
+
+    /**
+     * True if the warm-up is running.
+     */
+    private final boolean m_running;
+
+    /**
+     * Number of jobs that are planned to be warmed.
+     */
+    private final int m_totalJobs;
+
+    /**
+     * Number of jobs that were warmed.
+     */
+    private final int m_warmedJobs;
+
+    /**
+     * Number of jobs that failed to load.
+     */
+    private final int m_failedJobs;
+
+    /**
+     * The failures of the jobs that failed to load, by the jobs' names.
+     */
+    private final Map<String, String> m_failures;
+
+    /**
+     * The job that is currently warmed, or null if none.
+     */
+    private final String m_currentJob;
+
+    /**
+     * Construct new WarmupStatusDto.
+     *
+     * @param enabled
+     *            true if the warm-up is enabled.
+     * @param running
+     *            true if the warm-up is running.
+     * @param totalJobs
+     *            the number of jobs that are planned to be warmed.
+     * @param warmedJobs
+     *            the number of jobs that were warmed.
+     * @param failedJobs
+     *            the number of jobs that failed to load.
+     * @param failures
+     *            the failures of the jobs that failed to load, by the jobs'
+     *            names.
+     * @param currentJob
+     *            the job that is currently warmed, or null if none.
+     */
+    public WarmupStatusDto(final boolean enabled, final boolean running, final int totalJobs, final int warmedJobs,
+	    final int failedJobs, final Map<String, String> failures, final String currentJob) {
+	m_enabled = enabled;
+	m_running = running;
+	m_totalJobs = totalJobs;
+	m_warmedJobs = warmedJobs;
+	m_failedJobs = failedJobs;
+	m_failures = Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+	m_currentJob = currentJob;
+    }
+
+    /**
+     * Check if the warm-up is enabled.
+     *
+     * @return true if the warm-up is enabled.
+     */
+    public boolean isEnabled() {
+	return m_enabled;
+    }
+
+    /**
+     * Check if the warm-up is running.
+     *
+     * @return true if the warm-up is running.
+     */
+    public boolean isRunning() {
+	return m_running;
+    }
+
+    /**
+     * Get the number of jobs that are planned to be warmed.
+     *
+     * @return the total number of warmed jobs.
+     */
+    public int getTotalJobs() {
+	return m_totalJobs;
+    }
+
+    /**
+     * Get the number of jobs that were warmed.
+     *
+     * @return the number of warmed jobs.
+     */
+    public int getWarmedJobs() {
+	return m_warmedJobs;
+    }
+
+    /**
+     * Get the number of jobs that failed to load.
+     *
+     * @return the number of failed jobs.
+     */
+    public int getFailedJobs() {
+	return m_failedJobs;
+    }
+
+    /**
+     * Get the failures of the jobs that failed to load.
+     *
+     * @return unmodifiable map of the failed jobs' names to the descriptions
+     *         of their failures.
+     */
+    public Map<String, String> getFailures() {
+	return m_failures;
+    }
+
+    /**
+     * Get the job that is currently warmed.
+     *
+     * @return the name of the current job, or null if none.
+     */
+    public String getCurrentJob() {
+	return m_currentJob;
+    }
+
+}
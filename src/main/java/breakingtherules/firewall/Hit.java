@@ -64,6 +64,19 @@ public class Hit extends AttributesContainer {
 	super(attributes);
     }
 
+    /**
+     * Get the weight of the hit.
+     * <p>
+     * The weight is the number of occurrences of the hit in the job's records.
+     * A plain hit represent a single occurrence, identical records are
+     * represented by a single {@link WeightedHit}.
+     *
+     * @return the number of occurrences of the hit, always positive.
+     */
+    public int getWeight() {
+	return 1;
+    }
+
     /**
      * Create a mutation of this hit by changing one of the attributes.
      *
@@ -1,5 +1,6 @@
 package breakingtherules.firewall;
 
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 import java.util.function.Function;
@@ -8,6 +9,7 @@ import java.util.function.IntFunction;
 import breakingtherules.util.Int2ObjectCache;
 import breakingtherules.util.Int2ObjectOpenAddressingHashCache;
 import breakingtherules.util.Object2ObjectCache;
+import breakingtherules.util.Swar;
 import breakingtherules.util.Utility;
 
 /**
@@ -82,6 +84,35 @@ public final class IPv4 extends IP {
      */
     static final IPv4 ANY_IPv4 = new IPv4(0, (short) 0);
 
+    /**
+     * The value returned by the parseBits methods if the text is not a valid
+     * IPv4 in format A.B.C.D or A.B.C.D/M.
+     *
+     * @see #parseBits(CharSequence, int, int)
+     */
+    public static final long INVALID_BITS = -1;
+
+    /**
+     * Min length of IPv4 string in format A.B.C.D or A.B.C.D/M.
+     */
+    private static final int MIN_STR_LENGTH = BLOCK_NUMBER * 2 - 1; // 7
+
+    /**
+     * Max length of the A.B.C.D part of IPv4 string.
+     */
+    private static final int MAX_BLOCKS_STR_LENGTH = BLOCK_NUMBER * (MAX_BLOCK_DIGITS_NUMBER + 1) - 1; // 15
+
+    /**
+     * Max length of IPv4 string in format A.B.C.D or A.B.C.D/M.
+     */
+    private static final int MAX_STR_LENGTH = MAX_BLOCKS_STR_LENGTH + 1 + MAX_MASK_SIZE_DIGITIS_NUMBER; // 18
+
+    /**
+     * Mask of the valid numbers of digits in a block, bit i is set iff i
+     * digits are valid.
+     */
+    private static final int VALID_BLOCK_DIGITS = (1 << MAX_BLOCK_DIGITS_NUMBER + 1) - 2; // 0b1110
+
     /**
      * Construct new IPv4 with the specified address and maskSize.
      *
@@ -458,6 +489,15 @@ public final class IPv4 extends IP {
      *             if the format is illegal or the values are out of range.
      */
     static IPv4 valueOf(final String s, int separatorIndex) {
+	final long bits = parseBits(s, 0, s.length());
+	if (bits != INVALID_BITS) {
+	    final short maskSize = (short) (bits >>> Integer.SIZE);
+	    if (maskSize == 0)
+		return ANY_IPv4;
+	    return valueOfBits((int) bits, maskSize);
+	}
+
+	// Not a valid IPv4 string, or any IPv4. Parse again to report the error
 	int address = 0;
 
 	int fromIndex = 0;
@@ -503,6 +543,153 @@ public final class IPv4 extends IP {
 	return new IPv4(address, maskSize);
     }
 
+    /**
+     * Parse an IPv4 in format A.B.C.D or A.B.C.D/M from bytes, without creating
+     * any objects.
+     *
+     * @param bytes
+     *            the bytes array.
+     * @param from
+     *            the index of the IP's first byte.
+     * @param to
+     *            the index of the IP's end (exclusive).
+     * @return the IP's bits, see {@link #parseBits(CharSequence, int, int)}.
+     * @throws IndexOutOfBoundsException
+     *             if the range is out of the array bounds.
+     */
+    public static long parseBits(final byte[] bytes, final int from, final int to) {
+	final int length = to - from;
+	if (length < MIN_STR_LENGTH || length > MAX_STR_LENGTH)
+	    return INVALID_BITS;
+	return parseBits(Swar.load(bytes, from, to), Swar.load(bytes, from + Swar.WORD_BYTES, to),
+		Swar.load(bytes, from + Swar.WORD_BYTES * 2, to), length);
+    }
+
+    /**
+     * Parse an IPv4 in format A.B.C.D or A.B.C.D/M from bytes buffer, without
+     * creating any objects.
+     * <p>
+     * The bytes are read in absolute positions, the buffer's position is not
+     * changed.
+     *
+     * @param buffer
+     *            the bytes buffer.
+     * @param from
+     *            the index of the IP's first byte.
+     * @param to
+     *            the index of the IP's end (exclusive).
+     * @return the IP's bits, see {@link #parseBits(CharSequence, int, int)}.
+     * @throws IndexOutOfBoundsException
+     *             if the range is out of the buffer's limit.
+     */
+    public static long parseBits(final ByteBuffer buffer, final int from, final int to) {
+	final int length = to - from;
+	if (length < MIN_STR_LENGTH || length > MAX_STR_LENGTH)
+	    return INVALID_BITS;
+	return parseBits(Swar.load(buffer, from, to), Swar.load(buffer, from + Swar.WORD_BYTES, to),
+		Swar.load(buffer, from + Swar.WORD_BYTES * 2, to), length);
+    }
+
+    /**
+     * Parse an IPv4 in format A.B.C.D or A.B.C.D/M from characters sequence,
+     * without creating any objects.
+     * <p>
+     * The returned value holds the mask size in the high 32 bits and the
+     * address bits (without the bits after the mask) in the low 32 bits.
+     * <p>
+     * Unlike {@link #valueOf(String)}, no exception is thrown for invalid
+     * text, and {@value #ANY_IPv4_STR} is not accepted.
+     *
+     * @param s
+     *            the characters sequence.
+     * @param from
+     *            the index of the IP's first character.
+     * @param to
+     *            the index of the IP's end (exclusive).
+     * @return the IP's bits, or {@link #INVALID_BITS} if the text is not a
+     *         valid IPv4 in one of the expected formats.
+     * @throws IndexOutOfBoundsException
+     *             if the range is out of the sequence bounds.
+     */
+    public static long parseBits(final CharSequence s, final int from, final int to) {
+	final int length = to - from;
+	if (length < MIN_STR_LENGTH || length > MAX_STR_LENGTH)
+	    return INVALID_BITS;
+	return parseBits(Swar.load(s, from, to), Swar.load(s, from + Swar.WORD_BYTES, to),
+		Swar.load(s, from + Swar.WORD_BYTES * 2, to), length);
+    }
+
+    /**
+     * Parse an IPv4 in format A.B.C.D or A.B.C.D/M from text loaded into three
+     * words.
+     * <p>
+     * The separators and the non digits are found in all the A.B.C.D bytes
+     * together, and each block is parsed from a word with a constant number of
+     * operations, so there are no branches per byte.
+     *
+     * @param word0
+     *            bytes 0 to 7 of the text.
+     * @param word1
+     *            bytes 8 to 15 of the text.
+     * @param word2
+     *            bytes 16 to 23 of the text.
+     * @param length
+     *            the length of the text, in range [{@value #MIN_STR_LENGTH},
+     *            {@value #MAX_STR_LENGTH}].
+     * @return the IP's bits, or {@link #INVALID_BITS}.
+     */
+    private static long parseBits(final long word0, final long word1, final long word2, final int length) {
+	final int maskSeparators = Swar.equalBytes(word0, MASK_SIZE_SEPARATOR)
+		| Swar.equalBytes(word1, MASK_SIZE_SEPARATOR) << Swar.WORD_BYTES;
+	final int blocksLength = maskSeparators != 0 ? Integer.numberOfTrailingZeros(maskSeparators) : length;
+	if (blocksLength > MAX_BLOCKS_STR_LENGTH)
+	    return INVALID_BITS;
+
+	// All the bytes of the A.B.C.D part are digits, except 3 separators
+	final int blocksBytes = (1 << blocksLength) - 1;
+	final int separators = (Swar.equalBytes(word0, BLOCKS_SEPARATOR)
+		| Swar.equalBytes(word1, BLOCKS_SEPARATOR) << Swar.WORD_BYTES) & blocksBytes;
+	final int nonDigits = (Swar.nonDigits(word0) | Swar.nonDigits(word1) << Swar.WORD_BYTES) & blocksBytes;
+	if (nonDigits != separators || Integer.bitCount(separators) != BLOCK_NUMBER - 1)
+	    return INVALID_BITS;
+
+	final int separator1 = Integer.numberOfTrailingZeros(separators);
+	final int separator2 = Integer.numberOfTrailingZeros(separators & separators - 1);
+	final int separator3 = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(separators);
+	final int digits1 = separator1;
+	final int digits2 = separator2 - separator1 - 1;
+	final int digits3 = separator3 - separator2 - 1;
+	final int digits4 = blocksLength - separator3 - 1;
+	if ((VALID_BLOCK_DIGITS >>> digits1 & VALID_BLOCK_DIGITS >>> digits2 & VALID_BLOCK_DIGITS >>> digits3
+		& VALID_BLOCK_DIGITS >>> digits4 & 1) == 0)
+	    return INVALID_BITS;
+
+	final int block1 = Swar.parseDigits(word0, digits1);
+	final int block2 = Swar.parseDigits(Swar.wordAt(word0, word1, word2, separator1 + 1), digits2);
+	final int block3 = Swar.parseDigits(Swar.wordAt(word0, word1, word2, separator2 + 1), digits3);
+	final int block4 = Swar.parseDigits(Swar.wordAt(word0, word1, word2, separator3 + 1), digits4);
+	// All the blocks are at most 255 iff none of them has bits above the low 8
+	if ((block1 | block2 | block3 | block4) > MAX_BLOCK_VALUE)
+	    return INVALID_BITS;
+	int address = block1 << BLOCK_SIZE * 3 | block2 << BLOCK_SIZE * 2 | block3 << BLOCK_SIZE | block4;
+
+	if (blocksLength == length)
+	    // No mask size specification
+	    return (long) SIZE << Integer.SIZE | address & 0xffffffffL;
+
+	// Has mask size specification
+	final int maskDigits = length - blocksLength - 1;
+	if (maskDigits == 0 || maskDigits > MAX_MASK_SIZE_DIGITIS_NUMBER)
+	    return INVALID_BITS;
+	final int maskSize = Swar.parseNumber(Swar.wordAt(word0, word1, word2, blocksLength + 1), maskDigits);
+	if (maskSize < 0 || maskSize > SIZE)
+	    return INVALID_BITS;
+
+	// Reset suffix
+	address &= maskSize != 0 ? -1 << SIZE - maskSize : 0;
+	return (long) maskSize << Integer.SIZE | address & 0xffffffffL;
+    }
+
     /**
      * Parses a block of IPv4 and check if it's range is valid.
      *
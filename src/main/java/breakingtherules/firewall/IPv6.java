@@ -149,7 +149,8 @@ public final class IPv6 extends IP {
 	for (blockNum = 0; blockNum < m / Integer.SIZE; blockNum++)
 	    if (m_address[blockNum] != o.m_address[blockNum])
 		return false;
-	if (m == SIZE)
+	if ((m & MASK_OFFSET_IN_BLOCK) == 0)
+	    // The mask ends at a block boundary
 	    return true;
 
 	return ((m_address[blockNum] ^ o.m_address[blockNum])
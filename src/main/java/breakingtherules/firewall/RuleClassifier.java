@@ -0,0 +1,530 @@
+package breakingtherules.firewall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import breakingtherules.firewall.Attribute.AttributeType;
+import breakingtherules.util.Hashs;
+
+/**
+ * Classifier that checks if a hit is matched by any rule of a rules list.
+ * <p>
+ * The classifier is a compiled form of a rules list that replaces checking
+ * each hit against all rules one by one. It's implemented by tuple space
+ * search: each rule is classified to a tuple by the shape of its attributes -
+ * the source and destination prefix lengths, whether it matches any protocol
+ * and whether it matches any port, a single port or a ports range. All rules
+ * of a tuple are stored in one hash table, keyed by their masked source and
+ * destination addresses, protocol and port. Checking a hit is done by one
+ * lookup in each tuple's table, after masking the hit's attributes by the
+ * tuple's shape, so the check time depends on the number of distinct tuples
+ * (which is small in practice) and not on the number of rules.
+ * <p>
+ * Rules of a ports range tuple keep their ports ranges in the table entry, and
+ * the ranges of a matching entry are checked one by one.
+ * <p>
+ * Hits that can't be classified (hits without IPv4 full source and
+ * destination, or without single port service with specific protocol) and
+ * rules that can't be classified (rules with attributes that are not IPv4
+ * subnets or services) are checked linearly.
+ * <p>
+ * Rules can be added to the classifier incrementally. The classifier is not
+ * synchronized.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see Rule#isMatch(Hit)
+ */
+public class RuleClassifier {
+
+    /**
+     * All rules of the classifier, used for hits that can't be classified.
+     */
+    private final List<Rule> m_rules;
+
+    /**
+     * Rules that can't be classified to a tuple.
+     */
+    private final List<Rule> m_unclassifiedRules;
+
+    /**
+     * The tuples of the classifier.
+     */
+    private Tuple[] m_tuples;
+
+    /**
+     * Map from tuple shape to the tuple, used when adding rules.
+     */
+    private final Map<Integer, Tuple> m_tuplesByShape;
+
+    /**
+     * Ports mode of tuple with rules that matches any port.
+     */
+    private static final int ANY_PORT = 0;
+
+    /**
+     * Ports mode of tuple with rules that matches a single port.
+     */
+    private static final int SINGLE_PORT = 1;
+
+    /**
+     * Ports mode of tuple with rules that matches a ports range.
+     */
+    private static final int PORTS_RANGE = 2;
+
+    /**
+     * Shape of rules that can never match a classified hit.
+     */
+    private static final int NEVER_MATCH = -1;
+
+    /**
+     * Shape of rules that can't be classified.
+     */
+    private static final int UNCLASSIFIED = -2;
+
+    /**
+     * Empty tuples array.
+     */
+    private static final Tuple[] EMPTY_TUPLES_ARRAY = new Tuple[0];
+
+    /**
+     * Construct new empty RuleClassifier.
+     */
+    public RuleClassifier() {
+	m_rules = new ArrayList<>();
+	m_unclassifiedRules = new ArrayList<>();
+	m_tuples = EMPTY_TUPLES_ARRAY;
+	m_tuplesByShape = new HashMap<>();
+    }
+
+    /**
+     * Construct new RuleClassifier of rules.
+     *
+     * @param rules
+     *            the classifier's rules.
+     * @throws NullPointerException
+     *             if the rules or one of them is null.
+     */
+    public RuleClassifier(final Iterable<Rule> rules) {
+	this();
+	for (final Rule rule : rules)
+	    add(rule);
+    }
+
+    /**
+     * Add a rule to the classifier.
+     *
+     * @param rule
+     *            the new rule.
+     * @throws NullPointerException
+     *             if the rule is null.
+     */
+    public void add(final Rule rule) {
+	m_rules.add(rule);
+
+	final int shape = getShape(rule);
+	if (shape == NEVER_MATCH)
+	    return;
+	if (shape == UNCLASSIFIED) {
+	    m_unclassifiedRules.add(rule);
+	    return;
+	}
+
+	Tuple tuple = m_tuplesByShape.get(Integer.valueOf(shape));
+	if (tuple == null) {
+	    tuple = new Tuple(shape);
+	    m_tuplesByShape.put(Integer.valueOf(shape), tuple);
+	    m_tuples = Arrays.copyOf(m_tuples, m_tuples.length + 1);
+	    m_tuples[m_tuples.length - 1] = tuple;
+	}
+
+	final int source = getAddress(rule.getAttribute(AttributeType.SOURCE));
+	final int destination = getAddress(rule.getAttribute(AttributeType.DESTINATION));
+	final Service service = (Service) rule.getAttribute(AttributeType.SERVICE);
+	final short protocol = service != null ? service.getProtocolCode() : Service.ANY_PROTOCOL;
+	final int portStart = service != null ? service.getPortRangeStart() : Service.MIN_PORT;
+	final int portEnd = service != null ? service.getPortRangeEnd() : Service.MAX_PORT;
+	tuple.add(source, destination, protocol, portStart, portEnd);
+    }
+
+    /**
+     * Check if a hit is matched by any of the classifier's rules.
+     *
+     * @param hit
+     *            the checked hit.
+     * @return true if any of the rules matches the hit.
+     * @throws NullPointerException
+     *             if the hit is null.
+     */
+    public boolean isMatch(final Hit hit) {
+	final Attribute[] attributes = hit.m_attributes;
+	final Attribute sourceAttribute = attributes[AttributeType.SOURCE.ordinal()];
+	final Attribute destinationAttribute = attributes[AttributeType.DESTINATION.ordinal()];
+	final Attribute serviceAttribute = attributes[AttributeType.SERVICE.ordinal()];
+
+	final IPv4 source = getFullIPv4(sourceAttribute);
+	final IPv4 destination = getFullIPv4(destinationAttribute);
+	if (source == null || destination == null || !(serviceAttribute instanceof Service))
+	    return isMatchLinear(m_rules, hit);
+	final Service service = (Service) serviceAttribute;
+	final short protocol = service.getProtocolCode();
+	final int port = service.getPortRangeStart();
+	if (protocol == Service.ANY_PROTOCOL || port != service.getPortRangeEnd())
+	    return isMatchLinear(m_rules, hit);
+
+	for (final Tuple tuple : m_tuples)
+	    if (tuple.contains(source.m_address, destination.m_address, protocol, port))
+		return true;
+	return isMatchLinear(m_unclassifiedRules, hit);
+    }
+
+    /**
+     * Get the number of rules in the classifier.
+     *
+     * @return number of rules.
+     */
+    public int size() {
+	return m_rules.size();
+    }
+
+    /**
+     * Check if a hit is matched by any rule of a rules list, one rule after
+     * another.
+     *
+     * @param rules
+     *            the rules.
+     * @param hit
+     *            the checked hit.
+     * @return true if any of the rules matches the hit.
+     */
+    private static boolean isMatchLinear(final List<Rule> rules, final Hit hit) {
+	for (final Rule rule : rules)
+	    if (rule.isMatch(hit))
+		return true;
+	return false;
+    }
+
+    /**
+     * Get the shape of the tuple of a rule.
+     * <p>
+     * The shape is composed of the source prefix length (6 bits), destination
+     * prefix length (6 bits), a bit that indicates if the rule matches any
+     * protocol and the ports mode (2 bits).
+     *
+     * @param rule
+     *            the rule.
+     * @return the shape of the rule's tuple, or {@link #NEVER_MATCH} or
+     *         {@link #UNCLASSIFIED}.
+     */
+    private static int getShape(final Rule rule) {
+	final int sourceLength = getPrefixLength(rule.getAttribute(AttributeType.SOURCE));
+	final int destinationLength = getPrefixLength(rule.getAttribute(AttributeType.DESTINATION));
+	if (sourceLength == UNCLASSIFIED || destinationLength == UNCLASSIFIED)
+	    return UNCLASSIFIED;
+	if (sourceLength == NEVER_MATCH || destinationLength == NEVER_MATCH)
+	    return NEVER_MATCH;
+
+	final Attribute serviceAttribute = rule.getAttribute(AttributeType.SERVICE);
+	final boolean anyProtocol;
+	final int portsMode;
+	if (serviceAttribute == null || serviceAttribute == Service.ANY_SERVICE) {
+	    anyProtocol = true;
+	    portsMode = ANY_PORT;
+	} else if (serviceAttribute.getClass() == Service.class) {
+	    final Service service = (Service) serviceAttribute;
+	    final int start = service.getPortRangeStart();
+	    final int end = service.getPortRangeEnd();
+	    anyProtocol = service.getProtocolCode() == Service.ANY_PROTOCOL;
+	    portsMode = start == Service.MIN_PORT && end == Service.MAX_PORT ? ANY_PORT
+		    : start == end ? SINGLE_PORT : PORTS_RANGE;
+	} else
+	    return UNCLASSIFIED;
+
+	return sourceLength | destinationLength << 6 | (anyProtocol ? 1 : 0) << 12 | portsMode << 13;
+    }
+
+    /**
+     * Get the prefix length of an IP attribute of a rule.
+     *
+     * @param attribute
+     *            the rule's attribute.
+     * @return the prefix length of the attribute (0 if it matches any IP), or
+     *         {@link #NEVER_MATCH} if it can't match any IPv4, or
+     *         {@link #UNCLASSIFIED}.
+     */
+    private static int getPrefixLength(final Attribute attribute) {
+	if (attribute == null)
+	    return 0;
+	if (!(attribute instanceof IPAttribute))
+	    return UNCLASSIFIED;
+	final IP ip = ((IPAttribute) attribute).getIp();
+	if (ip == IP.ANY_IP)
+	    return 0;
+	if (ip instanceof IPv4)
+	    return ip.m_maskSize;
+	if (ip instanceof IPv6)
+	    return NEVER_MATCH;
+	return UNCLASSIFIED;
+    }
+
+    /**
+     * Get the address of an IP attribute of a rule.
+     *
+     * @param attribute
+     *            the rule's attribute.
+     * @return the IPv4 address of the attribute, or 0 if it matches any IP.
+     */
+    private static int getAddress(final Attribute attribute) {
+	if (attribute == null)
+	    return 0;
+	final IP ip = ((IPAttribute) attribute).getIp();
+	return ip instanceof IPv4 ? ((IPv4) ip).m_address : 0;
+    }
+
+    /**
+     * Get the IPv4 of a full IPv4 attribute of a hit.
+     *
+     * @param attribute
+     *            the hit's attribute.
+     * @return the attribute's IPv4 if it's an IP attribute with full IPv4
+     *         address, else null.
+     */
+    private static IPv4 getFullIPv4(final Attribute attribute) {
+	if (!(attribute instanceof IPAttribute))
+	    return null;
+	final IP ip = ((IPAttribute) attribute).getIp();
+	return ip instanceof IPv4 && ip.m_maskSize == IPv4.SIZE ? (IPv4) ip : null;
+    }
+
+    /**
+     * Get the mask of a prefix length.
+     *
+     * @param prefixLength
+     *            the prefix length.
+     * @return bits mask of the prefix.
+     */
+    private static int mask(final int prefixLength) {
+	return prefixLength == 0 ? 0 : -1 << IPv4.SIZE - prefixLength;
+    }
+
+    /**
+     * Tuple of rules with the same shape.
+     * <p>
+     * The tuple is a hash table implemented by open addressing. Each key is
+     * composed of the masked source and destination addresses (64 bits) and
+     * the protocol and port (24 bits).
+     *
+     * @author Barak Ugav
+     * @author Yishai Gronich
+     *
+     */
+    private static class Tuple {
+
+	/**
+	 * Mask of the source addresses.
+	 */
+	private final int m_sourceMask;
+
+	/**
+	 * Mask of the destination addresses.
+	 */
+	private final int m_destinationMask;
+
+	/**
+	 * True if the tuple's rules matches any protocol.
+	 */
+	private final boolean m_anyProtocol;
+
+	/**
+	 * The ports mode of the tuple's rules.
+	 */
+	private final int m_portsMode;
+
+	/**
+	 * The addresses parts of the keys.
+	 */
+	private long[] m_addresses;
+
+	/**
+	 * The protocol and port parts of the keys, -1 in empty slots.
+	 */
+	private int[] m_services;
+
+	/**
+	 * The ports ranges of each key, used only by ports range tuple.
+	 * <p>
+	 * Each range is packed as an integer, start in the lower 16 bits and end
+	 * in the upper 16 bits.
+	 */
+	private int[][] m_portsRanges;
+
+	/**
+	 * Number of keys in the table.
+	 */
+	private int m_size;
+
+	/**
+	 * Construct new Tuple.
+	 *
+	 * @param shape
+	 *            the shape of the tuple's rules.
+	 */
+	Tuple(final int shape) {
+	    m_sourceMask = mask(shape & 0x3f);
+	    m_destinationMask = mask(shape >> 6 & 0x3f);
+	    m_anyProtocol = (shape >> 12 & 1) != 0;
+	    m_portsMode = shape >> 13;
+	    init(Hashs.DEFAULT_INIT_CAPACITY);
+	}
+
+	/**
+	 * Add a rule to the tuple.
+	 *
+	 * @param source
+	 *            the rule's source address.
+	 * @param destination
+	 *            the rule's destination address.
+	 * @param protocol
+	 *            the rule's protocol.
+	 * @param portStart
+	 *            the start of the rule's ports range.
+	 * @param portEnd
+	 *            the end of the rule's ports range.
+	 */
+	void add(final int source, final int destination, final short protocol, final int portStart,
+		final int portEnd) {
+	    final long addresses = addressesKey(source, destination);
+	    final int service = serviceKey(protocol, portStart);
+	    int index = indexOf(addresses, service);
+	    if (m_services[index] < 0) {
+		if ((m_size + 1) * 2 > m_services.length) {
+		    resize();
+		    index = indexOf(addresses, service);
+		}
+		m_addresses[index] = addresses;
+		m_services[index] = service;
+		m_size++;
+	    }
+	    if (m_portsMode == PORTS_RANGE) {
+		final int[] ranges = m_portsRanges[index];
+		final int range = portStart | portEnd << 16;
+		if (ranges == null)
+		    m_portsRanges[index] = new int[] { range };
+		else {
+		    final int[] newRanges = Arrays.copyOf(ranges, ranges.length + 1);
+		    newRanges[ranges.length] = range;
+		    m_portsRanges[index] = newRanges;
+		}
+	    }
+	}
+
+	/**
+	 * Check if the tuple contains a rule that matches a hit.
+	 *
+	 * @param source
+	 *            the hit's source address.
+	 * @param destination
+	 *            the hit's destination address.
+	 * @param protocol
+	 *            the hit's protocol.
+	 * @param port
+	 *            the hit's port.
+	 * @return true if any of the tuple's rules matches the hit.
+	 */
+	boolean contains(final int source, final int destination, final short protocol, final int port) {
+	    final int index = indexOf(addressesKey(source, destination), serviceKey(protocol, port));
+	    if (m_services[index] < 0)
+		return false;
+	    if (m_portsMode != PORTS_RANGE)
+		return true;
+	    for (final int range : m_portsRanges[index])
+		if ((range & 0xffff) <= port && port <= range >>> 16)
+		    return true;
+	    return false;
+	}
+
+	/**
+	 * Get the addresses part of a key.
+	 *
+	 * @param source
+	 *            source address.
+	 * @param destination
+	 *            destination address.
+	 * @return the addresses key.
+	 */
+	private long addressesKey(final int source, final int destination) {
+	    return (long) (source & m_sourceMask) << 32 | (destination & m_destinationMask) & 0xffffffffL;
+	}
+
+	/**
+	 * Get the service part of a key.
+	 *
+	 * @param protocol
+	 *            the protocol.
+	 * @param port
+	 *            the port.
+	 * @return the service key.
+	 */
+	private int serviceKey(final short protocol, final int port) {
+	    return (m_anyProtocol ? 0 : protocol) << 16 | (m_portsMode == SINGLE_PORT ? port : 0);
+	}
+
+	/**
+	 * Get the index of a key in the table, or the index of the empty slot
+	 * it should be inserted in.
+	 *
+	 * @param addresses
+	 *            the addresses part of the key.
+	 * @param service
+	 *            the service part of the key.
+	 * @return index of the key's slot.
+	 */
+	private int indexOf(final long addresses, final int service) {
+	    final long[] a = m_addresses;
+	    final int[] s = m_services;
+	    final int mask = s.length - 1;
+	    int index = Hashs.mix((int) (addresses ^ addresses >>> 32) * 31 + service) & mask;
+	    while (s[index] >= 0 && (s[index] != service || a[index] != addresses))
+		index = index + 1 & mask;
+	    return index;
+	}
+
+	/**
+	 * Initialize empty tables.
+	 *
+	 * @param capacity
+	 *            capacity of the tables, a power of two.
+	 */
+	private void init(final int capacity) {
+	    m_addresses = new long[capacity];
+	    m_services = new int[capacity];
+	    Arrays.fill(m_services, -1);
+	    m_portsRanges = m_portsMode == PORTS_RANGE ? new int[capacity][] : null;
+	}
+
+	/**
+	 * Double the capacity of the tables, and rehash all keys.
+	 */
+	private void resize() {
+	    final long[] oldAddresses = m_addresses;
+	    final int[] oldServices = m_services;
+	    final int[][] oldPortsRanges = m_portsRanges;
+	    init(oldServices.length * 2);
+	    for (int i = oldServices.length; i-- != 0;) {
+		if (oldServices[i] < 0)
+		    continue;
+		final int index = indexOf(oldAddresses[i], oldServices[i]);
+		m_addresses[index] = oldAddresses[i];
+		m_services[index] = oldServices[i];
+		if (oldPortsRanges != null)
+		    m_portsRanges[index] = oldPortsRanges[i];
+	    }
+	}
+
+    }
+
+}
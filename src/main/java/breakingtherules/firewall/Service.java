@@ -59,12 +59,12 @@ public class Service extends Attribute {
     /**
      * The minimum legal port number.
      */
-    private static final int MIN_PORT = 0;
+    static final int MIN_PORT = 0;
 
     /**
      * The maximum legal port number.
      */
-    private static final int MAX_PORT = (1 << 16) - 1; // 65535
+    static final int MAX_PORT = (1 << 16) - 1; // 65535
 
     /**
      * Mask of 16 bits of a port from an integer.
@@ -0,0 +1,88 @@
+package breakingtherules.firewall;
+
+/**
+ * Firewall hit that represent multiple identical records.
+ * <p>
+ * Jobs with many repeated records are kept as their distinct hits, each with
+ * the number of its occurrences, so the hits counts stay exact without keeping
+ * every record in memory.
+ * <p>
+ * The weight is not part of the hit's identity, a weighted hit is equal to any
+ * hit with the same attributes.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @see Hit#getWeight()
+ */
+public class WeightedHit extends Hit {
+
+    /**
+     * The number of occurrences of the hit.
+     */
+    private final int m_weight;
+
+    /**
+     * Construct new WeightedHit.
+     *
+     * @param hit
+     *            the hit.
+     * @param weight
+     *            the number of occurrences of the hit.
+     * @throws NullPointerException
+     *             if the hit is null.
+     * @throws IllegalArgumentException
+     *             if the weight is not positive.
+     */
+    public WeightedHit(final Hit hit, final int weight) {
+	super(hit);
+	if (weight <= 0)
+	    throw new IllegalArgumentException("weight <= 0: " + weight);
+	m_weight = weight;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getWeight() {
+	return m_weight;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The mutation has the same weight as this hit.
+     */
+    @Override
+    public Hit createMutation(final Attribute attribute) {
+	return new WeightedHit(super.createMutation(attribute), m_weight);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+	return super.toString() + " x" + m_weight;
+    }
+
+    /**
+     * Get a hit with some weight.
+     *
+     * @param hit
+     *            the hit.
+     * @param weight
+     *            the number of occurrences of the hit.
+     * @return the hit itself if it has the requested weight, else new
+     *         {@link WeightedHit} of the hit with the weight.
+     * @throws NullPointerException
+     *             if the hit is null.
+     * @throws IllegalArgumentException
+     *             if the weight is not positive.
+     */
+    public static Hit valueOf(final Hit hit, final int weight) {
+	return hit.getWeight() == weight ? hit : new WeightedHit(hit, weight);
+    }
+
+}
@@ -3,10 +3,9 @@ package breakingtherules.service;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -21,6 +20,7 @@ import java.util.Random;
 
 import breakingtherules.dao.csv.CSVParseException;
 import breakingtherules.dao.csv.CSVHitsParser;
+import breakingtherules.dao.csv.CSVHitsWriter;
 import breakingtherules.firewall.Attribute.AttributeType;
 import breakingtherules.util.TextPrinter;
 import breakingtherules.util.Utility;
@@ -244,8 +244,9 @@ public class CSVScrambler implements Runnable {
      * @param outputFile
      *            path to output file
      * @param parser
-     *            parser used to parse the input file and to write to the output
-     *            file.
+     *            parser used to parse the input file.
+     * @param columnsTypes
+     *            orders of the attributes in the input and output files
      * @param attType
      *            type of the IP attribute
      * @param tree
@@ -256,18 +257,16 @@ public class CSVScrambler implements Runnable {
      *             if fails to parse file
      */
     private static void mutateHits(final String inputFile, final String outputFile, final CSVHitsParser parser,
-	    final AttributeType attType, final Node tree) throws IOException, CSVParseException {
+	    final List<Integer> columnsTypes, final AttributeType attType, final Node tree)
+	    throws IOException, CSVParseException {
 	int lineNumber = 0;
 	try (final BufferedReader reader = new BufferedReader(new FileReader(inputFile))) {
-	    try (final Writer writer = new FileWriter(outputFile)) {
-
-		final String lineSeparator = System.lineSeparator();
+	    try (final CSVHitsWriter writer = new CSVHitsWriter(columnsTypes,
+		    new FileOutputStream(outputFile))) {
 		for (String line; (line = reader.readLine()) != null;) {
 		    lineNumber++;
 		    final Hit hit = parser.parseHit(line);
-		    final Hit mutation = mutateHit(hit, attType, tree);
-		    line = parser.toCSV(mutation);
-		    writer.append(line + lineSeparator);
+		    writer.write(mutateHit(hit, attType, tree));
 		}
 	    }
 	} catch (final CSVParseException e) {
@@ -307,7 +306,7 @@ public class CSVScrambler implements Runnable {
 	    if (columnsTypes.contains(CSVHitsParser.SOURCE)) {
 		final Node tree = buildTree(inputFile, parser, AttributeType.SOURCE);
 		scrambleTree(tree);
-		mutateHits(inputFile, tempFilePath.toString(), parser, AttributeType.SOURCE, tree);
+		mutateHits(inputFile, tempFilePath.toString(), parser, columnsTypes, AttributeType.SOURCE, tree);
 
 		Files.copy(tempFilePath, outputPath, StandardCopyOption.REPLACE_EXISTING);
 		inputFile = outputFile;
@@ -315,7 +314,7 @@ public class CSVScrambler implements Runnable {
 	    if (columnsTypes.contains(CSVHitsParser.DESTINATION)) {
 		final Node tree = buildTree(inputFile, parser, AttributeType.DESTINATION);
 		scrambleTree(tree);
-		mutateHits(inputFile, tempFilePath.toString(), parser, AttributeType.DESTINATION, tree);
+		mutateHits(inputFile, tempFilePath.toString(), parser, columnsTypes, AttributeType.DESTINATION, tree);
 
 		Files.copy(tempFilePath, outputPath, StandardCopyOption.REPLACE_EXISTING);
 		inputFile = outputFile;
@@ -0,0 +1,238 @@
+package breakingtherules.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import breakingtherules.dao.DaoConfig;
+import breakingtherules.dao.HitsDao;
+import breakingtherules.dao.ParseException;
+import breakingtherules.dao.RulesDao;
+import breakingtherules.dto.WarmupStatusDto;
+import breakingtherules.firewall.Filter;
+import breakingtherules.firewall.Rule;
+
+/**
+ * Background warm-up of the existing jobs.
+ * <p>
+ * When started, the warm-up loads the most recently used jobs (by the
+ * modification time of their repositories) on a single low priority thread.
+ * Each job is loaded by counting its hits and the hits that are not covered by
+ * each prefix of its rules list, the same way a job is opened by the
+ * {@link breakingtherules.session.JobManager JobManager}, so the job's hits,
+ * indexes and counts caches are ready when the first user opens it.
+ * <p>
+ * The warm-up is opt-in, if it's not enabled {@link #start()} does nothing.
+ * The progress of the warm-up is available by {@link #getStatus()}, including
+ * the failures of jobs that failed to load, which are also reported to the
+ * standard error stream.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ */
+public class HitsWarmup {
+
+    /**
+     * The DAO of the warmed hits.
+     */
+    private final HitsDao m_hitsDao;
+
+    /**
+     * The DAO of the jobs' rules.
+     */
+    private final RulesDao m_rulesDao;
+
+    /**
+     * True if the warm-up is enabled.
+     */
+    private final boolean m_enabled;
+
+    /**
+     * The maximal number of warmed jobs.
+     */
+    private final int m_maxJobs;
+
+    /**
+     * The executor of the warm-up tasks, null if the warm-up wasn't started.
+     */
+    private ExecutorService m_executor;
+
+    /**
+     * The number of jobs that are planned to be warmed.
+     */
+    private volatile int m_totalJobs;
+
+    /**
+     * The number of jobs that were warmed.
+     */
+    private final AtomicInteger m_warmedJobs;
+
+    /**
+     * The number of jobs that failed to load.
+     */
+    private final AtomicInteger m_failedJobs;
+
+    /**
+     * The failures of the jobs that failed to load, by the jobs' names.
+     */
+    private final Map<String, String> m_failures;
+
+    /**
+     * The job that is currently warmed, or null if none.
+     */
+    private volatile String m_currentJob;
+
+    /**
+     * Construct new HitsWarmup.
+     *
+     * @param hitsDao
+     *            the DAO of the warmed hits.
+     * @param rulesDao
+     *            the DAO of the jobs' rules.
+     * @param enabled
+     *            true if the warm-up is enabled.
+     * @param maxJobs
+     *            the maximal number of warmed jobs.
+     * @throws NullPointerException
+     *             if one of the DAOs is null.
+     * @throws IllegalArgumentException
+     *             if maxJobs is negative.
+     */
+    public HitsWarmup(final HitsDao hitsDao, final RulesDao rulesDao, final boolean enabled, final int maxJobs) {
+	if (hitsDao == null || rulesDao == null)
+	    throw new NullPointerException();
+	if (maxJobs < 0)
+	    throw new IllegalArgumentException("maxJobs < 0: " + maxJobs);
+	m_hitsDao = hitsDao;
+	m_rulesDao = rulesDao;
+	m_enabled = enabled;
+	m_maxJobs = maxJobs;
+	m_warmedJobs = new AtomicInteger();
+	m_failedJobs = new AtomicInteger();
+	m_failures = Collections.synchronizedMap(new LinkedHashMap<>());
+    }
+
+    /**
+     * Start warming the most recently used existing jobs, if the warm-up is
+     * enabled.
+     * <p>
+     * Returns immediately, the jobs are warmed in the background.
+     */
+    public void start() {
+	if (m_enabled)
+	    start(getRecentJobs(m_maxJobs));
+    }
+
+    /**
+     * Start warming jobs in the background.
+     *
+     * @param jobs
+     *            the names of the warmed jobs, in warm-up order.
+     * @throws IllegalStateException
+     *             if the warm-up was already started.
+     */
+    public synchronized void start(final List<String> jobs) {
+	if (m_executor != null)
+	    throw new IllegalStateException("Warm-up already started");
+	m_executor = Executors.newSingleThreadExecutor(runnable -> {
+	    final Thread thread = new Thread(runnable, "hits-warmup");
+	    thread.setDaemon(true);
+	    thread.setPriority(Thread.MIN_PRIORITY);
+	    return thread;
+	});
+	m_totalJobs = jobs.size();
+	for (final String job : jobs)
+	    m_executor.execute(() -> {
+		m_currentJob = job;
+		try {
+		    warmup(job);
+		    m_warmedJobs.incrementAndGet();
+		} catch (final IOException | ParseException | RuntimeException e) {
+		    System.err.println("Warning: failed to warm job " + job + ": " + e);
+		    m_failures.put(job, e.toString());
+		    m_failedJobs.incrementAndGet();
+		} finally {
+		    m_currentJob = null;
+		}
+	    });
+	m_executor.shutdown();
+    }
+
+    /**
+     * Stop the warm-up, the job that is currently warmed is interrupted and the
+     * rest of the jobs are not warmed.
+     */
+    public synchronized void stop() {
+	if (m_executor != null)
+	    m_executor.shutdownNow();
+    }
+
+    /**
+     * Get the status of the warm-up.
+     *
+     * @return the current progress of the warm-up.
+     */
+    public WarmupStatusDto getStatus() {
+	final ExecutorService executor;
+	synchronized (this) {
+	    executor = m_executor;
+	}
+	final int warmed = m_warmedJobs.get(), failed = m_failedJobs.get(), total = m_totalJobs;
+	final boolean running = executor != null && warmed + failed < total && !executor.isTerminated();
+	final Map<String, String> failures;
+	synchronized (m_failures) {
+	    failures = new LinkedHashMap<>(m_failures);
+	}
+	return new WarmupStatusDto(m_enabled, running, total, warmed, failed, failures, m_currentJob);
+    }
+
+    /**
+     * Warm a job, by counting its hits and its uncovered hits by each prefix of
+     * its rules list.
+     *
+     * @param jobName
+     *            the name of the job.
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws ParseException
+     *             if any parse errors occurs.
+     */
+    private void warmup(final String jobName) throws IOException, ParseException {
+	final List<Rule> rules = new ArrayList<>();
+	m_hitsDao.getHitsNumber(jobName, rules, Filter.ANY_FILTER);
+	for (final Rule rule : m_rulesDao.getRules(jobName).getData()) {
+	    if (Thread.currentThread().isInterrupted())
+		return;
+	    rules.add(rule);
+	    m_hitsDao.getHitsNumber(jobName, rules, Filter.ANY_FILTER);
+	}
+    }
+
+    /**
+     * Get the names of the most recently used existing jobs.
+     * <p>
+     * The jobs are ordered by the modification time of their repository
+     * directory, which changes when the job's files are created, for example
+     * when its hits snapshot is written.
+     *
+     * @param maxJobs
+     *            the maximal number of jobs.
+     * @return the names of the most recently used jobs, the most recent first.
+     */
+    private static List<String> getRecentJobs(final int maxJobs) {
+	final List<String> jobs = new ArrayList<>(DaoConfig.getExistingRepositories());
+	Collections.sort(jobs, Comparator.comparingLong(
+		(final String job) -> new File(DaoConfig.getRepoRoot(job)).lastModified()).reversed());
+	return jobs.size() > maxJobs ? new ArrayList<>(jobs.subList(0, maxJobs)) : jobs;
+    }
+
+}
@@ -17,6 +17,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import breakingtherules.dao.HitsDao;
 import breakingtherules.dao.ParseException;
+import breakingtherules.firewall.Attribute;
 import breakingtherules.firewall.Attribute.AttributeType;
 import breakingtherules.firewall.Destination;
 import breakingtherules.firewall.Filter;
@@ -95,11 +96,6 @@ public class InformationAlgorithm extends AbstractSuggestionsAlgorithm {
      */
     private int m_parallelThreshold;
 
-    /**
-     * Used when the attribute type if not source or destination
-     */
-    private final SimpleAlgorithm m_simpleAlgorithm;
-
     /**
      * Number of current used threads by all information algorithms. Used to
      * optimize parallel.
@@ -161,7 +157,6 @@ public class InformationAlgorithm extends AbstractSuggestionsAlgorithm {
 	m_parallel = DEFAULT_PARALLEL;
 	m_maxThreads = DEFAULT_MAX_THREADS;
 	m_parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
-	m_simpleAlgorithm = new SimpleAlgorithm(hitsDao);
     }
 
     /**
@@ -231,8 +226,10 @@ public class InformationAlgorithm extends AbstractSuggestionsAlgorithm {
     public List<Suggestion> getSuggestions(final String jobName, final List<Rule> rules, final Filter filter,
 	    final int amount, final AttributeType attType) throws IOException, ParseException {
 	Objects.requireNonNull(attType);
-	final Iterable<Hit> hits = m_hitsDao.getHits(jobName, rules, filter);
-	final InformationAlgorithmRunner runner = new InformationAlgorithmRunner(hits, amount, attType);
+	final Map<Attribute, Integer> histogram = m_hitsDao.getAttributeHistogram(jobName, rules, filter, attType);
+	final int hitsNumber = m_hitsDao.getHitsNumber(jobName, rules, filter);
+	final InformationAlgorithmRunner runner = new InformationAlgorithmRunner(histogram, hitsNumber, amount,
+		attType);
 	runner.run();
 	return runner.m_result;
     }
@@ -248,10 +245,13 @@ public class InformationAlgorithm extends AbstractSuggestionsAlgorithm {
 	    final int amount, final AttributeType[] attTypes) throws IOException, ParseException {
 
 	final InformationAlgorithmRunner[] runners = new InformationAlgorithmRunner[attTypes.length];
-	final Iterable<Hit> hits = m_hitsDao.getHits(jobName, rules, filter);
+	final int hitsNumber = m_hitsDao.getHitsNumber(jobName, rules, filter);
 	for (int i = 0; i < attTypes.length; i++) {
 	    final AttributeType attType = Objects.requireNonNull(attTypes[i]);
-	    final InformationAlgorithmRunner runner = new InformationAlgorithmRunner(hits, amount, attType);
+	    final Map<Attribute, Integer> histogram = m_hitsDao.getAttributeHistogram(jobName, rules, filter,
+		    attType);
+	    final InformationAlgorithmRunner runner = new InformationAlgorithmRunner(histogram, hitsNumber, amount,
+		    attType);
 	    runners[i] = runner;
 	}
 
@@ -576,9 +576,15 @@ public class InformationAlgorithm extends AbstractSuggestionsAlgorithm {
     private class InformationAlgorithmRunner implements Runnable {
 
 	/**
-	 * Input hits.
+	 * The histogram of the desire attribute type of the input hits.
 	 */
-	private final Iterable<Hit> m_hits;
+	private final Map<Attribute, Integer> m_histogram;
+
+	/**
+	 * The total number of input hits, used by the simple algorithm for non IP
+	 * attributes.
+	 */
+	private final int m_hitsNumber;
 
 	/**
 	 * Type of desire suggestions's type.
@@ -598,15 +604,20 @@ public class InformationAlgorithm extends AbstractSuggestionsAlgorithm {
 	/**
 	 * Construct new InformationAlgorithmRunner.
 	 *
-	 * @param hits
-	 *            input hits.
+	 * @param histogram
+	 *            the histogram of the desire attribute type of the input
+	 *            hits.
+	 * @param hitsNumber
+	 *            the total number of input hits.
 	 * @param amount
 	 *            number of desire suggestions.
 	 * @param attTypeId
 	 *            type of desire suggestions.
 	 */
-	InformationAlgorithmRunner(final Iterable<Hit> hits, final int amount, final AttributeType attTypeId) {
-	    m_hits = hits;
+	InformationAlgorithmRunner(final Map<Attribute, Integer> histogram, final int hitsNumber, final int amount,
+		final AttributeType attTypeId) {
+	    m_histogram = histogram;
+	    m_hitsNumber = hitsNumber;
 	    m_attTypeId = attTypeId;
 	    m_amount = amount;
 	}
@@ -624,7 +635,7 @@ public class InformationAlgorithm extends AbstractSuggestionsAlgorithm {
 		m_result = getSuggestionsSource();
 		break;
 	    default:
-		m_result = m_simpleAlgorithm.getSuggestions(m_hits, m_amount, m_attTypeId);
+		m_result = SimpleAlgorithm.getSuggestions(m_histogram, m_hitsNumber, m_amount);
 	    }
 	}
 
@@ -844,35 +855,44 @@ public class InformationAlgorithm extends AbstractSuggestionsAlgorithm {
 	}
 
 	/**
-	 * Create list of IPNodes from the iterable of hits
+	 * Create list of IPNodes from the histogram of the hits
+	 * <p>
+	 * The total size of the nodes is the sum of the histogram, and not the
+	 * separately read number of hits, which may already include hits that
+	 * were appended after the histogram was computed.
 	 *
 	 * @return list of IPNodes constructed from the hits
-	 * @throws NullPointerException
-	 *             if hits are null, or one of the hits are null
-	 * @throws IllegalArgumentException
-	 *             if one of the hits doesn't contains the desire attribute
 	 */
 	private IPNode[] toIPNodes() {
 	    final Map<IP, IPNode> uniqueIPNodes = new HashMap<>();
-	    for (final Hit hit : m_hits) {
-		final IPAttribute att = (IPAttribute) hit.getAttribute(m_attTypeId);
-		if (att == null)
-		    throw new IllegalArgumentException("One of the hits doesn't have the desire attribute");
-		final IP ip = att.getIp();
-		final IPNode existingNode = uniqueIPNodes.get(ip);
-		if (existingNode == null) {
-		    final IPNode newNode = new IPNode(ip);
-		    newNode.m_compressSize = m_ruleWeight;
-		    newNode.m_size = 1;
-		    uniqueIPNodes.put(ip, newNode);
-		} else
-		    existingNode.m_size++;
-	    }
+	    for (final Map.Entry<Attribute, Integer> count : m_histogram.entrySet())
+		addIPNode(uniqueIPNodes, ((IPAttribute) count.getKey()).getIp(), count.getValue().intValue());
 	    for (final IPNode node : uniqueIPNodes.values())
 		node.m_bestSubnets = new UntionGroup<>(node);
 	    return uniqueIPNodes.values().toArray(new IPNode[uniqueIPNodes.size()]);
 	}
 
+	/**
+	 * Add hits of an IP to the IPNodes map.
+	 *
+	 * @param nodes
+	 *            the IPNodes, by their IPs.
+	 * @param ip
+	 *            the IP of the hits.
+	 * @param size
+	 *            the number of hits.
+	 */
+	private void addIPNode(final Map<IP, IPNode> nodes, final IP ip, final int size) {
+	    final IPNode existingNode = nodes.get(ip);
+	    if (existingNode == null) {
+		final IPNode newNode = new IPNode(ip);
+		newNode.m_compressSize = m_ruleWeight;
+		newNode.m_size = size;
+		nodes.put(ip, newNode);
+	    } else
+		existingNode.m_size += size;
+	}
+
     }
 
     /**
@@ -882,9 +902,10 @@ public class InformationAlgorithm extends AbstractSuggestionsAlgorithm {
      * <ul>
      * <li>ip: IP of the node (if the node is leaf in the tree) or IP of the
      * subnetwork of the node (if the node is a inner node in the tree).</li>
-     * <li>size: number of different hits under the ip subnetwork (exactly
-     * equals hits count as one, but different hits, even if they have the same
-     * IP, count as two).</li>
+     * <li>size: number of hits under the ip subnetwork, each hit counted by
+     * its weight (exactly equals hits are one weighted hit, counted by the
+     * number of their occurrences, and different hits, even if they have the
+     * same IP, are counted separately).</li>
      * <li>compressSize: value of compression size by the InformationAlgorithm.
      * If this value is high, the node is a strong node.</li>
      * <li>bestSubnets: list of best subnetworks that contained in the IP
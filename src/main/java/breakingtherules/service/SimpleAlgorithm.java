@@ -2,20 +2,16 @@ package breakingtherules.service;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.function.Function;
 
 import breakingtherules.dao.HitsDao;
 import breakingtherules.dao.ParseException;
 import breakingtherules.firewall.Attribute;
 import breakingtherules.firewall.Attribute.AttributeType;
 import breakingtherules.firewall.Filter;
-import breakingtherules.firewall.Hit;
 import breakingtherules.firewall.Rule;
-import breakingtherules.util.MutableInteger;
 import breakingtherules.util.Utility;
 
 /**
@@ -44,112 +40,48 @@ public class SimpleAlgorithm extends AbstractSuggestionsAlgorithm {
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The attributes are counted by the DAO, so the hits themselves are not
+     * read by the algorithm.
+     *
+     * @see HitsDao#getAttributeHistogram(String, Iterable, Filter, AttributeType)
      */
     @Override
     public List<Suggestion> getSuggestions(final String jobName, final List<Rule> rules, final Filter filter,
 	    final int amount, final AttributeType attType) throws IOException, ParseException {
-	return getSuggestions(m_hitsDao.getHits(jobName, rules, filter), amount, Objects.requireNonNull(attType));
+	final Map<Attribute, Integer> histogram = m_hitsDao.getAttributeHistogram(jobName, rules, filter,
+		Objects.requireNonNull(attType));
+	return getSuggestions(histogram, m_hitsDao.getHitsNumber(jobName, rules, filter), amount);
     }
 
     /**
-     * Get suggestions for hits (from iterable).
+     * Get suggestions for the histogram of an attribute of hits.
+     * <p>
+     * Every possible single attribute becomes a suggestion. The score of each
+     * suggestion (single attribute) is the number of hits with the same
+     * attribute, out of all the hits.
      *
-     * @param hits
-     *            the hits iterable object.
+     * @param histogram
+     *            map of the attributes to the number of hits (sum of weights)
+     *            with them.
+     * @param hitsNumber
+     *            the total number of hits.
      * @param amount
      *            the number of suggestions is requested.
-     * @param attTypeId
-     *            the type of the suggestions.
      * @return suggestions for the hits for the attribute type.
      */
-    List<Suggestion> getSuggestions(final Iterable<Hit> hits, final int amount, final AttributeType attTypeId) {
-	final SimpleAlgorithmRunner runner = new SimpleAlgorithmRunner(hits, amount, attTypeId);
-	runner.run();
-	return runner.m_result;
-    }
-
-    /**
-     * The runnable used by the {@link SimpleAlgorithm}.
-     * <p>
-     *
-     * @author Barak Ugav
-     * @author Yishai Gronich
-     *
-     */
-    static class SimpleAlgorithmRunner implements Runnable {
-
-	/**
-	 * The input hits.
-	 */
-	private final Iterable<Hit> m_hits;
-
-	/**
-	 * The number of requested suggestions.
-	 */
-	private final int m_amount;
-
-	/**
-	 * The type of requested suggestions.
-	 */
-	private final AttributeType m_attTypeId;
-
-	/**
-	 * The result buffer. This value is relevant only after the runner was
-	 * run.
-	 */
-	private List<Suggestion> m_result;
-
-	/**
-	 * Construct new SimpleAlgorithmRunner.
-	 *
-	 * @param hits
-	 *            the input hits.
-	 * @param amount
-	 *            the number of requested suggestions.
-	 * @param attTypeId
-	 *            the type of requested suggestions.
-	 */
-	SimpleAlgorithmRunner(final Iterable<Hit> hits, final int amount, final AttributeType attTypeId) {
-	    m_hits = hits;
-	    m_amount = amount;
-	    m_attTypeId = attTypeId;
+    static List<Suggestion> getSuggestions(final Map<Attribute, Integer> histogram, final int hitsNumber,
+	    final int amount) {
+	final List<Suggestion> suggestions = new ArrayList<>(histogram.size());
+	for (final Map.Entry<Attribute, Integer> attribute : histogram.entrySet()) {
+	    final int size = attribute.getValue().intValue();
+	    suggestions.add(new Suggestion(attribute.getKey(), size, (double) size / hitsNumber));
 	}
 
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public void run() {
-	    /*
-	     * Every possible single attribute becomes a suggestion. We count
-	     * how many times the attribute repeats itself and give a score to
-	     * each suggestion (single attribute) by the number of hits with the
-	     * same attribute.
-	     */
-	    final Map<Attribute, MutableInteger> attributesCount = new HashMap<>();
-	    final Function<Attribute, MutableInteger> initFunc = MutableInteger.zeroFunction();
-
-	    int numberOfHits = 0;
-	    for (final Hit hit : m_hits) {
-		numberOfHits++;
-		final Attribute att = hit.getAttribute(m_attTypeId);
-		if (att != null)
-		    attributesCount.computeIfAbsent(att, initFunc).value++;
-	    }
-
-	    // Calculate suggestions
-	    final List<Suggestion> suggestions = new ArrayList<>(attributesCount.size());
-	    for (final Map.Entry<Attribute, MutableInteger> attribute : attributesCount.entrySet()) {
-		final int size = attribute.getValue().value;
-		suggestions.add(new Suggestion(attribute.getKey(), size, (double) size / numberOfHits));
-	    }
-
-	    // Sort by score
-	    suggestions.sort(Suggestion.SCORE_COMPARATOR_GREATER_TO_SMALLER);
-
-	    m_result = Utility.subList(suggestions, 0, m_amount);
-	}
+	// Sort by score
+	suggestions.sort(Suggestion.SCORE_COMPARATOR_GREATER_TO_SMALLER);
 
+	return Utility.subList(suggestions, 0, amount);
     }
 
 }
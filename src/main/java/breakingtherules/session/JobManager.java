@@ -2,6 +2,7 @@ package breakingtherules.session;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -15,10 +16,9 @@ import breakingtherules.dao.DaoConfig;
 import breakingtherules.dao.HitsDao;
 import breakingtherules.dao.ParseException;
 import breakingtherules.dao.RulesDao;
-import breakingtherules.dao.csv.CSVDaoConfig;
-import breakingtherules.dao.csv.CSVHitsDao;
+import breakingtherules.dao.csv.CSVHitsParser;
 import breakingtherules.dao.xml.XMLDaoConfig;
-import breakingtherules.dao.xml.XMLRulesParser;
+import breakingtherules.dto.HitsPreviewDto;
 import breakingtherules.dto.ListDto;
 import breakingtherules.dto.SuggestionsDto;
 import breakingtherules.firewall.Attribute;
@@ -138,10 +138,11 @@ public class JobManager {
      * @throws NoCurrentJobException
      *             if the job wasn't set yet.
      */
-    public void addCurrentFilterToRules() throws IOException, ParseException {
+    public synchronized void addCurrentFilterToRules() throws IOException, ParseException {
 	checkJobState();
 
 	final Rule newRule = new Rule(m_filter);
+	m_rulesDao.addRule(m_name, newRule);
 	addRule(new StatisticedRule(newRule, m_filteredHitsCount));
     }
 
@@ -152,7 +153,7 @@ public class JobManager {
      *            The name of the new job. Must be different from existing names
      * @param hitsFile
      *            A CSV file with all of the hits that should be processed in
-     *            this job
+     *            this job, maybe compressed
      * @param columnTypes
      *            The order of the columns in the CSV file
      * @param originalRule
@@ -170,14 +171,75 @@ public class JobManager {
 	// TODO - treat return value from initRepository.
 	DaoConfig.initRepository(jobName);
 
-	final File fileDestination = new File(new File(CSVDaoConfig.getHitsFile(jobName)).getAbsolutePath());
-	hitsFile.transferTo(fileDestination);
-	final CSVHitsDao csvDao = new CSVHitsDao();
-	csvDao.setColumnTypes(columnTypes);
-	final Iterable<Hit> hits = csvDao.getHits(jobName, Collections.emptyList(), Filter.ANY_FILTER);
-	m_hitsDao.initJob(jobName, hits);
+	// The upload is parsed while it's read, and stored by the hits DAO
+	try (final InputStream hitsStream = hitsFile.getInputStream()) {
+	    m_hitsDao.initJob(jobName, hitsStream, columnTypes);
+	}
+
+	m_rulesDao.initRules(jobName, originalRule);
+    }
+
+    /**
+     * Preview the hits of a CSV file, before a job is created with it.
+     * <p>
+     * Only a sample of the file is parsed, so the preview is fast for any
+     * file size.
+     *
+     * @param hitsFile
+     *            A CSV file with hits, maybe compressed
+     * @param columnTypes
+     *            The order of the columns in the CSV file
+     * @return preview of the file's hits
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws ParseException
+     *             if failed to parse the sampled lines.
+     * @throws NullPointerException
+     *             if the file is null.
+     */
+    public HitsPreviewDto previewHits(final MultipartFile hitsFile, final List<Integer> columnTypes)
+	    throws IOException, ParseException {
+	final File tempFile = File.createTempFile("breakingtherules_preview", ".csv");
+	try {
+	    hitsFile.transferTo(tempFile);
+	    return m_hitsDao.previewHits(tempFile.getAbsolutePath(), columnTypes);
+	} finally {
+	    tempFile.delete();
+	}
+    }
+
+    /**
+     * Append the hits of a CSV file to the current job.
+     * <p>
+     * The statistics of the job and its rules are updated to include the
+     * appended hits.
+     *
+     * @param hitsFile
+     *            A CSV file with the appended hits.
+     * @param columnTypes
+     *            The order of the columns in the CSV file
+     * @throws IOException
+     *             if any I/O errors occurs.
+     * @throws ParseException
+     *             if failed to parse file.
+     * @throws NoCurrentJobException
+     *             if the job wasn't set yet.
+     * @throws NullPointerException
+     *             if the file is null.
+     */
+    public synchronized void appendHits(final MultipartFile hitsFile, final List<Integer> columnTypes)
+	    throws IOException, ParseException {
+	checkJobState();
 
-	updateRulesFile(jobName, Collections.emptyList(), originalRule);
+	final File tempFile = File.createTempFile("breakingtherules_append", ".csv");
+	try {
+	    hitsFile.transferTo(tempFile);
+	    final Iterable<Hit> hits = CSVHitsParser.parseUniqueHits(columnTypes, tempFile.getAbsolutePath());
+	    m_hitsDao.appendHits(m_name, hits);
+	} finally {
+	    tempFile.delete();
+	}
+	updateStatistics();
     }
 
     /**
@@ -199,6 +261,7 @@ public class JobManager {
 	checkJobState();
 	if (ruleIndex < 0 || ruleIndex >= m_rules.size())
 	    throw new IndexOutOfBoundsException("rule index=" + ruleIndex + ", numer of rules=" + m_rules.size());
+	m_rulesDao.removeRule(m_name, ruleIndex);
 
 	// Remove all rules up to searched rule
 	final List<Rule> removedRules = new ArrayList<>(m_rules.size() - ruleIndex - 1);
@@ -223,9 +286,6 @@ public class JobManager {
 	// Add again removed rules
 	for (final Rule removedRule : removedRules)
 	    addRule(removedRule);
-
-	updateRulesFile();
-
     }
 
     /**
@@ -331,11 +391,16 @@ public class JobManager {
      * Can be downloaded by the user.
      *
      * @return A file of XML format with this job's rules.
+     * @throws IOException
+     *             if failed to write the pending rules changes to the file.
+     * @throws ParseException
+     *             if any parse errors occurs in the data.
      * @throws NoCurrentJobException
      *             if the job wasn't set yet.
      */
-    public FileSystemResource getRulesFile() {
+    public FileSystemResource getRulesFile() throws IOException, ParseException {
 	checkJobState();
+	m_rulesDao.flush(m_name);
 	// TODO - this is not generic
 	return new FileSystemResource(XMLDaoConfig.getRulesFile(m_name));
     }
@@ -479,7 +544,30 @@ public class JobManager {
 	m_coveredHitsCount += newRule.m_coveredHits;
 	m_rules.add(newRule);
 	m_filteredHitsCount = m_hitsDao.getHitsNumber(m_name, getRules(), m_filter);
-	updateRulesFile();
+    }
+
+    /**
+     * Recalculate the statistics of the job and its rules, after the job's
+     * hits were changed.
+     *
+     * @throws IOException
+     *             if any I/O errors occurs when trying to update statistics.
+     * @throws ParseException
+     *             if any parse errors occurs when trying to update statistics.
+     */
+    private synchronized void updateStatistics() throws IOException, ParseException {
+	final List<Rule> rules = new ArrayList<>(m_rules.size());
+	m_totalHitsCount = m_hitsDao.getHitsNumber(m_name, rules, Filter.ANY_FILTER);
+	m_coveredHitsCount = 0;
+	for (final ListIterator<StatisticedRule> it = m_rules.listIterator(); it.hasNext();) {
+	    final Rule rule = it.next().m_rule;
+	    rules.add(rule);
+	    final int uncoveredHitsCount = m_hitsDao.getHitsNumber(m_name, rules, Filter.ANY_FILTER);
+	    final int ruleCoveredHits = m_totalHitsCount - m_coveredHitsCount - uncoveredHitsCount;
+	    it.set(new StatisticedRule(rule, ruleCoveredHits));
+	    m_coveredHitsCount += ruleCoveredHits;
+	}
+	m_filteredHitsCount = m_hitsDao.getHitsNumber(m_name, rules, m_filter);
     }
 
     /**
@@ -510,35 +598,6 @@ public class JobManager {
 	return m_allAttributeTypes;
     }
 
-    /**
-     * Update the rules file to match the current rules list in the job.
-     *
-     * @throws IOException
-     *             if any I/O errors occurs during the file update.
-     */
-    private void updateRulesFile() throws IOException {
-	updateRulesFile(m_name, getRules(), m_originalRule);
-    }
-
-    /**
-     * Update the rules file of a job.
-     *
-     * @param jobName
-     *            the job's name.
-     * @param rules
-     *            the rules list.
-     * @param originalRule
-     *            the original rule of the job.
-     * @throws IOException
-     *             if any I/O errors occurs during the file update.
-     */
-    private static void updateRulesFile(final String jobName, final List<Rule> rules, final Rule originalRule)
-	    throws IOException {
-	// TODO - this is not generic
-	final String fileName = XMLDaoConfig.getRulesFile(jobName);
-	XMLRulesParser.writeRules(fileName, rules, originalRule);
-    }
-
     /**
      * Wrapper to a rule, save some statistics about the rule.
      *
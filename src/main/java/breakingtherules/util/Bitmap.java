@@ -0,0 +1,419 @@
+package breakingtherules.util;
+
+import java.util.Arrays;
+
+/**
+ * Bitmap of fixed number of bits, used to represent sets of ordinals.
+ * <p>
+ * The bitmap is implemented as an array of 64 bit words, the bit {@code i} is
+ * stored in the word {@code i / 64} at position {@code i % 64}. Unlike
+ * {@link java.util.BitSet}, the bitmap has a fixed size, and it supports
+ * operations between two bitmaps without creating temporary bitmaps (such as
+ * {@link #andCardinality(Bitmap, Bitmap)}).
+ * <p>
+ * The bitmap is not synchronized.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ */
+public class Bitmap {
+
+    /**
+     * The words of the bitmap.
+     * <p>
+     * Bits in the last word that are not part of the bitmap are always zero.
+     */
+    private long[] words;
+
+    /**
+     * The number of bits in the bitmap.
+     */
+    private int size;
+
+    /**
+     * Number of bits in each word, as a power of two.
+     */
+    private static final int WORD_BITS_LOG = 6;
+
+    /**
+     * Construct new empty bitmap.
+     *
+     * @param size
+     *            the number of bits in the bitmap.
+     * @throws IllegalArgumentException
+     *             if size is negative.
+     */
+    public Bitmap(final int size) {
+	if (size < 0)
+	    throw new IllegalArgumentException("size < 0: " + size);
+	words = new long[wordsNumber(size)];
+	this.size = size;
+    }
+
+    /**
+     * Construct new bitmap that is a copy of another bitmap.
+     *
+     * @param other
+     *            the copied bitmap.
+     * @throws NullPointerException
+     *             if the other bitmap is null.
+     */
+    public Bitmap(final Bitmap other) {
+	words = other.words.clone();
+	size = other.size;
+    }
+
+    /**
+     * Construct new bitmap that is a copy of another bitmap, with greater or
+     * equal size.
+     * <p>
+     * The bits of the other bitmap are copied, and the rest of the bits are
+     * clear.
+     *
+     * @param other
+     *            the copied bitmap.
+     * @param size
+     *            the number of bits in the new bitmap.
+     * @throws NullPointerException
+     *             if the other bitmap is null.
+     * @throws IllegalArgumentException
+     *             if size is smaller than the other bitmap's size.
+     */
+    public Bitmap(final Bitmap other, final int size) {
+	if (size < other.size)
+	    throw new IllegalArgumentException("size < other.size(): " + size + " < " + other.size);
+	words = Arrays.copyOf(other.words, wordsNumber(size));
+	this.size = size;
+    }
+
+    /**
+     * Get the number of bits in the bitmap.
+     *
+     * @return size of the bitmap.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Get the value of a bit.
+     *
+     * @param index
+     *            index of the bit.
+     * @return true if the bit is set.
+     * @throws IndexOutOfBoundsException
+     *             if index is out of the bitmap range.
+     */
+    public boolean get(final int index) {
+	checkIndex(index);
+	return (words[index >>> WORD_BITS_LOG] & 1L << index) != 0;
+    }
+
+    /**
+     * Set a bit.
+     *
+     * @param index
+     *            index of the bit.
+     * @throws IndexOutOfBoundsException
+     *             if index is out of the bitmap range.
+     */
+    public void set(final int index) {
+	checkIndex(index);
+	words[index >>> WORD_BITS_LOG] |= 1L << index;
+    }
+
+    /**
+     * Clear a bit.
+     *
+     * @param index
+     *            index of the bit.
+     * @throws IndexOutOfBoundsException
+     *             if index is out of the bitmap range.
+     */
+    public void clear(final int index) {
+	checkIndex(index);
+	words[index >>> WORD_BITS_LOG] &= ~(1L << index);
+    }
+
+    /**
+     * Set all bits of the bitmap.
+     */
+    public void setAll() {
+	Arrays.fill(words, -1L);
+	clearTail();
+    }
+
+    /**
+     * Get the number of set bits in the bitmap.
+     *
+     * @return the bitmap cardinality.
+     */
+    public int cardinality() {
+	int count = 0;
+	for (final long word : words)
+	    count += Long.bitCount(word);
+	return count;
+    }
+
+    /**
+     * Perform bitwise AND with another bitmap, and store the result in this
+     * bitmap.
+     *
+     * @param other
+     *            the other bitmap.
+     * @throws IllegalArgumentException
+     *             if the bitmaps are of different sizes.
+     */
+    public void and(final Bitmap other) {
+	checkSameSize(other);
+	final long[] w = words, o = other.words;
+	for (int i = w.length; i-- != 0;)
+	    w[i] &= o[i];
+    }
+
+    /**
+     * Clear all bits that are set in another bitmap.
+     *
+     * @param other
+     *            the other bitmap.
+     * @throws IllegalArgumentException
+     *             if the bitmaps are of different sizes.
+     */
+    public void andNot(final Bitmap other) {
+	checkSameSize(other);
+	final long[] w = words, o = other.words;
+	for (int i = w.length; i-- != 0;)
+	    w[i] &= ~o[i];
+    }
+
+    /**
+     * Get the index of the first set bit that is greater or equal to
+     * {@code fromIndex}.
+     *
+     * @param fromIndex
+     *            the index to start the search from (inclusive).
+     * @return index of the next set bit, or -1 if there is no such bit.
+     */
+    public int nextSetBit(final int fromIndex) {
+	if (fromIndex < 0)
+	    throw new IndexOutOfBoundsException("fromIndex < 0: " + fromIndex);
+	if (fromIndex >= size)
+	    return -1;
+	final long[] w = words;
+	int i = fromIndex >>> WORD_BITS_LOG;
+	long word = w[i] & -1L << fromIndex;
+	while (word == 0) {
+	    if (++i == w.length)
+		return -1;
+	    word = w[i];
+	}
+	return (i << WORD_BITS_LOG) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(final Object o) {
+	if (o == this)
+	    return true;
+	if (!(o instanceof Bitmap))
+	    return false;
+
+	final Bitmap other = (Bitmap) o;
+	return size == other.size && Arrays.equals(words, other.words);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+	return Arrays.hashCode(words) ^ size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+	final StringBuilder builder = new StringBuilder();
+	builder.append('{');
+	for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+	    if (builder.length() > 1)
+		builder.append(", ");
+	    builder.append(i);
+	}
+	return builder.append('}').toString();
+    }
+
+    /**
+     * Get the number of bits that are set in both of two bitmaps.
+     * <p>
+     * Equivalent to the cardinality of the bitwise AND of the bitmaps, without
+     * creating the intermediate bitmap.
+     *
+     * @param a
+     *            the first bitmap.
+     * @param b
+     *            the second bitmap.
+     * @return the cardinality of the intersection of the bitmaps.
+     * @throws IllegalArgumentException
+     *             if the bitmaps are of different sizes.
+     */
+    public static int andCardinality(final Bitmap a, final Bitmap b) {
+	a.checkSameSize(b);
+	final long[] aw = a.words, bw = b.words;
+	int count = 0;
+	for (int i = aw.length; i-- != 0;)
+	    count += Long.bitCount(aw[i] & bw[i]);
+	return count;
+    }
+
+    /**
+     * Get the number of bits in a range that are set in both of two bitmaps.
+     *
+     * @param a
+     *            the first bitmap.
+     * @param b
+     *            the second bitmap.
+     * @param fromIndex
+     *            the first index of the range (inclusive).
+     * @param toIndex
+     *            the last index of the range (exclusive).
+     * @return the cardinality of the intersection of the bitmaps in the range.
+     * @throws IllegalArgumentException
+     *             if the bitmaps are of different sizes.
+     * @throws IndexOutOfBoundsException
+     *             if the range is not in the bitmaps range.
+     */
+    public static int andCardinality(final Bitmap a, final Bitmap b, final int fromIndex, final int toIndex) {
+	a.checkSameSize(b);
+	if (fromIndex < 0 || toIndex > a.size || fromIndex > toIndex)
+	    throw new IndexOutOfBoundsException("fromIndex=" + fromIndex + ", toIndex=" + toIndex + ", size=" + a.size);
+	if (fromIndex == toIndex)
+	    return 0;
+
+	final long[] aw = a.words, bw = b.words;
+	final int first = fromIndex >>> WORD_BITS_LOG, last = toIndex - 1 >>> WORD_BITS_LOG;
+	final long firstMask = -1L << fromIndex, lastMask = -1L >>> -toIndex;
+	if (first == last)
+	    return Long.bitCount(aw[first] & bw[first] & firstMask & lastMask);
+	int count = Long.bitCount(aw[first] & bw[first] & firstMask) + Long.bitCount(aw[last] & bw[last] & lastMask);
+	for (int i = first + 1; i < last; i++)
+	    count += Long.bitCount(aw[i] & bw[i]);
+	return count;
+    }
+
+    /**
+     * Get the index of the first bit that is set in both of two bitmaps and is
+     * greater or equal to {@code fromIndex}.
+     * <p>
+     * Equivalent to {@link #nextSetBit(int)} of the bitwise AND of the
+     * bitmaps, without creating the intermediate bitmap.
+     *
+     * @param a
+     *            the first bitmap.
+     * @param b
+     *            the second bitmap.
+     * @param fromIndex
+     *            the index to start the search from (inclusive).
+     * @return index of the next common set bit, or -1 if there is no such bit.
+     * @throws IllegalArgumentException
+     *             if the bitmaps are of different sizes.
+     */
+    public static int nextSetBit(final Bitmap a, final Bitmap b, final int fromIndex) {
+	return selectSetBit(a, b, fromIndex, 0);
+    }
+
+    /**
+     * Get the index of the n-th bit (counting from zero) that is set in both of
+     * two bitmaps and is greater or equal to {@code fromIndex}.
+     * <p>
+     * Whole words are skipped by their bits count, so skipping over many set
+     * bits costs time proportional to the number of words and not to the
+     * number of bits.
+     *
+     * @param a
+     *            the first bitmap.
+     * @param b
+     *            the second bitmap.
+     * @param fromIndex
+     *            the index to start the search from (inclusive).
+     * @param n
+     *            the number of common set bits to skip.
+     * @return index of the n-th common set bit, or -1 if there is no such bit.
+     * @throws IllegalArgumentException
+     *             if the bitmaps are of different sizes or n is negative.
+     */
+    public static int selectSetBit(final Bitmap a, final Bitmap b, final int fromIndex, int n) {
+	a.checkSameSize(b);
+	if (fromIndex < 0)
+	    throw new IndexOutOfBoundsException("fromIndex < 0: " + fromIndex);
+	if (n < 0)
+	    throw new IllegalArgumentException("n < 0: " + n);
+	if (fromIndex >= a.size)
+	    return -1;
+
+	final long[] aw = a.words, bw = b.words;
+	int i = fromIndex >>> WORD_BITS_LOG;
+	long word = aw[i] & bw[i] & -1L << fromIndex;
+	for (int count; n >= (count = Long.bitCount(word));) {
+	    n -= count;
+	    if (++i == aw.length)
+		return -1;
+	    word = aw[i] & bw[i];
+	}
+	for (; n > 0; n--)
+	    word &= word - 1;
+	return (i << WORD_BITS_LOG) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Get the number of words needed for bitmap of some size.
+     *
+     * @param size
+     *            the number of bits.
+     * @return the number of words.
+     */
+    private static int wordsNumber(final int size) {
+	return (size + (1 << WORD_BITS_LOG) - 1) >>> WORD_BITS_LOG;
+    }
+
+    /**
+     * Clear the bits of the last word that are not part of the bitmap.
+     */
+    private void clearTail() {
+	final int tailBits = size & (1 << WORD_BITS_LOG) - 1;
+	if (tailBits != 0)
+	    words[words.length - 1] &= (1L << tailBits) - 1;
+    }
+
+    /**
+     * Check that an index is in the bitmap range.
+     *
+     * @param index
+     *            the checked index.
+     * @throws IndexOutOfBoundsException
+     *             if the index is out of range.
+     */
+    private void checkIndex(final int index) {
+	if (index < 0 || index >= size)
+	    throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+    }
+
+    /**
+     * Check that another bitmap is of the same size as this bitmap.
+     *
+     * @param other
+     *            the other bitmap.
+     * @throws IllegalArgumentException
+     *             if the bitmaps are of different sizes.
+     */
+    private void checkSameSize(final Bitmap other) {
+	if (size != other.size)
+	    throw new IllegalArgumentException("Bitmaps of different sizes: " + size + ", " + other.size);
+    }
+
+}
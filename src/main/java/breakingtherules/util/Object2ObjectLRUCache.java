@@ -0,0 +1,327 @@
+package breakingtherules.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded cache that evicts the least recently used elements.
+ * <p>
+ * Each element has a weight, determined by a weigher function (by default the
+ * weight of each element is 1, so the bound is on the number of elements).
+ * When the total weight of the cached elements exceeds the maximum weight, the
+ * least recently used elements are removed until the total weight is in the
+ * bound again.
+ * <p>
+ * Both {@link #get(Object)} and {@link #add(Object, Object)} mark the element
+ * as recently used.
+ * <p>
+ * The weight of an element is computed once, when it's added to the cache, so
+ * the weigher may depend on state other than the element itself. An optional
+ * eviction listener is notified of each element that is evicted because of the
+ * weight bound (but not of elements removed by {@link #remove(Object)} or
+ * {@link #clear()}). The listener is called after the cache's lock is
+ * released, so it may perform slow operations such as I/O.
+ * <p>
+ * The cache is synchronized, all operations lock the entire cache. The
+ * {@link #getOrAdd(Object, Function) getOrAdd} method doesn't hold the lock
+ * while the element is created, so two threads may create the same element,
+ * and only the first one will be cached and returned to both of them.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ * @param <K>
+ *            type of key of the cache
+ * @param <E>
+ *            type of cached elements
+ */
+public class Object2ObjectLRUCache<K, E> implements Object2ObjectCache<K, E> {
+
+    /**
+     * The cached elements, in access order.
+     */
+    private final LinkedHashMap<K, Entry<E>> map;
+
+    /**
+     * The weigher of the elements.
+     */
+    private final ToLongFunction<? super E> weigher;
+
+    /**
+     * The maximal total weight of the cached elements.
+     */
+    private long maxWeight;
+
+    /**
+     * The total weight of the cached elements.
+     */
+    private long weight;
+
+    /**
+     * Listener of evicted elements, may be null.
+     */
+    private final BiConsumer<? super K, ? super E> evictionListener;
+
+    /**
+     * Construct new Object2ObjectLRUCache with the weight of each element 1.
+     *
+     * @param maxSize
+     *            the maximal number of elements in the cache.
+     * @throws IllegalArgumentException
+     *             if maxSize is not positive.
+     */
+    public Object2ObjectLRUCache(final int maxSize) {
+	this(maxSize, e -> 1);
+    }
+
+    /**
+     * Construct new Object2ObjectLRUCache.
+     *
+     * @param maxWeight
+     *            the maximal total weight of the elements in the cache.
+     * @param weigher
+     *            the weigher of the elements, should return non negative
+     *            weight.
+     * @throws IllegalArgumentException
+     *             if maxWeight is not positive.
+     * @throws NullPointerException
+     *             if the weigher is null.
+     */
+    public Object2ObjectLRUCache(final long maxWeight, final ToLongFunction<? super E> weigher) {
+	this(maxWeight, weigher, null);
+    }
+
+    /**
+     * Construct new Object2ObjectLRUCache with eviction listener.
+     *
+     * @param maxWeight
+     *            the maximal total weight of the elements in the cache.
+     * @param weigher
+     *            the weigher of the elements, should return non negative
+     *            weight.
+     * @param evictionListener
+     *            listener that is called with the key and element of each
+     *            evicted element, may be null.
+     * @throws IllegalArgumentException
+     *             if maxWeight is not positive.
+     * @throws NullPointerException
+     *             if the weigher is null.
+     */
+    public Object2ObjectLRUCache(final long maxWeight, final ToLongFunction<? super E> weigher,
+	    final BiConsumer<? super K, ? super E> evictionListener) {
+	if (maxWeight <= 0)
+	    throw new IllegalArgumentException("maxWeight <= 0: " + maxWeight);
+	if (weigher == null)
+	    throw new NullPointerException("weigher");
+	map = new LinkedHashMap<>(Hashs.DEFAULT_INIT_CAPACITY, Hashs.DEFAULT_LOAD_FACTOR, true);
+	this.weigher = weigher;
+	this.maxWeight = maxWeight;
+	this.evictionListener = evictionListener;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the element's weight is greater than the maximal weight of the cache,
+     * the element is returned but not cached.
+     */
+    @Override
+    public E add(final K key, final E element) {
+	final List<Map.Entry<K, Entry<E>>> evicted;
+	synchronized (this) {
+	    final Entry<E> existing = map.get(key);
+	    if (existing != null)
+		return existing.element;
+	    final long elementWeight = weigher.applyAsLong(element);
+	    if (elementWeight > maxWeight)
+		return element;
+
+	    map.put(key, new Entry<>(element, elementWeight));
+	    weight += elementWeight;
+	    evicted = evict();
+	}
+	notifyEvicted(evicted);
+	return element;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void clear() {
+	map.clear();
+	weight = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized E get(final K key) {
+	final Entry<E> entry = map.get(key);
+	return entry != null ? entry.element : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void remove(final K key) {
+	final Entry<E> entry = map.remove(key);
+	if (entry != null)
+	    weight -= entry.weight;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int size() {
+	return map.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The lock is not held while the element is created, if another thread
+     * added an element with the same key meanwhile, the other element is
+     * returned.
+     */
+    @Override
+    public E getOrAdd(final K key, final Function<? super K, ? extends E> cachingFunction) {
+	final E element = get(key);
+	return element != null ? element : add(key, cachingFunction.apply(key));
+    }
+
+    /**
+     * Perform an action on each of the cached elements, from the least
+     * recently used to the most recently used.
+     * <p>
+     * The iteration doesn't mark the elements as recently used. The lock is
+     * held during the whole iteration, so the action should not access the
+     * cache.
+     *
+     * @param action
+     *            the action, called with the key and the element of each
+     *            cached element.
+     */
+    public synchronized void forEach(final BiConsumer<? super K, ? super E> action) {
+	for (final Map.Entry<K, Entry<E>> entry : map.entrySet())
+	    action.accept(entry.getKey(), entry.getValue().element);
+    }
+
+    /**
+     * Get the total weight of the cached elements.
+     *
+     * @return the weight of the cache.
+     */
+    public synchronized long weight() {
+	return weight;
+    }
+
+    /**
+     * Get the maximal total weight of the cached elements.
+     *
+     * @return the maximal weight of the cache.
+     */
+    public synchronized long maxWeight() {
+	return maxWeight;
+    }
+
+    /**
+     * Set the maximal total weight of the cached elements.
+     * <p>
+     * If the total weight of the cached elements is greater than the new
+     * maximal weight, the least recently used elements are evicted.
+     *
+     * @param maxWeight
+     *            the new maximal weight of the cache.
+     * @throws IllegalArgumentException
+     *             if maxWeight is not positive.
+     */
+    public void setMaxWeight(final long maxWeight) {
+	if (maxWeight <= 0)
+	    throw new IllegalArgumentException("maxWeight <= 0: " + maxWeight);
+	final List<Map.Entry<K, Entry<E>>> evicted;
+	synchronized (this) {
+	    this.maxWeight = maxWeight;
+	    evicted = evict();
+	}
+	notifyEvicted(evicted);
+    }
+
+    /**
+     * Remove the least recently used elements until the total weight is not
+     * greater than the maximal weight.
+     *
+     * @return the evicted entries, or null if the cache has no eviction
+     *         listener.
+     */
+    private List<Map.Entry<K, Entry<E>>> evict() {
+	final List<Map.Entry<K, Entry<E>>> evicted = evictionListener != null ? new ArrayList<>() : null;
+	for (final Iterator<Map.Entry<K, Entry<E>>> it = map.entrySet().iterator(); weight > maxWeight
+		&& it.hasNext();) {
+	    final Map.Entry<K, Entry<E>> entry = it.next();
+	    it.remove();
+	    weight -= entry.getValue().weight;
+	    if (evicted != null)
+		evicted.add(entry);
+	}
+	return evicted;
+    }
+
+    /**
+     * Notify the eviction listener of evicted entries.
+     *
+     * @param evicted
+     *            the evicted entries, may be null.
+     */
+    private void notifyEvicted(final List<Map.Entry<K, Entry<E>>> evicted) {
+	if (evicted != null)
+	    for (final Map.Entry<K, Entry<E>> entry : evicted)
+		evictionListener.accept(entry.getKey(), entry.getValue().element);
+    }
+
+    /**
+     * Cached element with its weight.
+     *
+     * @author Barak Ugav
+     * @author Yishai Gronich
+     *
+     * @param <E>
+     *            type of the element
+     */
+    private static class Entry<E> {
+
+	/**
+	 * The cached element.
+	 */
+	final E element;
+
+	/**
+	 * The weight of the element, when it was added.
+	 */
+	final long weight;
+
+	/**
+	 * Construct new Entry.
+	 *
+	 * @param element
+	 *            the cached element.
+	 * @param weight
+	 *            the weight of the element.
+	 */
+	Entry(final E element, final long weight) {
+	    this.element = element;
+	    this.weight = weight;
+	}
+
+    }
+
+}
@@ -0,0 +1,233 @@
+package breakingtherules.util;
+
+import java.util.Arrays;
+
+/**
+ * Counter of the occurrences of 128 bits keys, each key packed into two
+ * longs.
+ * <p>
+ * The counter is used to group identical records (for example, parsed hits)
+ * without creating an object for each record. The keys are kept in primitive
+ * arrays by the order of their first occurrence, and are indexed by a hash
+ * table of closed hashing managed by open addressing (linear probing). A slot
+ * in the table holds the index of a key plus one, or 0 if it's empty. Keys
+ * with the same hash are told apart by comparing the whole keys, so there are
+ * no false matches.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ */
+public class PackedKeysCounter {
+
+    /**
+     * The hash table, each slot is index of a key plus one, or 0 if empty.
+     * <p>
+     * The length of the table is always power of 2.
+     */
+    private int[] table;
+
+    /**
+     * The high 64 bits of the keys, by their index.
+     */
+    private long[] highs;
+
+    /**
+     * The low 64 bits of the keys, by their index.
+     */
+    private long[] lows;
+
+    /**
+     * The number of occurrences of the keys, by their index.
+     */
+    private int[] counts;
+
+    /**
+     * The number of distinct keys.
+     */
+    private int size;
+
+    /**
+     * The number of keys the table can hold before it's resized.
+     */
+    private int maxFill;
+
+    /**
+     * Construct new empty PackedKeysCounter.
+     */
+    public PackedKeysCounter() {
+	this(Hashs.DEFAULT_INIT_CAPACITY);
+    }
+
+    /**
+     * Construct new empty PackedKeysCounter with an expected number of keys.
+     *
+     * @param expectedSize
+     *            the expected number of distinct keys.
+     * @throws IllegalArgumentException
+     *             if the expected size is negative.
+     */
+    public PackedKeysCounter(final int expectedSize) {
+	if (expectedSize < 0)
+	    throw new IllegalArgumentException("expectedSize < 0: " + expectedSize);
+	final int capacity = Math.max(Hashs.DEFAULT_INIT_CAPACITY, expectedSize);
+	table = new int[tableSize(capacity)];
+	maxFill = (int) (table.length * Hashs.FAST_LOAD_FACTOR);
+	highs = new long[capacity];
+	lows = new long[capacity];
+	counts = new int[capacity];
+    }
+
+    /**
+     * Add one occurrence of a key.
+     *
+     * @param high
+     *            the high 64 bits of the key.
+     * @param low
+     *            the low 64 bits of the key.
+     * @return the index of the key, the number of distinct keys that occurred
+     *         before its first occurrence.
+     */
+    public int add(final long high, final long low) {
+	final int mask = table.length - 1;
+	for (int slot = hash(high, low) & mask;; slot = slot + 1 & mask) {
+	    final int entry = table[slot];
+	    if (entry == 0) {
+		// New key
+		final int index = size++;
+		if (index == counts.length) {
+		    final int capacity = index + (index >> 1);
+		    highs = Arrays.copyOf(highs, capacity);
+		    lows = Arrays.copyOf(lows, capacity);
+		    counts = Arrays.copyOf(counts, capacity);
+		}
+		highs[index] = high;
+		lows[index] = low;
+		counts[index] = 1;
+		table[slot] = index + 1;
+		if (size > maxFill)
+		    rehash();
+		return index;
+	    }
+	    if (highs[entry - 1] == high && lows[entry - 1] == low) {
+		counts[entry - 1]++;
+		return entry - 1;
+	    }
+	}
+    }
+
+    /**
+     * Get the number of distinct keys.
+     *
+     * @return the number of distinct keys.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Get the number of occurrences of a key.
+     *
+     * @param index
+     *            the index of the key.
+     * @return the number of occurrences of the key.
+     * @throws IndexOutOfBoundsException
+     *             if the index is out of range.
+     */
+    public int getCount(final int index) {
+	checkIndex(index);
+	return counts[index];
+    }
+
+    /**
+     * Get the high 64 bits of a key.
+     *
+     * @param index
+     *            the index of the key.
+     * @return the high 64 bits of the key.
+     * @throws IndexOutOfBoundsException
+     *             if the index is out of range.
+     */
+    public long getHigh(final int index) {
+	checkIndex(index);
+	return highs[index];
+    }
+
+    /**
+     * Get the low 64 bits of a key.
+     *
+     * @param index
+     *            the index of the key.
+     * @return the low 64 bits of the key.
+     * @throws IndexOutOfBoundsException
+     *             if the index is out of range.
+     */
+    public long getLow(final int index) {
+	checkIndex(index);
+	return lows[index];
+    }
+
+    /**
+     * Remove all keys.
+     */
+    public void clear() {
+	Arrays.fill(table, 0);
+	size = 0;
+    }
+
+    /**
+     * Check that an index is in range.
+     *
+     * @param index
+     *            the index.
+     * @throws IndexOutOfBoundsException
+     *             if the index is out of range.
+     */
+    private void checkIndex(final int index) {
+	if (index < 0 || index >= size)
+	    throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+    }
+
+    /**
+     * Double the size of the table and insert all keys to the new table.
+     */
+    private void rehash() {
+	final int[] newTable = new int[table.length * 2];
+	final int mask = newTable.length - 1;
+	for (int index = 0; index < size; index++) {
+	    int slot = hash(highs[index], lows[index]) & mask;
+	    while (newTable[slot] != 0)
+		slot = slot + 1 & mask;
+	    newTable[slot] = index + 1;
+	}
+	table = newTable;
+	maxFill = (int) (table.length * Hashs.FAST_LOAD_FACTOR);
+    }
+
+    /**
+     * Compute the hash of a key.
+     *
+     * @param high
+     *            the high 64 bits of the key.
+     * @param low
+     *            the low 64 bits of the key.
+     * @return the hash of the key.
+     */
+    private static int hash(final long high, final long low) {
+	final long h = high * 0x9E3779B97F4A7C15L + low;
+	return Hashs.mix((int) (h ^ h >>> 32));
+    }
+
+    /**
+     * Get the size of a table that can hold a number of keys.
+     *
+     * @param capacity
+     *            the number of keys.
+     * @return power of 2 table size.
+     */
+    private static int tableSize(final int capacity) {
+	final int minSize = (int) Math.ceil(capacity / Hashs.FAST_LOAD_FACTOR);
+	return Integer.highestOneBit(Math.max(minSize - 1, 1)) << 1;
+    }
+
+}
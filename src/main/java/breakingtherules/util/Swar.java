@@ -0,0 +1,257 @@
+package breakingtherules.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Utility class for SWAR (SIMD within a register) operations on text bytes.
+ * <p>
+ * Up to 8 bytes of text are loaded into a long word in little endian order
+ * (the first byte is the lowest byte of the word), and are examined all
+ * together by arithmetic on the word instead of a loop with a branch per
+ * byte. Bytes after the end of the text are loaded as zeros, which are not
+ * digits and not printable characters.
+ * <p>
+ * The methods that examine the bytes return masks of 8 bits, bit i stands for
+ * byte i of the word.
+ *
+ * @author Barak Ugav
+ * @author Yishai Gronich
+ *
+ */
+public class Swar {
+
+    /**
+     * The number of bytes in a word.
+     */
+    public static final int WORD_BYTES = Long.BYTES;
+
+    /**
+     * The maximal number of digits parsed from one word.
+     */
+    public static final int MAX_DIGITS_NUMBER = WORD_BYTES;
+
+    /**
+     * Word with 1 in each byte.
+     */
+    private static final long ONES = 0x0101010101010101L;
+
+    /**
+     * Word with the low 7 bits set in each byte.
+     */
+    private static final long LOW_7_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    /**
+     * Word with the high bit set in each byte.
+     */
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /**
+     * Word with the low 4 bits set in each byte.
+     */
+    private static final long LOW_NIBBLES = 0x0F0F0F0F0F0F0F0FL;
+
+    /**
+     * Multiplier that gathers the high bits of the bytes (after shifted to
+     * the low bits) into the highest byte of the word.
+     */
+    private static final long GATHER_MULTIPLIER = 0x0102040810204080L;
+
+    /**
+     * The byte a character that doesn't fit into one byte is loaded as. It's
+     * not a digit and not ASCII character.
+     */
+    private static final int NON_ASCII_BYTE = 0xff;
+
+    /**
+     * Suppresses default constructor, ensuring non-instantiability.
+     */
+    private Swar() {
+    }
+
+    /**
+     * Load up to 8 bytes from array into a word.
+     *
+     * @param bytes
+     *            the bytes array.
+     * @param from
+     *            the index of the first loaded byte.
+     * @param to
+     *            the end index of the text (exclusive), bytes from this index
+     *            are loaded as zeros.
+     * @return word of the bytes in little endian order.
+     */
+    public static long load(final byte[] bytes, final int from, final int to) {
+	long word = 0;
+	for (int index = Math.min(to, from + WORD_BYTES); index-- > from;)
+	    word = word << Byte.SIZE | bytes[index] & 0xff;
+	return word;
+    }
+
+    /**
+     * Load up to 8 bytes from buffer into a word.
+     * <p>
+     * The bytes are read in absolute positions, the buffer's position is not
+     * changed.
+     *
+     * @param buffer
+     *            the bytes buffer.
+     * @param from
+     *            the index of the first loaded byte.
+     * @param to
+     *            the end index of the text (exclusive), bytes from this index
+     *            are loaded as zeros.
+     * @return word of the bytes in little endian order.
+     */
+    public static long load(final ByteBuffer buffer, final int from, final int to) {
+	if (to - from >= WORD_BYTES) {
+	    final long word = buffer.getLong(from);
+	    return buffer.order() == ByteOrder.LITTLE_ENDIAN ? word : Long.reverseBytes(word);
+	}
+	long word = 0;
+	for (int index = to; index-- > from;)
+	    word = word << Byte.SIZE | buffer.get(index) & 0xff;
+	return word;
+    }
+
+    /**
+     * Load up to 8 characters from a sequence into a word.
+     * <p>
+     * Each character is loaded as one byte, characters that don't fit into a
+     * byte are loaded as a non ASCII byte.
+     *
+     * @param s
+     *            the characters sequence.
+     * @param from
+     *            the index of the first loaded character.
+     * @param to
+     *            the end index of the text (exclusive), characters from this
+     *            index are loaded as zeros.
+     * @return word of the characters in little endian order.
+     */
+    public static long load(final CharSequence s, final int from, final int to) {
+	long word = 0;
+	for (int index = Math.min(to, from + WORD_BYTES); index-- > from;) {
+	    final char c = s.charAt(index);
+	    word = word << Byte.SIZE | (c <= Byte.MAX_VALUE ? c : NON_ASCII_BYTE);
+	}
+	return word;
+    }
+
+    /**
+     * Get the word starting at some byte of text held in three words.
+     *
+     * @param word0
+     *            bytes 0 to 7 of the text.
+     * @param word1
+     *            bytes 8 to 15 of the text.
+     * @param word2
+     *            bytes 16 to 23 of the text.
+     * @param index
+     *            the index of the first byte of the returned word, in range
+     *            [0, 16].
+     * @return the 8 bytes of the text starting at the index, bytes after the
+     *         third word are zeros.
+     */
+    public static long wordAt(final long word0, final long word1, final long word2, final int index) {
+	final int wordIndex = index >>> 3;
+	final int shift = (index & 7) << 3;
+	final long low = wordIndex == 0 ? word0 : wordIndex == 1 ? word1 : word2;
+	if (shift == 0)
+	    return low;
+	final long high = wordIndex == 0 ? word1 : wordIndex == 1 ? word2 : 0;
+	return low >>> shift | high << Long.SIZE - shift;
+    }
+
+    /**
+     * Get the bytes of a word which are not ASCII digits ('0' to '9').
+     *
+     * @param word
+     *            the word.
+     * @return mask of the bytes which are not digits.
+     */
+    public static int nonDigits(final long word) {
+	// Non zero high nibble iff the high nibble is not 3
+	final long highNibbles = word & ~LOW_NIBBLES ^ 0x3030303030303030L;
+	// Bit 4 is set iff the low nibble is greater than 9
+	final long lowNibbles = (word & LOW_NIBBLES) + 0x0606060606060606L & 0x1010101010101010L;
+	return gather(nonZeroBytes(highNibbles | lowNibbles));
+    }
+
+    /**
+     * Get the bytes of a word which are equal to a character.
+     *
+     * @param word
+     *            the word.
+     * @param c
+     *            ASCII character.
+     * @return mask of the bytes equal to the character.
+     */
+    public static int equalBytes(final long word, final char c) {
+	return gather(~nonZeroBytes(word ^ c * ONES) & HIGH_BITS);
+    }
+
+    /**
+     * Parse a positive decimal number from the first bytes of a word.
+     * <p>
+     * The bytes after the number's digits are ignored.
+     *
+     * @param word
+     *            the word.
+     * @param length
+     *            the number of digits, in range [1, 8].
+     * @return the number, or -1 if any of the first bytes is not a digit.
+     */
+    public static int parseNumber(final long word, final int length) {
+	if ((nonDigits(word) & (1 << length) - 1) != 0)
+	    return -1;
+	return parseDigits(word, length);
+    }
+
+    /**
+     * Parse a positive decimal number from the first bytes of a word, without
+     * checking they are digits.
+     * <p>
+     * The digits are combined in pairs, then quads and then eights, 3
+     * multiplications for any number of digits.
+     *
+     * @param word
+     *            the word.
+     * @param length
+     *            the number of digits, in range [1, 8].
+     * @return the number.
+     */
+    public static int parseDigits(long word, final int length) {
+	// Move the digits to the high bytes, the leading bytes become zeros
+	word = (word << (WORD_BYTES - length) * Byte.SIZE) & LOW_NIBBLES;
+	word = word * 10 + (word >>> 8) & 0x00FF00FF00FF00FFL;
+	word = word * 100 + (word >>> 16) & 0x0000FFFF0000FFFFL;
+	word = word * 10000 + (word >>> 32) & 0x00000000FFFFFFFFL;
+	return (int) word;
+    }
+
+    /**
+     * Set the high bit of each non zero byte of a word.
+     *
+     * @param word
+     *            the word.
+     * @return word with the high bit of each non zero byte set, and all other
+     *         bits clear.
+     */
+    private static long nonZeroBytes(final long word) {
+	// Adding 0x7F to the low 7 bits never carries into the next byte
+	return ((word & LOW_7_BITS) + LOW_7_BITS | word) & HIGH_BITS;
+    }
+
+    /**
+     * Gather the high bits of the bytes of a word into a mask of 8 bits.
+     *
+     * @param highBits
+     *            word with no bits except the high bits of its bytes.
+     * @return the mask, bit i is the high bit of byte i.
+     */
+    private static int gather(final long highBits) {
+	return (int) ((highBits >>> 7) * GATHER_MULTIPLIER >>> 56);
+    }
+
+}
@@ -0,0 +1,646 @@
+package breakingtherules.tests.dao;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import breakingtherules.dao.AbstractCachedHitsDao;
+import breakingtherules.dao.DaoUtils;
+import breakingtherules.dao.ParseException;
+import breakingtherules.dao.csv.CSVHitsParser;
+import breakingtherules.dto.HitsPreviewDto;
+import breakingtherules.dto.ListDto;
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Attribute.AttributeType;
+import breakingtherules.firewall.Destination;
+import breakingtherules.firewall.Filter;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.IPv6;
+import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.Service;
+import breakingtherules.firewall.Source;
+import breakingtherules.firewall.WeightedHit;
+import breakingtherules.tests.TestBase;
+import breakingtherules.tests.firewall.FirewallTestsUtility;
+import breakingtherules.util.Utility;
+
+@SuppressWarnings("javadoc")
+public class CachedHitsDaoTest extends TestBase {
+
+    private static final String JOB_NAME = "job";
+
+    @Test
+    public void getHitsNumberTest() throws Exception {
+	final List<Hit> hits = getRandomHits(2000);
+	final MemoryHitsDao dao = new MemoryHitsDao(hits);
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 20; i++) {
+	    final Filter filter = getRandomFilter(hits);
+	    assertEquals(countMatching(hits, rules, filter), dao.getHitsNumber(JOB_NAME, rules, filter));
+	    assertEquals(countMatching(hits, rules, Filter.ANY_FILTER),
+		    dao.getHitsNumber(JOB_NAME, rules, Filter.ANY_FILTER));
+	    rules.add(getRandomRule(hits));
+	}
+    }
+
+    @Test
+    public void getHitsNumberTestRemoveRules() throws Exception {
+	final List<Hit> hits = getRandomHits(2000);
+	final MemoryHitsDao dao = new MemoryHitsDao(hits);
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 20; i++)
+	    rules.add(getRandomRule(hits));
+	while (!rules.isEmpty()) {
+	    rules.remove(rand.nextInt(rules.size()));
+	    final Filter filter = getRandomFilter(hits);
+	    assertEquals(countMatching(hits, rules, filter), dao.getHitsNumber(JOB_NAME, rules, filter));
+	}
+    }
+
+    @Test
+    public void getHitsNumberTestSharedPrefixes() throws Exception {
+	final List<Hit> hits = getRandomHits(2000);
+	final MemoryHitsDao dao = new MemoryHitsDao(hits);
+	final List<Rule> allRules = new ArrayList<>();
+	for (int i = 0; i < 10; i++)
+	    allRules.add(getRandomRule(hits));
+	final List<Filter> filters = new ArrayList<>();
+	for (int i = 0; i < 3; i++)
+	    filters.add(getRandomFilter(hits));
+
+	// Rules lists that branch from each other, each state queried again
+	for (int i = 0; i < 100; i++) {
+	    final List<Rule> rules = new ArrayList<>(allRules.subList(0, rand.nextInt(allRules.size() + 1)));
+	    if (rand.nextBoolean())
+		rules.add(getRandomRule(hits));
+	    final Filter filter = filters.get(rand.nextInt(filters.size()));
+	    final int expected = countMatching(hits, rules, filter);
+	    assertEquals(expected, dao.getHitsNumber(JOB_NAME, rules, filter));
+	    assertEquals(expected, dao.getHitsNumber(JOB_NAME, rules, filter));
+	}
+    }
+
+    @Test
+    public void getHitsNumberTestWeightedHits() throws Exception {
+	final List<Hit> hits = new ArrayList<>();
+	for (final Hit hit : getRandomHits(2000))
+	    hits.add(WeightedHit.valueOf(hit, rand.nextInt(5) + 1));
+	final MemoryHitsDao dao = new MemoryHitsDao(hits);
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 20; i++) {
+	    final Filter filter = getRandomFilter(hits);
+	    final List<Hit> expected = getMatching(hits, rules, filter);
+	    int expectedWeight = 0;
+	    for (final Hit hit : expected)
+		expectedWeight += hit.getWeight();
+	    assertEquals(expectedWeight, dao.getHitsNumber(JOB_NAME, rules, filter));
+	    assertEquals(expected.size(), dao.getUniqueHitsNumber(JOB_NAME, rules, filter));
+	    rules.add(getRandomRule(hits));
+	}
+    }
+
+    @Test
+    public void getHitsNumberTestSubnetFilter() throws Exception {
+	final List<Hit> hits = getRandomHits(2000);
+	// Add hits that can't be indexed by address
+	for (int i = 0; i < 100; i++)
+	    hits.add(new Hit(FirewallTestsUtility.getRandomAttributes()));
+	final MemoryHitsDao dao = new MemoryHitsDao(hits);
+	final List<Rule> noRules = Collections.emptyList();
+
+	for (int i = 0; i < 50; i++) {
+	    final Hit hit = hits.get(rand.nextInt(hits.size()));
+	    final Rule rule = FirewallTestsUtility.getRandomDenseRule(getRandomHits(1).get(0));
+	    final List<Attribute> attributes = new ArrayList<>();
+	    final AttributeType type = rand.nextBoolean() ? AttributeType.SOURCE : AttributeType.DESTINATION;
+	    attributes.add(rand.nextBoolean() ? rule.getAttribute(type) : hit.getAttribute(type));
+	    final Filter filter = new Filter(attributes);
+	    assertEquals(countMatching(hits, noRules, filter), dao.getHitsNumber(JOB_NAME, noRules, filter));
+	    assertEquals(getMatching(hits, noRules, filter),
+		    Utility.newArrayList(dao.getHits(JOB_NAME, noRules, filter)));
+	}
+    }
+
+    @Test
+    public void getHitsTest() throws Exception {
+	final List<Hit> hits = getRandomHits(2000);
+	final MemoryHitsDao dao = new MemoryHitsDao(hits);
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 10; i++) {
+	    final Filter filter = getRandomFilter(hits);
+	    final List<Hit> expected = getMatching(hits, rules, filter);
+	    assertEquals(expected, Utility.newArrayList(dao.getHits(JOB_NAME, rules, filter)));
+	    assertEquals(expected, dao.getHitsList(JOB_NAME, rules, filter).getData());
+	    rules.add(getRandomRule(hits));
+	}
+    }
+
+    @Test
+    public void getHitsStreamTest() throws Exception {
+	final List<Hit> hits = getRandomHits(20000);
+	final MemoryHitsDao dao = new MemoryHitsDao(hits);
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 5; i++)
+	    rules.add(getRandomRule(hits));
+	final Filter filter = getRandomFilter(hits);
+	final List<Hit> expected = getMatching(hits, rules, filter);
+
+	assertEquals(expected, dao.getHitsStream(JOB_NAME, rules, filter).collect(Collectors.toList()));
+	assertEquals(expected, dao.getHitsStream(JOB_NAME, rules, filter).parallel().collect(Collectors.toList()));
+	assertEquals(expected.size(), dao.getHitsStream(JOB_NAME, rules, filter).spliterator().getExactSizeIfKnown());
+	assertEquals(expected, Utility.newArrayList(dao.getHits(JOB_NAME, rules, filter)));
+
+	// Split sizes are exact
+	final Spliterator<Hit> suffix = dao.getHitsStream(JOB_NAME, rules, Filter.ANY_FILTER).spliterator();
+	final long size = suffix.getExactSizeIfKnown();
+	final Spliterator<Hit> prefix = suffix.trySplit();
+	final long prefixSize = prefix != null ? prefix.getExactSizeIfKnown() : 0;
+	assertEquals(size, prefixSize + suffix.getExactSizeIfKnown());
+	long count = 0;
+	if (prefix != null)
+	    while (prefix.tryAdvance(hit -> {
+		// Count only
+	    }))
+		count++;
+	assertEquals(prefixSize, count);
+    }
+
+    @Test
+    public void getAttributeHistogramTest() throws Exception {
+	final List<Hit> hits = new ArrayList<>();
+	for (final Hit hit : getRandomHits(2000))
+	    hits.add(WeightedHit.valueOf(hit, rand.nextInt(5) + 1));
+	final MemoryHitsDao dao = new MemoryHitsDao(hits);
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 5; i++)
+	    rules.add(getRandomRule(hits));
+	final Filter filter = getRandomFilter(hits);
+	for (final AttributeType type : AttributeType.values()) {
+	    final Map<Attribute, Integer> expected = new HashMap<>();
+	    for (final Hit hit : getMatching(hits, rules, filter))
+		expected.merge(hit.getAttribute(type), Integer.valueOf(hit.getWeight()), Integer::sum);
+	    assertEquals(expected, dao.getAttributeHistogram(JOB_NAME, rules, filter, type));
+	}
+    }
+
+    @Test
+    public void getHitsListTestPage() throws Exception {
+	final List<Hit> hits = getRandomHits(2000);
+	final MemoryHitsDao dao = new MemoryHitsDao(hits);
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 5; i++)
+	    rules.add(getRandomRule(hits));
+	final Filter filter = getRandomFilter(hits);
+	final List<Hit> expected = getMatching(hits, rules, filter);
+
+	for (int i = 0; i < 20; i++) {
+	    final int startIndex = rand.nextInt(expected.size() + 10);
+	    final int endIndex = startIndex + rand.nextInt(50);
+	    final ListDto<Hit> page = dao.getHitsList(JOB_NAME, rules, filter, startIndex, endIndex);
+	    assertEquals(expected.size(), page.getTotal());
+	    assertEquals(Utility.subList(expected, startIndex, endIndex - startIndex), page.getData());
+	}
+    }
+
+    @Test
+    public void getHitsListTestDeepPages() throws Exception {
+	final List<Hit> hits = getRandomHits(20000);
+	final MemoryHitsDao dao = new MemoryHitsDao(hits);
+	final List<Rule> rules = new ArrayList<>();
+	if (rand.nextBoolean())
+	    rules.add(getRandomRule(hits));
+	final List<Hit> expected = getMatching(hits, rules, Filter.ANY_FILTER);
+
+	for (int i = 0; i < 50; i++) {
+	    final int startIndex = rand.nextInt(expected.size() + 10);
+	    final int endIndex = startIndex + rand.nextInt(50);
+	    final ListDto<Hit> page = dao.getHitsList(JOB_NAME, rules, Filter.ANY_FILTER, startIndex, endIndex);
+	    assertEquals(Utility.subList(expected, startIndex, endIndex - startIndex), page.getData());
+	}
+    }
+
+    @Test
+    public void getHitsListTestEmpty() throws Exception {
+	final MemoryHitsDao dao = new MemoryHitsDao(getRandomHits(2000));
+	// The random hits have IPv4 sources only
+	final Filter filter = new Filter(Arrays.asList(Source.valueOf(IPv6.valueOfBits(new int[4], (short) 128)),
+		Destination.ANY_DESTINATION, Service.ANY_SERVICE));
+	for (int i = 0; i < 5; i++) {
+	    final int startIndex = rand.nextInt(10);
+	    final ListDto<Hit> page = dao.getHitsList(JOB_NAME, new ArrayList<>(), filter, startIndex,
+		    startIndex + rand.nextInt(50));
+	    assertTrue(page.getData().isEmpty());
+	    assertEquals(0, page.getStartIndex());
+	    assertEquals(0, page.getEndIndex());
+	    assertEquals(0, page.getTotal());
+	}
+    }
+
+    @Test
+    public void memoryBudgetTestSpillAndReload() throws Exception {
+	runTempFileTest(getCurrentMethodName(), ".snapshot", file -> {
+	    final String otherJob = JOB_NAME + "_other";
+	    final List<Hit> hits = new ArrayList<>();
+	    for (final Hit hit : getRandomHits(2000))
+		hits.add(WeightedHit.valueOf(hit, rand.nextInt(5) + 1));
+	    final SpillingHitsDao dao = new SpillingHitsDao(file);
+	    dao.m_jobs.put(JOB_NAME, hits);
+	    dao.m_jobs.put(otherJob, getRandomHits(2000));
+	    try {
+		// Budget of one job, each job evicts the other one
+		dao.setMemoryBudget(1);
+		final List<Rule> noRules = Collections.emptyList();
+		final int expectedNumber = dao.getHitsNumber(JOB_NAME, noRules, Filter.ANY_FILTER);
+		dao.getHitsNumber(otherJob, noRules, Filter.ANY_FILTER);
+		assertTrue(dao.getSnapshotFile(JOB_NAME).isFile());
+
+		assertEquals(expectedNumber, dao.getHitsNumber(JOB_NAME, noRules, Filter.ANY_FILTER));
+		assertEquals(hits, Utility.newArrayList(dao.getHits(JOB_NAME, noRules, Filter.ANY_FILTER)));
+		assertEquals(1, dao.m_loadsNumber.get(JOB_NAME).intValue());
+		assertEquals(1, dao.m_loadsNumber.get(otherJob).intValue());
+	    } finally {
+		dao.getSnapshotFile(JOB_NAME).delete();
+		dao.getSnapshotFile(otherJob).delete();
+	    }
+	});
+    }
+
+    @Test
+    public void getHitsNumberTestConcurrentLoad() throws Exception {
+	runTempFileTest(getCurrentMethodName(), ".snapshot", file -> {
+	    final List<Hit> hits = getRandomHits(2000);
+	    final SpillingHitsDao dao = new SpillingHitsDao(file) {
+		@Override
+		protected Iterable<Hit> getHits(final String jobName) throws ParseException {
+		    try {
+			// Slow load, so the other thread requests the job meanwhile
+			Thread.sleep(200);
+		    } catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		    }
+		    synchronized (this) {
+			return super.getHits(jobName);
+		    }
+		}
+	    };
+	    dao.m_jobs.put(JOB_NAME, hits);
+	    final ExecutorService executor = Executors.newFixedThreadPool(2);
+	    try {
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		final Callable<Integer> task = () -> {
+		    barrier.await();
+		    return Integer.valueOf(dao.getHitsNumber(JOB_NAME, Collections.emptyList(), Filter.ANY_FILTER));
+		};
+		final Future<Integer> first = executor.submit(task);
+		final Future<Integer> second = executor.submit(task);
+		assertEquals(hits.size(), first.get().intValue());
+		assertEquals(hits.size(), second.get().intValue());
+		assertEquals(1, dao.m_loadsNumber.get(JOB_NAME).intValue());
+	    } finally {
+		executor.shutdownNow();
+		dao.getSnapshotFile(JOB_NAME).delete();
+	    }
+	});
+    }
+
+    @Test
+    public void snapshotTestWrittenOnFirstLoad() throws Exception {
+	runTempFileTest(getCurrentMethodName(), ".snapshot", file -> {
+	    final List<Hit> hits = new ArrayList<>();
+	    for (int i = 0; i < 500; i++)
+		hits.add(WeightedHit.valueOf(new Hit(FirewallTestsUtility.getRandomAttributes()),
+			rand.nextInt(5) + 1));
+	    final SpillingHitsDao dao = new SpillingHitsDao(file);
+	    dao.m_jobs.put(JOB_NAME, hits);
+	    try {
+		final List<Rule> noRules = Collections.emptyList();
+		assertEquals(hits, Utility.newArrayList(dao.getHits(JOB_NAME, noRules, Filter.ANY_FILTER)));
+		assertTrue(dao.getSnapshotFile(JOB_NAME).isFile());
+
+		// New DAO, the job is loaded from the snapshot
+		final SpillingHitsDao otherDao = new SpillingHitsDao(file);
+		final List<Hit> loadedHits = Utility
+			.newArrayList(otherDao.getHits(JOB_NAME, noRules, Filter.ANY_FILTER));
+		assertEquals(hits, loadedHits);
+		for (int i = 0; i < hits.size(); i++)
+		    assertEquals(hits.get(i).getWeight(), loadedHits.get(i).getWeight());
+		assertTrue(otherDao.m_loadsNumber.isEmpty());
+	    } finally {
+		dao.getSnapshotFile(JOB_NAME).delete();
+	    }
+	});
+    }
+
+    @Test
+    public void snapshotTestHitsFileChangedInSameTick() throws Exception {
+	runTempFileTest(getCurrentMethodName(), ".snapshot", file -> {
+	    final File hitsFile = new File(file.getPath() + ".hits");
+	    // Coarse modification time, the same for the hits file and the snapshot
+	    final long mtime = System.currentTimeMillis() / 2000 * 2000;
+	    final List<Hit> hits = getRandomHits(500);
+	    final List<Rule> noRules = Collections.emptyList();
+	    try {
+		Files.write(hitsFile.toPath(), new byte[] { 1 });
+		hitsFile.setLastModified(mtime);
+		final SpillingHitsDao dao = new FileSpillingHitsDao(file, hitsFile);
+		dao.m_jobs.put(JOB_NAME, hits);
+		dao.getHitsNumber(JOB_NAME, noRules, Filter.ANY_FILTER);
+		assertTrue(dao.getSnapshotFile(JOB_NAME).setLastModified(mtime));
+
+		// The snapshot is up to date, although it's not newer than the hits file
+		final SpillingHitsDao otherDao = new FileSpillingHitsDao(file, hitsFile);
+		assertEquals(hits.size(), otherDao.getHitsNumber(JOB_NAME, noRules, Filter.ANY_FILTER));
+		assertTrue(otherDao.m_loadsNumber.isEmpty());
+
+		// The hits file is changed in the same tick, the snapshot is stale
+		Files.write(hitsFile.toPath(), new byte[] { 1, 2 });
+		hitsFile.setLastModified(mtime);
+		final List<Hit> changedHits = getRandomHits(300);
+		final SpillingHitsDao changedDao = new FileSpillingHitsDao(file, hitsFile);
+		changedDao.m_jobs.put(JOB_NAME, changedHits);
+		assertEquals(changedHits.size(), changedDao.getHitsNumber(JOB_NAME, noRules, Filter.ANY_FILTER));
+		assertEquals(1, changedDao.m_loadsNumber.get(JOB_NAME).intValue());
+	    } finally {
+		new File(file.getPath() + '.' + JOB_NAME).delete();
+		hitsFile.delete();
+	    }
+	});
+    }
+
+    @Test
+    public void initJobTestCached() throws Exception {
+	runTempFileTest(getCurrentMethodName(), ".snapshot", file -> {
+	    final List<Hit> hits = new ArrayList<>();
+	    for (final Hit hit : getRandomHits(1000))
+		hits.add(WeightedHit.valueOf(hit, rand.nextInt(5) + 1));
+	    final SpillingHitsDao dao = new SpillingHitsDao(file);
+	    try {
+		dao.initJob(JOB_NAME, hits);
+		assertTrue(dao.getSnapshotFile(JOB_NAME).isFile());
+
+		// The job is used without loading its hits
+		final List<Rule> noRules = Collections.emptyList();
+		assertEquals(hits, Utility.newArrayList(dao.getHits(JOB_NAME, noRules, Filter.ANY_FILTER)));
+		assertEquals(hits.stream().mapToInt(Hit::getWeight).sum(),
+			dao.getHitsNumber(JOB_NAME, noRules, Filter.ANY_FILTER));
+		assertTrue(dao.m_loadsNumber.isEmpty());
+	    } finally {
+		dao.getSnapshotFile(JOB_NAME).delete();
+	    }
+	});
+    }
+
+    @Test
+    public void previewHitsTestMemory() throws Exception {
+	runTempFileTest(getCurrentMethodName(), ".csv", file -> {
+	    final List<Hit> hits = getRandomHits(100);
+	    CSVHitsParser.toCSV(CSVHitsParser.DEFAULT_COLUMNS_TYPES, hits, file.getAbsolutePath());
+
+	    final HitsPreviewDto preview = new MemoryHitsDao(hits).previewHits(file.getAbsolutePath(),
+		    CSVHitsParser.DEFAULT_COLUMNS_TYPES);
+	    assertEquals(hits.size(), preview.getEstimatedHitsNumber());
+	    assertTrue(preview.getEstimatedMemoryBytes() > 0);
+	});
+    }
+
+    @Test
+    public void appendHitsTest() throws Exception {
+	runTempFileTest(getCurrentMethodName(), ".snapshot", file -> {
+	    final List<Hit> hits = new ArrayList<>();
+	    for (final Hit hit : getRandomHits(1000))
+		hits.add(WeightedHit.valueOf(hit, rand.nextInt(5) + 1));
+	    final SpillingHitsDao dao = new SpillingHitsDao(file);
+	    dao.m_jobs.put(JOB_NAME, new ArrayList<>(hits));
+	    try {
+		final List<Rule> rules = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+		    rules.add(getRandomRule(hits));
+		final List<Filter> filters = new ArrayList<>();
+		for (int i = 0; i < 3; i++)
+		    filters.add(getRandomFilter(hits));
+
+		// Warm the caches of the rules and the filters
+		for (int i = 0; i <= rules.size(); i++)
+		    for (final Filter filter : filters)
+			dao.getHitsNumber(JOB_NAME, rules.subList(0, i), filter);
+
+		// Append new hits and duplicates of existing hits
+		final List<Hit> appended = new ArrayList<>();
+		for (final Hit hit : getRandomHits(500))
+		    appended.add(WeightedHit.valueOf(hit, rand.nextInt(5) + 1));
+		for (int i = 0; i < 100; i++)
+		    appended.add(hits.get(rand.nextInt(hits.size())));
+		Collections.shuffle(appended, rand);
+		dao.appendHits(JOB_NAME, appended);
+
+		final Map<Hit, Integer> weights = new LinkedHashMap<>();
+		for (final Hit hit : hits)
+		    weights.merge(hit, Integer.valueOf(hit.getWeight()), Integer::sum);
+		for (final Hit hit : appended)
+		    weights.merge(hit, Integer.valueOf(hit.getWeight()), Integer::sum);
+		final List<Hit> expected = new ArrayList<>();
+		for (final Map.Entry<Hit, Integer> entry : weights.entrySet())
+		    expected.add(WeightedHit.valueOf(entry.getKey(), entry.getValue().intValue()));
+
+		for (int i = 0; i <= rules.size(); i++) {
+		    final Filter filter = filters.get(rand.nextInt(filters.size()));
+		    final List<Rule> prefix = rules.subList(0, i);
+		    final List<Hit> matching = getMatching(expected, prefix, filter);
+		    int expectedWeight = 0;
+		    for (final Hit hit : matching)
+			expectedWeight += hit.getWeight();
+		    assertEquals(expectedWeight, dao.getHitsNumber(JOB_NAME, prefix, filter));
+		    assertEquals(matching.size(), dao.getUniqueHitsNumber(JOB_NAME, prefix, filter));
+		}
+		final List<Hit> actual = Utility.newArrayList(dao.getHits(JOB_NAME, rules, Filter.ANY_FILTER));
+		final List<Hit> expectedUncovered = getMatching(expected, rules, Filter.ANY_FILTER);
+		assertEquals(expectedUncovered, actual);
+		for (int i = 0; i < actual.size(); i++)
+		    assertEquals(expectedUncovered.get(i).getWeight(), actual.get(i).getWeight());
+
+		// The job wasn't parsed again
+		assertEquals(1, dao.m_loadsNumber.get(JOB_NAME).intValue());
+		assertEquals(hits.size() + appended.size(), dao.m_jobs.get(JOB_NAME).size());
+	    } finally {
+		dao.getSnapshotFile(JOB_NAME).delete();
+	    }
+	});
+    }
+
+    @Test
+    public void appendHitsTestConcurrentLoad() throws Exception {
+	runTempFileTest(getCurrentMethodName(), ".snapshot", file -> {
+	    final List<Hit> hits = getRandomHits(1000);
+	    final CountDownLatch loading = new CountDownLatch(1);
+	    final SpillingHitsDao dao = new SpillingHitsDao(file) {
+		@Override
+		protected Iterable<Hit> getHits(final String jobName) throws ParseException {
+		    final List<Hit> parsed = Utility.newArrayList(super.getHits(jobName));
+		    loading.countDown();
+		    try {
+			// Slow load, so the hits are appended meanwhile
+			Thread.sleep(200);
+		    } catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		    }
+		    return parsed;
+		}
+	    };
+	    dao.m_jobs.put(JOB_NAME, new ArrayList<>(hits));
+	    final ExecutorService executor = Executors.newSingleThreadExecutor();
+	    try {
+		final List<Rule> noRules = Collections.emptyList();
+		final Future<Integer> load = executor
+			.submit(() -> Integer.valueOf(dao.getHitsNumber(JOB_NAME, noRules, Filter.ANY_FILTER)));
+		loading.await();
+		final List<Hit> appended = getRandomHits(100);
+		appended.removeAll(hits);
+		dao.appendHits(JOB_NAME, appended);
+		load.get();
+
+		final int expected = hits.size() + appended.size();
+		assertEquals(expected, dao.getHitsNumber(JOB_NAME, noRules, Filter.ANY_FILTER));
+		// The snapshot, if written, contains the appended hits
+		final SpillingHitsDao otherDao = new SpillingHitsDao(file);
+		otherDao.m_jobs.put(JOB_NAME, dao.m_jobs.get(JOB_NAME));
+		assertEquals(expected, otherDao.getHitsNumber(JOB_NAME, noRules, Filter.ANY_FILTER));
+	    } finally {
+		executor.shutdownNow();
+		dao.getSnapshotFile(JOB_NAME).delete();
+	    }
+	});
+    }
+
+    static List<Hit> getRandomHits(final int size) {
+	final List<Hit> hits = new ArrayList<>(Utility.newHashSet(randomHitsIterable(size)));
+	Collections.shuffle(hits, rand);
+	return hits;
+    }
+
+    static Rule getRandomRule(final List<Hit> hits) {
+	return FirewallTestsUtility.getRandomDenseRule(hits.get(rand.nextInt(hits.size())));
+    }
+
+    static Filter getRandomFilter(final List<Hit> hits) {
+	if (rand.nextInt(4) == 0)
+	    return Filter.ANY_FILTER;
+	return new Filter(getRandomRule(hits).getAttributes());
+    }
+
+    static int countMatching(final List<Hit> hits, final List<Rule> rules, final Filter filter) {
+	return getMatching(hits, rules, filter).size();
+    }
+
+    static List<Hit> getMatching(final List<Hit> hits, final List<Rule> rules, final Filter filter) {
+	final List<Hit> matching = new ArrayList<>();
+	for (final Hit hit : hits)
+	    if (DaoUtils.isMatch(hit, rules, filter))
+		matching.add(hit);
+	return matching;
+    }
+
+    private static Iterable<Hit> randomHitsIterable(final int size) {
+	final List<Hit> hits = new ArrayList<>(size);
+	for (int i = 0; i < size; i++)
+	    hits.add(FirewallTestsUtility.getRandomDenseHit());
+	return hits;
+    }
+
+    static class MemoryHitsDao extends AbstractCachedHitsDao {
+
+	private final List<Hit> m_hits;
+
+	MemoryHitsDao(final List<Hit> hits) {
+	    m_hits = hits;
+	}
+
+	@Override
+	public void initJob(final String jobName, final Iterable<Hit> hits) {
+	    throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected Iterable<Hit> getHits(final String jobName) throws ParseException {
+	    if (!JOB_NAME.equals(jobName))
+		throw new ParseException("Unknown job: " + jobName);
+	    return m_hits;
+	}
+
+    }
+
+    static class SpillingHitsDao extends AbstractCachedHitsDao {
+
+	final Map<String, List<Hit>> m_jobs;
+
+	final Map<String, Integer> m_loadsNumber;
+
+	private final File m_snapshotsBase;
+
+	SpillingHitsDao(final File snapshotsBase) {
+	    m_jobs = new HashMap<>();
+	    m_loadsNumber = new HashMap<>();
+	    m_snapshotsBase = snapshotsBase;
+	}
+
+	@Override
+	public void initJob(final String jobName, final Iterable<Hit> hits) {
+	    m_jobs.put(jobName, Utility.newArrayList(hits));
+	    cacheJob(jobName, hits);
+	}
+
+	@Override
+	protected Iterable<Hit> getHits(final String jobName) throws ParseException {
+	    final List<Hit> hits = m_jobs.get(jobName);
+	    if (hits == null)
+		throw new ParseException("Unknown job: " + jobName);
+	    m_loadsNumber.merge(jobName, Integer.valueOf(1), (a, b) -> Integer.valueOf(a.intValue() + b.intValue()));
+	    return hits;
+	}
+
+	@Override
+	protected void writeAppendedHits(final String jobName, final List<Hit> hits) {
+	    m_jobs.get(jobName).addAll(hits);
+	}
+
+	@Override
+	protected File getSnapshotFile(final String jobName) {
+	    return new File(m_snapshotsBase.getPath() + '.' + jobName);
+	}
+
+    }
+
+    static class FileSpillingHitsDao extends SpillingHitsDao {
+
+	private final File m_hitsFile;
+
+	FileSpillingHitsDao(final File snapshotsBase, final File hitsFile) {
+	    super(snapshotsBase);
+	    m_hitsFile = hitsFile;
+	}
+
+	@Override
+	protected File getHitsFile(final String jobName) {
+	    return m_hitsFile;
+	}
+
+    }
+
+}
@@ -0,0 +1,87 @@
+package breakingtherules.tests.dao.csv;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import breakingtherules.dao.DaoConfig;
+import breakingtherules.dao.csv.CSVDaoConfig;
+import breakingtherules.dao.csv.CSVHitsDao;
+import breakingtherules.dao.csv.CSVHitsParser;
+import breakingtherules.firewall.Destination;
+import breakingtherules.firewall.Filter;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.Service;
+import breakingtherules.firewall.Source;
+import breakingtherules.tests.TestBase;
+import breakingtherules.tests.firewall.FirewallTestsUtility;
+
+@SuppressWarnings("javadoc")
+public class CSVHitsDaoTest extends TestBase {
+
+    @Test
+    public void appendHitsTestZipUpload() throws Exception {
+	final String jobName = "breakingtherules_tests_" + getCurrentMethodName();
+	final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+	final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
+	final Set<Hit> uploaded = new LinkedHashSet<>(getRandomHits(300));
+	final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	try (final ZipOutputStream out = new ZipOutputStream(bytes)) {
+	    out.putNextEntry(new ZipEntry("hits.csv"));
+	    for (final Hit hit : uploaded)
+		out.write((parser.toCSV(hit) + '\n').getBytes(StandardCharsets.UTF_8));
+	    out.closeEntry();
+	}
+
+	final File repository = new File(DaoConfig.getRepoRoot(jobName));
+	repository.mkdirs();
+	try {
+	    final CSVHitsDao dao = new CSVHitsDao();
+	    dao.initJob(jobName, new ByteArrayInputStream(bytes.toByteArray()), columnsTypes);
+	    final List<Hit> appended = new ArrayList<>(getRandomHits(100));
+	    appended.removeAll(uploaded);
+	    dao.appendHits(jobName, appended);
+
+	    final Set<Hit> expected = new HashSet<>(uploaded);
+	    expected.addAll(appended);
+	    final Set<Hit> actual = new HashSet<>();
+	    for (final Hit hit : dao.getHits(jobName, Collections.emptyList(), Filter.ANY_FILTER))
+		actual.add(hit);
+	    assertEquals(expected, actual);
+
+	    // The job's file is a plain CSV file with the appended hits
+	    final Set<Hit> written = new HashSet<>();
+	    for (final Hit hit : CSVHitsParser.parseUniqueHits(columnsTypes, CSVDaoConfig.getHitsFile(jobName)))
+		written.add(hit);
+	    assertEquals(expected, written);
+	} finally {
+	    final File[] files = repository.listFiles();
+	    if (files != null)
+		for (final File file : files)
+		    file.delete();
+	    repository.delete();
+	}
+    }
+
+    private static List<Hit> getRandomHits(final int number) {
+	final List<Hit> hits = new ArrayList<>(number);
+	for (int i = number; i-- != 0;)
+	    hits.add(new Hit(Arrays.asList(Source.valueOf(FirewallTestsUtility.getRandomIP()),
+		    Destination.valueOf(FirewallTestsUtility.getRandomIP()), Service.valueOf(
+			    FirewallTestsUtility.getRandomProtocolCode(), FirewallTestsUtility.getRandomPort()))));
+	return hits;
+    }
+
+}
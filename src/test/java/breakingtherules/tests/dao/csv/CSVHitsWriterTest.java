@@ -0,0 +1,100 @@
+package breakingtherules.tests.dao.csv;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import breakingtherules.dao.csv.CSVHitsParser;
+import breakingtherules.dao.csv.CSVHitsWriter;
+import breakingtherules.dao.csv.CSVParseException;
+import breakingtherules.firewall.Destination;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.Service;
+import breakingtherules.firewall.Source;
+import breakingtherules.firewall.WeightedHit;
+import breakingtherules.tests.TestBase;
+import breakingtherules.tests.firewall.FirewallTestsUtility;
+
+@SuppressWarnings("javadoc")
+public class CSVHitsWriterTest extends TestBase {
+
+    @Test
+    public void writeTest() throws Exception {
+	final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+	final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
+	final List<Hit> hits = getRandomHits(1000);
+	// Any IPs and any protocol are formatted as strings
+	hits.add(new Hit(Arrays.asList(Source.ANY_SOURCE, Destination.valueOf("0.0.0.0/0"),
+		Service.valueOf(Service.ANY_PROTOCOL, 80))));
+
+	final StringBuilder expected = new StringBuilder();
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	try (final CSVHitsWriter writer = new CSVHitsWriter(columnsTypes, out)) {
+	    for (final Hit hit : hits) {
+		writer.write(hit);
+		expected.append(parser.toCSV(hit)).append(System.lineSeparator());
+	    }
+	}
+	assertEquals(expected.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void writeTestWeightedHits() throws Exception {
+	final List<Integer> columnsTypes = Arrays.asList(CSVHitsParser.DESTINATION, CSVHitsParser.SOURCE);
+	final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
+	final StringBuilder expected = new StringBuilder();
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	try (final CSVHitsWriter writer = new CSVHitsWriter(columnsTypes, out)) {
+	    for (final Hit hit : getRandomHits(200)) {
+		final int weight = rand.nextInt(5) + 1;
+		writer.write(WeightedHit.valueOf(hit, weight));
+		for (int i = weight; i-- != 0;)
+		    expected.append(parser.toCSV(hit)).append(System.lineSeparator());
+	    }
+	}
+	assertEquals(expected.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void writeAllTestOrder() throws Exception {
+	final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+	final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
+	// Many batches, formatted by several threads
+	final List<Hit> hits = getRandomHits(200_000);
+
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	try (final CSVHitsWriter writer = new CSVHitsWriter(columnsTypes, out)) {
+	    writer.write(hits.get(0));
+	    writer.writeAll(hits.subList(1, hits.size()));
+	}
+
+	final String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split(System.lineSeparator());
+	assertEquals(hits.size(), lines.length);
+	for (int i = 0; i < lines.length; i++)
+	    assertEquals(parser.toCSV(hits.get(i)), lines[i]);
+    }
+
+    @Test(expected = CSVParseException.class)
+    public void writeTestMissingAttribute() throws Exception {
+	final Hit hit = new Hit(Arrays.asList(FirewallTestsUtility.getRandomSource(),
+		FirewallTestsUtility.getRandomDestination()));
+	try (final CSVHitsWriter writer = new CSVHitsWriter(CSVHitsParser.DEFAULT_COLUMNS_TYPES,
+		new ByteArrayOutputStream())) {
+	    writer.write(hit);
+	}
+    }
+
+    private static List<Hit> getRandomHits(final int number) {
+	final List<Hit> hits = new ArrayList<>(number);
+	for (int i = number; i-- != 0;)
+	    hits.add(new Hit(Arrays.asList(Source.valueOf(FirewallTestsUtility.getRandomIP()),
+		    Destination.valueOf(FirewallTestsUtility.getRandomIP()), Service.valueOf(
+			    FirewallTestsUtility.getRandomProtocolCode(), FirewallTestsUtility.getRandomPort()))));
+	return hits;
+    }
+
+}
@@ -1,25 +1,49 @@
 package breakingtherules.tests.dao.csv;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Test;
 
+import breakingtherules.dao.csv.CSVHitsColumns;
 import breakingtherules.dao.csv.CSVHitsParser;
 import breakingtherules.dao.csv.CSVParseException;
+import breakingtherules.dto.HitsPreviewDto;
 import breakingtherules.firewall.Destination;
 import breakingtherules.firewall.Hit;
 import breakingtherules.firewall.Service;
 import breakingtherules.firewall.Source;
+import breakingtherules.firewall.WeightedHit;
 import breakingtherules.tests.TestBase;
 import breakingtherules.tests.firewall.FirewallTestsUtility;
+import breakingtherules.util.Utility;
 
 @SuppressWarnings("javadoc")
 public class CSVParserTest extends TestBase {
@@ -84,6 +108,351 @@ public class CSVParserTest extends TestBase {
 	});
     }
 
+    @Test
+    public void parseUniqueHitsTestWeights() throws Exception {
+	runTempFileTest(getCurrentMethodName(), CSV_SUFFIX, file -> {
+	    try {
+		final List<Hit> hits = new ArrayList<>();
+		final Map<Hit, Integer> expected = new HashMap<>();
+		for (int i = 1000; i-- != 0;) {
+		    final Hit hit = WeightedHit.valueOf(
+			    new Hit(Arrays.asList(Source.valueOf(FirewallTestsUtility.getRandomIP()),
+				    Destination.valueOf(FirewallTestsUtility.getRandomIP()),
+				    Service.valueOf(FirewallTestsUtility.getRandomProtocolCode(),
+					    FirewallTestsUtility.getRandomPort()))),
+			    rand.nextInt(4) + 1);
+		    hits.add(hit);
+		    expected.merge(hit, Integer.valueOf(hit.getWeight()), Integer::sum);
+		}
+		final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+		CSVHitsParser.toCSV(columnsTypes, hits, file.getAbsolutePath());
+
+		final Map<Hit, Integer> actual = new HashMap<>();
+		for (final Hit hit : CSVHitsParser.parseUniqueHits(columnsTypes, file.getAbsolutePath()))
+		    assertNull(actual.put(hit, Integer.valueOf(hit.getWeight())));
+		assertEquals(expected, actual);
+
+	    } catch (final Exception e) {
+		e.printStackTrace();
+		fail(e.getMessage());
+	    }
+	});
+    }
+
+    @Test
+    public void parseHitsTestMultipleChunks() throws Exception {
+	runTempFileTest(getCurrentMethodName(), CSV_SUFFIX, file -> {
+	    final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+	    final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
+	    final List<String> lines = new ArrayList<>();
+	    final List<Hit> lineHits = new ArrayList<>();
+	    for (int i = 2000; i-- != 0;) {
+		final String line = FirewallTestsUtility.getRandomIP() + "\t" + FirewallTestsUtility.getRandomIP()
+			+ "\t" + FirewallTestsUtility.getRandomPort() + "\t"
+			+ FirewallTestsUtility.getRandomProtocolCode();
+		lines.add(line);
+		lineHits.add(parser.parseHit(line));
+	    }
+
+	    // Big enough to be split to a few chunks
+	    final long fileSize = 12 << 20;
+	    final List<Hit> expected = new ArrayList<>();
+	    final Map<Hit, Integer> expectedWeights = new LinkedHashMap<>();
+	    try (final BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+		for (long size = 0; size < fileSize;) {
+		    final int index = rand.nextInt(lines.size());
+		    writer.write(lines.get(index));
+		    writer.newLine();
+		    size += lines.get(index).length() + 1;
+		    expected.add(lineHits.get(index));
+		    expectedWeights.merge(lineHits.get(index), Integer.valueOf(1), Integer::sum);
+		}
+	    }
+
+	    final List<Hit> actual = new ArrayList<>();
+	    for (final Hit hit : CSVHitsParser.parseAllHits(columnsTypes, file.getAbsolutePath()))
+		actual.add(hit);
+	    assertEquals(expected, actual);
+
+	    final List<Hit> actualUnique = new ArrayList<>();
+	    final List<Integer> actualWeights = new ArrayList<>();
+	    for (final Hit hit : CSVHitsParser.parseUniqueHits(columnsTypes, file.getAbsolutePath())) {
+		actualUnique.add(hit);
+		actualWeights.add(Integer.valueOf(hit.getWeight()));
+	    }
+	    assertEquals(new ArrayList<>(expectedWeights.keySet()), actualUnique);
+	    assertEquals(new ArrayList<>(expectedWeights.values()), actualWeights);
+	});
+    }
+
+    @Test
+    public void parseHitsTestGzip() throws Exception {
+	runTempFileTest(getCurrentMethodName(), CSV_SUFFIX + ".gz", file -> {
+	    final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+	    final List<Hit> expected = new ArrayList<>();
+	    // Bigger than one decompressed block
+	    final long textSize = 6 << 20;
+	    try (final Writer writer = new BufferedWriter(
+		    new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file))))) {
+		final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
+		for (long size = 0; size < textSize;) {
+		    final String line = FirewallTestsUtility.getRandomIP() + "\t" + FirewallTestsUtility.getRandomIP()
+			    + "\t" + FirewallTestsUtility.getRandomPort() + "\t"
+			    + FirewallTestsUtility.getRandomProtocolCode();
+		    expected.add(parser.parseHit(line));
+		    writer.write(line);
+		    writer.write('\n');
+		    size += line.length() + 1;
+		}
+	    }
+
+	    final List<Hit> actual = new ArrayList<>();
+	    for (final Hit hit : CSVHitsParser.parseAllHits(columnsTypes, file.getAbsolutePath()))
+		actual.add(hit);
+	    assertEquals(expected, actual);
+	});
+    }
+
+    @Test
+    public void parseHitsTestZip() throws Exception {
+	runTempFileTest(getCurrentMethodName(), ".zip", file -> {
+	    final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+	    final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
+	    final List<Hit> expected = new ArrayList<>();
+	    try (final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+		for (int entry = 0; entry < 3; entry++) {
+		    out.putNextEntry(new ZipEntry("hits" + entry + CSV_SUFFIX));
+		    for (int i = 100; i-- != 0;) {
+			final Hit hit = new Hit(Arrays.asList(Source.valueOf(FirewallTestsUtility.getRandomIP()),
+				Destination.valueOf(FirewallTestsUtility.getRandomIP()),
+				Service.valueOf(FirewallTestsUtility.getRandomProtocolCode(),
+					FirewallTestsUtility.getRandomPort())));
+			expected.add(hit);
+			out.write((parser.toCSV(hit) + '\n').getBytes(StandardCharsets.UTF_8));
+		    }
+		    out.closeEntry();
+		}
+	    }
+
+	    final List<Hit> actual = new ArrayList<>();
+	    for (final Hit hit : CSVHitsParser.parseAllHits(columnsTypes, file.getAbsolutePath()))
+		actual.add(hit);
+	    assertEquals(expected, actual);
+	});
+    }
+
+    @Test
+    public void parseHitsTestZipNoTrailingNewLine() throws Exception {
+	runTempFileTest(getCurrentMethodName(), ".zip", file -> {
+	    final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+	    final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
+	    final List<Hit> expected = new ArrayList<>();
+	    try (final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+		for (int entry = 0; entry < 2; entry++) {
+		    out.putNextEntry(new ZipEntry("hits" + entry + CSV_SUFFIX));
+		    final StringBuilder text = new StringBuilder();
+		    for (int i = 10; i-- != 0;) {
+			final Hit hit = new Hit(Arrays.asList(Source.valueOf(FirewallTestsUtility.getRandomIP()),
+				Destination.valueOf(FirewallTestsUtility.getRandomIP()),
+				Service.valueOf(FirewallTestsUtility.getRandomProtocolCode(),
+					FirewallTestsUtility.getRandomPort())));
+			expected.add(hit);
+			if (text.length() != 0)
+			    text.append('\n');
+			text.append(parser.toCSV(hit));
+		    }
+		    // The last line of the entry doesn't end with a new line
+		    out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+		    out.closeEntry();
+		}
+	    }
+
+	    final List<Hit> actual = new ArrayList<>();
+	    for (final Hit hit : CSVHitsParser.parseAllHits(columnsTypes, file.getAbsolutePath()))
+		actual.add(hit);
+	    assertEquals(expected, actual);
+	});
+    }
+
+    @Test
+    public void parseUniqueHitsTestStream() throws Exception {
+	runTempFileTest(getCurrentMethodName(), CSV_SUFFIX + ".gz", file -> {
+	    final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+	    final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
+	    final List<Hit> distinctHits = new ArrayList<>();
+	    for (int i = 50; i-- != 0;)
+		distinctHits.add(new Hit(Arrays.asList(Source.valueOf(FirewallTestsUtility.getRandomIP()),
+			Destination.valueOf(FirewallTestsUtility.getRandomIP()), Service.valueOf(
+				FirewallTestsUtility.getRandomProtocolCode(), FirewallTestsUtility.getRandomPort()))));
+	    final StringBuilder text = new StringBuilder();
+	    for (int i = 1000; i-- != 0;)
+		text.append(parser.toCSV(distinctHits.get(rand.nextInt(distinctHits.size())))).append('\n');
+	    final byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+	    try (final OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+		out.write(bytes);
+	    }
+
+	    final List<Hit> expected = Utility
+		    .newArrayList(CSVHitsParser.parseUniqueHits(columnsTypes, file.getAbsolutePath()));
+	    final List<Hit> plain = Utility
+		    .newArrayList(CSVHitsParser.parseUniqueHits(columnsTypes, new ByteArrayInputStream(bytes)));
+	    final List<Hit> compressed;
+	    try (final InputStream in = new FileInputStream(file)) {
+		compressed = Utility.newArrayList(CSVHitsParser.parseUniqueHits(columnsTypes, in));
+		// The stream is read until its end
+		assertEquals(-1, in.read());
+	    }
+	    assertEquals(expected, plain);
+	    assertEquals(expected, compressed);
+	    for (int i = 0; i < expected.size(); i++) {
+		assertEquals(expected.get(i).getWeight(), plain.get(i).getWeight());
+		assertEquals(expected.get(i).getWeight(), compressed.get(i).getWeight());
+	    }
+	});
+    }
+
+    @Test
+    public void parseUniqueHitsTestStreamFailure() throws Exception {
+	final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+	final byte[] line = (new CSVHitsParser(columnsTypes).toCSV(FirewallTestsUtility.getRandomDenseHit()) + "\n")
+		.getBytes(StandardCharsets.UTF_8);
+	final byte[] invalidLine = "not a hit\n".getBytes(StandardCharsets.UTF_8);
+	// The invalid line is after more blocks than the reader may queue, and
+	// the reader has more blocks to read after it
+	final long invalidLinePosition = (17 << 20) / line.length * line.length;
+	final long size = 48 << 20;
+	final InputStream in = new InputStream() {
+
+	    private long position;
+
+	    @Override
+	    public int read() {
+		final byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	    }
+
+	    @Override
+	    public int read(final byte[] b, final int off, final int len) {
+		if (position >= size + invalidLine.length)
+		    return -1;
+		int n = 0;
+		while (n < len && position < size + invalidLine.length) {
+		    if (position >= invalidLinePosition && position < invalidLinePosition + invalidLine.length)
+			b[off + n] = invalidLine[(int) (position - invalidLinePosition)];
+		    else {
+			final long linePosition = position < invalidLinePosition ? position
+				: position - invalidLine.length;
+			b[off + n] = line[(int) (linePosition % line.length)];
+		    }
+		    n++;
+		    position++;
+		}
+		return n;
+	    }
+	};
+	try {
+	    CSVHitsParser.parseUniqueHits(columnsTypes, in);
+	    fail("Invalid line was parsed");
+	} catch (final CSVParseException e) {
+	    // Expected
+	}
+
+	// The reader thread is stopped, and doesn't wait on the blocks queue
+	final long deadline = System.currentTimeMillis() + 10_000;
+	for (;;) {
+	    boolean readerAlive = false;
+	    for (final Thread thread : Thread.getAllStackTraces().keySet())
+		if (thread.getName().equals("csv-hits-reader") && thread.isAlive())
+		    readerAlive = true;
+	    if (!readerAlive)
+		break;
+	    if (System.currentTimeMillis() > deadline)
+		fail("The reader thread is alive after the parse failed");
+	    Thread.sleep(10);
+	}
+    }
+
+    @Test
+    public void previewTestExact() throws Exception {
+	runTempFileTest(getCurrentMethodName(), CSV_SUFFIX, file -> {
+	    final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+	    writeRandomLines(file, 1000, 100, false);
+
+	    final HitsPreviewDto preview = CSVHitsParser.preview(columnsTypes, file.getAbsolutePath());
+	    final List<Hit> allHits = Utility.newArrayList(CSVHitsParser.parseAllHits(columnsTypes,
+		    file.getAbsolutePath()));
+	    final List<Hit> uniqueHits = Utility.newArrayList(CSVHitsParser.parseUniqueHits(columnsTypes,
+		    file.getAbsolutePath()));
+	    assertTrue(preview.isExact());
+	    assertEquals(allHits.size(), preview.getSampledLines());
+	    assertEquals(allHits.size(), preview.getEstimatedHitsNumber());
+	    assertEquals(uniqueHits.size(), preview.getEstimatedUniqueHitsNumber());
+	    assertEquals(100, preview.getSampleHits().size());
+	    assertEquals(allHits.get(0), preview.getSampleHits().get(0));
+	    assertEquals(HitsPreviewDto.UNKNOWN_MEMORY, preview.getEstimatedMemoryBytes());
+	});
+    }
+
+    @Test
+    public void previewTestEstimation() throws Exception {
+	runTempFileTest(getCurrentMethodName(), CSV_SUFFIX, file -> {
+	    // Bigger than the sampled ranges
+	    final int linesNumber = 300_000;
+	    writeRandomLines(file, linesNumber, 1000, false);
+
+	    final HitsPreviewDto preview = CSVHitsParser.preview(CSVHitsParser.DEFAULT_COLUMNS_TYPES,
+		    file.getAbsolutePath());
+	    assertFalse(preview.isExact());
+	    assertTrue(preview.getSampledLines() < linesNumber);
+	    assertTrue(Math.abs(preview.getEstimatedHitsNumber() - linesNumber) < linesNumber / 10);
+	    assertTrue(preview.getUniqueRatio() > 0 && preview.getUniqueRatio() < 1);
+	    assertTrue(preview.getEstimatedUniqueHitsNumber() <= preview.getEstimatedHitsNumber());
+	});
+    }
+
+    @Test
+    public void previewTestGzip() throws Exception {
+	runTempFileTest(getCurrentMethodName(), CSV_SUFFIX + ".gz", file -> {
+	    final int linesNumber = 300_000;
+	    writeRandomLines(file, linesNumber, 1000, true);
+
+	    final HitsPreviewDto preview = CSVHitsParser.preview(CSVHitsParser.DEFAULT_COLUMNS_TYPES,
+		    file.getAbsolutePath());
+	    assertTrue(preview.getSampledLines() > 0);
+	    // The compression ratio of the file's start is not exact
+	    assertTrue(Math.abs(preview.getEstimatedHitsNumber() - linesNumber) < linesNumber / 2);
+	});
+    }
+
+    @Test
+    public void appendToCSVTestGzip() throws Exception {
+	runTempFileTest(getCurrentMethodName(), CSV_SUFFIX + ".gz", file -> {
+	    final List<Integer> columnsTypes = CSVHitsParser.DEFAULT_COLUMNS_TYPES;
+	    final List<Hit> expected = new ArrayList<>();
+	    for (int i = 200; i-- != 0;)
+		expected.add(new Hit(Arrays.asList(Source.valueOf(FirewallTestsUtility.getRandomIP()),
+			Destination.valueOf(FirewallTestsUtility.getRandomIP()), Service.valueOf(
+				FirewallTestsUtility.getRandomProtocolCode(), FirewallTestsUtility.getRandomPort()))));
+	    try (final Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)))) {
+		final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
+		for (final Hit hit : expected.subList(0, 100))
+		    writer.write(parser.toCSV(hit) + '\n');
+	    }
+
+	    CSVHitsParser.appendToCSV(columnsTypes, expected.subList(100, 200), file.getAbsolutePath());
+
+	    try (final InputStream in = new FileInputStream(file)) {
+		// Still compressed
+		assertEquals(0x1f, in.read());
+		assertEquals(0x8b, in.read());
+	    }
+	    final List<Hit> actual = new ArrayList<>();
+	    for (final Hit hit : CSVHitsParser.parseAllHits(columnsTypes, file.getAbsolutePath()))
+		actual.add(hit);
+	    assertEquals(expected, actual);
+	});
+    }
+
     @Test
     public void parseHitsTestWithoutDestination() throws Exception {
 	runTempFileTest(getCurrentMethodName(), CSV_SUFFIX, file -> {
@@ -339,6 +708,71 @@ public class CSVParserTest extends TestBase {
 	}
     }
 
+    @Test
+    public void parseColumnsTestAllAttributes() throws CSVParseException {
+	final List<Integer> columnsTypes = Arrays.asList(CSVHitsParser.SOURCE, CSVHitsParser.DESTINATION,
+		CSVHitsParser.SERVICE_PROTOCOL, CSVHitsParser.SERVICE_PORT);
+	final CSVHitsParser parser = new CSVHitsParser(columnsTypes);
+
+	final List<Hit> expected = new ArrayList<>();
+	final StringBuilder text = new StringBuilder();
+	for (int i = 1000; i-- != 0;) {
+	    final String source = FirewallTestsUtility.getRandomIP().toString();
+	    final String destination = FirewallTestsUtility.getRandomIP().toString();
+	    final String serviceProtocol = Integer.toString(FirewallTestsUtility.getRandomProtocolCode());
+	    final String servicePort = Integer.toString(FirewallTestsUtility.getRandomPort());
+	    final String line = source + '\t' + destination + "  " + serviceProtocol + '\t' + servicePort;
+	    expected.add(parser.parseHit(line));
+	    text.append(line).append(rand.nextBoolean() ? "\n" : "\r\n");
+	    if (rand.nextInt(10) == 0)
+		text.append('\n');
+	}
+
+	final ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+	final CSVHitsColumns columns = new CSVHitsColumns();
+	parser.parseColumns(buffer, columns, true);
+	assertEquals(buffer.limit(), buffer.position());
+
+	final List<Hit> actual = new ArrayList<>(columns.size());
+	for (int row = 0; row < columns.size(); row++)
+	    actual.add(parser.toHit(columns, row));
+	assertEquals(expected, actual);
+    }
+
+    @Test
+    public void parseColumnsTestPartialLine() throws CSVParseException {
+	final CSVHitsParser parser = new CSVHitsParser(CSVHitsParser.DEFAULT_COLUMNS_TYPES);
+	final String line1 = "10.0.0.1 10.0.0.0/8 80 6";
+	final String line2 = "1.2.3.4 AnyIPv4 22 17";
+	final byte[] bytes = (line1 + '\n' + line2).getBytes(StandardCharsets.UTF_8);
+	final CSVHitsColumns columns = new CSVHitsColumns();
+
+	final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+	parser.parseColumns(buffer, columns, false);
+	assertEquals(1, columns.size());
+	assertEquals(line1.length() + 1, buffer.position());
+
+	parser.parseColumns(buffer, columns, true);
+	assertEquals(2, columns.size());
+	assertEquals(bytes.length, buffer.position());
+	assertEquals(parser.parseHit(line1), parser.toHit(columns, 0));
+	assertEquals(parser.parseHit(line2), parser.toHit(columns, 1));
+    }
+
+    @Test(expected = CSVParseException.class)
+    public void parseColumnsTestMissingColumn() throws CSVParseException {
+	final CSVHitsParser parser = new CSVHitsParser(CSVHitsParser.DEFAULT_COLUMNS_TYPES);
+	final ByteBuffer buffer = ByteBuffer.wrap("10.0.0.1 10.0.0.2 80\n".getBytes(StandardCharsets.UTF_8));
+	parser.parseColumns(buffer, new CSVHitsColumns(), true);
+    }
+
+    @Test(expected = CSVParseException.class)
+    public void parseColumnsTestInvalidIP() throws CSVParseException {
+	final CSVHitsParser parser = new CSVHitsParser(CSVHitsParser.DEFAULT_COLUMNS_TYPES);
+	final ByteBuffer buffer = ByteBuffer.wrap("10.0.0.256 10.0.0.2 80 6\n".getBytes(StandardCharsets.UTF_8));
+	parser.parseColumns(buffer, new CSVHitsColumns(), true);
+    }
+
     @Test
     public void toCSVMultipleHitsTestAllAttributes() throws Exception {
 	runTempFileTest(getCurrentMethodName(), CSV_SUFFIX, file -> {
@@ -649,4 +1083,21 @@ public class CSVParserTest extends TestBase {
 	}
     }
 
+    private static void writeRandomLines(final File file, final int linesNumber, final int distinctLinesNumber,
+	    final boolean gzip) throws IOException, CSVParseException {
+	final CSVHitsParser parser = new CSVHitsParser(CSVHitsParser.DEFAULT_COLUMNS_TYPES);
+	final List<String> distinctLines = new ArrayList<>(distinctLinesNumber);
+	for (int i = distinctLinesNumber; i-- != 0;)
+	    distinctLines.add(parser.toCSV(new Hit(Arrays.asList(Source.valueOf(FirewallTestsUtility.getRandomIP()),
+		    Destination.valueOf(FirewallTestsUtility.getRandomIP()), Service.valueOf(
+			    FirewallTestsUtility.getRandomProtocolCode(), FirewallTestsUtility.getRandomPort())))));
+	final OutputStream out = gzip ? new GZIPOutputStream(new FileOutputStream(file)) : new FileOutputStream(file);
+	try (final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+	    for (int i = linesNumber; i-- != 0;) {
+		writer.write(distinctLines.get(rand.nextInt(distinctLinesNumber)));
+		writer.write('\n');
+	    }
+	}
+    }
+
 }
@@ -0,0 +1,133 @@
+package breakingtherules.tests.dao.elastic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import breakingtherules.dao.DaoUtils;
+import breakingtherules.dao.ParseException;
+import breakingtherules.dao.elastic.ElasticHitsAggregation;
+import breakingtherules.dao.elastic.ElasticHitsParser;
+import breakingtherules.dao.elastic.ElasticHitsQuery;
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Attribute.AttributeType;
+import breakingtherules.firewall.Filter;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.Service;
+import breakingtherules.firewall.WeightedHit;
+import breakingtherules.tests.TestBase;
+import breakingtherules.tests.firewall.FirewallTestsUtility;
+
+@SuppressWarnings("javadoc")
+public class ElasticHitsAggregationTest extends TestBase {
+
+    private static final String JOB_NAME = "job";
+
+    @Test
+    public void getFieldsTest() {
+	assertEquals(Arrays.asList("source", "sourceMask"),
+		new ElasticHitsAggregation(AttributeType.SOURCE).getFields());
+	assertEquals(Arrays.asList("destination", "destinationMask"),
+		new ElasticHitsAggregation(AttributeType.DESTINATION).getFields());
+	assertEquals(Arrays.asList("protocol", "portStart", "portEnd"),
+		new ElasticHitsAggregation(AttributeType.SERVICE).getFields());
+    }
+
+    @Test
+    public void histogramTestRandom() throws ParseException {
+	for (int test = 0; test < 30; test++) {
+	    final List<Hit> denseHits = new ArrayList<>();
+	    final List<Hit> hits = new ArrayList<>();
+	    for (int i = 0; i < 200; i++) {
+		final boolean dense = rand.nextBoolean();
+		final Hit hit = dense ? FirewallTestsUtility.getRandomDenseHit() : ElasticHitsQueryTest.getRandomHit();
+		if (dense)
+		    denseHits.add(hit);
+		hits.add(rand.nextInt(4) == 0 ? WeightedHit.valueOf(hit, 1 + rand.nextInt(10)) : hit);
+	    }
+	    final List<Rule> rules = new ArrayList<>();
+	    for (int i = rand.nextInt(4); i-- != 0;)
+		rules.add(FirewallTestsUtility.getRandomDenseRule(denseHits.get(rand.nextInt(denseHits.size()))));
+	    Filter filter = new Filter(
+		    FirewallTestsUtility.getRandomDenseRule(denseHits.get(rand.nextInt(denseHits.size())))
+			    .getAttributes());
+	    // A filter of any attributes is treated as the any filter
+	    if (rand.nextBoolean() || Filter.ANY_FILTER.equals(filter))
+		filter = Filter.ANY_FILTER;
+	    final ElasticHitsQuery query = new ElasticHitsQuery(JOB_NAME, rules, filter);
+
+	    for (final AttributeType attType : AttributeType.values()) {
+		final Map<Attribute, Integer> expected = new HashMap<>();
+		for (final Hit hit : hits) {
+		    final Attribute attribute = hit.getAttribute(attType);
+		    if (attribute != null && DaoUtils.isMatch(hit, rules, filter))
+			expected.merge(attribute, Integer.valueOf(hit.getWeight()), Integer::sum);
+		}
+		assertEquals(attType.toString(), expected, aggregate(new ElasticHitsAggregation(attType), query, hits));
+	    }
+	}
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseKeyTestMissingMask() {
+	final Map<String, Object> key = new HashMap<>();
+	key.put("source", "10.0.0.1");
+	new ElasticHitsAggregation(AttributeType.SOURCE).parseKey(key);
+    }
+
+    @Test
+    public void parseKeyTestService() {
+	final Map<String, Object> key = new HashMap<>();
+	key.put("protocol", Long.valueOf(6));
+	key.put("portStart", Long.valueOf(80));
+	key.put("portEnd", Long.valueOf(80));
+	assertEquals(Service.valueOf("TCP 80"), new ElasticHitsAggregation(AttributeType.SERVICE).parseKey(key));
+    }
+
+    /**
+     * Aggregate hits the way ElasticSearch would: the matching documents are
+     * grouped by the key fields, formatted as the values of a composite
+     * aggregation.
+     */
+    private static Map<Attribute, Integer> aggregate(final ElasticHitsAggregation aggregation,
+	    final ElasticHitsQuery query, final List<Hit> hits) throws ParseException {
+	final Map<Map<String, Object>, Integer> buckets = new LinkedHashMap<>();
+	for (final Hit hit : hits) {
+	    final Map<String, Object> document = ElasticHitsParser.toSource(hit, JOB_NAME);
+	    if (!ElasticHitsQueryTest.evaluate(aggregation.getQuery(query.getQuery()), document))
+		continue;
+	    final Map<String, Object> key = new HashMap<>();
+	    for (final String field : aggregation.getFields()) {
+		final Object value = document.get(field);
+		key.put(field, value instanceof Number ? Long.valueOf(((Number) value).longValue())
+			: value == null ? null : compress((String) value));
+	    }
+	    final Object count = document.get("count");
+	    buckets.merge(key, Integer.valueOf(count == null ? 1 : ((Number) count).intValue()), Integer::sum);
+	}
+	final Map<Attribute, Integer> histogram = new HashMap<>();
+	for (final Map.Entry<Map<String, Object>, Integer> bucket : buckets.entrySet())
+	    histogram.merge(aggregation.parseKey(bucket.getKey()), bucket.getValue(), Integer::sum);
+	return histogram;
+    }
+
+    /**
+     * Compress the first run of zero blocks of an IPv6 address.
+     */
+    private static String compress(final String address) {
+	if (address.indexOf(':') < 0)
+	    return address;
+	final String compressed = (":" + address + ":").replaceFirst(":0(:0)+:", "::");
+	if (compressed.equals("::"))
+	    return compressed;
+	return compressed.substring(compressed.startsWith("::") ? 0 : 1,
+		compressed.length() - (compressed.endsWith("::") ? 0 : 1));
+    }
+
+}
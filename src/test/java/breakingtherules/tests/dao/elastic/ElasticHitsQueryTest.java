@@ -0,0 +1,300 @@
+package breakingtherules.tests.dao.elastic;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.junit.Test;
+
+import breakingtherules.dao.DaoUtils;
+import breakingtherules.dao.ParseException;
+import breakingtherules.dao.elastic.ElasticHitsParser;
+import breakingtherules.dao.elastic.ElasticHitsQuery;
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Destination;
+import breakingtherules.firewall.Filter;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.IP;
+import breakingtherules.firewall.IPv4;
+import breakingtherules.firewall.IPv6;
+import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.Service;
+import breakingtherules.firewall.Source;
+import breakingtherules.firewall.WeightedHit;
+import breakingtherules.tests.TestBase;
+import breakingtherules.tests.firewall.FirewallTestsUtility;
+
+@SuppressWarnings("javadoc")
+public class ElasticHitsQueryTest extends TestBase {
+
+    private static final String JOB_NAME = "job";
+
+    @Test
+    public void addressTestRoundTrip() throws ParseException {
+	for (int i = 0; i < 100; i++) {
+	    final IP ip = rand.nextBoolean() ? FirewallTestsUtility.getRandomIPv4()
+		    : FirewallTestsUtility.getRandomIPv6();
+	    assertEquals(ip, ElasticHitsQuery.parseAddress(ElasticHitsQuery.toAddress(ip), ip.getMaskSize()));
+	}
+	assertEquals("10.1.2.3", ElasticHitsQuery.toAddress(IPv4.valueOfBits(0x0a010203, (short) 24)));
+	assertEquals("2001:db8:0:0:0:0:0:1",
+		ElasticHitsQuery.toAddress(IPv6.valueOfBits(new int[] { 0x20010db8, 0, 0, 1 }, (short) 128)));
+	assertNull(ElasticHitsQuery.toAddress(IP.ANY_IP));
+	assertEquals(IP.ANY_IP, ElasticHitsQuery.parseAddress(null, 0));
+    }
+
+    @Test
+    public void parseAddressTestCompressed() throws ParseException {
+	assertEquals(IPv6.valueOfBits(new int[] { 0x20010db8, 0, 0, 1 }, (short) 128),
+		ElasticHitsQuery.parseAddress("2001:db8::1", 128));
+	assertEquals(IPv6.valueOfBits(new int[] { 0, 0, 0, 1 }, (short) 64), ElasticHitsQuery.parseAddress("::1", 64));
+	assertEquals(IPv6.valueOfBits(new int[] { 0xfe800000, 0, 0, 0 }, (short) 10),
+		ElasticHitsQuery.parseAddress("fe80::", 10));
+	assertEquals(IPv6.valueOfBits(new int[4], (short) 0), ElasticHitsQuery.parseAddress("::", 0));
+    }
+
+    @Test(expected = ParseException.class)
+    public void parseAddressTestIllegalMask() throws ParseException {
+	ElasticHitsQuery.parseAddress("10.0.0.0", 33);
+    }
+
+    @Test(expected = ParseException.class)
+    public void parseAddressTestShortIPv6() throws ParseException {
+	ElasticHitsQuery.parseAddress("2001:db8:0:1", 128);
+    }
+
+    @Test(expected = ParseException.class)
+    public void parseAddressTestTwoCompressedRuns() throws ParseException {
+	ElasticHitsQuery.parseAddress("2001::1::1", 128);
+    }
+
+    @Test
+    public void parseHitTestRoundTrip() {
+	final ElasticHitsParser parser = new ElasticHitsParser();
+	for (int i = 0; i < 100; i++) {
+	    final Hit hit = getRandomHit();
+	    assertEquals(hit, parser.parseHit(ElasticHitsParser.toSource(hit, JOB_NAME)));
+	}
+	final Hit weighted = WeightedHit.valueOf(getRandomHit(), 5);
+	assertEquals(5, parser.parseHit(ElasticHitsParser.toSource(weighted, JOB_NAME)).getWeight());
+    }
+
+    @Test
+    public void queryTestFilter() {
+	final List<Attribute> attributes = new ArrayList<>();
+	attributes.add(Source.valueOf("10.0.0.0/8"));
+	attributes.add(Destination.ANY_DESTINATION);
+	attributes.add(Service.valueOf("TCP 80"));
+	final ElasticHitsQuery query = new ElasticHitsQuery(JOB_NAME, Collections.emptyList(),
+		new Filter(attributes));
+	final BoolQueryBuilder bool = (BoolQueryBuilder) query.getQuery();
+	// The any destination requires the hit to have a destination
+	assertEquals(7, bool.filter().size());
+	assertEquals(0, bool.mustNot().size());
+	assertTerm("jobName", JOB_NAME, bool.filter().get(0));
+	assertTerm("source", "10.0.0.0/8", bool.filter().get(1));
+	assertEquals("sourceMask", ((RangeQueryBuilder) bool.filter().get(2)).fieldName());
+	assertEquals("destinationMask", ((ExistsQueryBuilder) bool.filter().get(3)).fieldName());
+	assertEquals("protocol", ((TermQueryBuilder) bool.filter().get(4)).fieldName());
+	assertEquals("portStart", ((RangeQueryBuilder) bool.filter().get(5)).fieldName());
+	assertEquals("portEnd", ((RangeQueryBuilder) bool.filter().get(6)).fieldName());
+	assertTrue(query.getRemainingRules().isEmpty());
+    }
+
+    @Test
+    public void queryTestMatchRandom() throws ParseException {
+	for (int test = 0; test < 50; test++) {
+	    final List<Hit> denseHits = new ArrayList<>();
+	    for (int i = 0; i < 50; i++)
+		denseHits.add(FirewallTestsUtility.getRandomDenseHit());
+	    final List<Hit> hits = new ArrayList<>(denseHits);
+	    for (int i = 0; i < 50; i++)
+		hits.add(getRandomHit());
+	    final List<Rule> rules = new ArrayList<>();
+	    for (int i = rand.nextInt(8); i-- != 0;)
+		rules.add(FirewallTestsUtility.getRandomDenseRule(denseHits.get(rand.nextInt(denseHits.size()))));
+	    Filter filter = new Filter(
+		    FirewallTestsUtility.getRandomDenseRule(FirewallTestsUtility.getRandomDenseHit()).getAttributes());
+	    // A filter of any attributes is treated as the any filter
+	    if (rand.nextBoolean() || Filter.ANY_FILTER.equals(filter))
+		filter = Filter.ANY_FILTER;
+
+	    final ElasticHitsQuery query = new ElasticHitsQuery(JOB_NAME, rules, filter);
+	    for (final Hit hit : hits) {
+		final boolean expected = DaoUtils.isMatch(hit, rules, filter);
+		assertEquals(hit.toString(), expected,
+			evaluate(query.getQuery(), ElasticHitsParser.toSource(hit, JOB_NAME)));
+		assertFalse(evaluate(query.getQuery(), ElasticHitsParser.toSource(hit, JOB_NAME + "2")));
+	    }
+	}
+    }
+
+    @Test
+    public void queryTestIPv6SubnetIPv4Hits() throws ParseException {
+	final Hit ipv4Hit = new Hit(Arrays.asList(Source.valueOf("10.0.0.1"), Destination.valueOf("10.0.0.2"),
+		Service.valueOf("TCP 80")));
+	final Hit ipv6Hit = new Hit(
+		Arrays.asList(Source.valueOf(IPv6.valueOfBits(new int[] { 0x20010db8, 0, 0, 1 }, (short) 128)),
+			Destination.valueOf("10.0.0.2"), Service.valueOf("TCP 80")));
+	final List<Hit> hits = Arrays.asList(ipv4Hit, ipv6Hit);
+	// IPv6 subnets that contain the IPv4-mapped addresses, or are contained
+	// in them
+	final List<IP> subnets = Arrays.asList(IPv6.valueOfBits(new int[4], (short) 0),
+		IPv6.valueOfBits(new int[4], (short) 64), IPv6.valueOfBits(new int[] { 0, 0, 0xffff, 0 }, (short) 96),
+		IPv6.valueOfBits(new int[] { 0, 0, 0xffff, 0x0a000000 }, (short) 104));
+	for (final IP subnet : subnets) {
+	    final Filter filter = new Filter(
+		    Arrays.asList(Source.valueOf(subnet), Destination.ANY_DESTINATION, Service.ANY_SERVICE));
+	    final List<Rule> rules = Collections.singletonList(new Rule(filter));
+	    for (final Hit hit : hits) {
+		assertEquals(subnet + " " + hit, DaoUtils.isMatch(hit, Collections.emptyList(), filter),
+			evaluate(new ElasticHitsQuery(JOB_NAME, Collections.emptyList(), filter).getQuery(),
+				ElasticHitsParser.toSource(hit, JOB_NAME)));
+		assertEquals(subnet + " " + hit, DaoUtils.isMatch(hit, rules, Filter.ANY_FILTER),
+			evaluate(new ElasticHitsQuery(JOB_NAME, rules, Filter.ANY_FILTER).getQuery(),
+				ElasticHitsParser.toSource(hit, JOB_NAME)));
+	    }
+	}
+    }
+
+    @Test
+    public void queryTestRemainingRules() {
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 600; i++)
+	    rules.add(new Rule(FirewallTestsUtility.getRandomAttributes()));
+	final ElasticHitsQuery query = new ElasticHitsQuery(JOB_NAME, rules, Filter.ANY_FILTER);
+	final int translated = ((BoolQueryBuilder) query.getQuery()).mustNot().size();
+	assertEquals(rules.size(), translated + query.getRemainingRules().size());
+	assertEquals(rules.subList(translated, rules.size()), query.getRemainingRules());
+    }
+
+    @Test
+    public void queryTestRules() {
+	final Rule rule = new Rule(Arrays.asList(Source.ANY_SOURCE, Destination.valueOf("1.2.3.4"),
+		Service.ANY_SERVICE));
+	final Rule anyRule = new Rule(Filter.ANY_FILTER);
+	final ElasticHitsQuery query = new ElasticHitsQuery(JOB_NAME, Arrays.asList(rule, anyRule),
+		Filter.ANY_FILTER);
+	final BoolQueryBuilder bool = (BoolQueryBuilder) query.getQuery();
+	assertEquals(1, bool.filter().size());
+	assertEquals(2, bool.mustNot().size());
+	final BoolQueryBuilder ruleQuery = (BoolQueryBuilder) bool.mustNot().get(0);
+	assertEquals(4, ruleQuery.filter().size());
+	assertEquals("sourceMask", ((ExistsQueryBuilder) ruleQuery.filter().get(0)).fieldName());
+	assertTerm("destination", "1.2.3.4/32", ruleQuery.filter().get(1));
+	assertEquals("destinationMask", ((RangeQueryBuilder) ruleQuery.filter().get(2)).fieldName());
+	assertEquals("protocol", ((ExistsQueryBuilder) ruleQuery.filter().get(3)).fieldName());
+	// Any attributes only require the hit to have the attribute
+	assertEquals(Attribute.TYPE_COUNT, ((BoolQueryBuilder) bool.mustNot().get(1)).filter().size());
+    }
+
+    private static void assertTerm(final String field, final Object value, final QueryBuilder query) {
+	final TermQueryBuilder term = (TermQueryBuilder) query;
+	assertEquals(field, term.fieldName());
+	assertEquals(value, term.value());
+    }
+
+    /**
+     * Evaluate a query on a document, the way ElasticSearch would with the
+     * typed mapping of hits.
+     */
+    static boolean evaluate(final QueryBuilder query, final Map<String, Object> document)
+	    throws ParseException {
+	if (query instanceof BoolQueryBuilder) {
+	    final BoolQueryBuilder bool = (BoolQueryBuilder) query;
+	    for (final QueryBuilder clause : bool.filter())
+		if (!evaluate(clause, document))
+		    return false;
+	    for (final QueryBuilder clause : bool.must())
+		if (!evaluate(clause, document))
+		    return false;
+	    for (final QueryBuilder clause : bool.mustNot())
+		if (evaluate(clause, document))
+		    return false;
+	    return true;
+	}
+	if (query instanceof ExistsQueryBuilder)
+	    return document.containsKey(((ExistsQueryBuilder) query).fieldName());
+	if (query instanceof TermQueryBuilder) {
+	    final TermQueryBuilder term = (TermQueryBuilder) query;
+	    final Object value = document.get(term.fieldName());
+	    if (value == null)
+		return false;
+	    if (value instanceof Number)
+		return ((Number) value).longValue() == ((Number) term.value()).longValue();
+	    final String text = (String) term.value();
+	    final int maskIndex = text.indexOf('/');
+	    if (maskIndex < 0)
+		return text.equals(value);
+	    // CIDR term on an ip field
+	    final String address = (String) value;
+	    final IP subnet = ElasticHitsQuery.parseAddress(text.substring(0, maskIndex),
+		    Integer.parseInt(text.substring(maskIndex + 1)));
+	    final IP ip = ElasticHitsQuery.parseAddress(address, address.indexOf(':') < 0 ? IPv4.SIZE : IPv6.SIZE);
+	    return toStored(subnet).contains(toStored(ip));
+	}
+	if (query instanceof RangeQueryBuilder) {
+	    final RangeQueryBuilder range = (RangeQueryBuilder) query;
+	    final Object value = document.get(range.fieldName());
+	    if (value == null)
+		return false;
+	    final long x = ((Number) value).longValue();
+	    if (range.from() != null) {
+		final long from = ((Number) range.from()).longValue();
+		if (range.includeLower() ? x < from : x <= from)
+		    return false;
+	    }
+	    if (range.to() != null) {
+		final long to = ((Number) range.to()).longValue();
+		if (range.includeUpper() ? x > to : x >= to)
+		    return false;
+	    }
+	    return true;
+	}
+	throw new IllegalArgumentException("Unknown query: " + query);
+    }
+
+    /**
+     * Get an IP the way ElasticSearch stores it: IPv4 addresses are stored as
+     * IPv4-mapped IPv6 addresses, in ::ffff:0:0/96.
+     */
+    private static IP toStored(final IP ip) {
+	if (!(ip instanceof IPv4))
+	    return ip;
+	return IPv6.valueOfBits(new int[] { 0, 0, 0xffff, ip.getAddressBits()[0] },
+		(short) (IPv6.SIZE - IPv4.SIZE + ip.getMaskSize()));
+    }
+
+    static Hit getRandomHit() {
+	final List<Attribute> attributes = FirewallTestsUtility.getRandomAttributes();
+	switch (rand.nextInt(6)) {
+	case 0:
+	    attributes.set(0, Source.ANY_SOURCE);
+	    break;
+	case 1:
+	    attributes.set(1, Destination.ANY_DESTINATION);
+	    break;
+	case 2:
+	    attributes.set(2, Service.ANY_SERVICE);
+	    break;
+	case 3:
+	    attributes.remove(rand.nextInt(attributes.size()));
+	    break;
+	default:
+	    break;
+	}
+	return new Hit(attributes);
+    }
+
+}
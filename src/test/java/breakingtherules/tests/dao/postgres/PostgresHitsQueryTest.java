@@ -0,0 +1,98 @@
+package breakingtherules.tests.dao.postgres;
+
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import breakingtherules.dao.ParseException;
+import breakingtherules.dao.postgres.PostgresHitsQuery;
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Destination;
+import breakingtherules.firewall.Filter;
+import breakingtherules.firewall.IP;
+import breakingtherules.firewall.IPv4;
+import breakingtherules.firewall.IPv6;
+import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.Service;
+import breakingtherules.firewall.Source;
+import breakingtherules.tests.TestBase;
+import breakingtherules.tests.firewall.FirewallTestsUtility;
+
+@SuppressWarnings("javadoc")
+public class PostgresHitsQueryTest extends TestBase {
+
+    private static final String JOB_NAME = "job";
+
+    @Test
+    public void conditionTestAnyFilter() {
+	final PostgresHitsQuery query = new PostgresHitsQuery(JOB_NAME, Collections.emptyList(), Filter.ANY_FILTER);
+	assertEquals("job_name = ?", query.getCondition());
+	assertEquals(Arrays.asList(JOB_NAME), query.getParameters());
+    }
+
+    @Test
+    public void conditionTestFilter() {
+	final List<Attribute> attributes = new ArrayList<>();
+	attributes.add(Source.valueOf("10.0.0.0/8"));
+	attributes.add(Destination.ANY_DESTINATION);
+	attributes.add(Service.valueOf("TCP 80"));
+	final PostgresHitsQuery query = new PostgresHitsQuery(JOB_NAME, Collections.emptyList(),
+		new Filter(attributes));
+	assertEquals("job_name = ? AND (source IS NOT NULL AND source <<= ?::inet) AND protocol = ?"
+		+ " AND port_start >= ? AND port_end <= ?", query.getCondition());
+	assertEquals(Arrays.asList(JOB_NAME, "10.0.0.0/8", Short.valueOf((short) 6), Integer.valueOf(80),
+		Integer.valueOf(80)), query.getParameters());
+    }
+
+    @Test
+    public void conditionTestRules() {
+	final List<Attribute> attributes = new ArrayList<>();
+	attributes.add(Source.ANY_SOURCE);
+	attributes.add(Destination.valueOf("1.2.3.4"));
+	attributes.add(Service.ANY_SERVICE);
+	final Rule rule = new Rule(attributes);
+	final Rule anyRule = new Rule(Filter.ANY_FILTER);
+	final PostgresHitsQuery query = new PostgresHitsQuery(JOB_NAME, Arrays.asList(rule, anyRule),
+		Filter.ANY_FILTER);
+	assertEquals("job_name = ? AND NOT ((destination IS NOT NULL AND destination <<= ?::inet)) AND FALSE",
+		query.getCondition());
+	assertEquals(Arrays.asList(JOB_NAME, "1.2.3.4/32"), query.getParameters());
+    }
+
+    @Test
+    public void inetTestRoundTrip() throws ParseException {
+	for (int i = 0; i < 100; i++) {
+	    final IP ip = rand.nextBoolean() ? FirewallTestsUtility.getRandomIPv4()
+		    : FirewallTestsUtility.getRandomIPv6();
+	    assertEquals(ip, PostgresHitsQuery.parseInet(PostgresHitsQuery.toInet(ip)));
+	}
+	assertNull(PostgresHitsQuery.toInet(IP.ANY_IP));
+	assertEquals(IP.ANY_IP, PostgresHitsQuery.parseInet(null));
+    }
+
+    @Test
+    public void parseInetTest() throws ParseException {
+	assertEquals(IPv4.valueOfBits(0x0a010203, (short) 32), PostgresHitsQuery.parseInet("10.1.2.3"));
+	assertEquals(IPv4.valueOfBits(0x0a000000, (short) 8), PostgresHitsQuery.parseInet("10.0.0.0/8"));
+	assertEquals(IPv6.valueOfBits(new int[] { 0x20010db8, 0, 0, 1 }, (short) 64),
+		PostgresHitsQuery.parseInet("2001:db8::1/64"));
+	assertEquals(IPv6.valueOfBits(new int[] { 0, 0, 0xffff, 0x0a010203 }, (short) 128),
+		PostgresHitsQuery.parseInet("::ffff:10.1.2.3"));
+    }
+
+    @Test(expected = ParseException.class)
+    public void parseInetTestHostName() throws ParseException {
+	PostgresHitsQuery.parseInet("localhost");
+    }
+
+    @Test(expected = ParseException.class)
+    public void parseInetTestIllegalMask() throws ParseException {
+	PostgresHitsQuery.parseInet("10.0.0.0/33");
+    }
+
+}
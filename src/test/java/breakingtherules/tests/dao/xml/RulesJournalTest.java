@@ -0,0 +1,133 @@
+package breakingtherules.tests.dao.xml;
+
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import breakingtherules.dao.xml.RulesJournal;
+import breakingtherules.firewall.Rule;
+import breakingtherules.tests.firewall.FirewallTestsUtility;
+
+@SuppressWarnings("javadoc")
+public class RulesJournalTest extends AbstractXMLTest {
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    @Test
+    public void replayTest() throws Exception {
+	runTempFileTest(getCurrentMethodName(), JOURNAL_SUFFIX, file -> {
+	    final List<Rule> baseRules = getRandomRules(20);
+	    final List<Rule> expected = new ArrayList<>(baseRules);
+	    try (RulesJournal journal = new RulesJournal(file, baseRules)) {
+		for (int i = 0; i < 100; i++) {
+		    if (expected.isEmpty() || rand.nextInt(3) != 0) {
+			final Rule rule = getRandomRule();
+			journal.add(rule);
+			expected.add(rule);
+		    } else {
+			final int index = rand.nextInt(expected.size());
+			journal.remove(index);
+			expected.remove(index);
+		    }
+		}
+		assertEquals(expected, journal.getRules());
+		assertEquals(100, journal.getRecordsNumber());
+	    }
+
+	    try (RulesJournal journal = new RulesJournal(file, baseRules)) {
+		assertEquals(expected, journal.getRules());
+		assertEquals(100, journal.getRecordsNumber());
+	    }
+	});
+    }
+
+    @Test
+    public void tornRecordTest() throws Exception {
+	runTempFileTest(getCurrentMethodName(), JOURNAL_SUFFIX, file -> {
+	    final List<Rule> baseRules = getRandomRules(5);
+	    final List<Rule> expected = new ArrayList<>(baseRules);
+	    try (RulesJournal journal = new RulesJournal(file, baseRules)) {
+		final Rule rule = getRandomRule();
+		journal.add(rule);
+		expected.add(rule);
+	    }
+	    try (FileOutputStream out = new FileOutputStream(file, true)) {
+		out.write("+\tsource=1.2".getBytes());
+	    }
+
+	    try (RulesJournal journal = new RulesJournal(file, baseRules)) {
+		assertEquals(expected, journal.getRules());
+		final Rule rule = getRandomRule();
+		journal.add(rule);
+		expected.add(rule);
+	    }
+	    try (RulesJournal journal = new RulesJournal(file, baseRules)) {
+		assertEquals(expected, journal.getRules());
+		assertEquals(2, journal.getRecordsNumber());
+	    }
+	});
+    }
+
+    @Test
+    public void staleJournalTest() throws Exception {
+	runTempFileTest(getCurrentMethodName(), JOURNAL_SUFFIX, file -> {
+	    final List<Rule> oldRules = getRandomRules(5);
+	    try (RulesJournal journal = new RulesJournal(file, oldRules)) {
+		journal.add(getRandomRule());
+		journal.remove(0);
+	    }
+
+	    final List<Rule> newRules = getRandomRules(3);
+	    try (RulesJournal journal = new RulesJournal(file, newRules)) {
+		assertEquals(newRules, journal.getRules());
+		assertEquals(0, journal.getRecordsNumber());
+	    }
+	});
+    }
+
+    @Test
+    public void resetTest() throws Exception {
+	runTempFileTest(getCurrentMethodName(), JOURNAL_SUFFIX, file -> {
+	    final List<Rule> compacted;
+	    try (RulesJournal journal = new RulesJournal(file, Collections.emptyList())) {
+		for (int i = 0; i < 10; i++)
+		    journal.add(getRandomRule());
+		compacted = journal.getRules();
+		journal.reset(compacted);
+		assertEquals(0, journal.getRecordsNumber());
+		journal.remove(0);
+	    }
+
+	    try (RulesJournal journal = new RulesJournal(file, compacted)) {
+		assertEquals(compacted.subList(1, compacted.size()), journal.getRules());
+		assertEquals(1, journal.getRecordsNumber());
+	    }
+	});
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void removeOutOfBoundsTest() throws Exception {
+	runTempFileTest(getCurrentMethodName(), JOURNAL_SUFFIX, file -> {
+	    try (RulesJournal journal = new RulesJournal(file, getRandomRules(2))) {
+		journal.remove(2);
+	    }
+	});
+    }
+
+    private static Rule getRandomRule() {
+	return new Rule(Arrays.asList(FirewallTestsUtility.getRandomSource(),
+		FirewallTestsUtility.getRandomDestination(), FirewallTestsUtility.getRandomService()));
+    }
+
+    private static List<Rule> getRandomRules(final int number) {
+	final List<Rule> rules = new ArrayList<>(number);
+	for (int i = number; i-- != 0;)
+	    rules.add(getRandomRule());
+	return rules;
+    }
+
+}
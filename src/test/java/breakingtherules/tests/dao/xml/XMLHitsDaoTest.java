@@ -1,20 +1,78 @@
 package breakingtherules.tests.dao.xml;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 import org.junit.Test;
 
 import breakingtherules.dao.xml.XMLHitsParser;
+import breakingtherules.dao.xml.XMLParseException;
 import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.WeightedHit;
 import breakingtherules.tests.firewall.FirewallTestsUtility;
 
 @SuppressWarnings("javadoc")
 public class XMLHitsDaoTest extends AbstractXMLTest {
 
+    @Test
+    public void parseHitsTestInvalid() throws Exception {
+	runTempFileTest(getCurrentMethodName(), XML_SUFFIX, file -> {
+	    try {
+		try (final Writer writer = new FileWriter(file)) {
+		    writer.write("<Repository>\n<hit><source>1.2.3.4</source><destination>1.2.3.300</destination>"
+			    + "<service>TCP 80</service></hit>\n</Repository>\n");
+		}
+		for (final boolean parallel : new boolean[] { false, true })
+		    try {
+			XMLHitsParser.parseAllHits(file.getAbsolutePath(), parallel);
+			fail("Expected parse exception");
+		    } catch (final XMLParseException e) {
+			// Expected
+		    }
+
+	    } catch (final IOException e) {
+		e.printStackTrace();
+		fail(e.getMessage());
+	    }
+	});
+    }
+
+    @Test
+    public void parseHitsTestParallel() throws Exception {
+	runTempFileTest(getCurrentMethodName(), XML_SUFFIX, file -> {
+	    try {
+		// Several batches of hits, some of them weighted
+		final List<Hit> expected = new ArrayList<>();
+		for (int i = 20_000; i-- != 0;) {
+		    final Hit hit = new Hit(Arrays.asList(FirewallTestsUtility.getRandomSource(),
+			    FirewallTestsUtility.getRandomDestination(), FirewallTestsUtility.getRandomService()));
+		    expected.add(rand.nextInt(4) == 0 ? WeightedHit.valueOf(hit, rand.nextInt(5) + 1) : hit);
+		}
+		XMLHitsParser.writeHits(expected, file.getAbsolutePath());
+
+		final List<Hit> actual = XMLHitsParser.parseAllHits(file.getAbsolutePath(), true);
+		assertEquals(expected, actual);
+		for (int i = 0; i < expected.size(); i++)
+		    assertEquals(expected.get(i).getWeight(), actual.get(i).getWeight());
+		assertEquals(XMLHitsParser.parseUniqueHits(file.getAbsolutePath(), false),
+			XMLHitsParser.parseUniqueHits(file.getAbsolutePath(), true));
+
+	    } catch (final Exception e) {
+		e.printStackTrace();
+		fail(e.getMessage());
+	    }
+	});
+    }
+
     @Test
     public void writeAndParseHitsTest() throws Exception {
 	runTempFileTest(getCurrentMethodName(), XML_SUFFIX, file -> {
@@ -40,6 +98,33 @@ public class XMLHitsDaoTest extends AbstractXMLTest {
 	});
     }
 
+    @Test
+    public void writeAndParseUniqueHitsTest() throws Exception {
+	runTempFileTest(getCurrentMethodName(), XML_SUFFIX, file -> {
+	    try {
+		final Hit hit1 = new Hit(Arrays.asList(FirewallTestsUtility.getRandomSource(),
+			FirewallTestsUtility.getRandomDestination(), FirewallTestsUtility.getRandomService()));
+		Hit hit2;
+		do
+		    hit2 = new Hit(Arrays.asList(FirewallTestsUtility.getRandomSource(),
+			    FirewallTestsUtility.getRandomDestination(), FirewallTestsUtility.getRandomService()));
+		while (hit1.equals(hit2));
+
+		XMLHitsParser.writeHits(Arrays.asList(hit1, new WeightedHit(hit2, 3), hit1),
+			file.getAbsolutePath());
+
+		final List<Hit> actual = XMLHitsParser.parseUniqueHits(file.getAbsolutePath());
+		assertEquals(Arrays.asList(hit1, hit2), actual);
+		assertEquals(2, actual.get(0).getWeight());
+		assertEquals(3, actual.get(1).getWeight());
+
+	    } catch (final Exception e) {
+		e.printStackTrace();
+		fail(e.getMessage());
+	    }
+	});
+    }
+
     @Test
     public void writeHitsTest() throws Exception {
 	runTempFileTest(getCurrentMethodName(), XML_SUFFIX, file -> {
@@ -60,4 +145,46 @@ public class XMLHitsDaoTest extends AbstractXMLTest {
 	});
     }
 
+    @Test
+    public void writeHitsTestFailure() throws Exception {
+	runTempFileTest(getCurrentMethodName(), XML_SUFFIX, file -> {
+	    try {
+		final List<Hit> hits = new ArrayList<>();
+		for (int i = 100; i-- != 0;)
+		    hits.add(new Hit(Arrays.asList(FirewallTestsUtility.getRandomSource(),
+			    FirewallTestsUtility.getRandomDestination(), FirewallTestsUtility.getRandomService())));
+		XMLHitsParser.writeHits(hits, file.getAbsolutePath());
+
+		// Fails in the middle of the hits, the previous file is kept
+		final Iterable<Hit> failing = () -> new Iterator<Hit>() {
+		    private int index;
+
+		    @Override
+		    public boolean hasNext() {
+			return true;
+		    }
+
+		    @Override
+		    public Hit next() {
+			if (index == 50)
+			    throw new IllegalStateException();
+			return hits.get(index++);
+		    }
+		};
+		try {
+		    XMLHitsParser.writeHits(failing, file.getAbsolutePath());
+		    fail("Expected exception");
+		} catch (final IllegalStateException e) {
+		    // Expected
+		}
+		assertEquals(hits, XMLHitsParser.parseAllHits(file.getAbsolutePath()));
+		assertFalse(new File(file.getAbsolutePath() + ".tmp").exists());
+
+	    } catch (final Exception e) {
+		e.printStackTrace();
+		fail(e.getMessage());
+	    }
+	});
+    }
+
 }
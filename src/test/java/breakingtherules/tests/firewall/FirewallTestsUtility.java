@@ -4,10 +4,13 @@ import java.util.ArrayList;
 import java.util.List;
 
 import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Attribute.AttributeType;
 import breakingtherules.firewall.Destination;
+import breakingtherules.firewall.Hit;
 import breakingtherules.firewall.IP;
 import breakingtherules.firewall.IPv4;
 import breakingtherules.firewall.IPv6;
+import breakingtherules.firewall.Rule;
 import breakingtherules.firewall.Service;
 import breakingtherules.firewall.Source;
 import breakingtherules.tests.TestBase;
@@ -15,6 +18,12 @@ import breakingtherules.tests.TestBase;
 @SuppressWarnings("javadoc")
 public class FirewallTestsUtility extends TestBase {
 
+    private static final int DENSE_IPS_MASK_SIZE = 22;
+    private static final int DENSE_IPS_NUMBER = 1 << IPv4.SIZE - DENSE_IPS_MASK_SIZE;
+    private static final int DENSE_IPS_BASE = 10 << 24;
+    private static final short[] DENSE_PROTOCOLS = { 6, 17 };
+    private static final int[] DENSE_PORTS = { 22, 53, 80, 443, 8080, 8443 };
+
     public static int[] getRandomAddressIPv4() {
 	final int[] address = new int[4];
 	for (int i = 0; i < address.length; i++)
@@ -37,6 +46,73 @@ public class FirewallTestsUtility extends TestBase {
 	return attributes;
     }
 
+    /**
+     * Get a random hit from a small space of hits, so random hits and rules
+     * that are created by {@link #getRandomDenseRule(Hit)} will often match.
+     *
+     * @return random hit with IPv4 source and destination and single port
+     *         service.
+     */
+    public static Hit getRandomDenseHit() {
+	final List<Attribute> attributes = new ArrayList<>();
+	attributes.add(Source.valueOf(IPv4.valueOfBits(DENSE_IPS_BASE | rand.nextInt(DENSE_IPS_NUMBER))));
+	attributes.add(Destination.valueOf(IPv4.valueOfBits(DENSE_IPS_BASE | rand.nextInt(DENSE_IPS_NUMBER))));
+	final short protocol = DENSE_PROTOCOLS[rand.nextInt(DENSE_PROTOCOLS.length)];
+	attributes.add(Service.valueOf(protocol, DENSE_PORTS[rand.nextInt(DENSE_PORTS.length)]));
+	return new Hit(attributes);
+    }
+
+    /**
+     * Get a random rule that matches a hit.
+     * <p>
+     * Each attribute of the rule is a random generalization of the hit's
+     * attribute.
+     *
+     * @param hit
+     *            hit created by {@link #getRandomDenseHit()}.
+     * @return random rule that matches the hit.
+     */
+    public static Rule getRandomDenseRule(final Hit hit) {
+	final List<Attribute> attributes = new ArrayList<>();
+	final IPv4 source = (IPv4) ((Source) hit.getAttribute(AttributeType.SOURCE)).getIp();
+	final IPv4 destination = (IPv4) ((Destination) hit.getAttribute(AttributeType.DESTINATION)).getIp();
+	attributes.add(rand.nextInt(4) == 0 ? Source.ANY_SOURCE : Source.valueOf(getRandomDenseSubnet(source)));
+	attributes.add(rand.nextInt(4) == 0 ? Destination.ANY_DESTINATION
+		: Destination.valueOf(getRandomDenseSubnet(destination)));
+	final Service service = (Service) hit.getAttribute(AttributeType.SERVICE);
+	final int port = service.getPortRangeStart();
+	switch (rand.nextInt(4)) {
+	case 0:
+	    attributes.add(Service.ANY_SERVICE);
+	    break;
+	case 1:
+	    attributes.add(Service.valueOf(service.getProtocolCode(), port));
+	    break;
+	case 2:
+	    attributes.add(Service.valueOf(Service.ANY_PROTOCOL, port));
+	    break;
+	default:
+	    attributes.add(Service.valueOf(service.getProtocolCode(), Math.max(port - rand.nextInt(100), 0),
+		    Math.min(port + rand.nextInt(100), (1 << 16) - 1)));
+	    break;
+	}
+	return new Rule(attributes);
+    }
+
+    /**
+     * Get a random subnet that contains an IP.
+     *
+     * @param ip
+     *            IPv4 created by {@link #getRandomDenseHit()}.
+     * @return random subnet of the IP, with mask size that is at least the
+     *         mask size of all dense IPs.
+     */
+    private static IPv4 getRandomDenseSubnet(final IPv4 ip) {
+	final int maskSize = DENSE_IPS_MASK_SIZE + rand.nextInt(IPv4.SIZE - DENSE_IPS_MASK_SIZE + 1);
+	final int mask = maskSize == 0 ? 0 : -1 << IPv4.SIZE - maskSize;
+	return IPv4.valueOfBits(ip.getAddressBitsInt() & mask, (short) maskSize);
+    }
+
     public static Destination getRandomDestination() {
 	return Destination.valueOf(FirewallTestsUtility.getRandomIP());
     }
@@ -1,5 +1,7 @@
 package breakingtherules.tests.firewall;
 
+import static org.junit.Assert.assertSame;
+
 import java.util.List;
 
 import org.junit.Test;
@@ -7,6 +9,7 @@ import org.junit.Test;
 import breakingtherules.firewall.Attribute;
 import breakingtherules.firewall.Attribute.AttributeType;
 import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.WeightedHit;
 import breakingtherules.tests.TestBase;
 
 @SuppressWarnings("javadoc")
@@ -26,6 +29,26 @@ public class HitTest extends TestBase {
 	new Hit(attributes);
     }
 
+    @Test
+    public void getWeightTest() {
+	final Hit hit = new Hit(FirewallTestsUtility.getRandomAttributes());
+	assertEquals(1, hit.getWeight());
+
+	final int weight = rand.nextInt(100) + 1;
+	final Hit weightedHit = WeightedHit.valueOf(hit, weight);
+	assertEquals(weight, weightedHit.getWeight());
+	assertEquals(hit, weightedHit);
+	assertEquals(hit.hashCode(), weightedHit.hashCode());
+	assertEquals(weight, weightedHit.createMutation(FirewallTestsUtility.getRandomSource()).getWeight());
+	assertSame(hit, WeightedHit.valueOf(hit, 1));
+    }
+
+    @SuppressWarnings("unused")
+    @Test(expected = IllegalArgumentException.class)
+    public void weightedHitConstructorTestNonPositiveWeight() {
+	new WeightedHit(new Hit(FirewallTestsUtility.getRandomAttributes()), 0);
+    }
+
     @Test
     public void getAttributesTest() {
 	final List<Attribute> expected = FirewallTestsUtility.getRandomAttributes();
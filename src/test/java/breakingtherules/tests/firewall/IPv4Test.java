@@ -5,8 +5,14 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.Test;
 
@@ -772,6 +778,100 @@ public class IPv4Test extends TestBase {
 	assertTrue(ip.isBrother(ip));
     }
 
+    @Test
+    public void parseBitsTest() {
+	for (int i = 10_000; i-- != 0;) {
+	    final int[] address = FirewallTestsUtility.getRandomAddressIPv4();
+	    final boolean hasMask = rand.nextBoolean();
+	    final short maskSize = hasMask ? FirewallTestsUtility.getRandomMaskSizeIPv4() : IPv4.SIZE;
+	    final StringBuilder builder = new StringBuilder();
+	    for (int b = 0; b < address.length; b++) {
+		if (b != 0)
+		    builder.append('.');
+		// Sometimes with leading zeros
+		final String block = Integer.toString(address[b]);
+		builder.append("000".substring(Math.min(block.length() + rand.nextInt(3), 3))).append(block);
+	    }
+	    if (hasMask)
+		builder.append('/').append(maskSize);
+	    final String ipStr = builder.toString();
+
+	    final IPv4 expected = IPv4.valueOf(address, maskSize);
+	    final long bits = IPv4.parseBits(ipStr, 0, ipStr.length());
+	    assertEquals(expected.getMaskSize(), (int) (bits >>> Integer.SIZE));
+	    assertEquals(IPv4.valueOf(address, maskSize), IPv4.valueOf(ipStr));
+	    if (maskSize != 0)
+		assertEquals(expected, IPv4.valueOfBits((int) bits, maskSize));
+	    assertParseBits(ipStr, bits);
+	}
+    }
+
+    @Test
+    public void parseBitsTestInvalid() {
+	final String[] invalids = { "", "1.2.3", "1.2.3.", ".1.2.3", "1.2.3.4.5", "1..2.3", "1.2.3.4/", "1.2.3.4/33",
+		"1.2.3.4/033", "1.2.3.4/1/2", "1.2.3.256", "300.2.3.4", "1.2.3.0004", "1.2.3.4.", "1.2.3.-4",
+		"1.2.3.4/-1", "1.2.3.4 ", " 1.2.3.4", "1.2:3.4", "1.2.3.4/3a", "1.2.3.4/1 5", "255.255.255.255/32/",
+		"255.255.255.2555", "1.2.3.4".replace('.', (char) 0x12e), "AnyIPv4" };
+	for (final String invalid : invalids) {
+	    assertEquals(invalid, IPv4.INVALID_BITS, IPv4.parseBits(invalid, 0, invalid.length()));
+	    assertParseBits(invalid, IPv4.INVALID_BITS);
+	}
+    }
+
+    @Test
+    public void parseBitsTestRandomText() {
+	// Random texts of IPv4 characters, compared to a simple regex parser
+	final Pattern pattern = Pattern.compile("(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})(?:/(\\d{1,2}))?");
+	final char[] chars = "0125..../".toCharArray();
+	for (int i = 100_000; i-- != 0;) {
+	    final char[] text = new char[rand.nextInt(20)];
+	    for (int c = 0; c < text.length; c++)
+		text[c] = chars[rand.nextInt(chars.length)];
+	    final String s = new String(text);
+
+	    long expected = IPv4.INVALID_BITS;
+	    final Matcher matcher = pattern.matcher(s);
+	    if (matcher.matches()) {
+		int address = 0;
+		boolean valid = true;
+		for (int b = 1; b <= IPv4.BLOCK_NUMBER; b++) {
+		    final int block = Integer.parseInt(matcher.group(b));
+		    valid &= block <= 255;
+		    address = address << IPv4.BLOCK_SIZE | block;
+		}
+		final int maskSize = matcher.group(5) != null ? Integer.parseInt(matcher.group(5)) : IPv4.SIZE;
+		valid &= maskSize <= IPv4.SIZE;
+		address &= maskSize != 0 ? -1 << IPv4.SIZE - maskSize : 0;
+		if (valid)
+		    expected = (long) maskSize << Integer.SIZE | address & 0xffffffffL;
+	    }
+	    assertEquals(s, expected, IPv4.parseBits(s, 0, s.length()));
+	    assertParseBits(s, expected);
+	}
+    }
+
+    @Test
+    public void valueOfTestAny() {
+	assertEquals(IPv4.valueOf(new int[] { 0, 0, 0, 0 }, (short) 0), IPv4.valueOf("AnyIPv4"));
+    }
+
+    /**
+     * Check the bytes parseBits methods on a text surrounded by other bytes.
+     */
+    private static void assertParseBits(final String s, final long expected) {
+	final byte[] text = s.getBytes(StandardCharsets.ISO_8859_1);
+	final byte[] bytes = new byte[text.length + 16];
+	Arrays.fill(bytes, (byte) '1');
+	final int from = rand.nextInt(16);
+	System.arraycopy(text, 0, bytes, from, text.length);
+	final int to = from + text.length;
+	assertEquals(s, expected, IPv4.parseBits(bytes, from, to));
+	assertEquals(s, expected, IPv4.parseBits(ByteBuffer.wrap(bytes), from, to));
+	assertEquals(s, expected,
+		IPv4.parseBits(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), from, to));
+	assertEquals(s, expected, IPv4.parseBits(new String(bytes, StandardCharsets.ISO_8859_1), from, to));
+    }
+
     private static List<Boolean> toBooleanList(final boolean... arr) {
 	final List<Boolean> l = new ArrayList<>(arr.length);
 	for (final boolean b : arr)
@@ -320,6 +320,17 @@ public class IPv6Test extends TestBase {
 	assertFalse(ip2.contains(ip1));
     }
 
+    @Test
+    public void containsTestMaskSize32() {
+	final IPv6 ip1 = IPv6.valueOf(new int[] { 16, 216, 0, 0, 0, 0, 0, 0 }, (short) 32);
+	IPv6 ip2 = IPv6.valueOf(new int[] { 16, 216, 11, 7, 0, 0, 0, 0 });
+	assertTrue(ip1.contains(ip2));
+	assertFalse(ip2.contains(ip1));
+	ip2 = IPv6.valueOf(new int[] { 16, 217, 0, 0, 0, 0, 0, 0 });
+	assertFalse(ip1.contains(ip2));
+	assertFalse(ip2.contains(ip1));
+    }
+
     @Test
     public void containsTestMaskSize31() {
 	final IPv6 ip1 = IPv6.valueOf(new int[] { 16, 216, 0, 0, 0, 0, 0, 0 }, (short) 31);
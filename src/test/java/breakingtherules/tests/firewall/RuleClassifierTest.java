@@ -0,0 +1,108 @@
+package breakingtherules.tests.firewall;
+
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import breakingtherules.firewall.Attribute;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.Rule;
+import breakingtherules.firewall.RuleClassifier;
+import breakingtherules.firewall.Service;
+import breakingtherules.tests.TestBase;
+
+@SuppressWarnings("javadoc")
+public class RuleClassifierTest extends TestBase {
+
+    @Test
+    public void isMatchTest() {
+	final List<Hit> hits = getRandomHits(1000);
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 100; i++)
+	    rules.add(FirewallTestsUtility.getRandomDenseRule(hits.get(rand.nextInt(hits.size()))));
+	assertClassifierEquals(rules, new RuleClassifier(rules), hits);
+    }
+
+    @Test
+    public void isMatchTestIncremental() {
+	final List<Hit> hits = getRandomHits(500);
+	final List<Rule> rules = new ArrayList<>();
+	final RuleClassifier classifier = new RuleClassifier();
+	for (int i = 0; i < 30; i++) {
+	    final Rule rule = FirewallTestsUtility.getRandomDenseRule(hits.get(rand.nextInt(hits.size())));
+	    rules.add(rule);
+	    classifier.add(rule);
+	    assertEquals(rules.size(), classifier.size());
+	    assertClassifierEquals(rules, classifier, hits);
+	}
+    }
+
+    @Test
+    public void isMatchTestRandomAttributes() {
+	final List<Hit> hits = getRandomHits(500);
+	for (int i = 0; i < 100; i++)
+	    hits.add(new Hit(FirewallTestsUtility.getRandomAttributes()));
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 50; i++)
+	    rules.add(FirewallTestsUtility.getRandomDenseRule(hits.get(rand.nextInt(500))));
+	for (int i = 0; i < 50; i++)
+	    rules.add(new Rule(FirewallTestsUtility.getRandomAttributes()));
+	assertClassifierEquals(rules, new RuleClassifier(rules), hits);
+    }
+
+    @Test
+    public void isMatchTestPartialRules() {
+	final List<Hit> hits = getRandomHits(500);
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 50; i++) {
+	    final List<Attribute> attributes = FirewallTestsUtility
+		    .getRandomDenseRule(hits.get(rand.nextInt(hits.size()))).getAttributes();
+	    attributes.remove(rand.nextInt(attributes.size()));
+	    rules.add(new Rule(attributes));
+	}
+	assertClassifierEquals(rules, new RuleClassifier(rules), hits);
+    }
+
+    @Test
+    public void isMatchTestEmpty() {
+	final RuleClassifier classifier = new RuleClassifier();
+	for (final Hit hit : getRandomHits(100))
+	    assertFalse(classifier.isMatch(hit));
+    }
+
+    @Test
+    public void isMatchTestAnyProtocolHit() {
+	final List<Hit> hits = getRandomHits(100);
+	final List<Rule> rules = new ArrayList<>();
+	for (int i = 0; i < 20; i++)
+	    rules.add(FirewallTestsUtility.getRandomDenseRule(hits.get(rand.nextInt(hits.size()))));
+	final List<Hit> anyProtocolHits = new ArrayList<>();
+	for (final Hit hit : hits)
+	    anyProtocolHits.add(hit.createMutation(Service.valueOf(Service.ANY_PROTOCOL, rand.nextInt(1 << 16))));
+	assertClassifierEquals(rules, new RuleClassifier(rules), anyProtocolHits);
+    }
+
+    private static void assertClassifierEquals(final List<Rule> rules, final RuleClassifier classifier,
+	    final List<Hit> hits) {
+	for (final Hit hit : hits) {
+	    boolean expected = false;
+	    for (final Rule rule : rules)
+		if (rule.isMatch(hit)) {
+		    expected = true;
+		    break;
+		}
+	    assertEquals(hit.toString(), expected, classifier.isMatch(hit));
+	}
+    }
+
+    private static List<Hit> getRandomHits(final int size) {
+	final List<Hit> hits = new ArrayList<>(size);
+	for (int i = 0; i < size; i++)
+	    hits.add(FirewallTestsUtility.getRandomDenseHit());
+	return hits;
+    }
+
+}
@@ -0,0 +1,142 @@
+package breakingtherules.tests.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import breakingtherules.dao.AbstractCachedHitsDao;
+import breakingtherules.dao.ParseException;
+import breakingtherules.dao.RulesDao;
+import breakingtherules.dto.ListDto;
+import breakingtherules.dto.WarmupStatusDto;
+import breakingtherules.firewall.Filter;
+import breakingtherules.firewall.Hit;
+import breakingtherules.firewall.Rule;
+import breakingtherules.service.HitsWarmup;
+import breakingtherules.tests.TestBase;
+import breakingtherules.tests.firewall.FirewallTestsUtility;
+
+@SuppressWarnings("javadoc")
+public class HitsWarmupTest extends TestBase {
+
+    @Test
+    public void startTest() throws Exception {
+	final CountingHitsDao hitsDao = new CountingHitsDao();
+	hitsDao.m_jobs.put("job1", getRandomHits(100));
+	hitsDao.m_jobs.put("job2", getRandomHits(100));
+	final HitsWarmup warmup = new HitsWarmup(hitsDao, new MemoryRulesDao(), true, 8);
+
+	warmup.start(Arrays.asList("job1", "job2", "unknownJob"));
+	final WarmupStatusDto status = awaitWarmup(warmup);
+	assertEquals(3, status.getTotalJobs());
+	assertEquals(2, status.getWarmedJobs());
+	assertEquals(1, status.getFailedJobs());
+	assertEquals(Collections.singleton("unknownJob"), status.getFailures().keySet());
+	assertTrue(status.getFailures().get("unknownJob").contains("Unknown job"));
+	assertNull(status.getCurrentJob());
+
+	// The jobs are already loaded
+	assertEquals(100, hitsDao.getHitsNumber("job1", new ArrayList<>(), Filter.ANY_FILTER));
+	assertEquals(1, hitsDao.m_loadsNumber.get("job1").intValue());
+	assertEquals(1, hitsDao.m_loadsNumber.get("job2").intValue());
+    }
+
+    @Test
+    public void startTestDisabled() {
+	final CountingHitsDao hitsDao = new CountingHitsDao();
+	final HitsWarmup warmup = new HitsWarmup(hitsDao, new MemoryRulesDao(), false, 8);
+	warmup.start();
+	final WarmupStatusDto status = warmup.getStatus();
+	assertFalse(status.isEnabled());
+	assertFalse(status.isRunning());
+	assertEquals(0, status.getTotalJobs());
+	assertTrue(hitsDao.m_loadsNumber.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void startTestTwice() {
+	final HitsWarmup warmup = new HitsWarmup(new CountingHitsDao(), new MemoryRulesDao(), true, 8);
+	try {
+	    warmup.start(new ArrayList<>());
+	    warmup.start(new ArrayList<>());
+	} finally {
+	    warmup.stop();
+	}
+    }
+
+    private static WarmupStatusDto awaitWarmup(final HitsWarmup warmup) throws InterruptedException {
+	final long timeout = System.currentTimeMillis() + 10000;
+	WarmupStatusDto status;
+	while ((status = warmup.getStatus()).isRunning() && System.currentTimeMillis() < timeout)
+	    Thread.sleep(10);
+	assertFalse(status.isRunning());
+	return status;
+    }
+
+    private static List<Hit> getRandomHits(final int size) {
+	final List<Hit> hits = new ArrayList<>(size);
+	for (int i = 0; i < size; i++)
+	    hits.add(FirewallTestsUtility.getRandomDenseHit());
+	return hits;
+    }
+
+    private static class CountingHitsDao extends AbstractCachedHitsDao {
+
+	final Map<String, List<Hit>> m_jobs = new HashMap<>();
+
+	final Map<String, Integer> m_loadsNumber = new HashMap<>();
+
+	CountingHitsDao() {
+	}
+
+	@Override
+	public void initJob(final String jobName, final Iterable<Hit> hits) {
+	    throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected synchronized Iterable<Hit> getHits(final String jobName) throws ParseException {
+	    final List<Hit> hits = m_jobs.get(jobName);
+	    if (hits == null)
+		throw new ParseException("Unknown job: " + jobName);
+	    m_loadsNumber.merge(jobName, Integer.valueOf(1), (a, b) -> Integer.valueOf(a.intValue() + b.intValue()));
+	    return hits;
+	}
+
+    }
+
+    private static class MemoryRulesDao implements RulesDao {
+
+	MemoryRulesDao() {
+	}
+
+	@Override
+	public Rule getOriginalRule(final String jobName) {
+	    throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public ListDto<Rule> getRules(final String jobName) {
+	    final List<Rule> rules = new ArrayList<>();
+	    for (int i = 0; i < 3; i++)
+		rules.add(FirewallTestsUtility.getRandomDenseRule(FirewallTestsUtility.getRandomDenseHit()));
+	    return new ListDto<>(rules, 0, rules.size(), rules.size());
+	}
+
+	@Override
+	public ListDto<Rule> getRules(final String jobName, final int startIndex, final int endIndex) {
+	    throw new UnsupportedOperationException();
+	}
+
+    }
+
+}
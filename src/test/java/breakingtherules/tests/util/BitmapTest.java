@@ -0,0 +1,189 @@
+package breakingtherules.tests.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+
+import org.junit.Test;
+
+import breakingtherules.tests.TestBase;
+import breakingtherules.util.Bitmap;
+
+@SuppressWarnings("javadoc")
+public class BitmapTest extends TestBase {
+
+    @Test
+    public void setAndGetTest() {
+	final int size = rand.nextInt(1000) + 1;
+	final BitSet expected = randomBitSet(size);
+	final Bitmap bitmap = toBitmap(expected, size);
+	for (int i = 0; i < size; i++)
+	    assertEquals(expected.get(i), bitmap.get(i));
+	assertEquals(expected.cardinality(), bitmap.cardinality());
+    }
+
+    @Test
+    public void clearTest() {
+	final int size = rand.nextInt(1000) + 1;
+	final Bitmap bitmap = new Bitmap(size);
+	bitmap.setAll();
+	assertEquals(size, bitmap.cardinality());
+	final int index = rand.nextInt(size);
+	bitmap.clear(index);
+	assertFalse(bitmap.get(index));
+	assertEquals(size - 1, bitmap.cardinality());
+    }
+
+    @Test
+    public void setAllTest() {
+	for (int size = 0; size < 200; size++) {
+	    final Bitmap bitmap = new Bitmap(size);
+	    bitmap.setAll();
+	    assertEquals(size, bitmap.cardinality());
+	}
+    }
+
+    @Test
+    public void nextSetBitTest() {
+	final int size = rand.nextInt(1000) + 1;
+	final BitSet expected = randomBitSet(size);
+	final Bitmap bitmap = toBitmap(expected, size);
+	for (int i = 0; i <= size; i++) {
+	    final int expectedNext = expected.nextSetBit(i);
+	    assertEquals(expectedNext < size ? expectedNext : -1, bitmap.nextSetBit(i));
+	}
+    }
+
+    @Test
+    public void copyTestResize() {
+	final int size = rand.nextInt(1000) + 1;
+	final int newSize = size + rand.nextInt(200);
+	final BitSet expected = randomBitSet(size);
+	final Bitmap bitmap = new Bitmap(toBitmap(expected, size), newSize);
+	assertEquals(newSize, bitmap.size());
+	assertEquals(toBitmap(expected, newSize), bitmap);
+	if (newSize > size) {
+	    bitmap.set(newSize - 1);
+	    assertTrue(bitmap.get(newSize - 1));
+	}
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void copyTestResizeSmaller() {
+	new Bitmap(new Bitmap(10), 9);
+    }
+
+    @Test
+    public void andTest() {
+	final int size = rand.nextInt(1000) + 1;
+	final BitSet a = randomBitSet(size);
+	final BitSet b = randomBitSet(size);
+	final Bitmap bitmap = toBitmap(a, size);
+	bitmap.and(toBitmap(b, size));
+	a.and(b);
+	assertEquals(toBitmap(a, size), bitmap);
+    }
+
+    @Test
+    public void andNotTest() {
+	final int size = rand.nextInt(1000) + 1;
+	final BitSet a = randomBitSet(size);
+	final BitSet b = randomBitSet(size);
+	final Bitmap bitmap = toBitmap(a, size);
+	bitmap.andNot(toBitmap(b, size));
+	a.andNot(b);
+	assertEquals(toBitmap(a, size), bitmap);
+    }
+
+    @Test
+    public void andCardinalityTest() {
+	final int size = rand.nextInt(1000) + 1;
+	final BitSet a = randomBitSet(size);
+	final BitSet b = randomBitSet(size);
+	final int actual = Bitmap.andCardinality(toBitmap(a, size), toBitmap(b, size));
+	a.and(b);
+	assertEquals(a.cardinality(), actual);
+    }
+
+    @Test
+    public void andCardinalityTestRange() {
+	final int size = rand.nextInt(1000) + 1;
+	final BitSet a = randomBitSet(size);
+	final BitSet b = randomBitSet(size);
+	final Bitmap aBitmap = toBitmap(a, size), bBitmap = toBitmap(b, size);
+	a.and(b);
+	for (int i = 0; i < 100; i++) {
+	    final int from = rand.nextInt(size + 1);
+	    final int to = from + rand.nextInt(size - from + 1);
+	    assertEquals(a.get(from, to).cardinality(), Bitmap.andCardinality(aBitmap, bBitmap, from, to));
+	}
+    }
+
+    @Test
+    public void nextSetBitTestTwoBitmaps() {
+	final int size = rand.nextInt(1000) + 1;
+	final BitSet a = randomBitSet(size);
+	final BitSet b = randomBitSet(size);
+	final Bitmap aBitmap = toBitmap(a, size), bBitmap = toBitmap(b, size);
+	a.and(b);
+	for (int i = 0; i <= size; i++) {
+	    final int expectedNext = a.nextSetBit(i);
+	    assertEquals(expectedNext < size ? expectedNext : -1, Bitmap.nextSetBit(aBitmap, bBitmap, i));
+	}
+    }
+
+    @Test
+    public void selectSetBitTest() {
+	final int size = rand.nextInt(1000) + 1;
+	final BitSet a = randomBitSet(size);
+	final BitSet b = randomBitSet(size);
+	final Bitmap aBitmap = toBitmap(a, size), bBitmap = toBitmap(b, size);
+	a.and(b);
+	for (int r = 0; r < 100; r++) {
+	    final int fromIndex = rand.nextInt(size);
+	    final int n = rand.nextInt(size / 4 + 1);
+	    int expected = a.nextSetBit(fromIndex);
+	    for (int i = 0; i < n && expected >= 0; i++)
+		expected = a.nextSetBit(expected + 1);
+	    assertEquals(expected < size ? expected : -1, Bitmap.selectSetBit(aBitmap, bBitmap, fromIndex, n));
+	}
+    }
+
+    @Test
+    public void copyTest() {
+	final int size = rand.nextInt(1000) + 1;
+	final Bitmap bitmap = toBitmap(randomBitSet(size), size);
+	final Bitmap copy = new Bitmap(bitmap);
+	assertEquals(bitmap, copy);
+	copy.setAll();
+	assertTrue(bitmap.cardinality() <= copy.cardinality());
+	assertEquals(size, copy.cardinality());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void andTestDifferentSizes() {
+	new Bitmap(10).and(new Bitmap(11));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void setTestOutOfRange() {
+	new Bitmap(10).set(10);
+    }
+
+    private static BitSet randomBitSet(final int size) {
+	final BitSet bits = new BitSet(size);
+	for (int i = 0; i < size; i++)
+	    if (rand.nextBoolean())
+		bits.set(i);
+	return bits;
+    }
+
+    private static Bitmap toBitmap(final BitSet bits, final int size) {
+	final Bitmap bitmap = new Bitmap(size);
+	for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
+	    bitmap.set(i);
+	return bitmap;
+    }
+
+}
@@ -0,0 +1,191 @@
+package breakingtherules.tests.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import breakingtherules.util.Object2ObjectLRUCache;
+
+@SuppressWarnings("javadoc")
+public class Object2ObjectLRUCacheTest extends AbstractObject2ObjectCacheTest {
+
+    @Test
+    public void addTest() {
+	addTest(new Object2ObjectLRUCache<>(100));
+    }
+
+    @Test
+    public void addTestAndGetAfter() {
+	addTestAndGetAfter(new Object2ObjectLRUCache<>(100));
+    }
+
+    @Test
+    public void addTestNullKey() {
+	addTestNullKey(new Object2ObjectLRUCache<>(100));
+    }
+
+    @Test
+    public void addTestNullKeyAndGetAfter() {
+	addTestNullKeyAndGetAfter(new Object2ObjectLRUCache<>(100));
+    }
+
+    @Test
+    public void clearTest() {
+	clearTest(new Object2ObjectLRUCache<>(100));
+    }
+
+    @SuppressWarnings("unused")
+    @Test
+    public void constructorTest() {
+	new Object2ObjectLRUCache<>(100);
+    }
+
+    @SuppressWarnings("unused")
+    @Test
+    public void constructorTestWeigher() {
+	new Object2ObjectLRUCache<Integer, String>(1000, String::length);
+    }
+
+    @SuppressWarnings("unused")
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorTestNonPositiveMaxSize() {
+	new Object2ObjectLRUCache<>(0);
+    }
+
+    @SuppressWarnings("unused")
+    @Test(expected = NullPointerException.class)
+    public void constructorTestNullWeigher() {
+	new Object2ObjectLRUCache<Integer, String>(1000, null);
+    }
+
+    @Test
+    public void evictionTestLeastRecentlyUsed() {
+	final Object2ObjectLRUCache<Integer, Integer> cache = new Object2ObjectLRUCache<>(3);
+	cache.add(Integer.valueOf(1), Integer.valueOf(10));
+	cache.add(Integer.valueOf(2), Integer.valueOf(20));
+	cache.add(Integer.valueOf(3), Integer.valueOf(30));
+	assertEquals(Integer.valueOf(10), cache.get(Integer.valueOf(1)));
+
+	// 2 is the least recently used
+	cache.add(Integer.valueOf(4), Integer.valueOf(40));
+	assertEquals(3, cache.size());
+	assertNull(cache.get(Integer.valueOf(2)));
+	assertEquals(Integer.valueOf(10), cache.get(Integer.valueOf(1)));
+	assertEquals(Integer.valueOf(30), cache.get(Integer.valueOf(3)));
+	assertEquals(Integer.valueOf(40), cache.get(Integer.valueOf(4)));
+    }
+
+    @Test
+    public void evictionTestWeight() {
+	final Object2ObjectLRUCache<Integer, String> cache = new Object2ObjectLRUCache<>(10, String::length);
+	cache.add(Integer.valueOf(1), "aaaa");
+	cache.add(Integer.valueOf(2), "bbbb");
+	assertEquals(8, cache.weight());
+
+	cache.add(Integer.valueOf(3), "ccc");
+	assertEquals(2, cache.size());
+	assertEquals(7, cache.weight());
+	assertNull(cache.get(Integer.valueOf(1)));
+
+	// Heavier than the whole cache, not cached
+	assertEquals("ddddddddddd", cache.add(Integer.valueOf(4), "ddddddddddd"));
+	assertNull(cache.get(Integer.valueOf(4)));
+	assertEquals(7, cache.weight());
+
+	cache.remove(Integer.valueOf(2));
+	assertEquals(3, cache.weight());
+	cache.clear();
+	assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void evictionTestListener() {
+	final List<Integer> evicted = new ArrayList<>();
+	final Object2ObjectLRUCache<Integer, String> cache = new Object2ObjectLRUCache<>(6, String::length,
+		(key, element) -> evicted.add(key));
+	cache.add(Integer.valueOf(1), "aa");
+	cache.add(Integer.valueOf(2), "bb");
+	cache.add(Integer.valueOf(3), "cc");
+	cache.get(Integer.valueOf(1));
+	cache.add(Integer.valueOf(4), "dddd");
+	assertEquals(Arrays.asList(Integer.valueOf(2), Integer.valueOf(3)), evicted);
+
+	// Removed elements are not evicted
+	cache.remove(Integer.valueOf(1));
+	cache.clear();
+	assertEquals(2, evicted.size());
+    }
+
+    @Test
+    public void setMaxWeightTest() {
+	final List<String> evicted = new ArrayList<>();
+	final Object2ObjectLRUCache<Integer, String> cache = new Object2ObjectLRUCache<>(10, String::length,
+		(key, element) -> evicted.add(element));
+	cache.add(Integer.valueOf(1), "aaa");
+	cache.add(Integer.valueOf(2), "bbb");
+	cache.add(Integer.valueOf(3), "ccc");
+
+	cache.setMaxWeight(4);
+	assertEquals(4, cache.maxWeight());
+	assertEquals(1, cache.size());
+	assertEquals(3, cache.weight());
+	assertEquals(Arrays.asList("aaa", "bbb"), evicted);
+	assertEquals("ccc", cache.get(Integer.valueOf(3)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setMaxWeightTestNonPositive() {
+	new Object2ObjectLRUCache<>(10).setMaxWeight(0);
+    }
+
+    @Test
+    public void forEachTest() {
+	final Object2ObjectLRUCache<Integer, String> cache = new Object2ObjectLRUCache<>(100);
+	cache.add(Integer.valueOf(1), "a");
+	cache.add(Integer.valueOf(2), "b");
+	cache.add(Integer.valueOf(3), "c");
+	final List<String> elements = new ArrayList<>();
+	cache.forEach((key, element) -> elements.add(key + element));
+	assertEquals(Arrays.asList("1a", "2b", "3c"), elements);
+
+	// Iteration doesn't change the eviction order
+	cache.setMaxWeight(2);
+	assertNull(cache.get(Integer.valueOf(1)));
+    }
+
+    @Test
+    public void getOrAddTest() {
+	getOrAddTest(new Object2ObjectLRUCache<>(100));
+    }
+
+    @Test
+    public void getTestNonEmptyCache() {
+	getTestNonEmptyCache(new Object2ObjectLRUCache<>(100));
+    }
+
+    @Test
+    public void rempveTest() {
+	removeTest(new Object2ObjectLRUCache<>(100));
+    }
+
+    @Test
+    public void sizeTestDoubleAddingKey() {
+	sizeTestDoubleAddingKey(new Object2ObjectLRUCache<>(100));
+    }
+
+    @Test
+    public void sizeTestEmptyCache() {
+	sizeTestEmptyCache(new Object2ObjectLRUCache<>(100));
+    }
+
+    @Test
+    public void sizeTestNonEmptyCache() {
+	sizeTestNonEmptyCache(new Object2ObjectLRUCache<>(100));
+    }
+
+}
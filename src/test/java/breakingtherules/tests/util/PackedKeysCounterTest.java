@@ -0,0 +1,66 @@
+package breakingtherules.tests.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import breakingtherules.tests.TestBase;
+import breakingtherules.util.PackedKeysCounter;
+
+@SuppressWarnings("javadoc")
+public class PackedKeysCounterTest extends TestBase {
+
+    @Test
+    public void addTest() {
+	final PackedKeysCounter counter = new PackedKeysCounter();
+	final Map<List<Long>, Integer> expected = new LinkedHashMap<>();
+	// The index of each key, by the order of the keys' first additions
+	final Map<List<Long>, Integer> indexes = new HashMap<>();
+	for (int i = 100_000; i-- != 0;) {
+	    // Small keys ranges, so keys repeat and differ only in one half
+	    final long high = rand.nextInt(100);
+	    final long low = rand.nextBoolean() ? rand.nextInt(100) : (long) rand.nextInt(100) << 48;
+	    final List<Long> key = new ArrayList<>(2);
+	    key.add(Long.valueOf(high));
+	    key.add(Long.valueOf(low));
+
+	    Integer expectedIndex = indexes.get(key);
+	    if (expectedIndex == null)
+		indexes.put(key, expectedIndex = Integer.valueOf(indexes.size()));
+	    expected.merge(key, Integer.valueOf(1), Integer::sum);
+	    assertEquals(expectedIndex.intValue(), counter.add(high, low));
+	}
+
+	assertEquals(expected.size(), counter.size());
+	int index = 0;
+	for (final Map.Entry<List<Long>, Integer> entry : expected.entrySet()) {
+	    assertEquals(entry.getKey().get(0).longValue(), counter.getHigh(index));
+	    assertEquals(entry.getKey().get(1).longValue(), counter.getLow(index));
+	    assertEquals(entry.getValue().intValue(), counter.getCount(index));
+	    index++;
+	}
+    }
+
+    @Test
+    public void clearTest() {
+	final PackedKeysCounter counter = new PackedKeysCounter(4);
+	for (int i = 0; i < 100; i++)
+	    counter.add(i, -i);
+	counter.clear();
+	assertEquals(0, counter.size());
+	assertEquals(0, counter.add(7, -7));
+	assertEquals(1, counter.getCount(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getCountTestOutOfBounds() {
+	final PackedKeysCounter counter = new PackedKeysCounter();
+	counter.add(1, 1);
+	counter.getCount(1);
+    }
+
+}
@@ -0,0 +1,63 @@
+package breakingtherules.tests.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import breakingtherules.tests.TestBase;
+import breakingtherules.util.Swar;
+
+@SuppressWarnings("javadoc")
+public class SwarTest extends TestBase {
+
+    @Test
+    public void equalBytesTest() {
+	final long word = Swar.load("1.2/.a.", 0, 7);
+	assertEquals(0b1010010, Swar.equalBytes(word, '.'));
+	assertEquals(0b0001000, Swar.equalBytes(word, '/'));
+	assertEquals(0, Swar.equalBytes(word, 'b'));
+	// The bytes after the text are zeros
+	assertEquals(0b10000000, Swar.equalBytes(word, '\0'));
+    }
+
+    @Test
+    public void loadTest() {
+	final String text = "0123456789abc";
+	final byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+	for (int from = 0; from <= bytes.length; from++) {
+	    final long expected = Swar.load(text, from, bytes.length);
+	    assertEquals(expected, Swar.load(bytes, from, bytes.length));
+	    assertEquals(expected, Swar.load(ByteBuffer.wrap(bytes), from, bytes.length));
+	    assertEquals(expected, Swar.load(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), from,
+		    bytes.length));
+	    for (int i = 0; i < Swar.WORD_BYTES; i++)
+		assertEquals(from + i < bytes.length ? bytes[from + i] : 0, (byte) (expected >>> i * Byte.SIZE));
+	}
+    }
+
+    @Test
+    public void nonDigitsTest() {
+	for (int c = 0; c <= 0xff; c++) {
+	    final boolean digit = '0' <= c && c <= '9';
+	    final long word = (long) c << 3 * Byte.SIZE | 0x3030_3030_3030_3030L & ~(0xffL << 3 * Byte.SIZE);
+	    assertEquals(digit ? 0 : 0b1000, Swar.nonDigits(word));
+	}
+    }
+
+    @Test
+    public void parseNumberTest() {
+	for (int i = 100_000; i-- != 0;) {
+	    final int number = rand.nextInt(100_000_000 >>> rand.nextInt(27));
+	    final String text = Integer.toString(number) + "x";
+	    final long word = Swar.load(text, 0, text.length());
+	    assertEquals(number, Swar.parseNumber(word, text.length() - 1));
+	    assertEquals(number, Swar.parseDigits(word, text.length() - 1));
+	}
+	assertEquals(7, Swar.parseNumber(Swar.load("0007", 0, 4), 4));
+	assertEquals(-1, Swar.parseNumber(Swar.load("12a4", 0, 4), 4));
+	assertEquals(-1, Swar.parseNumber(Swar.load("-1", 0, 2), 2));
+    }
+
+}